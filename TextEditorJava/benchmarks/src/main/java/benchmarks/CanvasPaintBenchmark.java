@@ -0,0 +1,84 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+// DrawingCanvas.paintComponent rendered headlessly into a BufferedImage. Shapes are added the
+// way a user adds them, by dispatching press/release mouse events. fullPaint forces the shape
+// layer to be rebuilt by changing the canvas size; dragFrame is one frame of a rubber-band drag.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx12g", "-Djava.awt.headless=true"})
+public class CanvasPaintBenchmark {
+    private static final int WIDTH = 1600;
+    private static final int HEIGHT = 1200;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int shapes;
+
+    private JPanel canvas;
+    private BufferedImage image;
+    private Graphics2D g;
+    private int frame;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        canvas = Editor.newCanvas();
+        canvas.setSize(WIDTH, HEIGHT);
+        RepaintManager.currentManager(canvas).setDoubleBufferingEnabled(false);
+        image = new BufferedImage(WIDTH + 1, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        g = image.createGraphics();
+
+        String[] kinds = {"Rectangle", "Oval", "Line", "Triangle", "Pentagon"};
+        SplittableRandom random = new SplittableRandom(7);
+        for (int i = 0; i < shapes; i++) {
+            Editor.setShapeToDraw(canvas, kinds[i % kinds.length]);
+            int x = random.nextInt(WIDTH - 40);
+            int y = random.nextInt(HEIGHT - 40);
+            mouse(MouseEvent.MOUSE_PRESSED, x, y);
+            mouse(MouseEvent.MOUSE_RELEASED, x + 2 + random.nextInt(38), y + 2 + random.nextInt(38));
+        }
+        // Leave a drag in progress for dragFrame
+        Editor.setShapeToDraw(canvas, "Rectangle");
+        mouse(MouseEvent.MOUSE_PRESSED, 100, 100);
+        mouse(MouseEvent.MOUSE_DRAGGED, 400, 300);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        g.dispose();
+    }
+
+    @Benchmark
+    public BufferedImage fullPaint() {
+        canvas.setSize(WIDTH + (frame++ & 1), HEIGHT);
+        canvas.paint(g);
+        return image;
+    }
+
+    // Clipped to the rubber band's area, as the RepaintManager does for the canvas' dirty rectangles
+    @Benchmark
+    public BufferedImage dragFrame() {
+        int offset = frame++ & 63;
+        mouse(MouseEvent.MOUSE_DRAGGED, 400 + offset, 300 + offset);
+        Graphics2D frameGraphics = (Graphics2D) g.create(98, 98, 370, 270);
+        frameGraphics.translate(-98, -98);
+        canvas.paint(frameGraphics);
+        frameGraphics.dispose();
+        return image;
+    }
+
+    private void mouse(int id, int x, int y) {
+        int modifiers = id == MouseEvent.MOUSE_RELEASED ? 0 : MouseEvent.BUTTON1_DOWN_MASK;
+        canvas.dispatchEvent(new MouseEvent(canvas, id, 0, modifiers, x, y, 1, false, MouseEvent.BUTTON1));
+    }
+}
@@ -0,0 +1,83 @@
+package benchmarks;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.StyledDocument;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.SplittableRandom;
+
+// Deterministic prose-like text for the benchmarks. Lines average about 60 chars; every
+// 100th line contains "needle" and every 1000th line contains "marker", so match counts
+// scale with the document size.
+final class Documents {
+    private static final String[] WORDS = {
+            "lorem", "ipsum", "dolor", "sit", "amet", "consectetur", "adipiscing", "elit", "sed", "do",
+            "eiusmod", "tempor", "incididunt", "ut", "labore", "et", "dolore", "magna", "aliqua", "enim"
+    };
+
+    private Documents() {
+    }
+
+    // Parses sizes such as "1KB", "64MB" or "500MB" into a char count
+    static int parseSize(String size) {
+        String s = size.trim().toUpperCase(Locale.ROOT);
+        long unit = 1;
+        if (s.endsWith("KB")) {
+            unit = 1024;
+        } else if (s.endsWith("MB")) {
+            unit = 1024 * 1024;
+        } else if (s.endsWith("GB")) {
+            unit = 1024L * 1024 * 1024;
+        }
+        long value = Long.parseLong(s.replaceAll("[A-Z]", "")) * unit;
+        if (value > Integer.MAX_VALUE - 16) {
+            throw new IllegalArgumentException("Documents are limited to 2 GB of chars: " + size);
+        }
+        return (int) value;
+    }
+
+    static String text(int length) {
+        StringBuilder out = new StringBuilder(length + 80);
+        SplittableRandom random = new SplittableRandom(42);
+        int line = 0;
+        while (out.length() < length) {
+            int lineStart = out.length();
+            if (line % 100 == 0) {
+                out.append("needle ");
+            }
+            if (line % 1000 == 0) {
+                out.append("marker ");
+            }
+            while (out.length() - lineStart < 50 + random.nextInt(20)) {
+                out.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            out.setCharAt(out.length() - 1, '\n');
+            line++;
+        }
+        out.setLength(length);
+        return out.toString();
+    }
+
+    static StyledDocument document(int length) {
+        StyledDocument doc = Editor.newDocument();
+        try {
+            doc.insertString(0, text(length), null);
+        } catch (BadLocationException e) {
+            throw new IllegalStateException(e);
+        }
+        return doc;
+    }
+
+    static Path file(int length) throws IOException {
+        Path file = Files.createTempFile("editor-bench", ".txt");
+        file.toFile().deleteOnExit();
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write(text(length));
+        }
+        return file;
+    }
+}
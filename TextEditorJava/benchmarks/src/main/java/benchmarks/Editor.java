@@ -0,0 +1,201 @@
+package benchmarks;
+
+import javax.swing.*;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.Document;
+import javax.swing.text.JTextComponent;
+import javax.swing.text.StyledDocument;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.regex.Pattern;
+
+import static java.lang.invoke.MethodType.methodType;
+
+// Typed access to the editor classes. The editor lives in the default package, which code in a
+// named package (and JMH requires one) can't import, so every entry point is bound here once as
+// a constant MethodHandle. The JIT inlines constant handles, so calls through them cost the same
+// as direct calls.
+final class Editor {
+    private static final MethodHandle NEW_DOCUMENT;
+    private static final MethodHandle COMPILE;
+    private static final MethodHandle REPLACE_ALL;
+    private static final MethodHandle REPLACE_FIRST;
+    private static final MethodHandle RESULT_COUNT;
+    private static final MethodHandle NEW_FILE_LOADER;
+    private static final MethodHandle SNAPSHOT;
+    private static final MethodHandle NEW_FILE_SAVER;
+    private static final MethodHandle NEW_STATISTICS;
+    private static final MethodHandle SET_DOCUMENT;
+    private static final MethodHandle COUNT_WORDS;
+    private static final MethodHandle GET_WORDS;
+    private static final MethodHandle NEW_CANVAS;
+    private static final MethodHandle SET_SHAPE_TO_DRAW;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> content = Class.forName("PieceTableContent");
+            Class<?> replaceEngine = Class.forName("ReplaceEngine");
+            Class<?> result = Class.forName("ReplaceEngine$Result");
+            Class<?> fileLoader = Class.forName("FileLoader");
+            Class<?> fileSaver = Class.forName("FileSaver");
+            Class<?> statistics = Class.forName("DocumentStatistics");
+            Class<?> canvas = Class.forName("DrawingCanvas");
+
+            NEW_DOCUMENT = lookup.findStatic(content, "newDocument", methodType(StyledDocument.class));
+            COMPILE = lookup.findStatic(replaceEngine, "compile",
+                    methodType(Pattern.class, String.class, boolean.class, boolean.class));
+            MethodType replace = methodType(result, StyledDocument.class, Pattern.class, String.class, boolean.class);
+            MethodType erasedReplace = replace.changeReturnType(Object.class);
+            REPLACE_ALL = lookup.findStatic(replaceEngine, "replaceAll", replace).asType(erasedReplace);
+            REPLACE_FIRST = lookup.findStatic(replaceEngine, "replaceFirst", replace).asType(erasedReplace);
+            RESULT_COUNT = lookup.findVirtual(result, "count", methodType(int.class))
+                    .asType(methodType(int.class, Object.class));
+            NEW_FILE_LOADER = lookup.findConstructor(fileLoader,
+                            methodType(void.class, Path.class, JTextComponent.class, Document.class, Charset.class))
+                    .asType(methodType(SwingWorker.class, Path.class, JTextComponent.class, Document.class, Charset.class));
+            SNAPSHOT = lookup.findStatic(fileSaver, "snapshot", methodType(CharBuffer[].class, Document.class));
+            NEW_FILE_SAVER = lookup.findConstructor(fileSaver,
+                            methodType(void.class, CharBuffer[].class, Path.class, Charset.class))
+                    .asType(methodType(SwingWorker.class, CharBuffer[].class, Path.class, Charset.class));
+            NEW_STATISTICS = lookup.findConstructor(statistics, methodType(void.class, Runnable.class))
+                    .asType(methodType(DocumentListener.class, Runnable.class));
+            SET_DOCUMENT = lookup.findVirtual(statistics, "setDocument", methodType(void.class, Document.class))
+                    .asType(methodType(void.class, DocumentListener.class, Document.class));
+            COUNT_WORDS = lookup.findVirtual(statistics, "countWords", methodType(long.class, int.class, int.class))
+                    .asType(methodType(long.class, DocumentListener.class, int.class, int.class));
+            GET_WORDS = lookup.findVirtual(statistics, "getWords", methodType(long.class))
+                    .asType(methodType(long.class, DocumentListener.class));
+            NEW_CANVAS = lookup.findConstructor(canvas, methodType(void.class))
+                    .asType(methodType(JPanel.class));
+            SET_SHAPE_TO_DRAW = lookup.findVirtual(canvas, "setShapeToDraw", methodType(void.class, String.class))
+                    .asType(methodType(void.class, JPanel.class, String.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Editor() {
+    }
+
+    static StyledDocument newDocument() {
+        try {
+            return (StyledDocument) NEW_DOCUMENT.invokeExact();
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Pattern compile(String find, boolean regex, boolean matchCase) {
+        try {
+            return (Pattern) COMPILE.invokeExact(find, regex, matchCase);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // Returns the number of replacements made
+    static int replaceAll(StyledDocument doc, Pattern pattern, String replacement, boolean regex) {
+        try {
+            return (int) RESULT_COUNT.invokeExact((Object) REPLACE_ALL.invokeExact(doc, pattern, replacement, regex));
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static int replaceFirst(StyledDocument doc, Pattern pattern, String replacement, boolean regex) {
+        try {
+            return (int) RESULT_COUNT.invokeExact((Object) REPLACE_FIRST.invokeExact(doc, pattern, replacement, regex));
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static SwingWorker<?, ?> newFileLoader(Path path, JTextComponent target, Document doc, Charset charset) {
+        try {
+            return (SwingWorker<?, ?>) NEW_FILE_LOADER.invokeExact(path, target, doc, charset);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static CharBuffer[] snapshot(Document doc) {
+        try {
+            return (CharBuffer[]) SNAPSHOT.invokeExact(doc);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static SwingWorker<?, ?> newFileSaver(CharBuffer[] snapshot, Path target, Charset charset) {
+        try {
+            return (SwingWorker<?, ?>) NEW_FILE_SAVER.invokeExact(snapshot, target, charset);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // The statistics object is returned as the DocumentListener it implements
+    static DocumentListener newStatistics() {
+        try {
+            return (DocumentListener) NEW_STATISTICS.invokeExact((Runnable) () -> {
+            });
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void setDocument(DocumentListener statistics, Document doc) {
+        try {
+            SET_DOCUMENT.invokeExact(statistics, doc);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static long countWords(DocumentListener statistics, int start, int end) {
+        try {
+            return (long) COUNT_WORDS.invokeExact(statistics, start, end);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static long getWords(DocumentListener statistics) {
+        try {
+            return (long) GET_WORDS.invokeExact(statistics);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static JPanel newCanvas() {
+        try {
+            return (JPanel) NEW_CANVAS.invokeExact();
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void setShapeToDraw(JPanel canvas, String shape) {
+        try {
+            SET_SHAPE_TO_DRAW.invokeExact(canvas, shape);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException e) {
+            throw e;
+        }
+        if (t instanceof Error e) {
+            throw e;
+        }
+        throw new IllegalStateException(t);
+    }
+}
@@ -0,0 +1,47 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.swing.*;
+import javax.swing.text.StyledDocument;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+// openFile: mapping, decoding and appending a whole file to a fresh document through FileLoader
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx12g", "-Djava.awt.headless=true"})
+public class OpenFileBenchmark {
+    @Param({"1KB", "1MB", "64MB", "500MB"})
+    public String size;
+
+    private Path file;
+    private JTextPane target;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = Documents.file(Documents.parseSize(size));
+        target = new JTextPane();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public StyledDocument open() throws InterruptedException, ExecutionException {
+        StyledDocument doc = Editor.newDocument();
+        SwingWorker<?, ?> loader = Editor.newFileLoader(file, target, doc, StandardCharsets.UTF_8);
+        loader.execute();
+        loader.get();
+        return doc;
+    }
+}
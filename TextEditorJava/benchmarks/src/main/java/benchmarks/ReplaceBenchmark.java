@@ -0,0 +1,54 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.swing.text.StyledDocument;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+// findAndReplace and findAndReplaceFirst. Each invocation flips a word between two spellings
+// of the same length, so the document and the match count stay the same from call to call.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx12g", "-Djava.awt.headless=true"})
+public class ReplaceBenchmark {
+    @Param({"1KB", "1MB", "64MB", "500MB"})
+    public String size;
+
+    private StyledDocument doc;
+    private final Pattern[] needles = {Editor.compile("needle", false, true), Editor.compile("NEEDLE", false, true)};
+    private final Pattern[] markers = {Editor.compile("marker", false, true), Editor.compile("MARKER", false, true)};
+    private final Pattern[] regexNeedles = {Editor.compile("ne(e)dle", true, true), Editor.compile("NE(E)DLE", true, true)};
+    private int needleState;
+    private int markerState;
+    private int regexState;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        doc = Documents.document(Documents.parseSize(size));
+    }
+
+    @Benchmark
+    public int replaceAll() {
+        int from = needleState;
+        needleState ^= 1;
+        return Editor.replaceAll(doc, needles[from], from == 0 ? "NEEDLE" : "needle", false);
+    }
+
+    @Benchmark
+    public int replaceAllRegex() {
+        int from = regexState;
+        regexState ^= 1;
+        return Editor.replaceAll(doc, regexNeedles[from], from == 0 ? "NE$1DLE" : "ne$1dle", true);
+    }
+
+    @Benchmark
+    public int replaceFirst() {
+        int from = markerState;
+        markerState ^= 1;
+        return Editor.replaceFirst(doc, markers[from], from == 0 ? "MARKER" : "marker", false);
+    }
+}
@@ -0,0 +1,52 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.swing.*;
+import javax.swing.text.StyledDocument;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+// saveFile: the EDT-side snapshot on its own, and the full snapshot, encode, fsync and
+// rename done by FileSaver
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx12g", "-Djava.awt.headless=true"})
+public class SaveFileBenchmark {
+    @Param({"1KB", "1MB", "64MB", "500MB"})
+    public String size;
+
+    private StyledDocument doc;
+    private Path target;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        doc = Documents.document(Documents.parseSize(size));
+        target = Files.createTempFile("editor-bench-save", ".txt");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(target);
+    }
+
+    @Benchmark
+    public CharBuffer[] snapshot() {
+        return Editor.snapshot(doc);
+    }
+
+    @Benchmark
+    public Object save() throws InterruptedException, ExecutionException {
+        SwingWorker<?, ?> saver = Editor.newFileSaver(Editor.snapshot(doc), target, StandardCharsets.UTF_8);
+        saver.execute();
+        return saver.get();
+    }
+}
@@ -0,0 +1,46 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.StyledDocument;
+import java.util.concurrent.TimeUnit;
+
+// Style application through setCharacterAttributes, as the Format menu does it, over a
+// 1 KB selection and over the whole document. Bold is toggled so every call changes runs.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx12g", "-Djava.awt.headless=true"})
+public class StyleBenchmark {
+    @Param({"1KB", "1MB", "64MB", "500MB"})
+    public String size;
+
+    private StyledDocument doc;
+    private final SimpleAttributeSet[] bold = {new SimpleAttributeSet(), new SimpleAttributeSet()};
+    private int selectionState;
+    private int documentState;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        doc = Documents.document(Documents.parseSize(size));
+        StyleConstants.setBold(bold[0], true);
+        StyleConstants.setBold(bold[1], false);
+    }
+
+    @Benchmark
+    public void styleSelection() {
+        int length = Math.min(1024, doc.getLength());
+        doc.setCharacterAttributes((doc.getLength() - length) / 2, length, bold[selectionState], false);
+        selectionState ^= 1;
+    }
+
+    @Benchmark
+    public void styleDocument() {
+        doc.setCharacterAttributes(0, doc.getLength(), bold[documentState], false);
+        documentState ^= 1;
+    }
+}
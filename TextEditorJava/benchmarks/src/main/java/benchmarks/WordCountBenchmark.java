@@ -0,0 +1,51 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.StyledDocument;
+import java.util.concurrent.TimeUnit;
+
+// wordCount and the live statistics: a full count when a document is attached, counting a
+// selection that spans the whole document, and the incremental update behind one keystroke
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx12g", "-Djava.awt.headless=true"})
+public class WordCountBenchmark {
+    @Param({"1KB", "1MB", "64MB", "500MB"})
+    public String size;
+
+    private StyledDocument doc;
+    private DocumentListener statistics;
+    private int middle;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        doc = Documents.document(Documents.parseSize(size));
+        statistics = Editor.newStatistics();
+        Editor.setDocument(statistics, doc);
+        middle = doc.getLength() / 2;
+    }
+
+    @Benchmark
+    public long fullCount() {
+        Editor.setDocument(statistics, doc);
+        return Editor.getWords(statistics);
+    }
+
+    @Benchmark
+    public long selectionCount() {
+        return Editor.countWords(statistics, 0, doc.getLength());
+    }
+
+    @Benchmark
+    public long keystroke() throws BadLocationException {
+        doc.insertString(middle, "x ", null);
+        doc.remove(middle, 2);
+        return Editor.getWords(statistics);
+    }
+}
@@ -0,0 +1,75 @@
+import org.junit.jupiter.api.Test;
+
+import javax.swing.text.StyledDocument;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// 3,000 random copy, cut, paste and edit steps through the clipboard ring, against a
+// StringBuilder for the document and a list of strings for the clips. Clips share the
+// document's pieces, so editing the document afterwards must not change them.
+class ClipboardRingTest {
+    private static final int STEPS = 3000;
+
+    @Test
+    void clipsKeepTheirTextWhileTheDocumentChanges() throws Exception {
+        Random random = new Random(21);
+        StyledDocument doc = PieceTableContent.newDocument();
+        EditorEngine engine = new EditorEngine(doc, new EditHistory());
+        ClipboardRing ring = new ClipboardRing();
+        StringBuilder model = new StringBuilder();
+        List<String> clips = new ArrayList<>(); // Newest first, like the ring
+        for (int step = 0; step < STEPS; step++) {
+            int length = model.length();
+            int op = random.nextInt(7);
+            if (op < 2 || length == 0) {
+                // Now and then more than the ring copies, so the clip holds the pieces
+                int offset = random.nextInt(length + 1);
+                String text = PieceTableTest.randomText(random, random.nextInt(20) == 0 ? 100_000 : 50);
+                doc.insertString(offset, text, null);
+                model.insert(offset, text);
+            } else if (op == 2) {
+                int offset = random.nextInt(length);
+                int count = 1 + random.nextInt(Math.min(length - offset, 1000));
+                doc.remove(offset, count);
+                model.delete(offset, offset + count);
+            } else if (op == 3 || op == 4) {
+                int start = random.nextInt(length);
+                int end = start + 1 + random.nextInt(Math.min(length - start, 100_000));
+                ring.add(engine.span(start, end));
+                clips.add(0, model.substring(start, end));
+                if (op == 4) { // Cut
+                    doc.remove(start, end - start);
+                    model.delete(start, end);
+                }
+            } else if (!clips.isEmpty()) {
+                int start = random.nextInt(length + 1);
+                int end = random.nextBoolean() ? start : start + random.nextInt(Math.min(length - start, 100) + 1);
+                if (op == 6) { // An older clip, picked from the ring
+                    int index = random.nextInt(ring.getClips().size());
+                    ring.select(index);
+                    clips.add(0, clips.remove(index));
+                }
+                engine.paste(start, end, ring.current(), null);
+                model.replace(start, end, clips.get(0));
+            }
+            // The ring drops its oldest clips past its limits
+            clips.subList(ring.getClips().size(), clips.size()).clear();
+
+            // All of the text and every clip now and then, which keeps the run short
+            String where = "step " + step + " op " + op;
+            if (step % 100 == 99) {
+                assertEquals(model.toString(), doc.getText(0, doc.getLength()), where);
+                for (int i = 0; i < clips.size(); i++) {
+                    assertEquals(clips.get(i), ring.getClips().get(i).toString(), where + " clip " + i);
+                }
+            } else if (model.length() > 0) {
+                int offset = random.nextInt(model.length());
+                int count = Math.min(model.length() - offset, 1000);
+                assertEquals(model.substring(offset, offset + count), doc.getText(offset, count), where);
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+import org.junit.jupiter.api.Test;
+
+import javax.swing.text.AttributeSet;
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.text.StyleConstants;
+import javax.swing.undo.UndoManager;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Style runs under heavy formatting: runs share their attribute sets, styles toggled back leave
+// no fragments behind, undo restores the runs exactly, and load rebuilds a document from the
+// runs it gave out
+class CompactStyledDocumentTest {
+    private static final int LINES = 200;
+    private static final int STEPS = 300;
+
+    @Test
+    void runsShareTheirStylesAndMergeBack() throws Exception {
+        CompactStyledDocument doc = document();
+        int plainRuns = doc.getRunStatistics().runs();
+        assertEquals(LINES + 1, plainRuns); // One per paragraph, the last one empty
+        assertEquals(1, doc.getRunStatistics().styles());
+
+        Random random = new Random(12);
+        for (int step = 0; step < STEPS; step++) {
+            int offset = random.nextInt(doc.getLength());
+            int length = 1 + random.nextInt(Math.min(40, doc.getLength() - offset));
+            doc.setCharacterAttributes(offset, length, random.nextBoolean() ? bold(true) : italic(true), false);
+        }
+        CompactStyledDocument.RunStatistics formatted = doc.getRunStatistics();
+        assertTrue(formatted.runs() > plainRuns + STEPS / 2, "runs " + formatted.runs());
+        // Plain, bold, italic and both: every run holds one of the same four sets
+        assertEquals(4, formatted.styles());
+
+        doc.setCharacterAttributes(0, doc.getLength(), bold(false), false);
+        doc.setCharacterAttributes(0, doc.getLength(), italic(false), false);
+        assertEquals(plainRuns, doc.getRunStatistics().runs());
+        // Replacing with no attributes gives back the same empty set the text was inserted with
+        doc.setCharacterAttributes(0, doc.getLength(), new SimpleAttributeSet(), true);
+        CompactStyledDocument.RunStatistics cleared = doc.getRunStatistics();
+        assertEquals(plainRuns, cleared.runs());
+        assertEquals(1, cleared.styles());
+        assertEquals(1, doc.getStyleRuns().count());
+    }
+
+    @Test
+    void undoRestoresTheRuns() throws Exception {
+        CompactStyledDocument doc = document();
+        UndoManager undo = new UndoManager();
+        doc.addUndoableEditListener(undo);
+        Random random = new Random(8);
+        List<CompactStyledDocument.StyleRuns> before = new ArrayList<>();
+        for (int step = 0; step < 50; step++) {
+            CompactStyledDocument.StyleRuns runs = doc.getStyleRuns();
+            int offset = random.nextInt(doc.getLength());
+            int length = 1 + random.nextInt(Math.min(2000, doc.getLength() - offset));
+            doc.setCharacterAttributes(offset, length, random.nextBoolean() ? bold(random.nextBoolean())
+                    : italic(random.nextBoolean()), random.nextInt(5) == 0);
+            if (!sameRuns(runs, doc.getStyleRuns())) {
+                before.add(runs);
+            }
+        }
+        CompactStyledDocument.StyleRuns after = doc.getStyleRuns();
+        for (int step = before.size() - 1; step >= 0; step--) {
+            undo.undo();
+            assertSameRuns(before.get(step), doc.getStyleRuns());
+        }
+        assertFalse(undo.canUndo());
+        while (undo.canRedo()) {
+            undo.redo();
+        }
+        assertSameRuns(after, doc.getStyleRuns());
+    }
+
+    @Test
+    void restylingWithWhatIsThereAlreadyChangesNothing() throws Exception {
+        CompactStyledDocument doc = document();
+        doc.setCharacterAttributes(10, 100, bold(true), false);
+        UndoManager undo = new UndoManager();
+        doc.addUndoableEditListener(undo);
+        doc.setCharacterAttributes(20, 50, bold(true), false);
+        assertFalse(undo.canUndo());
+    }
+
+    @Test
+    void loadRebuildsTheDocument() throws Exception {
+        CompactStyledDocument doc = document();
+        Random random = new Random(5);
+        for (int step = 0; step < 300; step++) {
+            int offset = random.nextInt(doc.getLength());
+            doc.setCharacterAttributes(offset, 1 + random.nextInt(Math.min(300, doc.getLength() - offset)),
+                    random.nextBoolean() ? bold(true) : italic(random.nextBoolean()), false);
+        }
+        String text = doc.getText(0, doc.getLength());
+        CompactStyledDocument.StyleRuns runs = doc.getStyleRuns();
+
+        CompactStyledDocument loaded = (CompactStyledDocument) PieceTableContent.newDocument();
+        loaded.load(text.toCharArray(), text.length(), runs);
+        assertEquals(text, loaded.getText(0, loaded.getLength()));
+        assertSameRuns(runs, loaded.getStyleRuns());
+        assertEquals(doc.getDefaultRootElement().getElementCount(), loaded.getDefaultRootElement().getElementCount());
+        assertEquals(doc.getRunStatistics().runs(), loaded.getRunStatistics().runs());
+        for (int p = 0; p < doc.getDefaultRootElement().getElementCount(); p++) {
+            assertEquals(doc.getDefaultRootElement().getElement(p).getEndOffset(),
+                    loaded.getDefaultRootElement().getElement(p).getEndOffset());
+        }
+
+        // And goes on editing like any other document
+        loaded.insertString(5, "new\nlines", bold(true));
+        doc.insertString(5, "new\nlines", bold(true));
+        assertSameRuns(doc.getStyleRuns(), loaded.getStyleRuns());
+    }
+
+    private static CompactStyledDocument document() throws Exception {
+        CompactStyledDocument doc = (CompactStyledDocument) PieceTableContent.newDocument();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < LINES; i++) {
+            text.append("line ").append(i).append(" with a few words on it\n");
+        }
+        doc.insertString(0, text.toString(), null);
+        return doc;
+    }
+
+    private static void assertSameRuns(CompactStyledDocument.StyleRuns expected, CompactStyledDocument.StyleRuns actual) {
+        assertEquals(expected.count(), actual.count(), "run count");
+        for (int i = 0; i < expected.count(); i++) {
+            assertEquals(expected.lengths()[i], actual.lengths()[i], "run " + i);
+            AttributeSet a = expected.styles()[i];
+            AttributeSet b = actual.styles()[i];
+            assertTrue(sameStyle(a, b), "run " + i + ": " + a + " vs " + b);
+        }
+    }
+
+    private static boolean sameRuns(CompactStyledDocument.StyleRuns a, CompactStyledDocument.StyleRuns b) {
+        if (a.count() != b.count()) {
+            return false;
+        }
+        for (int i = 0; i < a.count(); i++) {
+            if (a.lengths()[i] != b.lengths()[i] || !sameStyle(a.styles()[i], b.styles()[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Interned sets only compare equal to themselves, so sets from two documents are compared
+    // attribute by attribute
+    private static boolean sameStyle(AttributeSet a, AttributeSet b) {
+        return a.getAttributeCount() == b.getAttributeCount() && a.containsAttributes(b);
+    }
+
+    private static SimpleAttributeSet bold(boolean on) {
+        SimpleAttributeSet set = new SimpleAttributeSet();
+        StyleConstants.setBold(set, on);
+        return set;
+    }
+
+    private static SimpleAttributeSet italic(boolean on) {
+        SimpleAttributeSet set = new SimpleAttributeSet();
+        StyleConstants.setItalic(set, on);
+        return set;
+    }
+}
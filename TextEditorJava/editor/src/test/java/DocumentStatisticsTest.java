@@ -0,0 +1,111 @@
+import org.junit.jupiter.api.Test;
+
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.DefaultStyledDocument;
+import javax.swing.text.Document;
+import javax.swing.text.PlainDocument;
+import javax.swing.undo.UndoManager;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// The live word count under random inserts, removes, replaces and undos, in both kinds of
+// document the editor uses and a plain one, against counting the text from scratch. Edits are
+// short and full of separators so they split and join words and lines at their ends, and some
+// are long enough to add and remove many paragraphs at once.
+class DocumentStatisticsTest {
+    private static final int STEPS = 3000;
+
+    @Test
+    void pieceTableDocument() throws Exception {
+        check(PieceTableContent.newDocument(), 5);
+    }
+
+    @Test
+    void defaultStyledDocument() throws Exception {
+        check(new DefaultStyledDocument(), 6);
+    }
+
+    @Test
+    void plainDocument() throws Exception {
+        check(new PlainDocument(), 7);
+    }
+
+    @Test
+    void oneLongLine() throws Exception {
+        Document doc = PieceTableContent.newDocument();
+        DocumentStatistics statistics = new DocumentStatistics(() -> {
+        });
+        statistics.setDocument(doc);
+        // Appended a chunk at a time as FileLoader does, then typed into
+        for (int chunk = 0; chunk < 200; chunk++) {
+            doc.insertString(doc.getLength(), "{\"key\": [1, 2, 3], \"more\": \"words here\"} ".repeat(500), null);
+        }
+        assertEquals(words(doc), statistics.getWords());
+        Random random = new Random(3);
+        for (int step = 0; step < 500; step++) {
+            int offset = random.nextInt(doc.getLength());
+            if (random.nextBoolean()) {
+                doc.insertString(offset, random.nextBoolean() ? " " : "x", null);
+            } else {
+                doc.remove(offset, 1);
+            }
+        }
+        assertEquals(words(doc), statistics.getWords());
+        assertEquals(1, statistics.getLines());
+    }
+
+    private static void check(Document doc, long seed) throws Exception {
+        Random random = new Random(seed);
+        UndoManager undo = new UndoManager();
+        doc.addUndoableEditListener(undo);
+        doc.insertString(0, randomText(random, 2000), null);
+        DocumentStatistics statistics = new DocumentStatistics(() -> {
+        });
+        statistics.setDocument(doc);
+        for (int step = 0; step < STEPS; step++) {
+            int length = doc.getLength();
+            int kind = random.nextInt(10);
+            if (kind < 4 || length == 0) {
+                doc.insertString(random.nextInt(length + 1), randomText(random, size(random)), null);
+            } else if (kind < 7) {
+                int offset = random.nextInt(length);
+                doc.remove(offset, 1 + random.nextInt(Math.min(length - offset, size(random))));
+            } else if (kind < 8) {
+                int offset = random.nextInt(length);
+                int count = random.nextInt(Math.min(length - offset, size(random)) + 1);
+                ((AbstractDocument) doc).replace(offset, count, randomText(random, size(random)), null);
+            } else if (undo.canUndo()) {
+                undo.undo(); // Goes around the filter
+            }
+            String where = "step " + step;
+            assertEquals(words(doc), statistics.getWords(), where);
+            // The cached paragraph counts are right too
+            int start = random.nextInt(doc.getLength() + 1);
+            int end = start + random.nextInt(doc.getLength() - start + 1);
+            assertEquals(words(doc.getText(start, end - start)), statistics.countWords(start, end), where);
+        }
+    }
+
+    private static int size(Random random) {
+        return random.nextInt(20) == 0 ? 500 : 1 + random.nextInt(6);
+    }
+
+    private static long words(Document doc) throws Exception {
+        return words(doc.getText(0, doc.getLength()));
+    }
+
+    private static long words(String text) {
+        String trimmed = text.strip();
+        return trimmed.isEmpty() ? 0 : trimmed.split("\\s+").length;
+    }
+
+    private static String randomText(Random random, int length) {
+        String chars = "ab ab\n\t";
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            text.append(chars.charAt(random.nextInt(chars.length())));
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,151 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.swing.text.Element;
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.StyledDocument;
+import java.awt.*;
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Replaying the journal must rebuild the session it recorded: random edits, restyles, undo and
+// redo and shape changes, across a checkpoint, and a project save that died halfway through.
+class EditJournalTest {
+    private static final int SEEDS = 5;
+    private static final int STEPS = 400;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void replayRebuildsRandomSession() throws Exception {
+        for (int seed = 0; seed < SEEDS; seed++) {
+            Random random = new Random(seed);
+            File file = dir.resolve("session" + seed + ".txt").toFile();
+            Path prefix = EditJournal.prefixFor(file);
+            StyledDocument doc = PieceTableContent.newDocument();
+            DrawingCanvas canvas = new DrawingCanvas();
+            EditHistory history = new EditHistory();
+            doc.addUndoableEditListener(history);
+            List<String> errors = new ArrayList<>();
+            EditJournal journal = EditJournal.open(prefix, doc, canvas, file, null, errors::add);
+            for (int step = 0; step < STEPS; step++) {
+                int length = doc.getLength();
+                int op = random.nextInt(10);
+                if (op < 4 || length == 0) {
+                    SimpleAttributeSet attributes = new SimpleAttributeSet();
+                    StyleConstants.setBold(attributes, random.nextBoolean());
+                    doc.insertString(random.nextInt(length + 1),
+                            PieceTableTest.randomText(random, random.nextBoolean() ? 5 : 300), attributes);
+                } else if (op < 6) {
+                    int offset = random.nextInt(length);
+                    doc.remove(offset, 1 + random.nextInt(Math.min(length - offset, 200)));
+                } else if (op == 6) {
+                    int offset = random.nextInt(length);
+                    SimpleAttributeSet attributes = new SimpleAttributeSet();
+                    StyleConstants.setItalic(attributes, random.nextBoolean());
+                    doc.setCharacterAttributes(offset, 1 + random.nextInt(Math.min(length - offset, 200)), attributes, false);
+                } else if (op == 7 && history.canUndo()) {
+                    history.undo();
+                } else if (op == 8 && history.canRedo()) {
+                    history.redo();
+                } else if (op == 9) {
+                    Shape[] shapes = new Shape[random.nextInt(4)];
+                    for (int i = 0; i < shapes.length; i++) {
+                        shapes[i] = new Rectangle(random.nextInt(500), random.nextInt(500), 1 + random.nextInt(50), 1 + random.nextInt(50));
+                    }
+                    canvas.setShapes(shapes);
+                }
+                if (step == STEPS / 2) {
+                    journal.checkpoint();
+                }
+            }
+            journal.close(true); // Flushes everything and leaves the journal, as a crash would
+
+            EditJournal.Recovered recovered = EditJournal.recover(prefix);
+            String where = "seed " + seed;
+            assertEquals(file.getAbsoluteFile(), recovered.file().getAbsoluteFile(), where);
+            assertSameDocument(doc, recovered.document(), where);
+            Shape[] shapes = canvas.getShapes();
+            assertEquals(shapes.length, recovered.shapes().length, where);
+            for (int i = 0; i < shapes.length; i++) {
+                assertEquals(shapes[i].getBounds(), recovered.shapes()[i].getBounds(), where);
+            }
+            assertTrue(errors.isEmpty(), where + " " + errors);
+        }
+    }
+
+    @Test
+    void recoversWhenAnAppendingSaveDies() throws Exception {
+        recoverFromDeadSave(true);
+    }
+
+    @Test
+    void recoversWhenARewritingSaveDies() throws Exception {
+        recoverFromDeadSave(false);
+    }
+
+    // Saves a project with the journal attached, as the editor does, and has the save die right
+    // after it recorded the new version: before the header is written when the save appends to
+    // the file, before the rename when it rewrites it. Edits made after that must still be
+    // recovered.
+    private void recoverFromDeadSave(boolean append) throws Exception {
+        Path project = dir.resolve(append ? "append.tep" : "rewrite.tep");
+        StyledDocument doc = PieceTableContent.newDocument();
+        // Only the styles change, and keeping the much larger text where it is makes an append
+        doc.insertString(0, "hello world\n" + (append ? "x".repeat(100_000) : ""), null);
+        DrawingCanvas canvas = new DrawingCanvas();
+        ProjectFile.save(project, ProjectFile.Snapshot.of(doc, canvas), null, EnumSet.allOf(ProjectFile.Section.class));
+        ProjectFile previous = ProjectFile.open(project);
+        Path prefix = EditJournal.prefixFor(project.toFile());
+        EditJournal journal = EditJournal.open(prefix, doc, canvas, project.toFile(), project, message -> {
+        });
+
+        SimpleAttributeSet bold = new SimpleAttributeSet();
+        StyleConstants.setBold(bold, true);
+        doc.setCharacterAttributes(0, 5, bold, false);
+        long segment = journal.rebase(project, project.toFile());
+        EnumSet<ProjectFile.Section> changed = append
+                ? EnumSet.of(ProjectFile.Section.STYLES)
+                : EnumSet.of(ProjectFile.Section.TEXT, ProjectFile.Section.STYLES);
+        assertThrows(IllegalStateException.class, () -> ProjectFile.save(project, ProjectFile.Snapshot.of(doc, canvas),
+                previous, changed, version -> {
+                    journal.baseWritten(segment, version);
+                    throw new IllegalStateException("The editor dies here");
+                }));
+        doc.insertString(0, ">> ", null);
+        journal.close(true);
+
+        assertSameDocument(doc, EditJournal.recover(prefix).document(), append ? "append" : "rewrite");
+    }
+
+    private static void assertSameDocument(StyledDocument expected, StyledDocument actual, String where)
+            throws Exception {
+        assertEquals(expected.getText(0, expected.getLength()), actual.getText(0, actual.getLength()), where);
+        for (int i = 0; i < expected.getLength(); i++) {
+            Element run = actual.getCharacterElement(i);
+            Element expectedRun = expected.getCharacterElement(i);
+            assertEquals(StyleConstants.isBold(expectedRun.getAttributes()), StyleConstants.isBold(run.getAttributes()),
+                    where + " bold at " + i);
+            assertEquals(StyleConstants.isItalic(expectedRun.getAttributes()), StyleConstants.isItalic(run.getAttributes()),
+                    where + " italic at " + i);
+            i = Math.min(run.getEndOffset(), expectedRun.getEndOffset()) - 1;
+        }
+        Element root = actual.getDefaultRootElement();
+        Element expectedRoot = expected.getDefaultRootElement();
+        assertEquals(expectedRoot.getElementCount(), root.getElementCount(), where);
+        for (int i = 0; i < root.getElementCount(); i++) {
+            assertEquals(expectedRoot.getElement(i).getStartOffset(), root.getElement(i).getStartOffset(), where);
+        }
+    }
+}
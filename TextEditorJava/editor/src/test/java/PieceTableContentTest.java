@@ -0,0 +1,83 @@
+import org.junit.jupiter.api.Test;
+
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.GapContent;
+import javax.swing.text.Position;
+import javax.swing.text.Segment;
+import javax.swing.undo.UndoableEdit;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// PieceTableContent against Swing's GapContent: the text, the marks behind positions, and
+// undoing and redoing content edits. Positions are dropped along the way so the marks of
+// collected positions get purged too.
+class PieceTableContentTest {
+    private static final int SEEDS = 50;
+    private static final int STEPS = 600;
+
+    @Test
+    void randomEditsMatchGapContent() throws Exception {
+        for (int seed = 0; seed < SEEDS; seed++) {
+            Random random = new Random(seed);
+            PieceTableContent content = new PieceTableContent();
+            GapContent reference = new GapContent();
+            List<Position[]> positions = new ArrayList<>();
+            Deque<UndoableEdit[]> undo = new ArrayDeque<>();
+            Deque<UndoableEdit[]> redo = new ArrayDeque<>();
+            for (int step = 0; step < STEPS; step++) {
+                int length = reference.length() - 1; // Without the implicit newline
+                int op = random.nextInt(10);
+                if (op < 4 || length == 0) {
+                    int offset = random.nextInt(length + 1);
+                    String text = PieceTableTest.randomText(random, random.nextBoolean() ? 5 : 300);
+                    undo.push(new UndoableEdit[]{content.insertString(offset, text), reference.insertString(offset, text)});
+                    redo.clear();
+                } else if (op < 6) {
+                    int offset = random.nextInt(length);
+                    int count = 1 + random.nextInt(Math.min(length - offset, 200));
+                    undo.push(new UndoableEdit[]{content.remove(offset, count), reference.remove(offset, count)});
+                    redo.clear();
+                } else if (op < 8) {
+                    int offset = random.nextInt(length + 2); // Up to the implicit newline's end
+                    positions.add(new Position[]{content.createPosition(offset), reference.createPosition(offset)});
+                } else if (op == 8 && !undo.isEmpty()) {
+                    UndoableEdit[] edits = undo.pop();
+                    edits[0].undo();
+                    edits[1].undo();
+                    redo.push(edits);
+                } else if (op == 9 && !redo.isEmpty()) {
+                    UndoableEdit[] edits = redo.pop();
+                    edits[0].redo();
+                    edits[1].redo();
+                    undo.push(edits);
+                } else if (!positions.isEmpty()) {
+                    positions.remove(random.nextInt(positions.size()));
+                    if (random.nextInt(20) == 0) {
+                        System.gc();
+                    }
+                }
+                String where = "seed " + seed + " step " + step;
+                assertEquals(reference.length(), content.length(), where);
+                assertEquals(text(reference), text(content), where);
+                for (Position[] pair : positions) {
+                    assertEquals(pair[1].getOffset(), pair[0].getOffset(), where);
+                }
+                int offset = random.nextInt(reference.length());
+                int count = random.nextInt(reference.length() - offset + 1);
+                Segment segment = new Segment();
+                segment.setPartialReturn(true);
+                content.getChars(offset, count, segment);
+                assertEquals(reference.getString(offset, segment.count), segment.toString(), where);
+            }
+        }
+    }
+
+    private static String text(AbstractDocument.Content content) throws Exception {
+        return content.getString(0, content.length());
+    }
+}
@@ -0,0 +1,127 @@
+import org.junit.jupiter.api.Test;
+
+import javax.swing.text.DefaultStyledDocument;
+import javax.swing.text.Element;
+import javax.swing.text.Position;
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.StyledDocument;
+import javax.swing.undo.UndoManager;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// A piece table document (CompactStyledDocument over PieceTableContent) against
+// DefaultStyledDocument under random inserts, removes and restyles, with undo and redo: the
+// text, positions, character attributes and paragraphs must stay the same.
+class PieceTableDocumentTest {
+    private static final int SEEDS = 100;
+    private static final int STEPS = 400;
+
+    @Test
+    void randomEditsMatchDefaultStyledDocument() throws Exception {
+        for (int seed = 0; seed < SEEDS; seed++) {
+            Random random = new Random(seed);
+            StyledDocument doc = PieceTableContent.newDocument();
+            DefaultStyledDocument reference = new DefaultStyledDocument();
+            // The two may split an action into different numbers of edits, so each action is
+            // undone and redone as however many edits each of them recorded for it
+            UndoManager docHistory = new UndoManager();
+            UndoManager referenceHistory = new UndoManager();
+            docHistory.setLimit(Integer.MAX_VALUE);
+            referenceHistory.setLimit(Integer.MAX_VALUE);
+            int[] recorded = new int[2];
+            doc.addUndoableEditListener(e -> {
+                docHistory.addEdit(e.getEdit());
+                recorded[0]++;
+            });
+            reference.addUndoableEditListener(e -> {
+                referenceHistory.addEdit(e.getEdit());
+                recorded[1]++;
+            });
+            Deque<int[]> undo = new ArrayDeque<>();
+            Deque<int[]> redo = new ArrayDeque<>();
+            List<Position[]> positions = new ArrayList<>();
+
+            for (int step = 0; step < STEPS; step++) {
+                int length = doc.getLength();
+                int op = random.nextInt(10);
+                recorded[0] = recorded[1] = 0;
+                if (op < 4) {
+                    int offset = random.nextInt(length + 1);
+                    String text = PieceTableTest.randomText(random, random.nextBoolean() ? 5 : 300);
+                    SimpleAttributeSet attributes = new SimpleAttributeSet();
+                    StyleConstants.setBold(attributes, random.nextBoolean());
+                    doc.insertString(offset, text, attributes);
+                    reference.insertString(offset, text, attributes);
+                } else if (op < 6 && length > 0) {
+                    int offset = random.nextInt(length);
+                    int count = 1 + random.nextInt(Math.min(length - offset, 200));
+                    doc.remove(offset, count);
+                    reference.remove(offset, count);
+                } else if (op == 6 && length > 0) {
+                    int offset = random.nextInt(length);
+                    int count = 1 + random.nextInt(Math.min(length - offset, 200));
+                    SimpleAttributeSet attributes = new SimpleAttributeSet();
+                    StyleConstants.setItalic(attributes, random.nextBoolean());
+                    doc.setCharacterAttributes(offset, count, attributes, false);
+                    reference.setCharacterAttributes(offset, count, attributes, false);
+                } else if (op == 7) {
+                    int offset = random.nextInt(length + 1);
+                    positions.add(new Position[]{doc.createPosition(offset), reference.createPosition(offset)});
+                } else if (op == 8 && !undo.isEmpty()) {
+                    int[] counts = undo.pop();
+                    for (int i = 0; i < counts[0]; i++) {
+                        docHistory.undo();
+                    }
+                    for (int i = 0; i < counts[1]; i++) {
+                        referenceHistory.undo();
+                    }
+                    redo.push(counts);
+                    recorded[0] = recorded[1] = 0;
+                } else if (op == 9 && !redo.isEmpty()) {
+                    int[] counts = redo.pop();
+                    for (int i = 0; i < counts[0]; i++) {
+                        docHistory.redo();
+                    }
+                    for (int i = 0; i < counts[1]; i++) {
+                        referenceHistory.redo();
+                    }
+                    undo.push(counts);
+                    recorded[0] = recorded[1] = 0;
+                }
+                if (recorded[0] > 0 || recorded[1] > 0) {
+                    undo.push(recorded.clone());
+                    redo.clear();
+                }
+                assertSame(doc, reference, positions, random, "seed " + seed + " step " + step + " op " + op);
+            }
+        }
+    }
+
+    private static void assertSame(StyledDocument doc, StyledDocument reference, List<Position[]> positions,
+                                   Random random, String where) throws Exception {
+        assertEquals(reference.getText(0, reference.getLength()), doc.getText(0, doc.getLength()), where);
+        for (Position[] pair : positions) {
+            assertEquals(pair[1].getOffset(), pair[0].getOffset(), where);
+        }
+        for (int i = 0; i < doc.getLength(); i += 1 + random.nextInt(20)) {
+            Element run = doc.getCharacterElement(i);
+            Element referenceRun = reference.getCharacterElement(i);
+            assertEquals(StyleConstants.isBold(referenceRun.getAttributes()), StyleConstants.isBold(run.getAttributes()),
+                    where + " bold at " + i);
+            assertEquals(StyleConstants.isItalic(referenceRun.getAttributes()), StyleConstants.isItalic(run.getAttributes()),
+                    where + " italic at " + i);
+        }
+        Element root = doc.getDefaultRootElement();
+        Element referenceRoot = reference.getDefaultRootElement();
+        assertEquals(referenceRoot.getElementCount(), root.getElementCount(), where);
+        for (int i = 0; i < root.getElementCount(); i++) {
+            assertEquals(referenceRoot.getElement(i).getStartOffset(), root.getElement(i).getStartOffset(), where);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// The piece table against a StringBuilder under random edits, with the treap checked after
+// every one of them
+class PieceTableTest {
+    private static final int SEEDS = 20;
+    private static final int STEPS = 2000;
+
+    @Test
+    void randomEditsMatchModel() {
+        for (int seed = 0; seed < SEEDS; seed++) {
+            Random random = new Random(seed);
+            PieceTable table = new PieceTable();
+            StringBuilder model = new StringBuilder();
+            for (int step = 0; step < STEPS; step++) {
+                int length = model.length();
+                int op = random.nextInt(6);
+                if (op < 2 || length == 0) {
+                    // Now and then past half an add block, which gets a block of its own
+                    String text = randomText(random, random.nextInt(20) == 0 ? 40_000 : 50);
+                    int offset = random.nextInt(length + 1);
+                    table.insert(offset, text);
+                    model.insert(offset, text);
+                } else if (op == 2) {
+                    char[] block = randomText(random, 200).toCharArray();
+                    int start = random.nextInt(block.length);
+                    int count = random.nextInt(block.length - start + 1);
+                    int offset = random.nextInt(length + 1);
+                    table.insert(offset, block, start, count);
+                    model.insert(offset, block, start, count);
+                } else if (op == 3) {
+                    int offset = random.nextInt(length);
+                    int count = 1 + random.nextInt(Math.min(length - offset, 500));
+                    PieceTable.Span removed = table.remove(offset, count);
+                    assertEquals(model.substring(offset, offset + count), removed.toString(), "seed " + seed);
+                    model.delete(offset, offset + count);
+                } else if (op == 4) {
+                    // Copy and paste: the span's pieces go back in elsewhere
+                    int offset = random.nextInt(length);
+                    int count = 1 + random.nextInt(Math.min(length - offset, 500));
+                    PieceTable.Span span = table.span(offset, count);
+                    String text = model.substring(offset, offset + count);
+                    assertEquals(text, span.toString(), "seed " + seed);
+                    int at = random.nextInt(length + 1);
+                    table.insert(at, span);
+                    model.insert(at, text);
+                } else {
+                    // Typing, which grows the piece it follows
+                    int offset = random.nextInt(length + 1);
+                    for (int i = 0, n = 1 + random.nextInt(10); i < n; i++) {
+                        String c = randomText(random, 1);
+                        table.insert(offset + i, c);
+                        model.insert(offset + i, c);
+                    }
+                }
+                assertEquals(model.length(), table.length(), "seed " + seed + " step " + step);
+                assertTrue(table.isConsistent(), "seed " + seed + " step " + step);
+                if (model.length() > 0) {
+                    int offset = random.nextInt(model.length());
+                    int count = random.nextInt(Math.min(model.length() - offset, 1000) + 1);
+                    char[] chars = new char[count];
+                    table.getChars(offset, count, chars, 0);
+                    assertEquals(model.substring(offset, offset + count), new String(chars),
+                            "seed " + seed + " step " + step);
+                }
+            }
+            char[] chars = new char[table.length()];
+            table.getChars(0, chars.length, chars, 0);
+            assertEquals(model.toString(), new String(chars), "seed " + seed);
+        }
+    }
+
+    static String randomText(Random random, int maxLength) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0, n = 1 + random.nextInt(maxLength); i < n; i++) {
+            text.append(random.nextInt(8) == 0 ? '\n' : (char) ('a' + random.nextInt(26)));
+        }
+        return text.toString();
+    }
+}
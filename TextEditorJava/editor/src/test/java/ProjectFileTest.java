@@ -0,0 +1,162 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.swing.text.AttributeSet;
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.StyledDocument;
+import java.awt.*;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.geom.PathIterator;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Text, styles and shapes through a project file: a full save, saves that only append the
+// sections that changed while the versions before them stay readable, the compacting rewrite,
+// and files that aren't projects or are damaged
+class ProjectFileTest {
+    private static final EnumSet<ProjectFile.Section> ALL = EnumSet.allOf(ProjectFile.Section.class);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void textStylesAndShapesRoundTrip() throws Exception {
+        StyledDocument doc = styledDocument();
+        Shape[] shapes = {
+                new Rectangle(1, 2, 30, 40),
+                new Ellipse2D.Double(5.5, 6, 70, 80),
+                new Line2D.Double(0, 0, 100, 50),
+                new Polygon(new int[]{0, 10, 20}, new int[]{5, 0, 5}, 3),
+                ShapeIndex.createTriangle(10, 10, 60, 40),
+        };
+        Path file = dir.resolve("round" + ProjectFile.EXTENSION);
+        assertTrue(ProjectFile.isProject(file));
+        ProjectFile.save(file, snapshot(doc, shapes), null, ALL);
+
+        ProjectFile opened = ProjectFile.open(file);
+        StyledDocument read = opened.readDocument();
+        assertSameDocument(doc, read);
+        Shape[] readShapes = opened.readShapes();
+        assertEquals(shapes.length, readShapes.length);
+        for (int i = 0; i < shapes.length; i++) {
+            assertEquals(outline(shapes[i]), outline(readShapes[i]), "shape " + i);
+        }
+    }
+
+    @Test
+    void savingOnlyAppendsChangedSectionsAndKeepsEarlierVersions() throws Exception {
+        StyledDocument doc = styledDocument();
+        Shape[] shapes = {new Rectangle(0, 0, 10, 10)};
+        Path file = dir.resolve("append" + ProjectFile.EXTENSION);
+        ProjectFile.save(file, snapshot(doc, shapes), null, ALL);
+        ProjectFile first = ProjectFile.open(file);
+        long firstSize = Files.size(file);
+
+        SimpleAttributeSet italic = new SimpleAttributeSet();
+        StyleConstants.setItalic(italic, true);
+        doc.setCharacterAttributes(0, 5, italic, false);
+        ProjectFile.save(file, snapshot(doc, shapes), first, EnumSet.of(ProjectFile.Section.STYLES));
+        ProjectFile second = ProjectFile.open(file);
+        // The text is far bigger than the styles and wasn't written again
+        assertTrue(Files.size(file) - firstSize < doc.getLength(), "appended " + (Files.size(file) - firstSize));
+        assertSameDocument(doc, second.readDocument());
+
+        StyledDocument before = ProjectFile.open(file, first.getVersion()).readDocument();
+        assertFalse(StyleConstants.isItalic(before.getCharacterElement(0).getAttributes()));
+        assertTrue(StyleConstants.isItalic(second.readDocument().getCharacterElement(0).getAttributes()));
+    }
+
+    @Test
+    void rewritesOnceMostOfTheFileIsSuperseded() throws Exception {
+        StyledDocument doc = styledDocument();
+        Path file = dir.resolve("rewrite" + ProjectFile.EXTENSION);
+        ProjectFile.save(file, snapshot(doc, new Shape[0]), null, ALL);
+        ProjectFile previous = ProjectFile.open(file);
+        long firstSize = Files.size(file);
+
+        // The text is most of the file, so appending a new one would leave it mostly dead
+        doc.insertString(0, "edit\n", null);
+        ProjectFile.save(file, snapshot(doc, new Shape[0]), previous,
+                EnumSet.of(ProjectFile.Section.TEXT, ProjectFile.Section.STYLES));
+        assertTrue(Files.size(file) < firstSize + 100, "rewritten to " + Files.size(file) + " from " + firstSize);
+        assertSameDocument(doc, ProjectFile.open(file).readDocument());
+        assertThrows(IOException.class, () -> ProjectFile.open(file, previous.getVersion()).readDocument());
+    }
+
+    @Test
+    void rejectsFilesThatAreNotProjectsOrAreDamaged() throws Exception {
+        Path text = dir.resolve("plain.tep");
+        Files.writeString(text, "just some text that is long enough to have a header's worth of bytes");
+        assertThrows(IOException.class, () -> ProjectFile.open(text));
+
+        Path file = dir.resolve("damaged" + ProjectFile.EXTENSION);
+        ProjectFile.save(file, snapshot(styledDocument(), new Shape[0]), null, ALL);
+        ProjectFile.Version version = ProjectFile.open(file).getVersion();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            long at = version.indexOffset() + version.indexLength() - 1;
+            channel.read(b, at);
+            b.put(0, (byte) (b.get(0) ^ 0xFF)).rewind();
+            channel.write(b, at);
+        }
+        IOException e = assertThrows(IOException.class, () -> ProjectFile.open(file));
+        assertTrue(e.getMessage().contains("damaged"), e.getMessage());
+    }
+
+    private static StyledDocument styledDocument() throws Exception {
+        StyledDocument doc = PieceTableContent.newDocument();
+        SimpleAttributeSet bold = new SimpleAttributeSet();
+        StyleConstants.setBold(bold, true);
+        StyleConstants.setFontFamily(bold, "Serif");
+        StyleConstants.setFontSize(bold, 18);
+        StyleConstants.setForeground(bold, new Color(10, 20, 30, 40));
+        doc.insertString(0, "Plain text, then ", null);
+        doc.insertString(doc.getLength(), "bold serif", bold);
+        doc.insertString(doc.getLength(), " and more lines\n".repeat(2000), null);
+        return doc;
+    }
+
+    private static ProjectFile.Snapshot snapshot(StyledDocument doc, Shape[] shapes) throws Exception {
+        return new ProjectFile.Snapshot(FileSaver.snapshot(doc), ((CompactStyledDocument) doc).getStyleRuns(), shapes);
+    }
+
+    private static void assertSameDocument(StyledDocument expected, StyledDocument actual) throws Exception {
+        assertEquals(expected.getText(0, expected.getLength()), actual.getText(0, actual.getLength()));
+        for (int i = 0; i < expected.getLength(); i++) {
+            AttributeSet a = expected.getCharacterElement(i).getAttributes();
+            AttributeSet b = actual.getCharacterElement(i).getAttributes();
+            String where = "at " + i;
+            assertEquals(StyleConstants.isBold(a), StyleConstants.isBold(b), where);
+            assertEquals(StyleConstants.isItalic(a), StyleConstants.isItalic(b), where);
+            assertEquals(StyleConstants.getFontFamily(a), StyleConstants.getFontFamily(b), where);
+            assertEquals(StyleConstants.getFontSize(a), StyleConstants.getFontSize(b), where);
+            assertEquals(StyleConstants.getForeground(a), StyleConstants.getForeground(b), where);
+        }
+    }
+
+    private static List<Double> outline(Shape shape) {
+        List<Double> outline = new ArrayList<>();
+        double[] coords = new double[6];
+        for (PathIterator it = shape.getPathIterator(null); !it.isDone(); it.next()) {
+            outline.add((double) it.currentSegment(coords));
+            for (double c : coords) {
+                outline.add(c);
+            }
+        }
+        return outline;
+    }
+}
@@ -0,0 +1,106 @@
+import org.junit.jupiter.api.Test;
+
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.StyledDocument;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Replacing in place against String.replaceAll over the same text, for the document and the
+// CharBuffer paths, and the replacements both must refuse before touching the text
+class ReplaceEngineTest {
+    private static final int SEEDS = 200;
+    private static final String[] FINDS = {"a", "ab", "a+", "(a)(b)?", "(?<x>b)c", "\\n", "[a-c]{2}"};
+    private static final String[] REPLACEMENTS = {"", "x", "$0$0", "[$1]", "$2$1", "${x}", "\\$1", "$10", "\n"};
+
+    @Test
+    void regexReplaceMatchesStringReplaceAll() throws Exception {
+        for (int seed = 0; seed < SEEDS; seed++) {
+            Random random = new Random(seed);
+            String text = randomText(random, 300);
+            String find = FINDS[random.nextInt(FINDS.length)];
+            String replacement = REPLACEMENTS[random.nextInt(REPLACEMENTS.length)];
+            Pattern pattern = ReplaceEngine.compile(find, true, true);
+            String expected;
+            try {
+                expected = pattern.matcher(text).replaceAll(replacement);
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                continue;
+            }
+            String where = "seed " + seed + " " + find + " -> " + replacement;
+
+            StyledDocument doc = PieceTableContent.newDocument();
+            doc.insertString(0, text, null);
+            ReplaceEngine.replaceAll(doc, pattern, replacement, true);
+            assertEquals(expected, doc.getText(0, doc.getLength()), where);
+
+            List<CharBuffer> out = new ArrayList<>();
+            ReplaceEngine.replaceAll(CharBuffer.wrap(text), pattern, replacement, true, out);
+            assertEquals(expected, String.join("", out), where);
+        }
+    }
+
+    @Test
+    void literalReplaceIgnoresGroupSyntax() throws Exception {
+        StyledDocument doc = PieceTableContent.newDocument();
+        doc.insertString(0, "A.b a.B a.b", null);
+        Pattern pattern = ReplaceEngine.compile("a.b", false, false);
+        ReplaceEngine.Result result = ReplaceEngine.replaceAll(doc, pattern, "$1\\", false);
+        assertEquals(3, result.count());
+        assertEquals("$1\\ $1\\ $1\\", doc.getText(0, doc.getLength()));
+        assertEquals(0, result.firstStart());
+        assertEquals(3, result.firstEnd());
+    }
+
+    @Test
+    void replacementKeepsTheAttributesOfTheTextItReplaces() throws Exception {
+        StyledDocument doc = PieceTableContent.newDocument();
+        SimpleAttributeSet bold = new SimpleAttributeSet();
+        StyleConstants.setBold(bold, true);
+        doc.insertString(0, "plain ", null);
+        doc.insertString(6, "bold", bold);
+        doc.insertString(10, " plain", null);
+        ReplaceEngine.replaceAll(doc, ReplaceEngine.compile("bold", false, true), "BOLDER", false);
+        assertEquals("plain BOLDER plain", doc.getText(0, doc.getLength()));
+        assertTrue(StyleConstants.isBold(doc.getCharacterElement(6).getAttributes()));
+        assertTrue(StyleConstants.isBold(doc.getCharacterElement(11).getAttributes()));
+        assertFalse(StyleConstants.isBold(doc.getCharacterElement(13).getAttributes()));
+    }
+
+    @Test
+    void badReplacementLeavesTheDocumentAlone() throws Exception {
+        Pattern pattern = ReplaceEngine.compile("(a)", true, true);
+        // A group past the pattern's, a non-ASCII digit, and the other forms Matcher rejects
+        String[] bad = {"$2", "x$9", "$\u0661", "$", "\\", "${1", "${nope}"};
+        for (String replacement : bad) {
+            StyledDocument doc = PieceTableContent.newDocument();
+            doc.insertString(0, "banana", null);
+            assertThrows(IllegalArgumentException.class,
+                    () -> ReplaceEngine.replaceAll(doc, pattern, replacement, true), replacement);
+            assertEquals("banana", doc.getText(0, doc.getLength()), replacement);
+            assertThrows(IllegalArgumentException.class,
+                    () -> ReplaceEngine.replaceAll(CharBuffer.wrap("banana"), pattern, replacement, true,
+                            new ArrayList<>()), replacement);
+        }
+        assertEquals("No group 2", assertThrows(IllegalArgumentException.class,
+                () -> ReplaceEngine.checkReplacement(pattern, "$2")).getMessage());
+        // $10 reads as group 1 followed by a literal 0, as Matcher does
+        ReplaceEngine.checkReplacement(pattern, "$10");
+    }
+
+    private static String randomText(Random random, int maxLength) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0, n = random.nextInt(maxLength); i < n; i++) {
+            text.append(random.nextInt(10) == 0 ? '\n' : (char) ('a' + random.nextInt(4)));
+        }
+        return text.toString();
+    }
+}
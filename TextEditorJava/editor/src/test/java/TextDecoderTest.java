@@ -0,0 +1,158 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.swing.text.StyledDocument;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+// Files in each encoding, with and without a byte order mark and with each line ending, read
+// into a document with LF line endings and saved back byte for byte, and the same files run
+// through batch mode
+class TextDecoderTest {
+    private static final byte[] UTF8_BOM = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+    private static final byte[] UTF16BE_BOM = {(byte) 0xFE, (byte) 0xFF};
+    private static final byte[] UTF16LE_BOM = {(byte) 0xFF, (byte) 0xFE};
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void formatsRoundTrip() throws Exception {
+        String text = "caf\u00e9 line\nsecond line\n\nlast line";
+        roundTrip(text, new TextFormat(StandardCharsets.UTF_8, false, "\n"), null);
+        roundTrip(text, new TextFormat(StandardCharsets.UTF_8, true, "\r\n"), UTF8_BOM);
+        roundTrip(text, new TextFormat(StandardCharsets.UTF_16BE, true, "\r"), UTF16BE_BOM);
+        roundTrip(text, new TextFormat(StandardCharsets.UTF_16LE, true, "\r\n"), UTF16LE_BOM);
+        roundTrip(text, new TextFormat(StandardCharsets.UTF_16LE, false, "\n"), null);
+        roundTrip(text, new TextFormat(StandardCharsets.ISO_8859_1, false, "\r\n"), null);
+        roundTrip("", new TextFormat(StandardCharsets.UTF_8, true, "\n"), UTF8_BOM);
+    }
+
+    @Test
+    void lineEndingsSplitAcrossChunksRoundTrip() throws Exception {
+        // The CR of a CRLF lands at the end of a chunk, and the file is several chunks long
+        StringBuilder text = new StringBuilder("x".repeat(TextDecoder.CHUNK_CHARS - 1));
+        while (text.length() < 3 * TextDecoder.CHUNK_CHARS) {
+            text.append("\nline ").append(text.length());
+        }
+        roundTrip(text.toString(), new TextFormat(StandardCharsets.UTF_8, false, "\r\n"), null);
+    }
+
+    @Test
+    void mostCommonLineEndingWins() throws Exception {
+        Path file = dir.resolve("mixed.txt");
+        Files.write(file, "a\r\nb\r\nc\nd".getBytes(StandardCharsets.US_ASCII));
+        EditorEngine engine = EditorEngine.open(file, null);
+        assertEquals("a\nb\nc\nd", text(engine.getDocument()));
+        assertEquals("\r\n", TextFormat.of(engine.getDocument()).lineSeparator());
+    }
+
+    @Test
+    void textThatStopsDecodingFallsBackToLatin1() throws Exception {
+        // Valid UTF-8 for longer than the sample detection looks at, then a byte that isn't
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.writeBytes("\u00e9t\u00e9\r\n".repeat(20_000).getBytes(StandardCharsets.UTF_8));
+        bytes.write(0xFF);
+        bytes.writeBytes("\r\nend".getBytes(StandardCharsets.UTF_8));
+        Path file = dir.resolve("mostly-utf8.txt");
+        Files.write(file, bytes.toByteArray());
+
+        EditorEngine engine = EditorEngine.open(file, null);
+        assertEquals(new TextFormat(StandardCharsets.ISO_8859_1, false, "\r\n"), TextFormat.of(engine.getDocument()));
+        Path saved = dir.resolve("saved.txt");
+        engine.save(saved);
+        assertArrayEquals(bytes.toByteArray(), Files.readAllBytes(saved));
+
+        assertThrows(CharacterCodingException.class, () -> EditorEngine.open(file, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void batchModeKeepsEachFilesFormat() throws Exception {
+        Path bom = dir.resolve("bom.txt");
+        Files.write(bom, concat(UTF8_BOM, "caf\u00e9 foo\r\nfoo\r\n".getBytes(StandardCharsets.UTF_8)));
+        Path utf16 = dir.resolve("utf16.txt");
+        Files.write(utf16, concat(UTF16LE_BOM, "one foo\rtwo\r".getBytes(StandardCharsets.UTF_16LE)));
+        // Detected as UTF-8 from the start, then read again as Latin-1 when the last byte isn't
+        ByteArrayOutputStream mostly = new ByteArrayOutputStream();
+        mostly.writeBytes("\u00e9 foo\n".repeat(20_000).getBytes(StandardCharsets.UTF_8));
+        mostly.write(0xFF);
+        Path latin1 = dir.resolve("mostly-utf8.txt");
+        Files.write(latin1, mostly.toByteArray());
+
+        batch("--find", "foo", "--replace", "bar", dir.toString());
+        assertArrayEquals(concat(UTF8_BOM, "caf\u00e9 bar\r\nbar\r\n".getBytes(StandardCharsets.UTF_8)),
+                Files.readAllBytes(bom));
+        assertArrayEquals(concat(UTF16LE_BOM, "one bar\rtwo\r".getBytes(StandardCharsets.UTF_16LE)),
+                Files.readAllBytes(utf16));
+        ByteArrayOutputStream replaced = new ByteArrayOutputStream();
+        replaced.writeBytes("\u00e9 bar\n".repeat(20_000).getBytes(StandardCharsets.UTF_8));
+        replaced.write(0xFF);
+        assertArrayEquals(replaced.toByteArray(), Files.readAllBytes(latin1));
+
+        // Changing the case streams the file a block at a time instead
+        batch("--upper", bom.toString(), utf16.toString());
+        assertArrayEquals(concat(UTF8_BOM, "CAF\u00c9 BAR\r\nBAR\r\n".getBytes(StandardCharsets.UTF_8)),
+                Files.readAllBytes(bom));
+        assertArrayEquals(concat(UTF16LE_BOM, "ONE BAR\rTWO\r".getBytes(StandardCharsets.UTF_16LE)),
+                Files.readAllBytes(utf16));
+
+        // A charset given outright is used as it is, and text that isn't valid in it is skipped
+        assertEquals(1, batch("--charset", "UTF-8", "--stats", latin1.toString()));
+        assertEquals(0, batch("--charset", "UTF-8", "--stats", bom.toString()));
+    }
+
+    // Returns the number of files that failed
+    private static long batch(String... args) throws Exception {
+        List<Path> roots = new ArrayList<>();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        PrintStream errors = new PrintStream(err, true, StandardCharsets.UTF_8);
+        new BatchProcessor(BatchProcessor.parse(args, roots), new PrintStream(OutputStream.nullOutputStream()), errors)
+                .process(roots);
+        return err.toString(StandardCharsets.UTF_8).lines().filter(line -> line.contains(": not valid")).count();
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] both = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, both, a.length, b.length);
+        return both;
+    }
+
+    private void roundTrip(String text, TextFormat format, byte[] byteOrderMark) throws Exception {
+        String where = format.describe();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        if (byteOrderMark != null) {
+            bytes.writeBytes(byteOrderMark);
+        }
+        bytes.writeBytes(text.replace("\n", format.lineSeparator()).getBytes(format.charset()));
+        Path file = dir.resolve("in.txt");
+        Files.write(file, bytes.toByteArray());
+
+        EditorEngine engine = EditorEngine.open(file, null);
+        assertEquals(text, text(engine.getDocument()), where);
+        assertEquals(format, TextFormat.of(engine.getDocument()), where);
+
+        Path saved = dir.resolve("out.txt");
+        long written = engine.save(saved);
+        assertArrayEquals(bytes.toByteArray(), Files.readAllBytes(saved), where);
+        assertEquals(bytes.size(), written, where);
+
+        // Naming the charset instead of detecting it reads the same text
+        assertEquals(text, text(EditorEngine.open(file, format.charset()).getDocument()), where);
+    }
+
+    private static String text(StyledDocument doc) throws Exception {
+        return doc.getText(0, doc.getLength());
+    }
+}
@@ -0,0 +1,160 @@
+import org.junit.jupiter.api.Test;
+
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.StyledDocument;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Every transform's minimal edits against the transformed text built the simple way, their
+// styles, and an undo that arrives while the edits are being applied a slice at a time
+class TextTransformTest {
+    private static final int SEEDS = 40;
+
+    @Test
+    void editsMakeTheTransformedText() throws Exception {
+        for (TextTransform transform : TextTransform.values()) {
+            for (int seed = 0; seed < SEEDS; seed++) {
+                Random random = new Random(seed);
+                String text = randomLines(random, 1 + random.nextInt(60));
+                StyledDocument doc = PieceTableContent.newDocument();
+                doc.insertString(0, "head\n" + text + "\ntail", null);
+                int start = 5 + random.nextInt(3);
+                int end = 5 + text.length() - random.nextInt(3);
+                TextTransform.Snapshot snapshot = transform.snapshot(doc, start, end);
+                String selected = doc.getText(snapshot.offset(), snapshot.length());
+                if (transform.isWholeLines()) {
+                    assertTrue(snapshot.offset() == 0 || doc.getText(snapshot.offset() - 1, 1).equals("\n"));
+                    assertEquals("\n", doc.getText(snapshot.offset() + snapshot.length(), 1));
+                }
+
+                int newLength = snapshot.apply(doc, snapshot.compute());
+                String expected = expected(transform, selected);
+                String where = transform + " seed " + seed;
+                assertEquals(expected.length(), newLength, where);
+                assertEquals(doc.getText(0, snapshot.offset()) + expected
+                                + doc.getText(snapshot.offset() + newLength, doc.getLength() - snapshot.offset() - newLength),
+                        doc.getText(0, doc.getLength()), where);
+                assertTrue(doc.getText(0, doc.getLength()).startsWith("head\n"), where);
+                assertTrue(doc.getText(0, doc.getLength()).endsWith("\ntail"), where);
+            }
+        }
+    }
+
+    @Test
+    void lineTransforms() {
+        assertEquals("Hello World's 2nd-Rate Api", TextTransform.TITLE_CASE.transformLine("hello WORLD's 2nd-rate API"));
+        assertEquals("  x", TextTransform.TRIM_TRAILING_WHITESPACE.transformLine("  x \t "));
+        assertEquals("    a   b", TextTransform.TABS_TO_SPACES.transformLine("\ta\tb"));
+        assertEquals("\t\t x  y", TextTransform.SPACES_TO_TABS.transformLine("  \t     x  y"));
+    }
+
+    @Test
+    void editsKeepTheStylesOfTheirText() throws Exception {
+        StyledDocument doc = PieceTableContent.newDocument();
+        SimpleAttributeSet bold = new SimpleAttributeSet();
+        StyleConstants.setBold(bold, true);
+        doc.insertString(0, "plain ", null);
+        doc.insertString(6, "bold", bold);
+        doc.insertString(10, " plain\nb\na", null);
+        TextTransform.Snapshot upper = TextTransform.UPPER_CASE.snapshot(doc, 0, 16);
+        upper.apply(doc, upper.compute());
+        assertEquals("PLAIN BOLD PLAIN\nb\na", doc.getText(0, doc.getLength()));
+        assertFalse(StyleConstants.isBold(doc.getCharacterElement(5).getAttributes()));
+        assertTrue(StyleConstants.isBold(doc.getCharacterElement(6).getAttributes()));
+        assertTrue(StyleConstants.isBold(doc.getCharacterElement(9).getAttributes()));
+        assertFalse(StyleConstants.isBold(doc.getCharacterElement(10).getAttributes()));
+
+        // A moved line takes its styles with it
+        TextTransform.Snapshot sort = TextTransform.SORT_LINES.snapshot(doc, 0, doc.getLength());
+        sort.apply(doc, sort.compute());
+        assertEquals("PLAIN BOLD PLAIN\na\nb", doc.getText(0, doc.getLength()));
+        assertTrue(StyleConstants.isBold(doc.getCharacterElement(6).getAttributes()));
+    }
+
+    @Test
+    void undoWaitsUntilASlicedApplyIsFinished() throws Exception {
+        StyledDocument doc = PieceTableContent.newDocument();
+        EditHistory history = new EditHistory();
+        doc.addUndoableEditListener(history);
+        EditorEngine engine = new EditorEngine(doc, history);
+        // Lines far enough apart that each is a replacement of its own
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            text.append("\tline ").append(i).append(" ").append("x".repeat(100)).append('\n');
+        }
+        doc.insertString(0, text.toString(), null);
+        engine.applyStyle(0, 4, boldStyle());
+        String before = doc.getText(0, doc.getLength());
+
+        // Tabs to spaces changes the length of every line, so edits applied out of turn would
+        // land in the wrong place
+        TextTransform.Snapshot snapshot = TextTransform.TABS_TO_SPACES.snapshot(doc, 0, doc.getLength());
+        List<TextTransform.Edit> edits = snapshot.compute();
+        TextTransform.Snapshot.Application application = engine.startApply(snapshot, edits);
+        application.applySome(0);
+        application.applySome(0);
+        assertFalse(application.isDone());
+        assertTrue(application.applied() > 0);
+        assertFalse(history.canUndo());
+        assertFalse(history.canRedo());
+        assertThrows(CannotUndoException.class, history::undo);
+        assertThrows(CannotRedoException.class, history::redo);
+
+        // Stopped midway: what was applied undoes as one step, then the format before it
+        engine.finishApply();
+        String partial = doc.getText(0, doc.getLength());
+        assertEquals(before.length() + 3 * application.applied(), partial.length());
+        assertEquals(TextTransform.TABS_TO_SPACES.toString(), history.getPresentationName());
+        history.undo();
+        assertEquals(before, doc.getText(0, doc.getLength()));
+        assertTrue(StyleConstants.isBold(doc.getCharacterElement(0).getAttributes()));
+        history.undo();
+        assertFalse(StyleConstants.isBold(doc.getCharacterElement(0).getAttributes()));
+        history.redo();
+        history.redo();
+        assertEquals(partial, doc.getText(0, doc.getLength()));
+        assertTrue(StyleConstants.isBold(doc.getCharacterElement(0).getAttributes()));
+    }
+
+    private static SimpleAttributeSet boldStyle() {
+        SimpleAttributeSet bold = new SimpleAttributeSet();
+        StyleConstants.setBold(bold, true);
+        return bold;
+    }
+
+    private static String expected(TextTransform transform, String text) {
+        List<String> lines = new ArrayList<>(Arrays.asList(text.split("\n", -1)));
+        switch (transform) {
+            case SORT_LINES -> lines.sort(null);
+            case REMOVE_DUPLICATE_LINES -> lines = new ArrayList<>(new LinkedHashSet<>(lines));
+            default -> lines.replaceAll(transform::transformLine);
+        }
+        return String.join("\n", lines);
+    }
+
+    // Short lines from a small vocabulary, so lines repeat and sort into new orders
+    private static String randomLines(Random random, int count) {
+        String[] words = {"alpha", "Beta", "gAMMA", "it's", "x1", "\t", "  ", "\u00df", "delta"};
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                text.append('\n');
+            }
+            for (int w = random.nextInt(4); w > 0; w--) {
+                text.append(words[random.nextInt(words.length)]).append(random.nextBoolean() ? " " : "");
+            }
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,521 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+// Command-line batch mode: applies find/replace, a case change and/or statistics to many files
+// at once. Each file gets its own virtual thread (a plain thread before JDK 21) for reading and
+// writing, while decoding, replacing and counting run on a pool sized to the CPU count. Files
+// are handed out as the directory walk reaches them rather than listed up front. Counting and
+// case changes stream each file through the decoder a block at a time, so a file is never held
+// whole. A find/replace can match anywhere in a file, so those files are held in memory, and a
+// budget on the bytes they take up (as well as a cap on their number) bounds how many are in
+// flight. Each file's encoding is detected the way the editor does it (see TextDecoder) unless
+// --charset names one. Files are rewritten through FileSaver's temp file and rename, only when
+// their text changed, in the encoding they were read in and with their byte order mark; line
+// endings are left in the text as they were, so they are written back unchanged. With --export
+// it draws a project's canvas into an image instead (see CanvasExporter).
+public class BatchProcessor {
+
+    // charset is null to detect each file's encoding
+    public record Options(Pattern pattern, String replacement, boolean regex, EditorEngine.TextCase textCase,
+                          boolean statistics, Charset charset, int cpuThreads) {
+    }
+
+    private record FileResult(CharBuffer[] text, TextFormat format, int replacements, boolean changed,
+                              EditorEngine.Counts counts) {
+    }
+
+    // What TextDecoder falls back to: every byte is a char, so the file is written back unchanged
+    private static final TextFormat LATIN_1 = new TextFormat(StandardCharsets.ISO_8859_1, false, "\n");
+
+    private static final int READ_BLOCK = 1 << 20;
+    // Roughly what a file being replaced in takes up per byte: its bytes, the decoded chars and,
+    // with a case change as well, the text before and after the change
+    private static final int MEMORY_PER_BYTE = 8;
+
+    private final Options options;
+    private final PrintStream out;
+    private final PrintStream err;
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong replacements = new AtomicLong();
+    private final AtomicLong words = new AtomicLong();
+    private final AtomicLong characters = new AtomicLong();
+    private final AtomicLong lines = new AtomicLong();
+
+    public BatchProcessor(Options options, PrintStream out, PrintStream err) {
+        this.options = options;
+        this.out = out;
+        this.err = err;
+    }
+
+    // Entry point for Main when it is given arguments. Returns the process exit code.
+    public static int run(String[] args) {
+        if (List.of(args).contains("--export")) {
+            return CanvasExporter.run(args);
+        }
+        Options options;
+        List<Path> roots = new ArrayList<>();
+        try {
+            options = parse(args, roots);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println();
+            System.err.println(USAGE);
+            return 2;
+        }
+        if (options == null) {
+            System.out.println(USAGE);
+            return 0;
+        }
+        BatchProcessor processor = new BatchProcessor(options, System.out, System.err);
+        try {
+            processor.process(roots);
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            return 1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 1;
+        }
+        return processor.failures.get() > 0 ? 1 : 0;
+    }
+
+    public void process(List<Path> roots) throws IOException, InterruptedException {
+        long startNanos = System.nanoTime();
+        ExecutorService cpu = Executors.newFixedThreadPool(options.cpuThreads());
+        ExecutorService io = newIoExecutor();
+        Semaphore inFlight = new Semaphore(options.cpuThreads() * 4);
+        // In KB; a file bigger than the whole budget takes all of it and runs alone
+        int budget = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 2 / 1024);
+        Semaphore memory = new Semaphore(budget);
+        try {
+            for (Path root : roots) {
+                if (!Files.exists(root)) {
+                    fail(root, "no such file or directory");
+                    continue;
+                }
+                // Files are handed out as the walk reaches them, so processing starts right away
+                Files.walkFileTree(root, new SimpleFileVisitor<>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                        if (!attrs.isRegularFile() || isSaverTempFile(file)) {
+                            return FileVisitResult.CONTINUE;
+                        }
+                        int kilobytes = options.pattern() != null
+                                ? (int) Math.min(budget, Math.max(1, attrs.size() / 1024 * MEMORY_PER_BYTE)) : 0;
+                        try {
+                            inFlight.acquire();
+                            try {
+                                memory.acquire(kilobytes);
+                            } catch (InterruptedException e) {
+                                inFlight.release();
+                                throw e;
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return FileVisitResult.TERMINATE;
+                        }
+                        io.execute(() -> {
+                            try {
+                                processFile(file, cpu);
+                            } finally {
+                                memory.release(kilobytes);
+                                inFlight.release();
+                            }
+                        });
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException e) {
+                        // Temp files of saves in progress can disappear while the directory is walked
+                        if (!(e instanceof NoSuchFileException)) {
+                            fail(file, e.getMessage());
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            }
+        } finally {
+            io.shutdown();
+            io.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            cpu.shutdown();
+        }
+        report(System.nanoTime() - startNanos);
+    }
+
+    private void processFile(Path file, ExecutorService cpu) {
+        try {
+            FileResult result;
+            if (options.pattern() != null) {
+                ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file));
+                bytesRead.addAndGet(bytes.remaining());
+                result = replace(bytes, cpu);
+                if (options.textCase() != null) {
+                    result = changeCase(file, result, cpu);
+                } else if (result.changed()) {
+                    FileSaver.write(result.text(), file, result.format(), charsDone -> true);
+                }
+            } else {
+                result = stream(file, cpu);
+            }
+            replacements.addAndGet(result.replacements());
+            files.incrementAndGet();
+            EditorEngine.Counts counts = result.counts();
+            if (counts != null) {
+                words.addAndGet(counts.words());
+                characters.addAndGet(counts.characters());
+                lines.addAndGet(counts.lines());
+                out.printf("%d\t%d\t%d\t%s%n", counts.words(), counts.characters(), counts.lines(), file);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(file, "interrupted");
+        } catch (ExecutionException e) {
+            // Only a charset given with --charset can fail to decode; detected ones fall back
+            fail(file, e.getCause() instanceof CharacterCodingException && options.charset() != null
+                    ? "not valid " + options.charset().name() + " text, skipped"
+                    : e.getCause().getMessage());
+        } catch (IOException | RuntimeException e) {
+            fail(file, e.getMessage());
+        }
+    }
+
+    // Matches the names FileSaver gives its temp files
+    private static boolean isSaverTempFile(Path file) {
+        String name = file.getFileName().toString();
+        return name.startsWith(".") && name.endsWith(".tmp");
+    }
+
+    private void fail(Path file, String message) {
+        failures.incrementAndGet();
+        err.println(file + ": " + message);
+    }
+
+    // The file's format as the editor would detect it from the start of the file, or the charset
+    // given with --charset, keeping the byte order mark only if the file has one for it
+    private TextFormat format(ByteBuffer sample) {
+        TextFormat detected = TextFormat.detect(sample);
+        if (options.charset() != null && !options.charset().equals(detected.charset())) {
+            return new TextFormat(options.charset(), false, "\n");
+        }
+        return detected;
+    }
+
+    // Only the start of the file was checked when its encoding was detected; like TextDecoder,
+    // text further on that doesn't decode means reading the file again as Latin-1
+    private boolean fallsBack(ExecutionException e, TextFormat format) {
+        return e.getCause() instanceof CharacterCodingException && options.charset() == null
+                && !format.charset().equals(LATIN_1.charset());
+    }
+
+    private FileResult replace(ByteBuffer bytes, ExecutorService cpu) throws InterruptedException, ExecutionException {
+        TextFormat format = format(bytes);
+        try {
+            return cpu.submit(() -> replace(bytes, format)).get();
+        } catch (ExecutionException e) {
+            if (!fallsBack(e, format)) {
+                throw e;
+            }
+        }
+        return cpu.submit(() -> replace(bytes, LATIN_1)).get();
+    }
+
+    // Runs on the CPU pool: decode, replace, and count unless the case is changed too
+    private FileResult replace(ByteBuffer bytes, TextFormat format) throws CharacterCodingException {
+        CharBuffer decoded = format.charset().newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT)
+                .decode(bytes.duplicate().position(format.byteOrderMarkLength()));
+        List<CharBuffer> pieces = new ArrayList<>();
+        int count = ReplaceEngine.replaceAll(decoded, options.pattern(), options.replacement(), options.regex(), pieces);
+        CharBuffer[] text = pieces.toArray(new CharBuffer[0]);
+        EditorEngine.Counts counts = options.statistics() && options.textCase() == null ? EditorEngine.Counts.of(text) : null;
+        return new FileResult(text, format, count, count > 0, counts);
+    }
+
+    // Changes the case of replaced text a block at a time: each block is copied out of the
+    // pieces, changed and counted on the CPU pool and written to FileSaver's temp file, so the
+    // changed text is never held whole
+    private FileResult changeCase(Path file, FileResult replaced, ExecutorService cpu)
+            throws IOException, InterruptedException, ExecutionException {
+        EditorEngine.Counter counter = options.statistics() ? new EditorEngine.Counter() : null;
+        CharBuffer block = CharBuffer.allocate(READ_BLOCK);
+        boolean changed = replaced.changed();
+        try (FileSaver.Stream saved = new FileSaver.Stream(file, replaced.format())) {
+            for (CharBuffer piece : replaced.text()) {
+                while (piece.hasRemaining()) {
+                    int length = Math.min(piece.remaining(), block.remaining());
+                    // Keep surrogate pairs in one block so they change case together
+                    if (length < piece.remaining() && length > 1
+                            && Character.isHighSurrogate(piece.get(piece.position() + length - 1))) {
+                        length--;
+                    }
+                    int limit = piece.limit();
+                    block.put(piece.limit(piece.position() + length));
+                    piece.limit(limit);
+                    if (piece.hasRemaining()) {
+                        changed |= writeBlock(block, saved, counter, cpu);
+                    }
+                }
+            }
+            changed |= writeBlock(block, saved, counter, cpu);
+            if (changed) {
+                saved.commit();
+            }
+        }
+        return new FileResult(null, replaced.format(), replaced.replacements(), changed,
+                counter != null ? counter.counts() : null);
+    }
+
+    private record Block(CharBuffer text, boolean changed) {
+    }
+
+    // Runs without --find: decodes, changes case and counts a file a block at a time. Blocks are
+    // read here and processed on the CPU pool one after another, so only a block of the file is
+    // in memory at once. With a case change each block is written to FileSaver's temp file as it
+    // goes, and the temp file is only renamed over the file if some block changed.
+    private FileResult stream(Path file, ExecutorService cpu)
+            throws IOException, InterruptedException, ExecutionException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer sample = ByteBuffer.allocate((int) Math.min(channel.size(), TextFormat.SAMPLE_BYTES));
+            channel.read(sample, 0);
+            TextFormat format = format(sample.flip());
+            try {
+                return stream(file, channel, format, cpu);
+            } catch (ExecutionException e) {
+                if (!fallsBack(e, format)) {
+                    throw e;
+                }
+            }
+            return stream(file, channel, LATIN_1, cpu);
+        }
+    }
+
+    private FileResult stream(Path file, FileChannel channel, TextFormat format, ExecutorService cpu)
+            throws IOException, InterruptedException, ExecutionException {
+        CharsetDecoder decoder = format.charset().newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        EditorEngine.Counter counter = options.statistics() ? new EditorEngine.Counter() : null;
+        ByteBuffer in = ByteBuffer.allocate(READ_BLOCK);
+        CharBuffer[] out = {CharBuffer.allocate((int) (READ_BLOCK * decoder.maxCharsPerByte()) + 16)};
+        boolean changed = false;
+        channel.position(format.byteOrderMarkLength());
+        try (FileSaver.Stream saved = options.textCase() != null ? new FileSaver.Stream(file, format) : null) {
+            boolean endOfInput = false;
+            while (!endOfInput) {
+                int read = channel.read(in);
+                endOfInput = read < 0;
+                if (read > 0) {
+                    bytesRead.addAndGet(read);
+                }
+                in.flip();
+                boolean last = endOfInput;
+                Block block = cpu.submit(() -> processBlock(decoder, in, out, last, counter)).get();
+                in.compact();
+                if (saved != null) {
+                    saved.write(block.text());
+                }
+                changed |= block.changed();
+            }
+            if (changed) {
+                saved.commit();
+            }
+        }
+        return new FileResult(null, format, 0, changed, counter != null ? counter.counts() : null);
+    }
+
+    // Decodes what the block holds, growing out[0] if it runs out of room, then changes its case
+    // and counts it
+    private Block processBlock(CharsetDecoder decoder, ByteBuffer in, CharBuffer[] out, boolean endOfInput,
+                          EditorEngine.Counter counter) throws CharacterCodingException {
+        CharBuffer chars = out[0];
+        chars.clear();
+        CoderResult result;
+        do {
+            result = decoder.decode(in, chars, endOfInput);
+            if (result.isOverflow()) {
+                chars = grow(chars);
+            } else if (result.isError()) {
+                result.throwException();
+            }
+        } while (result.isOverflow());
+        if (endOfInput) {
+            while (decoder.flush(chars).isOverflow()) {
+                chars = grow(chars);
+            }
+        }
+        out[0] = chars;
+        return changeCase(chars.flip(), counter);
+    }
+
+    // Changes the case of what the block holds and writes it out; returns whether it changed
+    private boolean writeBlock(CharBuffer block, FileSaver.Stream saved, EditorEngine.Counter counter,
+                               ExecutorService cpu) throws IOException, InterruptedException, ExecutionException {
+        block.flip();
+        Block changed = cpu.submit(() -> changeCase(block, counter)).get();
+        saved.write(changed.text());
+        block.clear();
+        return changed.changed();
+    }
+
+    // Runs on the CPU pool: changes the case of a block, if asked to, and counts it
+    private Block changeCase(CharBuffer text, EditorEngine.Counter counter) {
+        boolean changed = false;
+        if (options.textCase() != null) {
+            String before = text.toString();
+            String after = options.textCase().apply(before);
+            if (!after.equals(before)) {
+                text = CharBuffer.wrap(after);
+                changed = true;
+            }
+        }
+        if (counter != null) {
+            counter.add(text);
+        }
+        return new Block(text, changed);
+    }
+
+    private static CharBuffer grow(CharBuffer chars) {
+        CharBuffer bigger = CharBuffer.allocate(chars.capacity() * 2);
+        return bigger.put(chars.flip());
+    }
+
+    private void report(long nanos) {
+        double seconds = Math.max(nanos, 1) / 1e9;
+        double megabytes = bytesRead.get() / (1024.0 * 1024.0);
+        if (options.statistics()) {
+            out.printf("%d\t%d\t%d\ttotal%n", words.get(), characters.get(), lines.get());
+        }
+        err.printf("Processed %,d files (%.1f MB) in %d ms: %.1f MB/s, %.0f files/s, %,d replacements%s%n",
+                files.get(), megabytes, nanos / 1_000_000, megabytes / seconds, files.get() / seconds,
+                replacements.get(), failures.get() > 0 ? ", " + failures.get() + " failed" : "");
+    }
+
+    // Virtual threads when the runtime has them; the semaphore in process() bounds the thread
+    // count either way
+    private static ExecutorService newIoExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    static final String USAGE = """
+            Usage: java -jar text-editor.jar [options] <file or directory>...
+                   java -jar text-editor.jar --export <image> [--scale <n> | --width <px>] <project.tep>
+            Without arguments the editor window opens.
+
+              --find <text>      text to find (with --replace)
+              --replace <text>   replacement; $1 and ${name} refer to groups with --regex
+              --regex            treat --find as a regular expression
+              --ignore-case      match regardless of case
+              --upper, --lower   change the whole file to upper or lower case
+              --stats            print words, characters and lines for each file
+              --charset <name>   file encoding (default: detected for each file, as the editor does)
+              --threads <n>      threads for text processing or rendering (default: the CPU count)
+              --export <image>   draw a project's canvas into a .png or .svg file
+              --scale <n>        export at n times the canvas size (default: 1)
+              --width <px>       export at this width in pixels instead
+              --help             show this message""";
+
+    // Returns null when help was asked for
+    static Options parse(String[] args, List<Path> roots) {
+        String find = null;
+        String replacement = null;
+        boolean regex = false;
+        boolean matchCase = true;
+        EditorEngine.TextCase textCase = null;
+        boolean statistics = false;
+        Charset charset = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--find" -> find = value(args, ++i, arg);
+                case "--replace" -> replacement = value(args, ++i, arg);
+                case "--regex" -> regex = true;
+                case "--ignore-case" -> matchCase = false;
+                case "--upper" -> textCase = EditorEngine.TextCase.UPPER;
+                case "--lower" -> textCase = EditorEngine.TextCase.LOWER;
+                case "--stats" -> statistics = true;
+                case "--charset" -> {
+                    try {
+                        charset = Charset.forName(value(args, ++i, arg));
+                    } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+                        throw new IllegalArgumentException("Unknown charset: " + args[i]);
+                    }
+                }
+                case "--threads" -> {
+                    try {
+                        threads = Integer.parseInt(value(args, ++i, arg));
+                    } catch (NumberFormatException e) {
+                        threads = 0;
+                    }
+                    if (threads < 1) {
+                        throw new IllegalArgumentException("--threads needs a positive number");
+                    }
+                }
+                case "--help", "-h" -> {
+                    return null;
+                }
+                default -> {
+                    if (arg.startsWith("--")) {
+                        throw new IllegalArgumentException("Unknown option: " + arg);
+                    }
+                    roots.add(Path.of(arg));
+                }
+            }
+        }
+        if ((find == null) != (replacement == null)) {
+            throw new IllegalArgumentException("--find and --replace must be given together");
+        }
+        if (find != null && find.isEmpty()) {
+            throw new IllegalArgumentException("--find needs non-empty text");
+        }
+        if (find == null && textCase == null && !statistics) {
+            throw new IllegalArgumentException("Nothing to do: give --find/--replace, --upper, --lower or --stats");
+        }
+        if (roots.isEmpty()) {
+            throw new IllegalArgumentException("No files given");
+        }
+        Pattern pattern = null;
+        if (find != null) {
+            try {
+                pattern = ReplaceEngine.compile(find, regex, matchCase);
+            } catch (PatternSyntaxException e) {
+                throw new IllegalArgumentException("Invalid regular expression: " + e.getDescription());
+            }
+            if (regex) {
+                try {
+                    ReplaceEngine.checkReplacement(pattern, replacement);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Invalid replacement: " + e.getMessage());
+                }
+            }
+        }
+        return new Options(pattern, replacement, regex, textCase, statistics, charset, threads);
+    }
+
+    static String value(String[] args, int index, String option) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException(option + " needs a value");
+        }
+        return args[index];
+    }
+}
@@ -0,0 +1,508 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.geom.PathIterator;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntPredicate;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+// Exports the canvas' shapes to a PNG or SVG file at any scale, without ever holding a
+// full-size image.
+//
+// A PNG is rendered a band of rows at a time. Each band is split into tiles that are drawn in
+// parallel on a fork-join pool, and each tile only draws the shapes the index says intersect
+// it. While one band is compressed into the file the next one is rendered, so memory stays at
+// about two bands whatever the size of the image.
+//
+// An SVG is one element per shape, written straight to the file in painting order.
+//
+// Both are written to a temp file next to the target and renamed over it, as FileSaver does.
+public class CanvasExporter extends SwingWorker<Long, Void> {
+    public enum Format {
+        PNG, SVG;
+
+        // From the file name's extension; null if it is neither
+        public static Format of(Path file) {
+            String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+            return name.endsWith(".png") ? PNG : name.endsWith(".svg") ? SVG : null;
+        }
+    }
+
+    private static final int TILE_SIZE = 512;
+    private static final int BAND_BYTES = 8 * 1024 * 1024; // Rows rendered at a time, at most
+    private static final int OUTPUT_BUFFER = 256 * 1024;
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final byte[] ZLIB_HEADER = {0x78, 0x01}; // Deflate, 32K window, fastest
+
+    private final ShapeIndex shapes;
+    private final Rectangle region;
+    private final double scale;
+    private final Color background;
+    private final Color stroke;
+    private final Path target;
+    private final long startNanos = System.nanoTime();
+
+    // shapes must not change while the export runs; the editor hands over a copy
+    public CanvasExporter(ShapeIndex shapes, Rectangle region, double scale, Color background, Color stroke,
+                          Path target) {
+        this.shapes = shapes;
+        this.region = region;
+        this.scale = scale;
+        this.background = background;
+        this.stroke = stroke;
+        this.target = target;
+    }
+
+    public long getElapsedMillis() {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+
+    @Override
+    protected Long doInBackground() throws IOException {
+        return export(shapes, region, scale, background, stroke, target, ForkJoinPool.commonPool(), percent -> {
+            setProgress(percent);
+            return !isCancelled();
+        });
+    }
+
+    // The part of the canvas to export: the given size from the origin, grown to take in every
+    // shape
+    public static Rectangle region(ShapeIndex shapes, int width, int height) {
+        Rectangle region = new Rectangle(0, 0, width, height);
+        if (shapes.size() > 0) {
+            region.add(shapes.getExtent());
+        }
+        return region;
+    }
+
+    // Size in pixels of region exported at scale
+    public static Dimension imageSize(Rectangle region, double scale) {
+        if (!(scale > 0)) {
+            throw new IllegalArgumentException("The scale must be a positive number");
+        }
+        double width = Math.max(1, Math.ceil(region.width * scale));
+        double height = Math.max(1, Math.ceil(region.height * scale));
+        // A PNG row, with its filter byte, must fit in an array
+        if (width * 3 + 1 > Integer.MAX_VALUE - 8 || height > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format("%.0f x %.0f pixels is too large to export", width, height));
+        }
+        return new Dimension((int) width, (int) height);
+    }
+
+    // Writes the shapes in region, scaled, to target in the format its name asks for, outlined in
+    // stroke on background as the canvas shows them. progress
+    // is called with the percentage done; returning false abandons the export and leaves target
+    // untouched. Returns the bytes written, or 0 if abandoned.
+    public static long export(ShapeIndex shapes, Rectangle region, double scale, Color background, Color stroke,
+                              Path target, ForkJoinPool pool, IntPredicate progress) throws IOException {
+        Format format = Format.of(target);
+        if (format == null) {
+            throw new IllegalArgumentException(target.getFileName() + " should end in .png or .svg");
+        }
+        Dimension size = imageSize(region, scale);
+        Path dir = target.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(dir, "." + target.getFileName(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), OUTPUT_BUFFER);
+                boolean done = format == Format.PNG
+                        ? writePng(shapes, region, scale, background, stroke, size, pool, out, progress)
+                        : writeSvg(shapes, region, scale, background, stroke, size, out, progress);
+                if (!done) {
+                    return 0;
+                }
+                out.flush();
+                channel.force(true);
+            }
+            long bytes = Files.size(temp);
+            FileSaver.replace(target, temp);
+            return bytes;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // An 8-bit RGB image with no row filtering: line drawings on a plain background are mostly
+    // long runs of one color, which deflate well as they are.
+    //
+    // Each band is compressed by the task that rendered it, as a raw deflate stream ending on a
+    // byte boundary (the last one ends the data), so compression runs in parallel as well and the
+    // streams only need to be written one after the other behind a zlib header. What is left for
+    // this thread is the zlib checksum of the rows and the writing.
+    private static boolean writePng(ShapeIndex shapes, Rectangle region, double scale, Color background,
+                                    Color stroke, Dimension size, ForkJoinPool pool, OutputStream out, IntPredicate progress)
+            throws IOException {
+        int rowBytes = size.width * 3 + 1;
+        int bandRows = Math.max(1, Math.min(TILE_SIZE, BAND_BYTES / rowBytes));
+        out.write(PNG_SIGNATURE);
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        header.writeInt(size.width);
+        header.writeInt(size.height);
+        header.writeByte(8); // Bit depth
+        header.writeByte(2); // Truecolor
+        header.writeByte(0); // Deflate
+        header.writeByte(0); // Adaptive filtering, with every row using filter 0
+        header.writeByte(0); // Not interlaced
+        writeChunk(out, "IHDR", headerBytes.toByteArray(), headerBytes.size());
+        writeChunk(out, "IDAT", ZLIB_HEADER, ZLIB_HEADER.length);
+
+        // A band more than the pool can work on is queued, so no thread waits on the writer
+        ArrayDeque<ForkJoinTask<Band>> pending = new ArrayDeque<>();
+        int queued = 0;
+        Adler32 checksum = new Adler32();
+        try {
+            for (int y = 0; y < size.height; ) {
+                while (queued < size.height && pending.size() <= pool.getParallelism()) {
+                    int rows = Math.min(bandRows, size.height - queued);
+                    pending.add(pool.submit(new BandTask(shapes, region, scale, background, stroke, size.width, queued, rows,
+                            queued + rows == size.height)));
+                    queued += rows;
+                }
+                Band band = pending.remove().join();
+                checksum.update(band.rows());
+                writeChunk(out, "IDAT", band.compressed(), band.length());
+                y += band.rows().length / rowBytes;
+                if (!progress.test((int) (y * 100L / size.height))) {
+                    return false;
+                }
+            }
+        } finally {
+            for (ForkJoinTask<Band> task : pending) {
+                task.cancel(false);
+            }
+        }
+        byte[] trailer = new byte[4];
+        int adler = (int) checksum.getValue();
+        for (int i = 0; i < 4; i++) {
+            trailer[i] = (byte) (adler >>> (24 - 8 * i));
+        }
+        writeChunk(out, "IDAT", trailer, trailer.length);
+        writeChunk(out, "IEND", trailer, 0);
+        return true;
+    }
+
+    private static void writeChunk(OutputStream out, String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        writeInt(out, length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        writeInt(out, (int) crc.getValue());
+    }
+
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    // A band's PNG scanlines and their compressed form, in the first length bytes of compressed
+    private record Band(byte[] rows, byte[] compressed, int length) {
+    }
+
+    // Renders rows [y, y + rows) of the image, a tile per task, and compresses them
+    private static final class BandTask extends RecursiveTask<Band> {
+        private final ShapeIndex shapes;
+        private final Rectangle region;
+        private final double scale;
+        private final Color background;
+        private final Color stroke;
+        private final int width;
+        private final int y;
+        private final int rows;
+        private final boolean last;
+
+        BandTask(ShapeIndex shapes, Rectangle region, double scale, Color background, Color stroke, int width, int y,
+                 int rows, boolean last) {
+            this.shapes = shapes;
+            this.region = region;
+            this.scale = scale;
+            this.background = background;
+            this.stroke = stroke;
+            this.width = width;
+            this.y = y;
+            this.rows = rows;
+            this.last = last;
+        }
+
+        @Override
+        protected Band compute() {
+            byte[] band = new byte[rows * (width * 3 + 1)]; // Each row starts with filter 0
+            List<TileTask> tiles = new ArrayList<>();
+            for (int x = 0; x < width; x += TILE_SIZE) {
+                tiles.add(new TileTask(this, band, x, Math.min(TILE_SIZE, width - x)));
+            }
+            invokeAll(tiles);
+
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+            try {
+                deflater.setInput(band);
+                if (last) {
+                    deflater.finish();
+                }
+                byte[] compressed = new byte[band.length / 16 + 64];
+                int length = 0;
+                // A sync flush is done once it leaves room in the buffer; a finish once it says so
+                while (true) {
+                    if (length == compressed.length) {
+                        compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                    }
+                    length += deflater.deflate(compressed, length, compressed.length - length,
+                            last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                    if (last ? deflater.finished() : length < compressed.length) {
+                        return new Band(band, compressed, length);
+                    }
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+
+    private static final class TileTask extends RecursiveAction {
+        private final BandTask band;
+        private final byte[] rows;
+        private final int x;
+        private final int width;
+
+        TileTask(BandTask band, byte[] rows, int x, int width) {
+            this.band = band;
+            this.rows = rows;
+            this.x = x;
+            this.width = width;
+        }
+
+        @Override
+        protected void compute() {
+            int height = band.rows;
+            double scale = band.scale;
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g2 = image.createGraphics();
+            g2.setColor(band.background);
+            g2.fillRect(0, 0, width, height);
+            g2.translate(-x, -band.y);
+            g2.scale(scale, scale);
+            g2.translate(-band.region.x, -band.region.y);
+            g2.setColor(band.stroke);
+            // The canvas area under the tile, widened a little for strokes reaching in from outside
+            Rectangle area = new Rectangle((int) Math.floor(band.region.x + x / scale) - 1,
+                    (int) Math.floor(band.region.y + band.y / scale) - 1,
+                    (int) Math.ceil(width / scale) + 3, (int) Math.ceil(height / scale) + 3);
+            ShapeIndex shapes = band.shapes;
+            ShapeIndex.Views views = new ShapeIndex.Views();
+            shapes.forEachIntersecting(area, new BitSet(), i -> g2.draw(shapes.view(i, views)));
+            g2.dispose();
+
+            int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            int rowBytes = band.width * 3 + 1;
+            for (int row = 0, from = 0; row < height; row++) {
+                int to = row * rowBytes + 1 + x * 3;
+                for (int end = from + width; from < end; from++) {
+                    int rgb = pixels[from];
+                    rows[to++] = (byte) (rgb >> 16);
+                    rows[to++] = (byte) (rgb >> 8);
+                    rows[to++] = (byte) rgb;
+                }
+            }
+        }
+    }
+
+    // Drawn as the canvas draws them: one-pixel outlines on the background
+    private static boolean writeSvg(ShapeIndex shapes, Rectangle region, double scale, Color background,
+                                    Color stroke, Dimension size, OutputStream out, IntPredicate progress) throws IOException {
+        Writer svg = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        svg.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        svg.write(String.format(Locale.ROOT, "<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"%d\" height=\"%d\""
+                        + " viewBox=\"%d %d %d %d\">\n", size.width, size.height,
+                region.x, region.y, region.width, region.height));
+        svg.write(String.format(Locale.ROOT, "<rect x=\"%d\" y=\"%d\" width=\"%d\" height=\"%d\" fill=\"#%06x\"/>\n",
+                region.x, region.y, region.width, region.height, background.getRGB() & 0xFFFFFF));
+        svg.write(String.format(Locale.ROOT, "<g fill=\"none\" stroke=\"#%06x\" stroke-width=\"1\">\n",
+                stroke.getRGB() & 0xFFFFFF));
+        ShapeIndex.Views views = new ShapeIndex.Views();
+        StringBuilder line = new StringBuilder(256);
+        double[] coords = new double[6];
+        int count = shapes.size();
+        for (int i = 0; i < count; i++) {
+            line.setLength(0);
+            appendElement(line, shapes.view(i, views), coords);
+            svg.append(line);
+            if ((i & 0xFFFF) == 0xFFFF && !progress.test((int) ((i + 1L) * 100 / count))) {
+                return false;
+            }
+        }
+        svg.write("</g>\n</svg>\n");
+        svg.flush();
+        return progress.test(100);
+    }
+
+    private static void appendElement(StringBuilder out, Shape shape, double[] coords) {
+        if (shape instanceof Rectangle r) {
+            out.append("<rect x=\"").append(r.x).append("\" y=\"").append(r.y)
+                    .append("\" width=\"").append(r.width).append("\" height=\"").append(r.height).append("\"/>\n");
+        } else if (shape instanceof Ellipse2D e) {
+            out.append("<ellipse cx=\"");
+            appendNumber(out, e.getCenterX()).append("\" cy=\"");
+            appendNumber(out, e.getCenterY()).append("\" rx=\"");
+            appendNumber(out, e.getWidth() / 2).append("\" ry=\"");
+            appendNumber(out, e.getHeight() / 2).append("\"/>\n");
+        } else if (shape instanceof Line2D l) {
+            out.append("<line x1=\"");
+            appendNumber(out, l.getX1()).append("\" y1=\"");
+            appendNumber(out, l.getY1()).append("\" x2=\"");
+            appendNumber(out, l.getX2()).append("\" y2=\"");
+            appendNumber(out, l.getY2()).append("\"/>\n");
+        } else if (shape instanceof Polygon p) {
+            out.append("<polygon points=\"");
+            for (int i = 0; i < p.npoints; i++) {
+                out.append(i == 0 ? "" : " ").append(p.xpoints[i]).append(',').append(p.ypoints[i]);
+            }
+            out.append("\"/>\n");
+        } else {
+            appendPath(out, shape, coords);
+        }
+    }
+
+    // Any other shape as a path of its segments
+    private static void appendPath(StringBuilder out, Shape shape, double[] coords) {
+        PathIterator it = shape.getPathIterator(null);
+        out.append("<path");
+        if (it.getWindingRule() == PathIterator.WIND_EVEN_ODD) {
+            out.append(" fill-rule=\"evenodd\"");
+        }
+        out.append(" d=\"");
+        for (; !it.isDone(); it.next()) {
+            int points = switch (it.currentSegment(coords)) {
+                case PathIterator.SEG_MOVETO -> {
+                    out.append('M');
+                    yield 1;
+                }
+                case PathIterator.SEG_LINETO -> {
+                    out.append('L');
+                    yield 1;
+                }
+                case PathIterator.SEG_QUADTO -> {
+                    out.append('Q');
+                    yield 2;
+                }
+                case PathIterator.SEG_CUBICTO -> {
+                    out.append('C');
+                    yield 3;
+                }
+                default -> {
+                    out.append('Z');
+                    yield 0;
+                }
+            };
+            for (int i = 0; i < points * 2; i++) {
+                appendNumber(out, coords[i]).append(i % 2 == 0 ? ',' : ' ');
+            }
+        }
+        out.append("\"/>\n");
+    }
+
+    private static StringBuilder appendNumber(StringBuilder out, double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return out.append((long) value);
+        }
+        return out.append(value);
+    }
+
+    // Entry point for BatchProcessor when it is given --export: draws the canvas of a project
+    // file into an image. Returns the process exit code.
+    static int run(String[] args) {
+        Path project = null;
+        Path target = null;
+        double scale = 1;
+        int width = 0;
+        int threads = Runtime.getRuntime().availableProcessors();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                switch (arg) {
+                    case "--export" -> target = Path.of(BatchProcessor.value(args, ++i, arg));
+                    case "--scale" -> scale = number(BatchProcessor.value(args, ++i, arg), arg);
+                    case "--width" -> width = (int) number(BatchProcessor.value(args, ++i, arg), arg);
+                    case "--threads" -> threads = (int) number(BatchProcessor.value(args, ++i, arg), arg);
+                    default -> {
+                        if (arg.startsWith("--") || project != null) {
+                            throw new IllegalArgumentException(arg.startsWith("--")
+                                    ? "Unknown option with --export: " + arg : "--export takes one project file");
+                        }
+                        project = Path.of(arg);
+                    }
+                }
+            }
+            if (project == null) {
+                throw new IllegalArgumentException("No project file given");
+            }
+            if (target == null || Format.of(target) == null) {
+                throw new IllegalArgumentException("--export needs a file ending in .png or .svg");
+            }
+            if (threads < 1 || width < 0) {
+                throw new IllegalArgumentException("--threads and --width need a positive number");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println();
+            System.err.println(BatchProcessor.USAGE);
+            return 2;
+        }
+
+        long startNanos = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            ShapeIndex shapes = new ShapeIndex();
+            for (Shape shape : ProjectFile.open(project).readShapes()) {
+                shapes.add(shape);
+            }
+            Rectangle region = region(shapes, 0, 0);
+            if (width > 0) {
+                scale = (double) width / Math.max(1, region.width);
+            }
+            Dimension size = imageSize(region, scale);
+            long bytes = export(shapes, region, scale, Color.WHITE, Color.BLACK, target, pool, percent -> true);
+            System.out.printf("Exported %,d shapes to %s (%d x %d, %.1f MB) in %d ms%n", shapes.size(), target,
+                    size.width, size.height, bytes / (1024.0 * 1024.0), (System.nanoTime() - startNanos) / 1_000_000);
+            return 0;
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            return 1;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static double number(String text, String option) {
+        try {
+            return Double.parseDouble(text);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(option + " needs a number");
+        }
+    }
+}
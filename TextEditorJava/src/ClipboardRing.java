@@ -0,0 +1,180 @@
+import java.awt.*;
+import java.awt.datatransfer.*;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+// The clips cut and copied in this session, newest first. A clip is a span of a document's
+// pieces, which are never written to again, so copying a selection of any size only records the
+// pieces it covers, and pasting it puts the same pieces into the document. Small clips, and
+// clips that would keep much larger blocks alive, are copied into an array of their own.
+//
+// The clips can only keep so many chars of blocks alive between them; the oldest are dropped
+// past that, though the newest is always kept. The newest is also offered to the system
+// clipboard, through a Transferable that only builds a String if another application asks for
+// the text.
+public class ClipboardRing implements ClipboardOwner {
+    private static final int MAX_CLIPS = 16;
+    private static final int COPY_CHARS = 64 * 1024;
+    private static final int MAX_COPY_CHARS = 4 * 1024 * 1024;
+    private static final long MAX_PINNED_CHARS = Long.getLong("texteditor.clipboardChars", 128L * 1024 * 1024);
+
+    private final List<PieceTable.Span> clips = new ArrayList<>();
+    private volatile Transferable exported; // Ours on the system clipboard, until something replaces it
+
+    public void add(PieceTable.Span clip) {
+        clips.add(0, compact(clip));
+        trim();
+        export(clips.get(0));
+    }
+
+    // Copies the clip unless sharing the pieces is what saves memory
+    private static PieceTable.Span compact(PieceTable.Span clip) {
+        int length = clip.length();
+        long pinned = clip.pinnedChars(Collections.newSetFromMap(new IdentityHashMap<>()));
+        if (length <= COPY_CHARS || (length <= MAX_COPY_CHARS && pinned > 4L * length)) {
+            char[] own = new char[length];
+            clip.getChars(0, length, own, 0);
+            return PieceTable.Span.wrap(own);
+        }
+        return clip;
+    }
+
+    private void trim() {
+        Set<char[]> counted = Collections.newSetFromMap(new IdentityHashMap<>());
+        long pinned = 0;
+        for (int i = 0; i < clips.size(); i++) {
+            pinned += clips.get(i).pinnedChars(counted);
+            if (i > 0 && (i >= MAX_CLIPS || pinned > MAX_PINNED_CHARS)) {
+                clips.subList(i, clips.size()).clear();
+                return;
+            }
+        }
+    }
+
+    // The clip to paste: the newest one, unless another application has put text on the system
+    // clipboard since, in which case that text becomes the newest clip. Null if there is none.
+    public PieceTable.Span current() {
+        Clipboard system = systemClipboard();
+        if (system != null && exported == null) {
+            try {
+                if (system.isDataFlavorAvailable(DataFlavor.stringFlavor)) {
+                    String text = (String) system.getData(DataFlavor.stringFlavor);
+                    if (!text.isEmpty() && (clips.isEmpty() || !sameText(clips.get(0), text))) {
+                        clips.add(0, PieceTable.Span.wrap(text.toCharArray()));
+                        trim();
+                    }
+                }
+            } catch (UnsupportedFlavorException | IOException | IllegalStateException e) {
+                // Busy or gone; paste what the ring has
+            }
+        }
+        return clips.isEmpty() ? null : clips.get(0);
+    }
+
+    private static boolean sameText(PieceTable.Span clip, String text) {
+        if (clip.length() != text.length()) {
+            return false;
+        }
+        for (int i = 0, at = 0; i < clip.pieceCount(); i++) {
+            CharBuffer piece = clip.piece(i);
+            if (!piece.equals(CharBuffer.wrap(text, at, at + piece.remaining()))) {
+                return false;
+            }
+            at += piece.remaining();
+        }
+        return true;
+    }
+
+    public List<PieceTable.Span> getClips() {
+        return Collections.unmodifiableList(clips);
+    }
+
+    // Makes an older clip the newest, as when it is picked to be pasted
+    public PieceTable.Span select(int index) {
+        PieceTable.Span clip = clips.remove(index);
+        clips.add(0, clip);
+        export(clip);
+        return clip;
+    }
+
+    public long pinnedChars() {
+        Set<char[]> counted = Collections.newSetFromMap(new IdentityHashMap<>());
+        long pinned = 0;
+        for (PieceTable.Span clip : clips) {
+            pinned += clip.pinnedChars(counted);
+        }
+        return pinned;
+    }
+
+    // The start of a clip on one line, for choosing between them
+    public static String preview(PieceTable.Span clip, int maxChars) {
+        char[] chars = new char[Math.min(clip.length(), maxChars)];
+        clip.getChars(0, chars.length, chars, 0);
+        String text = new String(chars).replace('\n', ' ').replace('\t', ' ');
+        return clip.length() > maxChars ? text + "..." : text;
+    }
+
+    private void export(PieceTable.Span clip) {
+        Clipboard system = systemClipboard();
+        if (system == null) {
+            return;
+        }
+        Transferable transferable = new SpanTransferable(clip);
+        try {
+            system.setContents(transferable, this);
+            exported = transferable;
+        } catch (IllegalStateException e) {
+            exported = null; // Another application has it open; the ring still has the clip
+        }
+    }
+
+    private static Clipboard systemClipboard() {
+        if (GraphicsEnvironment.isHeadless()) {
+            return null;
+        }
+        try {
+            return Toolkit.getDefaultToolkit().getSystemClipboard();
+        } catch (SecurityException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void lostOwnership(Clipboard clipboard, Transferable contents) {
+        if (contents == exported) {
+            exported = null;
+        }
+    }
+
+    // Plain text that is only built when it is asked for
+    private static final class SpanTransferable implements Transferable {
+        private final PieceTable.Span clip;
+
+        SpanTransferable(PieceTable.Span clip) {
+            this.clip = clip;
+        }
+
+        @Override
+        public DataFlavor[] getTransferDataFlavors() {
+            return new DataFlavor[]{DataFlavor.stringFlavor};
+        }
+
+        @Override
+        public boolean isDataFlavorSupported(DataFlavor flavor) {
+            return DataFlavor.stringFlavor.equals(flavor);
+        }
+
+        @Override
+        public Object getTransferData(DataFlavor flavor) throws UnsupportedFlavorException {
+            if (!isDataFlavorSupported(flavor)) {
+                throw new UnsupportedFlavorException(flavor);
+            }
+            return clip.toString();
+        }
+    }
+}
@@ -0,0 +1,609 @@
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.UndoableEditEvent;
+import javax.swing.text.*;
+import javax.swing.undo.AbstractUndoableEdit;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+import javax.swing.undo.UndoableEdit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// A DefaultStyledDocument whose style runs stay compact under heavy formatting.
+//
+// Every run's attributes are an interned set from the document's StyleContext, shared by all
+// runs with the same style, so a run costs one element and its boundary position rather than
+// a private attribute table. setCharacterAttributes maps each distinct old set to its new set
+// once per call and swaps the shared set into each run, instead of building and hashing a new
+// set for every run as DefaultStyledDocument does, and the undo record stores the old sets
+// run-length encoded. Afterwards adjacent runs that ended up with the same style are merged,
+// so toggling a style back and forth doesn't leave the paragraph split into fragments.
+public class CompactStyledDocument extends DefaultStyledDocument {
+
+    // Heap cost of one run: the element, its slot in the paragraph and its share of the
+    // content's positions. Measured at about 120 bytes with compressed references.
+    static final int RUN_BYTES = 120;
+
+    // StyleContext only shares sets of up to this many attributes; larger ones would get a
+    // private copy per run. The Format menu's sets stay well below it.
+    private static final int SHARED_ATTRIBUTE_LIMIT = 32;
+
+    // Hebrew and later scripts may need bidirectional or complex layout
+    private static final char COMPLEX_TEXT_START = '\u0590';
+
+    private boolean quietStyles; // Set while changeStylesQuietly runs
+
+    public CompactStyledDocument(Content content) {
+        super(content, new StyleContext() {
+            @Override
+            protected int getCompressionThreshold() {
+                return SHARED_ATTRIBUTE_LIMIT;
+            }
+        });
+    }
+
+    public record RunStatistics(int runs, int styles, long estimatedBytes) {
+    }
+
+    // Counts the leaf runs and the distinct attribute sets they share. Takes a read lock.
+    public RunStatistics getRunStatistics() {
+        readLock();
+        try {
+            Map<AttributeSet, Boolean> styles = new IdentityHashMap<>();
+            int runs = countRuns(getDefaultRootElement(), styles);
+            return new RunStatistics(runs, styles.size(), (long) runs * RUN_BYTES);
+        } finally {
+            readUnlock();
+        }
+    }
+
+    private static int countRuns(Element element, Map<AttributeSet, Boolean> styles) {
+        if (element instanceof RunElement run) {
+            styles.put(run.style, Boolean.TRUE);
+            return 1;
+        }
+        int runs = 0;
+        for (int i = 0, n = element.getElementCount(); i < n; i++) {
+            runs += countRuns(element.getElement(i), styles);
+        }
+        return runs;
+    }
+
+    // The character styles of a range as runs, with neighbouring runs of the same style
+    // joined across paragraph breaks. Runs hold the document's shared attribute sets.
+    public record StyleRuns(int count, int[] lengths, AttributeSet[] styles) {
+        public static final StyleRuns NONE = new StyleRuns(0, new int[0], new AttributeSet[0]);
+    }
+
+    // Takes a read lock; call on the thread that edits the document
+    public StyleRuns getStyleRuns() {
+        return getStyleRuns(0, getLength());
+    }
+
+    // The runs of [offset, offset + length) only, clipped to the range. Safe to call from a
+    // document listener, which already holds the write lock.
+    public StyleRuns getStyleRuns(int offset, int length) {
+        readLock();
+        try {
+            int[] lengths = new int[4];
+            AttributeSet[] styles = new AttributeSet[4];
+            int count = 0;
+            int end = Math.min(offset + length, getLength());
+            Element root = getDefaultRootElement();
+            for (int p = root.getElementIndex(offset), paragraphs = root.getElementCount(); p < paragraphs; p++) {
+                Element paragraph = root.getElement(p);
+                if (paragraph.getStartOffset() >= end) {
+                    break;
+                }
+                int first = paragraph.getElementIndex(Math.max(offset, paragraph.getStartOffset()));
+                for (int i = first, n = paragraph.getElementCount(); i < n; i++) {
+                    Element leaf = paragraph.getElement(i);
+                    int runLength = Math.min(leaf.getEndOffset(), end) - Math.max(leaf.getStartOffset(), offset);
+                    if (runLength <= 0) {
+                        continue;
+                    }
+                    AttributeSet style = leaf instanceof RunElement run ? run.style : leaf.getAttributes().copyAttributes();
+                    if (count > 0 && styles[count - 1] == style) {
+                        lengths[count - 1] += runLength;
+                        continue;
+                    }
+                    if (count == lengths.length) {
+                        lengths = Arrays.copyOf(lengths, count * 2);
+                        styles = Arrays.copyOf(styles, count * 2);
+                    }
+                    lengths[count] = runLength;
+                    styles[count++] = style;
+                }
+            }
+            return new StyleRuns(count, lengths, styles);
+        } finally {
+            readUnlock();
+        }
+    }
+
+    // Fills a new document with text and styles in one step. The array becomes the document's
+    // text without being copied, and the paragraph and run elements are built directly instead
+    // of going through insertString, which splits the text into paragraphs one line at a time.
+    // No events are fired, so nothing may be listening to the document yet. Text past the last
+    // run is left unstyled.
+    public void load(char[] text, int length, StyleRuns runs) throws BadLocationException {
+        writeLock();
+        try {
+            if (getLength() != 0 || getDocumentListeners().length > 0) {
+                throw new IllegalStateException("Only an empty document without listeners can be loaded");
+            }
+            if (getContent() instanceof PieceTableContent pieces) {
+                pieces.insertChars(0, text, length);
+            } else {
+                getContent().insertString(0, new String(text, 0, length));
+            }
+            AttributeContext context = getAttributeContext();
+            AttributeSet[] styles = new AttributeSet[runs.count()];
+            Map<AttributeSet, AttributeSet> interned = new IdentityHashMap<>();
+            for (int i = 0; i < styles.length; i++) {
+                styles[i] = interned.computeIfAbsent(runs.styles()[i],
+                        s -> shared(context.addAttributes(context.getEmptySet(), s)));
+            }
+
+            BranchElement root = (BranchElement) getDefaultRootElement();
+            AttributeSet paragraphAttributes = root.getElement(0).getAttributes().copyAttributes();
+            List<Element> paragraphs = new ArrayList<>();
+            List<Element> leaves = new ArrayList<>();
+            int run = 0;
+            int runEnd = runs.count() > 0 ? runs.lengths()[0] : Integer.MAX_VALUE;
+            boolean complex = false;
+            // The content ends with an implicit newline, so the last paragraph ends at length + 1
+            for (int start = 0; start <= length; ) {
+                int end = start;
+                while (end < length && text[end] != '\n') {
+                    complex |= text[end] >= COMPLEX_TEXT_START;
+                    end++;
+                }
+                end++;
+                BranchElement paragraph = (BranchElement) createBranchElement(root, paragraphAttributes);
+                leaves.clear();
+                for (int leafStart = start; leafStart < end; ) {
+                    while (run < runs.count() && runEnd <= leafStart) {
+                        run++;
+                        runEnd = run < runs.count() ? runEnd + runs.lengths()[run] : Integer.MAX_VALUE;
+                    }
+                    AttributeSet style = run < runs.count() ? styles[run] : context.getEmptySet();
+                    int leafEnd = Math.min(end, runEnd);
+                    if (!leaves.isEmpty() && ((RunElement) leaves.get(leaves.size() - 1)).style == style) {
+                        // Only the implicit newline after an unstyled last run
+                        leafStart = leaves.remove(leaves.size() - 1).getStartOffset();
+                    }
+                    RunElement leaf = new RunElement(paragraph, null, leafStart, leafEnd);
+                    leaf.style = style;
+                    leaves.add(leaf);
+                    leafStart = leafEnd;
+                }
+                paragraph.replace(0, 0, leaves.toArray(new Element[0]));
+                paragraphs.add(paragraph);
+                start = end;
+            }
+            root.replace(0, root.getElementCount(), paragraphs.toArray(new Element[0]));
+            if (complex) {
+                // What insertString records when it sees text that needs complex layout
+                putProperty("i18n", Boolean.TRUE);
+            }
+        } finally {
+            writeUnlock();
+        }
+    }
+
+    // Inserts a span, of this document or another, without copying its text: each piece of the
+    // span becomes a piece of this document. The pieces go in one insert event at a time, so
+    // the paragraph scan in insertUpdate reads each in place rather than a copy of the whole
+    // span. Group the call in the EditHistory to undo it as one step. The editor's only
+    // DocumentFilter, DocumentStatistics', counts removes, so none is consulted.
+    public void insertSpan(int offset, PieceTable.Span span, AttributeSet attributes) throws BadLocationException {
+        if (!(getContent() instanceof PieceTableContent pieces)) {
+            insertString(offset, span.toString(), attributes);
+            return;
+        }
+        for (int i = 0; i < span.pieceCount(); i++) {
+            char[] block = span.pieceBlock(i);
+            int start = span.pieceStart(i);
+            int length = span.pieceLength(i);
+            if (length == 0) {
+                continue;
+            }
+            writeLock();
+            try {
+                UndoableEdit edit = pieces.insertChars(offset, block, start, length);
+                DefaultDocumentEvent e = new DefaultDocumentEvent(offset, length, DocumentEvent.EventType.INSERT);
+                e.addEdit(edit);
+                if (!Boolean.TRUE.equals(getProperty("i18n"))) {
+                    for (int c = start; c < start + length; c++) {
+                        if (block[c] >= COMPLEX_TEXT_START) {
+                            putProperty("i18n", Boolean.TRUE); // As insertString would
+                            break;
+                        }
+                    }
+                }
+                insertUpdate(e, attributes);
+                e.end();
+                fireInsertUpdate(e);
+                fireUndoableEditUpdate(new UndoableEditEvent(this, e));
+            } finally {
+                writeUnlock();
+            }
+            offset += length;
+        }
+    }
+
+    // Runs change, which changes styles only in how the text looks, such as the text pane
+    // setting the default style's foreground to the theme's text color, without the change
+    // event over the whole document that a style change queues: every listener would take it
+    // for an edit of all of the text. Only views that read their colors as they paint, like
+    // LargeFileEditorKit's, show the change.
+    public void changeStylesQuietly(Runnable change) {
+        quietStyles = true;
+        try {
+            change.run();
+        } finally {
+            quietStyles = false;
+        }
+    }
+
+    @Override
+    protected void styleChanged(Style style) {
+        if (!quietStyles) {
+            super.styleChanged(style);
+        }
+    }
+
+    @Override
+    protected Element createLeafElement(Element parent, AttributeSet a, int p0, int p1) {
+        return new RunElement(parent, a, p0, p1);
+    }
+
+    // Same structure as DefaultStyledDocument's, which creates its first leaf directly rather
+    // than through createLeafElement
+    @Override
+    protected AbstractElement createDefaultRoot() {
+        writeLock();
+        BranchElement section = new SectionElement();
+        BranchElement paragraph = new BranchElement(section, null);
+        paragraph.replace(0, 0, new Element[]{new RunElement(paragraph, null, 0, 1)});
+        section.replace(0, 0, new Element[]{paragraph});
+        writeUnlock();
+        return section;
+    }
+
+    @Override
+    public void setCharacterAttributes(int offset, int length, AttributeSet s, boolean replace) {
+        if (length <= 0) {
+            return;
+        }
+        try {
+            writeLock();
+            int end = Math.min(offset + length, getLength() + 1);
+            StyleMapping mapping = new StyleMapping(s.copyAttributes(), replace);
+            if (offset >= end || !changesAny(getDefaultRootElement(), offset, end, mapping)) {
+                return;
+            }
+            StyleChange changes = new StyleChange(offset, end - offset);
+            // Splits the runs at either end so the range starts and ends on run boundaries
+            buffer.change(offset, end - offset, changes);
+            RestyleEdit restyle = new RestyleEdit(mapping);
+            restyle(getDefaultRootElement(), offset, end, restyle, changes);
+            changes.addEdit(restyle);
+            changes.end();
+            fireChangedUpdate(changes);
+            fireUndoableEditUpdate(new UndoableEditEvent(this, changes));
+        } finally {
+            writeUnlock();
+        }
+    }
+
+    private boolean changesAny(Element element, int start, int end, StyleMapping mapping) {
+        if (element instanceof RunElement run) {
+            return mapping.apply(run.style) != run.style;
+        }
+        for (int i = element.getElementIndex(start), last = element.getElementIndex(end - 1); i <= last; i++) {
+            if (changesAny(element.getElement(i), start, end, mapping)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void restyle(Element element, int start, int end, RestyleEdit restyle, StyleChange changes) {
+        int first = element.getElementIndex(start);
+        int last = element.getElementIndex(end - 1);
+        boolean leaves = false;
+        for (int i = first; i <= last; i++) {
+            Element child = element.getElement(i);
+            if (child instanceof RunElement run) {
+                restyle.restyle(run);
+                leaves = true;
+            } else if (!child.isLeaf()) {
+                restyle(child, start, end, restyle, changes);
+            }
+        }
+        if (leaves && element instanceof BranchElement branch) {
+            coalesce(branch, Math.max(first - 1, 0), Math.min(last + 1, branch.getElementCount() - 1), changes);
+        }
+    }
+
+    // Replaces each stretch of neighbouring runs in [first, last] that share a style with a
+    // single run
+    private void coalesce(BranchElement branch, int first, int last, StyleChange changes) {
+        List<Element> merged = null;
+        for (int i = first; i <= last; ) {
+            int j = i + 1;
+            while (j <= last && sameStyle(branch.getElement(i), branch.getElement(j))) {
+                j++;
+            }
+            if (j - i > 1 && merged == null) {
+                merged = new ArrayList<>();
+                for (int k = first; k < i; k++) {
+                    merged.add(branch.getElement(k));
+                }
+            }
+            if (merged != null) {
+                Element run = branch.getElement(i);
+                merged.add(j - i == 1 ? run : createLeafElement(branch, run.getAttributes(),
+                        run.getStartOffset(), branch.getElement(j - 1).getEndOffset()));
+            }
+            i = j;
+        }
+        if (merged == null) {
+            return;
+        }
+        Element[] removed = new Element[last - first + 1];
+        for (int i = 0; i < removed.length; i++) {
+            removed[i] = branch.getElement(first + i);
+        }
+        Element[] added = merged.toArray(new Element[0]);
+        branch.replace(first, removed.length, added);
+        changes.addEdit(new ElementEdit(branch, first, removed, added));
+    }
+
+    // StyleContext interns an empty result as a set of its own instead of returning the empty
+    // set, and runs holding the two would never merge
+    private AttributeSet shared(AttributeSet style) {
+        return style.getAttributeCount() == 0 ? getAttributeContext().getEmptySet() : style;
+    }
+
+    private static boolean sameStyle(Element a, Element b) {
+        return a instanceof RunElement runA && b instanceof RunElement runB && runA.style == runB.style;
+    }
+
+    // What setCharacterAttributes does to one run's attributes. Runs mostly share a handful of
+    // sets, so results are remembered per set and most runs cost one identity comparison.
+    private final class StyleMapping {
+        private final AttributeSet attributes;
+        private final boolean replace;
+        private final Map<AttributeSet, AttributeSet> results = new IdentityHashMap<>();
+        private AttributeSet lastFrom;
+        private AttributeSet lastTo;
+
+        StyleMapping(AttributeSet attributes, boolean replace) {
+            this.attributes = attributes;
+            this.replace = replace;
+        }
+
+        AttributeSet apply(AttributeSet from) {
+            if (from != lastFrom) {
+                lastFrom = from;
+                lastTo = results.computeIfAbsent(from, f -> {
+                    AbstractDocument.AttributeContext context = getAttributeContext();
+                    return shared(context.addAttributes(replace ? context.getEmptySet() : f, attributes));
+                });
+            }
+            return lastTo;
+        }
+    }
+
+    // Undo record for the attribute swap: the runs in order and their previous styles, run-length
+    // encoded since neighbouring runs usually had the same one. Redo applies the mapping again.
+    private final class RestyleEdit extends AbstractUndoableEdit {
+        private final StyleMapping mapping;
+        private RunElement[] runs = new RunElement[16];
+        private int runCount;
+        private AttributeSet[] before = new AttributeSet[4];
+        private int[] beforeEnds = new int[4];
+        private int beforeCount;
+
+        RestyleEdit(StyleMapping mapping) {
+            this.mapping = mapping;
+        }
+
+        void restyle(RunElement run) {
+            AttributeSet style = mapping.apply(run.style);
+            if (style == run.style) {
+                return;
+            }
+            if (runCount == runs.length) {
+                runs = Arrays.copyOf(runs, runCount * 2);
+            }
+            if (beforeCount == 0 || before[beforeCount - 1] != run.style) {
+                if (beforeCount == before.length) {
+                    before = Arrays.copyOf(before, beforeCount * 2);
+                    beforeEnds = Arrays.copyOf(beforeEnds, beforeCount * 2);
+                }
+                before[beforeCount++] = run.style;
+            }
+            runs[runCount++] = run;
+            beforeEnds[beforeCount - 1] = runCount;
+            run.style = style;
+        }
+
+        long estimatedBytes() {
+            return 4L * runs.length + 8L * before.length;
+        }
+
+        @Override
+        public void undo() throws CannotUndoException {
+            super.undo();
+            for (int i = 0, b = 0; i < runCount; i++) {
+                while (beforeEnds[b] <= i) {
+                    b++;
+                }
+                runs[i].style = before[b];
+            }
+        }
+
+        @Override
+        public void redo() throws CannotRedoException {
+            super.redo();
+            for (int i = 0; i < runCount; i++) {
+                runs[i].style = mapping.apply(runs[i].style);
+            }
+        }
+    }
+
+    // The change event for one setCharacterAttributes call, sized for EditHistory by what its
+    // undo record actually holds rather than by the length of the range
+    private final class StyleChange extends DefaultDocumentEvent implements EditHistory.SizedEdit {
+        StyleChange(int offset, int length) {
+            super(offset, length, DocumentEvent.EventType.CHANGE);
+        }
+
+        @Override
+        public long estimatedBytes() {
+            long bytes = 96;
+            for (UndoableEdit edit : edits) {
+                if (edit instanceof RestyleEdit restyle) {
+                    bytes += restyle.estimatedBytes();
+                } else if (edit instanceof ElementEdit elementEdit) {
+                    bytes += (long) RUN_BYTES * elementEdit.getChildrenRemoved().length;
+                }
+            }
+            return bytes;
+        }
+    }
+
+    // A leaf whose attributes are a single shared set that can be swapped in one assignment.
+    // LeafElement keeps its attributes in a private field, so every AttributeSet method is
+    // answered from this one instead, resolving through the paragraph the same way.
+    private final class RunElement extends LeafElement {
+        private AttributeSet style;
+
+        RunElement(Element parent, AttributeSet a, int p0, int p1) {
+            super(parent, a, p0, p1);
+            // Set by addAttributes during construction unless a was null
+            if (style == null) {
+                style = getAttributeContext().getEmptySet();
+            }
+        }
+
+        @Override
+        public AttributeSet getAttributes() {
+            return this;
+        }
+
+        @Override
+        public int getAttributeCount() {
+            return style.getAttributeCount();
+        }
+
+        @Override
+        public boolean isDefined(Object attrName) {
+            return style.isDefined(attrName);
+        }
+
+        @Override
+        public boolean isEqual(AttributeSet attr) {
+            return style.isEqual(attr);
+        }
+
+        @Override
+        public AttributeSet copyAttributes() {
+            return style.copyAttributes();
+        }
+
+        @Override
+        public Object getAttribute(Object attrName) {
+            Object value = style.getAttribute(attrName);
+            if (value == null) {
+                Element parent = getParentElement();
+                AttributeSet a = parent != null ? parent.getAttributes() : null;
+                if (a != null) {
+                    value = a.getAttribute(attrName);
+                }
+            }
+            return value;
+        }
+
+        @Override
+        public Enumeration<?> getAttributeNames() {
+            return style.getAttributeNames();
+        }
+
+        @Override
+        public boolean containsAttribute(Object name, Object value) {
+            return style.containsAttribute(name, value);
+        }
+
+        @Override
+        public boolean containsAttributes(AttributeSet attrs) {
+            return style.containsAttributes(attrs);
+        }
+
+        @Override
+        public AttributeSet getResolveParent() {
+            AttributeSet a = style.getResolveParent();
+            Element parent = getParentElement();
+            return a == null && parent != null ? parent.getAttributes() : a;
+        }
+
+        @Override
+        public void addAttribute(Object name, Object value) {
+            checkWriter();
+            style = getAttributeContext().addAttribute(style, name, value);
+        }
+
+        @Override
+        public void addAttributes(AttributeSet attr) {
+            if (style == null) {
+                // Called from the constructor; a run's style is already interned
+                style = attr instanceof RunElement run ? run.style
+                        : shared(getAttributeContext().addAttributes(getAttributeContext().getEmptySet(), attr));
+                return;
+            }
+            checkWriter();
+            style = getAttributeContext().addAttributes(style, attr);
+        }
+
+        @Override
+        public void removeAttribute(Object name) {
+            checkWriter();
+            style = shared(getAttributeContext().removeAttribute(style, name));
+        }
+
+        @Override
+        public void removeAttributes(Enumeration<?> names) {
+            checkWriter();
+            style = shared(getAttributeContext().removeAttributes(style, names));
+        }
+
+        @Override
+        public void removeAttributes(AttributeSet attrs) {
+            checkWriter();
+            style = attrs == this ? getAttributeContext().getEmptySet()
+                    : shared(getAttributeContext().removeAttributes(style, attrs));
+        }
+
+        @Override
+        public void setResolveParent(AttributeSet parent) {
+            checkWriter();
+            style = parent != null
+                    ? getAttributeContext().addAttribute(style, StyleConstants.ResolveAttribute, parent)
+                    : shared(getAttributeContext().removeAttribute(style, StyleConstants.ResolveAttribute));
+        }
+
+        // Same rule as AbstractElement: attributes may only change under the write lock
+        private void checkWriter() {
+            if (getCurrentWriter() != Thread.currentThread()) {
+                throw new IllegalStateException("Element attributes changed without the document write lock");
+            }
+        }
+    }
+}
@@ -0,0 +1,480 @@
+import javax.management.ObjectName;
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.ActionListener;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+// Timings of the editor's own operations and a watchdog for the event dispatch thread.
+//
+// start(name) times an operation into a histogram per name, together with the bytes its
+// thread allocated. On the EDT, time spent idle inside the operation is left out: a modal
+// dialog runs its own event loop, and the user reading a file chooser isn't work. Menu actions
+// and the text and canvas paints are timed this way.
+//
+// The watchdog posts a ping to the event queue and expects it to run within STALL_MILLIS.
+// Until it does, the EDT's stack is sampled every STALL_MILLIS, and the stall is recorded with
+// those samples and the operation that was running.
+//
+// Everything is published over JMX as texteditor:type=Diagnostics, summarized every minute in
+// ~/.texteditor/diagnostics.log along with each stall, and shown by DiagnosticsPanel.
+public final class Diagnostics {
+    static final long STALL_MILLIS = Long.getLong("texteditor.stallMillis", 200);
+    private static final int MAX_SAMPLES = 10; // Per stall
+    private static final int MAX_STALLS = 50; // Kept for the panel and JMX
+    private static final long DUMP_SECONDS = 60;
+    private static final long LOG_BYTES = 1 << 20;
+    private static final Path LOG = Path.of(System.getProperty("user.home"), ".texteditor", "diagnostics.log");
+    private static final String STALL = "EDT stall";
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads
+                    && threads.isThreadAllocatedMemorySupported() ? threads : null;
+
+    private static final Map<String, Histogram> operations = new TreeMap<>(); // Guarded by itself
+    private static final Deque<Stall> stalls = new ArrayDeque<>(); // Newest first, guarded by itself
+    private static long edtIdleNanos; // EDT only
+    private static volatile String currentOperation; // The EDT's innermost timed operation
+    private static ScheduledExecutorService watchdog;
+    private static volatile Thread edt;
+
+    // Set by the watchdog when it posts a ping and cleared by the ping; guarded by the class
+    private static long pingNanos;
+    private static String stalledOperation;
+    private static final List<StackTraceElement[]> samples = new ArrayList<>();
+    private static long lastSampleNanos;
+
+    private Diagnostics() {
+    }
+
+    // Timing statistics of one operation. Allocation is per call, or -1 where the JVM can't
+    // measure it.
+    public record OperationStats(String name, long count, double p50Millis, double p99Millis, double maxMillis,
+                                 long allocatedBytes) {
+    }
+
+    // A time the event queue was blocked, with stack samples of the EDT taken during it
+    public record Stall(long startMillis, long durationMillis, String operation, List<StackTraceElement[]> samples) {
+        public String describe() {
+            StringBuilder text = new StringBuilder(String.format("%s EDT stall of %,d ms%s%n",
+                    LocalDateTime.ofInstant(Instant.ofEpochMilli(startMillis), ZoneId.systemDefault()),
+                    durationMillis, operation != null ? " in " + operation : ""));
+            for (int i = 0; i < samples.size(); i++) {
+                text.append(String.format("  Sample %d:%n", i + 1));
+                for (StackTraceElement frame : samples.get(i)) {
+                    text.append("    at ").append(frame).append(System.lineSeparator());
+                }
+            }
+            return text.toString();
+        }
+    }
+
+    // Published over JMX. Maps are keyed by operation name.
+    public interface DiagnosticsMXBean {
+        Map<String, Long> getCounts();
+
+        Map<String, Double> getP50Millis();
+
+        Map<String, Double> getP99Millis();
+
+        Map<String, Double> getMaxMillis();
+
+        Map<String, Long> getAllocatedBytesPerCall();
+
+        long getStallThresholdMillis();
+
+        long getStallCount();
+
+        String getLastStall();
+
+        void reset();
+    }
+
+    // Starts the watchdog, the log and the JMX bean. Call once, on the EDT.
+    public static synchronized void install() {
+        if (watchdog != null) {
+            return;
+        }
+        edt = Thread.currentThread();
+        Toolkit.getDefaultToolkit().getSystemEventQueue().push(new IdleTrackingQueue());
+        watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Diagnostics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long tickMillis = Math.max(10, STALL_MILLIS / 4);
+        watchdog.scheduleWithFixedDelay(Diagnostics::watch, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+        watchdog.scheduleWithFixedDelay(Diagnostics::dump, DUMP_SECONDS, DUMP_SECONDS, TimeUnit.SECONDS);
+        watchdog.execute(() -> {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(),
+                        new ObjectName("texteditor:type=Diagnostics"));
+            } catch (Exception e) {
+                appendLog("Couldn't register the JMX bean: " + e + System.lineSeparator());
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(new Thread(Diagnostics::dump, "Diagnostics dump"));
+    }
+
+    // Times the code up to close(); use with try-with-resources. The block never refers to the
+    // Timing, which javac's [try] lint warns about, so the methods that do this suppress "try".
+    public static Timing start(String name) {
+        return new Timing(name);
+    }
+
+    // Records a duration measured some other way, such as the time the launch took
+    public static void record(String name, long nanos) {
+        histogram(name).record(nanos, -1);
+    }
+
+    // Adds a line to the log, off the calling thread once the watchdog is running
+    public static void log(String line) {
+        String text = LocalDateTime.now() + " " + line + System.lineSeparator();
+        ScheduledExecutorService logger;
+        synchronized (Diagnostics.class) {
+            logger = watchdog;
+        }
+        if (logger != null) {
+            logger.execute(() -> appendLog(text));
+        } else {
+            appendLog(text);
+        }
+    }
+
+    // Times every menu item and button on the menu bar under its label
+    public static void instrument(JMenuBar menuBar) {
+        for (Component component : menuBar.getComponents()) {
+            instrument(component);
+        }
+    }
+
+    @SuppressWarnings("try")
+    private static void instrument(Component component) {
+        if (component instanceof JMenu menu) {
+            for (Component item : menu.getMenuComponents()) {
+                instrument(item);
+            }
+        } else if (component instanceof AbstractButton button) {
+            String name = button.getText().trim();
+            for (ActionListener listener : button.getActionListeners()) {
+                button.removeActionListener(listener);
+                button.addActionListener(e -> {
+                    try (Timing ignored = start(name)) {
+                        listener.actionPerformed(e);
+                    }
+                });
+            }
+        }
+    }
+
+    public static List<OperationStats> operations() {
+        List<OperationStats> result = new ArrayList<>();
+        synchronized (operations) {
+            for (Histogram histogram : operations.values()) {
+                result.add(histogram.stats());
+            }
+        }
+        return result;
+    }
+
+    public static List<Stall> stalls() {
+        synchronized (stalls) {
+            return new ArrayList<>(stalls);
+        }
+    }
+
+    public static void reset() {
+        synchronized (operations) {
+            operations.clear();
+        }
+        synchronized (stalls) {
+            stalls.clear();
+        }
+    }
+
+    private static Histogram histogram(String name) {
+        synchronized (operations) {
+            return operations.computeIfAbsent(name, Histogram::new);
+        }
+    }
+
+    private static long allocatedBytes() {
+        return THREADS != null ? THREADS.getCurrentThreadAllocatedBytes() : -1;
+    }
+
+    public static final class Timing implements AutoCloseable {
+        private final Histogram histogram;
+        private final boolean onEdt = SwingUtilities.isEventDispatchThread();
+        private final String enclosing;
+        private final long startIdleNanos;
+        private final long startAllocated;
+        private final long startNanos;
+
+        private Timing(String name) {
+            histogram = histogram(name);
+            enclosing = onEdt ? currentOperation : null;
+            if (onEdt) {
+                currentOperation = name;
+            }
+            startIdleNanos = onEdt ? edtIdleNanos : 0;
+            startAllocated = allocatedBytes();
+            startNanos = System.nanoTime();
+        }
+
+        @Override
+        public void close() {
+            long nanos = System.nanoTime() - startNanos;
+            long allocated = startAllocated < 0 ? -1 : allocatedBytes() - startAllocated;
+            if (onEdt) {
+                nanos -= edtIdleNanos - startIdleNanos;
+                currentOperation = enclosing;
+            }
+            histogram.record(nanos, allocated);
+        }
+    }
+
+    // Runs on the watchdog thread
+    private static void watch() {
+        long now = System.nanoTime();
+        long sent;
+        synchronized (Diagnostics.class) {
+            sent = pingNanos;
+            if (sent == 0) {
+                pingNanos = now;
+                EventQueue.invokeLater(Diagnostics::pong);
+                return;
+            }
+            if (now - sent < TimeUnit.MILLISECONDS.toNanos(STALL_MILLIS)
+                    || now - lastSampleNanos < TimeUnit.MILLISECONDS.toNanos(STALL_MILLIS)
+                    || samples.size() >= MAX_SAMPLES) {
+                return;
+            }
+        }
+        String operation = currentOperation;
+        StackTraceElement[] sample = edt.getStackTrace();
+        synchronized (Diagnostics.class) {
+            if (pingNanos == sent) { // The ping may have run while the stack was taken
+                if (samples.isEmpty()) {
+                    stalledOperation = operation;
+                }
+                samples.add(sample);
+                lastSampleNanos = now;
+            }
+        }
+    }
+
+    // Runs on the EDT when the ping gets through
+    private static void pong() {
+        long nanos;
+        Stall stall = null;
+        synchronized (Diagnostics.class) {
+            nanos = System.nanoTime() - pingNanos;
+            if (!samples.isEmpty()) {
+                stall = new Stall(System.currentTimeMillis() - nanos / 1_000_000, nanos / 1_000_000, stalledOperation,
+                        List.copyOf(samples));
+                samples.clear();
+            }
+            pingNanos = 0;
+        }
+        if (stall != null) {
+            histogram(STALL).record(nanos, -1);
+            synchronized (stalls) {
+                stalls.addFirst(stall);
+                if (stalls.size() > MAX_STALLS) {
+                    stalls.removeLast();
+                }
+            }
+            String text = stall.describe();
+            watchdog.execute(() -> appendLog(text));
+        }
+    }
+
+    private static void dump() {
+        List<OperationStats> stats = operations();
+        if (stats.isEmpty()) {
+            return;
+        }
+        StringBuilder text = new StringBuilder(LocalDateTime.now() + " Operations" + System.lineSeparator());
+        for (OperationStats op : stats) {
+            text.append(String.format("  %-28s %,8d calls  p50 %,9.2f ms  p99 %,9.2f ms  max %,9.2f ms  %s%n",
+                    op.name(), op.count(), op.p50Millis(), op.p99Millis(), op.maxMillis(),
+                    op.allocatedBytes() < 0 ? "" : String.format("%,d KB/call", op.allocatedBytes() / 1024)));
+        }
+        appendLog(text.toString());
+    }
+
+    // Appends to the log, first moving it to diagnostics.log.1 once it passes LOG_BYTES
+    private static synchronized void appendLog(String text) {
+        try {
+            Files.createDirectories(LOG.getParent());
+            if (Files.exists(LOG) && Files.size(LOG) > LOG_BYTES) {
+                Files.move(LOG, LOG.resolveSibling(LOG.getFileName() + ".1"), StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.writeString(LOG, text, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            // Diagnostics must never get in the way of editing
+        }
+    }
+
+    // Counts how long the EDT waits for events. Installed on top of the system queue, so modal
+    // dialogs' nested loops wait through it as well.
+    private static final class IdleTrackingQueue extends EventQueue {
+        @Override
+        public AWTEvent getNextEvent() throws InterruptedException {
+            long start = System.nanoTime();
+            try {
+                return super.getNextEvent();
+            } finally {
+                edtIdleNanos += System.nanoTime() - start;
+            }
+        }
+    }
+
+    // Log-linear histogram of durations in microseconds: exact below 8 us, then 8 buckets per
+    // power of two, so a percentile is within 1/16 of the true value
+    private static final class Histogram {
+        private static final int LINEAR = 8;
+        private static final int SUB_BUCKET_BITS = 3;
+        private final String name;
+        private final long[] buckets = new long[LINEAR + (64 - SUB_BUCKET_BITS) * LINEAR];
+        private long count;
+        private long maxNanos;
+        private long allocatedBytes = -1;
+
+        Histogram(String name) {
+            this.name = name;
+        }
+
+        synchronized void record(long nanos, long allocated) {
+            long micros = Math.max(0, nanos / 1000);
+            buckets[index(micros)]++;
+            count++;
+            maxNanos = Math.max(maxNanos, nanos);
+            if (allocated >= 0) {
+                allocatedBytes = Math.max(allocatedBytes, 0) + allocated;
+            }
+        }
+
+        private static int index(long micros) {
+            if (micros < LINEAR) {
+                return (int) micros;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            int shift = exponent - SUB_BUCKET_BITS;
+            return LINEAR + shift * LINEAR + (int) ((micros >>> shift) & (LINEAR - 1));
+        }
+
+        // The middle of the bucket, in microseconds
+        private static double value(int index) {
+            if (index < LINEAR) {
+                return index;
+            }
+            int shift = (index - LINEAR) / LINEAR;
+            long lower = (long) (LINEAR + (index - LINEAR) % LINEAR) << shift;
+            return lower + ((1L << shift) - 1) / 2.0;
+        }
+
+        private double percentileMillis(double fraction) {
+            long rank = Math.max(1, (long) Math.ceil(fraction * count));
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return Math.min(value(i) / 1000, maxNanos / 1e6);
+                }
+            }
+            return maxNanos / 1e6;
+        }
+
+        synchronized OperationStats stats() {
+            return new OperationStats(name, count, percentileMillis(0.5), percentileMillis(0.99), maxNanos / 1e6,
+                    allocatedBytes < 0 || count == 0 ? -1 : allocatedBytes / count);
+        }
+    }
+
+    private static final class Bean implements DiagnosticsMXBean {
+        private static Map<String, Double> collect(ToDoubleFunction<OperationStats> value) {
+            Map<String, Double> result = new TreeMap<>();
+            for (OperationStats op : operations()) {
+                result.put(op.name(), value.applyAsDouble(op));
+            }
+            return result;
+        }
+
+        @Override
+        public Map<String, Long> getCounts() {
+            Map<String, Long> result = new TreeMap<>();
+            for (OperationStats op : operations()) {
+                result.put(op.name(), op.count());
+            }
+            return result;
+        }
+
+        @Override
+        public Map<String, Double> getP50Millis() {
+            return collect(OperationStats::p50Millis);
+        }
+
+        @Override
+        public Map<String, Double> getP99Millis() {
+            return collect(OperationStats::p99Millis);
+        }
+
+        @Override
+        public Map<String, Double> getMaxMillis() {
+            return collect(OperationStats::maxMillis);
+        }
+
+        @Override
+        public Map<String, Long> getAllocatedBytesPerCall() {
+            Map<String, Long> result = new TreeMap<>();
+            for (OperationStats op : operations()) {
+                result.put(op.name(), op.allocatedBytes());
+            }
+            return result;
+        }
+
+        @Override
+        public long getStallThresholdMillis() {
+            return STALL_MILLIS;
+        }
+
+        @Override
+        public long getStallCount() {
+            for (OperationStats op : operations()) {
+                if (op.name().equals(STALL)) {
+                    return op.count();
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String getLastStall() {
+            List<Stall> recent = stalls();
+            return recent.isEmpty() ? "" : recent.get(0).describe();
+        }
+
+        @Override
+        public void reset() {
+            Diagnostics.reset();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import java.awt.*;
+import java.awt.event.HierarchyEvent;
+import java.util.List;
+
+// Shows what Diagnostics has recorded: latency percentiles per operation and the recent EDT
+// stalls with their stack samples. Refreshes itself once a second while it is showing.
+public class DiagnosticsPanel extends JPanel {
+    private static final String[] COLUMNS = {"Operation", "Calls", "p50 (ms)", "p99 (ms)", "Max (ms)", "KB per call"};
+
+    private final OperationsModel operations = new OperationsModel();
+    private final DefaultListModel<Diagnostics.Stall> stalls = new DefaultListModel<>();
+    private final JList<Diagnostics.Stall> stallList = new JList<>(stalls);
+    private final JTextArea stackText = new JTextArea();
+    private final Timer refresh = new Timer(1000, e -> refresh());
+
+    public DiagnosticsPanel() {
+        super(new BorderLayout(0, 6));
+        setBorder(BorderFactory.createEmptyBorder(8, 8, 8, 8));
+
+        JTable table = new JTable(operations);
+        table.setAutoCreateRowSorter(true);
+        table.setFillsViewportHeight(true);
+        JScrollPane tableScroll = new JScrollPane(table);
+        tableScroll.setPreferredSize(new Dimension(640, 220));
+
+        stallList.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected,
+                                                          boolean cellHasFocus) {
+                Diagnostics.Stall stall = (Diagnostics.Stall) value;
+                String text = String.format("%tT  %,d ms%s", stall.startMillis(), stall.durationMillis(),
+                        stall.operation() != null ? "  in " + stall.operation() : "");
+                return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+            }
+        });
+        stallList.addListSelectionListener(e -> {
+            Diagnostics.Stall stall = stallList.getSelectedValue();
+            stackText.setText(stall != null ? stall.describe() : "");
+            stackText.setCaretPosition(0);
+        });
+        stackText.setEditable(false);
+        stackText.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+
+        JSplitPane stallSplit = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT,
+                new JScrollPane(stallList), new JScrollPane(stackText));
+        stallSplit.setDividerLocation(220);
+        stallSplit.setPreferredSize(new Dimension(640, 220));
+        JPanel stallPanel = new JPanel(new BorderLayout(0, 4));
+        stallPanel.add(new JLabel("EDT stalls over " + Diagnostics.STALL_MILLIS + " ms"), BorderLayout.NORTH);
+        stallPanel.add(stallSplit, BorderLayout.CENTER);
+
+        JButton resetButton = new JButton("Reset");
+        resetButton.addActionListener(e -> {
+            Diagnostics.reset();
+            refresh();
+        });
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT, 0, 0));
+        buttons.add(resetButton);
+
+        add(new JSplitPane(JSplitPane.VERTICAL_SPLIT, tableScroll, stallPanel), BorderLayout.CENTER);
+        add(buttons, BorderLayout.SOUTH);
+
+        // Only poll while the panel is on screen
+        addHierarchyListener(e -> {
+            if ((e.getChangeFlags() & HierarchyEvent.SHOWING_CHANGED) != 0) {
+                if (isShowing()) {
+                    refresh();
+                    refresh.start();
+                } else {
+                    refresh.stop();
+                }
+            }
+        });
+    }
+
+    private void refresh() {
+        operations.setRows(Diagnostics.operations());
+        List<Diagnostics.Stall> recent = Diagnostics.stalls();
+        if (stalls.isEmpty() || recent.isEmpty() || stalls.get(0) != recent.get(0)) {
+            Diagnostics.Stall selected = stallList.getSelectedValue();
+            stalls.clear();
+            stalls.addAll(recent);
+            stallList.setSelectedValue(selected, false);
+        }
+    }
+
+    private static final class OperationsModel extends AbstractTableModel {
+        private List<Diagnostics.OperationStats> rows = List.of();
+
+        void setRows(List<Diagnostics.OperationStats> rows) {
+            this.rows = rows;
+            fireTableDataChanged();
+        }
+
+        @Override
+        public int getRowCount() {
+            return rows.size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return COLUMNS.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return COLUMNS[column];
+        }
+
+        @Override
+        public Class<?> getColumnClass(int column) {
+            return switch (column) {
+                case 0 -> String.class;
+                case 1, 5 -> Long.class;
+                default -> Double.class;
+            };
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            Diagnostics.OperationStats op = rows.get(row);
+            return switch (column) {
+                case 0 -> op.name();
+                case 1 -> op.count();
+                case 2 -> round(op.p50Millis());
+                case 3 -> round(op.p99Millis());
+                case 4 -> round(op.maxMillis());
+                default -> op.allocatedBytes() < 0 ? null : op.allocatedBytes() / 1024;
+            };
+        }
+
+        private static double round(double millis) {
+            return Math.round(millis * 100) / 100.0;
+        }
+    }
+}
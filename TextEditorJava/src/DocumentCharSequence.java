@@ -0,0 +1,64 @@
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Segment;
+
+// Read-only CharSequence view of a document range. Characters are pulled through a reused
+// partial-return Segment one window at a time, so regex matching and scanning work over
+// the document without building a String copy of it.
+public class DocumentCharSequence implements CharSequence {
+    private static final int WINDOW = 16 * 1024;
+
+    private final Document doc;
+    private final int start;
+    private final int length;
+    private final Segment segment = new Segment();
+    private int windowStart;
+    private int windowEnd;
+
+    public DocumentCharSequence(Document doc) {
+        this(doc, 0, doc.getLength());
+    }
+
+    public DocumentCharSequence(Document doc, int start, int length) {
+        this.doc = doc;
+        this.start = start;
+        this.length = length;
+        segment.setPartialReturn(true);
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < windowStart || index >= windowEnd) {
+            if (index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            try {
+                doc.getText(start + index, Math.min(WINDOW, length - index), segment);
+            } catch (BadLocationException e) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            windowStart = index;
+            windowEnd = index + segment.count;
+        }
+        return segment.array[segment.offset + index - windowStart];
+    }
+
+    @Override
+    public CharSequence subSequence(int from, int to) {
+        try {
+            return doc.getText(start + from, to - from);
+        } catch (BadLocationException e) {
+            throw new IndexOutOfBoundsException(from);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return subSequence(0, length).toString();
+    }
+}
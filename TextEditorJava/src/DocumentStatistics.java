@@ -0,0 +1,454 @@
+import javax.swing.event.CaretEvent;
+import javax.swing.event.CaretListener;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.*;
+
+// Word, character and line counts for a document, kept current from document events.
+// Word counts are cached per paragraph element. Counting is done in word starts, which add up
+// over adjacent ranges, so an edit changes the count by the word starts of the text it added
+// or removed plus whether the word after it still starts where it did; only the edited text
+// and the chars at its two ends are read, however long the paragraph. Removed text can't be
+// read once removeUpdate runs, so a DocumentFilter counts it just before; a remove that
+// bypasses the filter, such as undoing an insert, recounts the paragraphs it touched instead.
+// When the edit splits or joins paragraphs, all but the longest of the paragraphs it touched
+// are scanned and the longest gets the rest of the count, so splitting a long line only reads
+// its shorter side. The event path uses a reused Segment and a primitive identity map, so
+// typing does not allocate.
+//
+// The selection's word count is worked out when it is asked for, not on every caret event,
+// and only scans the text the selection gained or lost since it was last counted, or the
+// text outside it if that is less.
+public class DocumentStatistics implements DocumentListener, CaretListener {
+    private final Segment segment = new Segment();
+    private final ElementIntMap paragraphWords = new ElementIntMap();
+    private final Runnable onChange;
+    private Document doc;
+    private RemovalCounter filter;
+    private long words;
+    private int selectionStart;
+    private int selectionEnd;
+    // The word starts in [countedStart, countedEnd), valid until the next edit
+    private boolean counted;
+    private int countedStart;
+    private int countedEnd;
+    private long countedStarts;
+    // What the filter counted for the remove about to happen, until its removeUpdate arrives
+    private boolean pending;
+    private int pendingOffset;
+    private int pendingLength;
+    private long pendingStarts;
+    private boolean pendingFollowingStart;
+
+    public DocumentStatistics(Runnable onChange) {
+        this.onChange = onChange;
+        segment.setPartialReturn(true);
+    }
+
+    public void setDocument(Document newDoc) {
+        if (doc != null) {
+            doc.removeDocumentListener(this);
+            if (doc instanceof AbstractDocument old && old.getDocumentFilter() == filter) {
+                old.setDocumentFilter(filter.next);
+            }
+        }
+        doc = newDoc;
+        paragraphWords.clear();
+        words = 0;
+        selectionStart = selectionEnd = 0;
+        counted = false;
+        pending = false;
+        Element root = doc.getDefaultRootElement();
+        for (int i = 0; i < root.getElementCount(); i++) {
+            recount(root.getElement(i));
+        }
+        filter = null;
+        if (doc instanceof AbstractDocument abstractDoc) {
+            filter = new RemovalCounter(abstractDoc.getDocumentFilter());
+            abstractDoc.setDocumentFilter(filter);
+        }
+        doc.addDocumentListener(this);
+        onChange.run();
+    }
+
+    public long getWords() {
+        return words;
+    }
+
+    public int getCharacters() {
+        return doc.getLength();
+    }
+
+    public int getLines() {
+        return doc.getDefaultRootElement().getElementCount();
+    }
+
+    public long getSelectionWords() {
+        int start = selectionStart;
+        int end = selectionEnd;
+        if (start == end) {
+            return 0;
+        }
+        int length = doc.getLength();
+        long direct = end - start;
+        long outside = start + (long) (length - end);
+        long moved = counted ? Math.abs(start - countedStart) + (long) Math.abs(end - countedEnd) : Long.MAX_VALUE;
+        long starts;
+        if (moved <= Math.min(direct, outside)) {
+            starts = countedStarts + signedWordStarts(countedEnd, end) - signedWordStarts(countedStart, start);
+        } else if (direct <= outside) {
+            starts = wordStarts(start, end);
+        } else {
+            starts = words - wordStarts(0, start) - wordStarts(end, length);
+        }
+        counted = true;
+        countedStart = start;
+        countedEnd = end;
+        countedStarts = starts;
+        // A word the selection starts inside of counts too
+        return starts + (continuesWord(start) ? 1 : 0);
+    }
+
+    public int getSelectionCharacters() {
+        return selectionEnd - selectionStart;
+    }
+
+    public int getSelectionLines() {
+        if (selectionStart == selectionEnd) {
+            return 0;
+        }
+        Element root = doc.getDefaultRootElement();
+        return root.getElementIndex(selectionEnd - 1) - root.getElementIndex(selectionStart) + 1;
+    }
+
+    @Override
+    public void insertUpdate(DocumentEvent e) {
+        pending = false;
+        int offset = e.getOffset();
+        int end = offset + e.getLength();
+        // Whether the text after the insert started a word when it followed offset - 1
+        boolean followingWasStart = end < doc.getLength() && !isWordSeparator(charAt(end))
+                && (offset == 0 || isWordSeparator(charAt(offset - 1)));
+        long delta = scanWords(offset, end) - (continuesWord(offset) ? 1 : 0)
+                + (isWordStart(end) ? 1 : 0) - (followingWasStart ? 1 : 0);
+        update(e, end, delta);
+    }
+
+    @Override
+    public void removeUpdate(DocumentEvent e) {
+        int offset = e.getOffset();
+        if (!pending || pendingOffset != offset || pendingLength != e.getLength()) {
+            pending = false;
+            recount(e, offset);
+            return;
+        }
+        pending = false;
+        update(e, offset, -pendingStarts - (pendingFollowingStart ? 1 : 0) + (isWordStart(offset) ? 1 : 0));
+    }
+
+    @Override
+    public void changedUpdate(DocumentEvent e) {
+        // Attribute changes don't affect the counts
+    }
+
+    @Override
+    public void caretUpdate(CaretEvent e) {
+        selectionStart = Math.min(e.getDot(), e.getMark());
+        selectionEnd = Math.max(e.getDot(), e.getMark());
+        onChange.run();
+    }
+
+    // Applies the change in the word count to the paragraphs the edit touched. Those hold the
+    // words they and any paragraphs the edit removed held before, plus the change; all but the
+    // longest are scanned and the longest gets the rest.
+    private void update(DocumentEvent e, int end, long delta) {
+        counted = false;
+        words += delta;
+        Element root = doc.getDefaultRootElement();
+        int first = root.getElementIndex(e.getOffset());
+        int last = root.getElementIndex(end);
+        long rest = delta;
+        DocumentEvent.ElementChange change = e.getChange(root);
+        if (change != null) {
+            for (Element removed : change.getChildrenRemoved()) {
+                rest += paragraphWords.remove(removed);
+            }
+            first = Math.min(first, change.getIndex());
+            last = Math.max(last, change.getIndex() + change.getChildrenAdded().length - 1);
+        }
+        int longest = first;
+        for (int i = first; i <= last; i++) {
+            Element paragraph = root.getElement(i);
+            rest += paragraphWords.remove(paragraph); // 0 for the added ones
+            if (paragraphLength(paragraph) > paragraphLength(root.getElement(longest))) {
+                longest = i;
+            }
+        }
+        for (int i = first; i <= last; i++) {
+            if (i != longest) {
+                Element paragraph = root.getElement(i);
+                int start = paragraph.getStartOffset();
+                int count = (int) scanWords(start, start + paragraphLength(paragraph));
+                paragraphWords.put(paragraph, count);
+                rest -= count;
+            }
+        }
+        paragraphWords.put(root.getElement(longest), (int) rest);
+        onChange.run();
+    }
+
+    // For a remove the filter didn't see: every paragraph overlapping the edited range, and any
+    // that were added, is recounted
+    private void recount(DocumentEvent e, int end) {
+        counted = false;
+        Element root = doc.getDefaultRootElement();
+        int first = root.getElementIndex(e.getOffset());
+        int last = root.getElementIndex(end);
+        DocumentEvent.ElementChange change = e.getChange(root);
+        if (change != null) {
+            for (Element removed : change.getChildrenRemoved()) {
+                words -= paragraphWords.remove(removed);
+            }
+            first = Math.min(first, change.getIndex());
+            last = Math.max(last, change.getIndex() + change.getChildrenAdded().length - 1);
+        }
+        for (int i = first; i <= last; i++) {
+            recount(root.getElement(i));
+        }
+        onChange.run();
+    }
+
+    private void recount(Element paragraph) {
+        int count = (int) countWords(paragraph.getStartOffset(), Math.min(paragraph.getEndOffset(), doc.getLength()));
+        words += count - paragraphWords.put(paragraph, count);
+    }
+
+    // The paragraph's length without the newline the document ends with
+    private int paragraphLength(Element paragraph) {
+        return Math.min(paragraph.getEndOffset(), doc.getLength()) - paragraph.getStartOffset();
+    }
+
+    // Counts words in [start, end), using the cached counts for whole paragraphs inside the
+    // range and scanning only the partial paragraphs at either end
+    public long countWords(int start, int end) {
+        if (start >= end) {
+            return 0;
+        }
+        Element root = doc.getDefaultRootElement();
+        int firstIndex = root.getElementIndex(start);
+        int lastIndex = root.getElementIndex(end - 1);
+        if (lastIndex - firstIndex < 2) {
+            return scanWords(start, end);
+        }
+        Element first = root.getElement(firstIndex);
+        Element last = root.getElement(lastIndex);
+        long count = scanWords(start, first.getEndOffset()) + scanWords(last.getStartOffset(), end);
+        for (int i = firstIndex + 1; i < lastIndex; i++) {
+            count += paragraphWords.get(root.getElement(i));
+        }
+        return count;
+    }
+
+    // Word starts in [start, end): the words that begin there, not counting one already under
+    // way at start. These add up, so the starts in [a, c) are those in [a, b) plus [b, c).
+    private long wordStarts(int start, int end) {
+        return start >= end ? 0 : countWords(start, end) - (continuesWord(start) ? 1 : 0);
+    }
+
+    // Word starts in [from, to), negated when to is before from
+    private long signedWordStarts(int from, int to) {
+        return from <= to ? wordStarts(from, to) : -wordStarts(to, from);
+    }
+
+    // Whether a word starts at offset
+    private boolean isWordStart(int offset) {
+        return offset < doc.getLength() && !isWordSeparator(charAt(offset))
+                && (offset == 0 || isWordSeparator(charAt(offset - 1)));
+    }
+
+    // Whether offset is inside a word rather than at its start
+    private boolean continuesWord(int offset) {
+        return offset > 0 && offset < doc.getLength() && !isWordSeparator(charAt(offset - 1))
+                && !isWordSeparator(charAt(offset));
+    }
+
+    private char charAt(int offset) {
+        try {
+            doc.getText(offset, 1, segment);
+        } catch (BadLocationException e) {
+            throw new IllegalStateException(e);
+        }
+        return segment.array[segment.offset];
+    }
+
+    // A word starts at every non-whitespace char that follows whitespace (or the range start),
+    // matching what split("\\s+") counts
+    private long scanWords(int start, int end) {
+        long count = 0;
+        boolean inWord = false;
+        try {
+            int offset = start;
+            while (offset < end) {
+                doc.getText(offset, end - offset, segment);
+                char[] array = segment.array;
+                for (int i = segment.offset, n = segment.offset + segment.count; i < n; i++) {
+                    char c = array[i];
+                    boolean space = isWordSeparator(c);
+                    if (!space && !inWord) {
+                        count++;
+                    }
+                    inWord = !space;
+                }
+                offset += segment.count;
+            }
+        } catch (BadLocationException e) {
+            throw new IllegalStateException(e);
+        }
+        return count;
+    }
+
+    // The characters \s matches, so counts agree with split("\\s+")
+    public static boolean isWordSeparator(char c) {
+        return c == ' ' || c == '\n' || c == '\t' || c == '\r' || c == '\f' || c == '\u000B';
+    }
+
+    // Counts the text a remove is about to take out while it can still be read, and passes the
+    // edit on to the filter the document already had
+    private final class RemovalCounter extends DocumentFilter {
+        private final DocumentFilter next;
+
+        RemovalCounter(DocumentFilter next) {
+            this.next = next;
+        }
+
+        @Override
+        public void remove(FilterBypass fb, int offset, int length) throws BadLocationException {
+            count(offset, length);
+            if (next != null) {
+                next.remove(fb, offset, length);
+            } else {
+                fb.remove(offset, length);
+            }
+        }
+
+        @Override
+        public void insertString(FilterBypass fb, int offset, String text, AttributeSet attrs)
+                throws BadLocationException {
+            if (next != null) {
+                next.insertString(fb, offset, text, attrs);
+            } else {
+                fb.insertString(offset, text, attrs);
+            }
+        }
+
+        @Override
+        public void replace(FilterBypass fb, int offset, int length, String text, AttributeSet attrs)
+                throws BadLocationException {
+            count(offset, length);
+            if (next != null) {
+                next.replace(fb, offset, length, text, attrs);
+            } else {
+                fb.replace(offset, length, text, attrs);
+            }
+        }
+
+        private void count(int offset, int length) {
+            pending = length > 0 && offset >= 0 && offset + length <= doc.getLength();
+            if (pending) {
+                pendingOffset = offset;
+                pendingLength = length;
+                pendingStarts = wordStarts(offset, offset + length);
+                pendingFollowingStart = isWordStart(offset + length);
+            }
+        }
+    }
+
+    // Open-addressing map from element identity to an int, with no boxing
+    private static final class ElementIntMap {
+        private Element[] keys = new Element[64];
+        private int[] values = new int[64];
+        private int size;
+
+        void clear() {
+            keys = new Element[64];
+            values = new int[64];
+            size = 0;
+        }
+
+        int get(Element key) {
+            int i = indexOf(key);
+            return keys[i] == key ? values[i] : 0;
+        }
+
+        // Returns the previous value, or 0
+        int put(Element key, int value) {
+            int i = indexOf(key);
+            if (keys[i] == key) {
+                int old = values[i];
+                values[i] = value;
+                return old;
+            }
+            keys[i] = key;
+            values[i] = value;
+            if (++size * 2 > keys.length) {
+                grow();
+            }
+            return 0;
+        }
+
+        // Returns the removed value, or 0. Uses backward-shift deletion so probes stay valid.
+        int remove(Element key) {
+            int i = indexOf(key);
+            if (keys[i] != key) {
+                return 0;
+            }
+            int old = values[i];
+            int mask = keys.length - 1;
+            int hole = i;
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                if (keys[j] == null) {
+                    break;
+                }
+                int home = hash(keys[j]) & mask;
+                if (((j - home) & mask) >= ((j - hole) & mask)) {
+                    keys[hole] = keys[j];
+                    values[hole] = values[j];
+                    hole = j;
+                }
+            }
+            keys[hole] = null;
+            size--;
+            return old;
+        }
+
+        private int indexOf(Element key) {
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+            while (keys[i] != null && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        private static int hash(Element key) {
+            int h = System.identityHashCode(key);
+            return h ^ (h >>> 16);
+        }
+
+        private void grow() {
+            Element[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new Element[oldKeys.length * 2];
+            values = new int[oldKeys.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    int j = indexOf(oldKeys[i]);
+                    keys[j] = oldKeys[i];
+                    values[j] = oldValues[i];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.StyledDocument;
+import java.awt.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumSet;
+
+// One document in the tab strip. The editor keeps the active tab's state in its own fields and
+// parks it here when another tab is shown. A parked tab is in one of three forms:
+//  - loaded: the document, shapes and undo history are kept in memory as they were
+//  - evicted: the document and shapes are written to a project file under ~/.texteditor/tabs
+//    and read back when the tab is shown again; the undo history is dropped
+//  - unloaded: nothing but the file name, read from the file when the tab is shown. Tabs start
+//    out like this, and a loaded tab whose file still holds everything goes back to it.
+// Only the loaded form costs more than a few hundred bytes.
+public final class DocumentTab {
+    private static final Path EVICTED_DIR = Path.of(System.getProperty("user.home"), ".texteditor", "tabs");
+
+    File file; // Null for an untitled document
+    File savedFile;
+    ProjectFile project;
+    boolean documentModified; // Changed since it was opened or last saved
+    boolean textModified;
+    boolean shapesModified;
+    StyledDocument document; // Null unless loaded
+    ShapeIndex shapes;
+    EditHistory history;
+    Path evicted; // The evicted form, if that is what the tab is in
+    TextFormat format; // The document's, while it is evicted: the project format doesn't keep it
+    SwingWorker<Path, Void> eviction; // Writing the evicted form; the tab stays loaded until it is done
+    int caret;
+    Point viewPosition;
+    long lastUsedNanos = System.nanoTime();
+
+    DocumentTab(File file) {
+        this.file = file;
+    }
+
+    String getTitle() {
+        return file != null ? file.getName() : "Untitled";
+    }
+
+    boolean isLoaded() {
+        return document != null;
+    }
+
+    // Whether the tab can be dropped from memory and read back from its file as it is
+    boolean matchesFile() {
+        if (savedFile == null) {
+            return document.getLength() == 0 && shapes.size() == 0;
+        }
+        // Text files don't keep the shapes
+        return !documentModified && (project != null ? !shapesModified : shapes.size() == 0);
+    }
+
+    boolean hasUnsavedChanges() {
+        if (!isLoaded()) {
+            return evicted != null;
+        }
+        if (savedFile == null) {
+            return document.getLength() > 0 || shapes.size() > 0;
+        }
+        return documentModified || (project != null && shapesModified);
+    }
+
+    // Forgets the document, as the tab is evicted or can be read again from its file
+    void unload() {
+        document = null;
+        shapes = null;
+        history = null;
+    }
+
+    // Writes the evicted form in the background, from a snapshot of the document and a copy of
+    // the shapes taken here. Showing the tab again doesn't wait for the write: the tab goes on
+    // with the document and shapes it still holds, and the written file is thrown away.
+    SwingWorker<Path, Void> evict() throws BadLocationException {
+        CharBuffer[] text = FileSaver.snapshot(document);
+        CompactStyledDocument.StyleRuns styles = document instanceof CompactStyledDocument compact
+                ? compact.getStyleRuns() : CompactStyledDocument.StyleRuns.NONE;
+        ShapeIndex parked = shapes.copy();
+        format = TextFormat.of(document);
+        return new SwingWorker<>() {
+            @Override
+            protected Path doInBackground() throws IOException {
+                Files.createDirectories(EVICTED_DIR);
+                Path target = Files.createTempFile(EVICTED_DIR, "tab-", ProjectFile.EXTENSION);
+                try {
+                    ProjectFile.save(target, new ProjectFile.Snapshot(text, styles, parked.toArray()),
+                            null, EnumSet.allOf(ProjectFile.Section.class));
+                } catch (IOException | RuntimeException e) {
+                    Files.deleteIfExists(target);
+                    throw e;
+                }
+                return target;
+            }
+        };
+    }
+
+    void deleteEvicted() {
+        if (evicted != null) {
+            try {
+                Files.deleteIfExists(evicted);
+            } catch (IOException e) {
+                // Nothing refers to it any more; it only takes up space
+            }
+            evicted = null;
+            format = null;
+        }
+    }
+}
@@ -0,0 +1,426 @@
+import javax.swing.*;
+import javax.swing.event.UndoableEditListener;
+import javax.swing.undo.AbstractUndoableEdit;
+import javax.swing.undo.UndoableEditSupport;
+import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.geom.Ellipse2D;
+import java.awt.image.BufferedImage;
+import java.util.EventListener;
+
+// Canvas the shape buttons draw on. Shapes are drawn by dragging and selected by clicking;
+// adding a shape and clearing the canvas are posted as undoable edits. A disabled canvas
+// can't be drawn on or cleared.
+public class DrawingCanvas extends JPanel {
+    private static final Color SELECTION_COLOR = new Color(30, 144, 255);
+    private static final long SHAPE_BYTES = 160; // Rough size of a shape object held by an edit
+
+    private String shapeToDraw = "CLEAR";
+    private Point startPoint, endPoint;
+    private ShapeIndex shapes = new ShapeIndex();
+    private Rectangle rubberBand; // Area covered by the shape being dragged
+    private int selectedShape = -1;
+    private long revision; // Bumped whenever the set of shapes changes
+    private final UndoableEditSupport undoSupport = new UndoableEditSupport(this);
+
+    // Committed shapes are rendered once into this transparent layer, which paintComponent
+    // blits; the background isn't part of it, so only a theme that changes the shape color
+    // invalidates it
+    private BufferedImage shapeLayer;
+    private Color shapeColor = Color.BLACK;
+    private double layerScale;
+
+    // Paint timings for the current drag, reported when the drag ends
+    private int dragFrames;
+    private long dragPaintNanos;
+    private long dragMaxPaintNanos;
+
+    // Told about every change to the shapes, including undo and redo, in the order they happen
+    public interface ShapeListener extends EventListener {
+        void shapeAdded(Shape shape);
+
+        void lastShapeRemoved();
+
+        // The canvas now holds exactly these shapes (none after a clear)
+        void shapesReplaced(Shape[] shapes);
+    }
+
+    public DrawingCanvas() {
+        setPreferredSize(new Dimension(400, 600));
+        setBackground(Color.WHITE);
+
+        // Mouse listeners for drawing
+        addMouseListener(new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                if (!isEnabled()) {
+                    return;
+                }
+                startPoint = e.getPoint();
+                endPoint = null;
+                rubberBand = null;
+                dragFrames = 0;
+                dragPaintNanos = dragMaxPaintNanos = 0;
+            }
+
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                if (startPoint == null) {
+                    return; // Pressed while disabled
+                }
+                endPoint = e.getPoint();
+                if (endPoint.equals(startPoint)) {
+                    // A click without a drag selects the shape under the pointer
+                    select(shapes.hitTest(endPoint));
+                } else if (!"CLEAR".equals(shapeToDraw) && isEnabled()) {
+                    Shape shape = createShape();
+                    if (shape != null) {
+                        addShape(shape);
+                        undoSupport.postEdit(new AddShapeEdit(shape));
+                    }
+                }
+                repaintArea(rubberBand);
+                if (dragFrames > 0) {
+                    firePropertyChange("dragFrameTiming", null,
+                            new FrameTiming(shapes.size(), dragFrames, dragPaintNanos / dragFrames, dragMaxPaintNanos));
+                }
+                startPoint = endPoint = null;
+                rubberBand = null;
+            }
+        });
+
+        addMouseMotionListener(new MouseAdapter() {
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                endPoint = e.getPoint();
+                Shape shape = createShape();
+                if (shape == null) {
+                    return;
+                }
+                // Only the old and new outline areas need repainting
+                Rectangle band = shape.getBounds();
+                band.grow(2, 2);
+                repaintArea(rubberBand);
+                repaintArea(band);
+                rubberBand = band;
+            }
+        });
+    }
+
+    private void select(int index) {
+        if (index == selectedShape) {
+            return;
+        }
+        if (selectedShape >= 0) {
+            repaintArea(shapes.getBounds(selectedShape));
+        }
+        selectedShape = index;
+        if (selectedShape >= 0) {
+            repaintArea(shapes.getBounds(selectedShape));
+        }
+    }
+
+    // Timing of the paints made during one drag, in nanoseconds per frame
+    record FrameTiming(int shapeCount, int frames, long averageNanos, long maxNanos) {
+    }
+
+    // Repaint requests made in the same event are coalesced into one paint by the RepaintManager
+    private void repaintArea(Rectangle area) {
+        if (area != null) {
+            repaint(area);
+        }
+    }
+
+    public void setShapeToDraw(String shape) {
+        this.shapeToDraw = shape;
+        if ("CLEAR".equals(shape) && shapes.size() > 0 && isEnabled()) {
+            ShapeIndex cleared = shapes;
+            clearShapes();
+            undoSupport.postEdit(new ClearEdit(cleared));
+        }
+    }
+
+    public void addUndoableEditListener(UndoableEditListener listener) {
+        undoSupport.addUndoableEditListener(listener);
+    }
+
+    public void removeUndoableEditListener(UndoableEditListener listener) {
+        undoSupport.removeUndoableEditListener(listener);
+    }
+
+    public void addShapeListener(ShapeListener listener) {
+        listenerList.add(ShapeListener.class, listener);
+    }
+
+    public void removeShapeListener(ShapeListener listener) {
+        listenerList.remove(ShapeListener.class, listener);
+    }
+
+    public Shape[] getShapes() {
+        return shapes.toArray();
+    }
+
+    // The shapes as they are now, in a copy that later drawing doesn't change; for reading on
+    // another thread
+    public ShapeIndex copyShapes() {
+        return shapes.copy();
+    }
+
+    public int getShapeCount() {
+        return shapes.size();
+    }
+
+    // Replaces all shapes, as when a project is opened. Not undoable.
+    public void setShapes(Shape[] replacement) {
+        shapes = new ShapeIndex(); // An edit may still hold the old one
+        for (Shape shape : replacement) {
+            shapes.add(shape);
+        }
+        selectedShape = -1;
+        shapeLayer = null;
+        revision++;
+        repaint();
+        for (ShapeListener listener : listenerList.getListeners(ShapeListener.class)) {
+            listener.shapesReplaced(replacement);
+        }
+    }
+
+    // Puts another document's shapes on the canvas as they are, as when switching tabs, and
+    // returns the ones it held. Not undoable, and the shape listeners aren't told.
+    public ShapeIndex swapShapes(ShapeIndex replacement) {
+        ShapeIndex previous = shapes;
+        shapes = replacement;
+        selectedShape = -1;
+        shapeLayer = null;
+        revision++;
+        repaint();
+        return previous;
+    }
+
+    public Color getShapeColor() {
+        return shapeColor;
+    }
+
+    public void setShapeColor(Color color) {
+        if (!color.equals(shapeColor)) {
+            shapeColor = color;
+            shapeLayer = null;
+            repaint();
+        }
+    }
+
+    public long getRevision() {
+        return revision;
+    }
+
+    private void addShape(Shape shape) {
+        revision++;
+        int index = shapes.add(shape);
+        drawIntoLayer(shape);
+        repaintArea(shapes.getBounds(index));
+        for (ShapeListener listener : listenerList.getListeners(ShapeListener.class)) {
+            listener.shapeAdded(shape);
+        }
+    }
+
+    private void removeLastShape() {
+        int index = shapes.size() - 1;
+        Rectangle area = shapes.getBounds(index);
+        if (selectedShape == index) {
+            selectedShape = -1;
+        }
+        shapes.removeLast();
+        revision++;
+        shapeLayer = null; // Pixels can't be taken back out of the layer
+        repaintArea(area);
+        for (ShapeListener listener : listenerList.getListeners(ShapeListener.class)) {
+            listener.lastShapeRemoved();
+        }
+    }
+
+    // The old shapes are left as they were, for the clear's undo
+    private void clearShapes() {
+        shapes = new ShapeIndex();
+        revision++;
+        selectedShape = -1;
+        shapeLayer = null;
+        repaint();
+        for (ShapeListener listener : listenerList.getListeners(ShapeListener.class)) {
+            listener.shapesReplaced(new Shape[0]);
+        }
+    }
+
+    private final class AddShapeEdit extends AbstractUndoableEdit implements EditHistory.SizedEdit {
+        private final Shape shape;
+        private final String name;
+
+        AddShapeEdit(Shape shape) {
+            this.shape = shape;
+            this.name = "Draw " + shapeToDraw;
+        }
+
+        @Override
+        public void undo() {
+            super.undo();
+            removeLastShape();
+        }
+
+        @Override
+        public void redo() {
+            super.redo();
+            addShape(shape);
+        }
+
+        @Override
+        public String getPresentationName() {
+            return name;
+        }
+
+        @Override
+        public long estimatedBytes() {
+            return SHAPE_BYTES;
+        }
+    }
+
+    // Holds on to the cleared shapes, still in their compact form; they are only put back if the
+    // clear is undone
+    private final class ClearEdit extends AbstractUndoableEdit implements EditHistory.SizedEdit {
+        private final ShapeIndex cleared;
+
+        ClearEdit(ShapeIndex cleared) {
+            this.cleared = cleared;
+        }
+
+        @Override
+        public void undo() {
+            super.undo();
+            shapes = cleared;
+            revision++;
+            shapeLayer = null;
+            repaint();
+            Shape[] restored = cleared.toArray();
+            for (ShapeListener listener : listenerList.getListeners(ShapeListener.class)) {
+                listener.shapesReplaced(restored);
+            }
+        }
+
+        @Override
+        public void redo() {
+            super.redo();
+            clearShapes();
+        }
+
+        @Override
+        public String getPresentationName() {
+            return "Clear Canvas";
+        }
+
+        @Override
+        public long estimatedBytes() {
+            return cleared.estimatedBytes();
+        }
+    }
+
+    private Shape createShape() {
+        if (startPoint == null || endPoint == null) return null;
+
+        int x = Math.min(startPoint.x, endPoint.x);
+        int y = Math.min(startPoint.y, endPoint.y);
+        int width = Math.abs(startPoint.x - endPoint.x);
+        int height = Math.abs(startPoint.y - endPoint.y);
+
+        switch (shapeToDraw) {
+            case "Rectangle":
+                return new Rectangle(x, y, width, height);
+            case "Oval":
+                return new Ellipse2D.Double(x, y, width, height);
+            case "Line":
+                return new java.awt.geom.Line2D.Double(startPoint, endPoint);
+            case "Triangle":
+                return createTriangle(startPoint, endPoint);
+            case "Pentagon":
+                return createPentagon(startPoint, endPoint);
+            default:
+                return null;
+        }
+    }
+
+    private Shape createTriangle(Point start, Point end) {
+        return ShapeIndex.createTriangle(start.x, start.y, end.x, end.y);
+    }
+
+    private Shape createPentagon(Point start, Point end) {
+        return ShapeIndex.createPentagon(start.x, start.y, end.x, end.y);
+    }
+
+    @Override
+    @SuppressWarnings("try")
+    protected void paintComponent(Graphics g) {
+        try (Diagnostics.Timing ignored = Diagnostics.start("Paint canvas")) {
+            paintShapes(g);
+        }
+    }
+
+    private void paintShapes(Graphics g) {
+        long startNanos = System.nanoTime();
+        super.paintComponent(g);
+        Graphics2D g2 = (Graphics2D) g;
+
+        // The layer is only rebuilt after a clear or a resize (or a change of screen scale);
+        // otherwise this is a blit, clipped to the repainted area
+        double scale = g2.getTransform().getScaleX();
+        if (shapeLayer == null || scale != layerScale
+                || shapeLayer.getWidth() != (int) Math.ceil(getWidth() * scale)
+                || shapeLayer.getHeight() != (int) Math.ceil(getHeight() * scale)) {
+            rebuildLayer(scale);
+        }
+        if (shapeLayer != null) {
+            g2.drawImage(shapeLayer, 0, 0, getWidth(), getHeight(), null);
+        }
+
+        if (selectedShape >= 0) {
+            g2.setColor(SELECTION_COLOR);
+            g2.draw(shapes.view(selectedShape));
+        }
+
+        // Draw the current shape being dragged
+        if (startPoint != null && endPoint != null && !"CLEAR".equals(shapeToDraw)) {
+            g2.setColor(Color.GRAY);
+            g2.draw(createShape());
+            long nanos = System.nanoTime() - startNanos;
+            dragFrames++;
+            dragPaintNanos += nanos;
+            dragMaxPaintNanos = Math.max(dragMaxPaintNanos, nanos);
+        }
+    }
+
+    private void rebuildLayer(double scale) {
+        shapeLayer = null;
+        if (getWidth() <= 0 || getHeight() <= 0) {
+            return;
+        }
+        // Rendered at device resolution so outlines stay sharp on scaled displays
+        layerScale = scale;
+        shapeLayer = new BufferedImage((int) Math.ceil(getWidth() * scale), (int) Math.ceil(getHeight() * scale),
+                BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2 = layerGraphics();
+        shapes.forEachIntersecting(new Rectangle(0, 0, getWidth(), getHeight()), i -> g2.draw(shapes.view(i)));
+        g2.dispose();
+    }
+
+    private void drawIntoLayer(Shape shape) {
+        if (shapeLayer != null) {
+            Graphics2D g2 = layerGraphics();
+            g2.draw(shape);
+            g2.dispose();
+        }
+    }
+
+    private Graphics2D layerGraphics() {
+        Graphics2D g2 = shapeLayer.createGraphics();
+        g2.scale(layerScale, layerScale);
+        g2.setColor(shapeColor);
+        return g2;
+    }
+}
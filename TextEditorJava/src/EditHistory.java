@@ -0,0 +1,281 @@
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.text.BadLocationException;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+import javax.swing.undo.CompoundEdit;
+import javax.swing.undo.UndoManager;
+import javax.swing.undo.UndoableEdit;
+
+// Undo history shared by the text document and the drawing canvas. Every edit is wrapped in
+// a Group that knows roughly how much memory it keeps alive; once the total passes the cap
+// the oldest groups are dropped. Consecutive keystrokes are coalesced into one "Typing"
+// group, and callers can bracket a larger operation with beginGroup/endGroup so that it
+// undoes as one step. Document edits only hold the affected range (piece references for
+// removed text), so a group of many small replacements undoes in time proportional to the
+// number of replacements, not the size of the document.
+public class EditHistory extends UndoManager {
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    // Edits that can say how much memory they keep alive
+    public interface SizedEdit extends UndoableEdit {
+        long estimatedBytes();
+    }
+
+    private static final long TYPING_PAUSE_NANOS = 1_500_000_000L;
+    private static final long EDIT_OVERHEAD_BYTES = 96;
+
+    private long maxBytes;
+    private long totalBytes;
+    private Group openGroup;
+    private int groupDepth;
+
+    public EditHistory() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    public EditHistory(long maxBytes) {
+        this.maxBytes = maxBytes;
+        setLimit(Integer.MAX_VALUE); // Bounded by memory instead of by count
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trimForMemory();
+    }
+
+    public synchronized long getEstimatedBytes() {
+        return totalBytes;
+    }
+
+    // Starts collecting edits into one undoable step. Calls may nest; the step is added to the
+    // history when the outermost endGroup is called.
+    public synchronized void beginGroup(String name) {
+        if (groupDepth++ == 0) {
+            openGroup = new Group(name, false);
+        }
+    }
+
+    public synchronized void endGroup() {
+        if (groupDepth == 0 || --groupDepth > 0) {
+            return;
+        }
+        Group group = openGroup;
+        openGroup = null;
+        group.end();
+        if (!group.isEmpty()) {
+            append(group);
+        }
+    }
+
+    // Nothing is undone or redone while a group is open: its edits are already in the document,
+    // so the steps before it no longer line up with the text. A slow operation applied a slice
+    // at a time has to be ended first.
+    @Override
+    public synchronized boolean canUndo() {
+        return groupDepth == 0 && super.canUndo();
+    }
+
+    @Override
+    public synchronized boolean canRedo() {
+        return groupDepth == 0 && super.canRedo();
+    }
+
+    @Override
+    public synchronized void undo() throws CannotUndoException {
+        if (groupDepth > 0) {
+            throw new CannotUndoException();
+        }
+        super.undo();
+    }
+
+    @Override
+    public synchronized void redo() throws CannotRedoException {
+        if (groupDepth > 0) {
+            throw new CannotRedoException();
+        }
+        super.redo();
+    }
+
+    @Override
+    public synchronized boolean addEdit(UndoableEdit edit) {
+        if (openGroup != null) {
+            openGroup.addEdit(edit);
+            return true;
+        }
+        Group group = new Group(edit.getPresentationName(), isKeystroke(edit));
+        group.addEdit(edit);
+        if (!group.typing) {
+            group.end();
+        }
+        return append(group);
+    }
+
+    @Override
+    public synchronized void discardAllEdits() {
+        super.discardAllEdits();
+        totalBytes = 0;
+    }
+
+    private boolean append(Group group) {
+        totalBytes += group.bytes; // Counted even when the last group absorbs it
+        boolean added = super.addEdit(group);
+        trimForMemory();
+        return added;
+    }
+
+    @Override
+    protected void trimEdits(int from, int to) {
+        for (int i = from; i <= to; i++) {
+            totalBytes -= ((Group) edits.get(i)).bytes;
+        }
+        super.trimEdits(from, to);
+    }
+
+    // Drops the oldest groups until the history fits, always keeping the newest one
+    private void trimForMemory() {
+        int count = 0;
+        long bytes = totalBytes;
+        while (bytes > maxBytes && count < edits.size() - 1) {
+            bytes -= ((Group) edits.get(count++)).bytes;
+        }
+        if (count > 0) {
+            trimEdits(0, count - 1);
+        }
+    }
+
+    private static boolean isKeystroke(UndoableEdit edit) {
+        return edit instanceof DocumentEvent event && event.getLength() == 1
+                && event.getType() != DocumentEvent.EventType.CHANGE;
+    }
+
+    static long estimateBytes(UndoableEdit edit) {
+        if (edit instanceof SizedEdit sized) {
+            return sized.estimatedBytes();
+        }
+        if (edit instanceof DocumentEvent event) {
+            return EDIT_OVERHEAD_BYTES + 2L * event.getLength();
+        }
+        return EDIT_OVERHEAD_BYTES;
+    }
+
+    // One undoable step. A typing group keeps absorbing single-character edits that continue
+    // where the previous one left off, until the user pauses, moves or starts a new line.
+    private static final class Group extends CompoundEdit {
+        private final String name;
+        private final boolean typing;
+        private long bytes;
+        private int count;
+        private DocumentEvent.EventType lastType;
+        private int lastOffset;
+        private long lastNanos;
+
+        Group(String name, boolean typing) {
+            this.name = name;
+            this.typing = typing;
+        }
+
+        boolean isEmpty() {
+            return count == 0;
+        }
+
+        @Override
+        public boolean addEdit(UndoableEdit edit) {
+            if (!isInProgress()) {
+                return false;
+            }
+            if (edit instanceof Group group) {
+                // Offered by UndoManager when a new group is appended after this one
+                if (typing && group.typing && continues(group)) {
+                    for (UndoableEdit e : group.edits) {
+                        add(e);
+                    }
+                    lastType = group.lastType;
+                    lastOffset = group.lastOffset;
+                    lastNanos = group.lastNanos;
+                    if (!group.isInProgress()) {
+                        end();
+                    }
+                    return true;
+                }
+                end();
+                return false;
+            }
+            add(edit);
+            if (!typing) {
+                return true;
+            }
+            DocumentEvent event = (DocumentEvent) edit;
+            lastType = event.getType();
+            lastOffset = event.getOffset();
+            lastNanos = System.nanoTime();
+            if (lastType == DocumentEvent.EventType.INSERT && endsLine(event)) {
+                end();
+            }
+            return true;
+        }
+
+        private void add(UndoableEdit edit) {
+            super.addEdit(edit);
+            bytes += estimateBytes(edit);
+            count++;
+        }
+
+        // Typing continues this group if it is the same kind of edit, right next to the last
+        // one, and soon enough after it
+        private boolean continues(Group next) {
+            if (next.lastType != lastType || next.lastNanos - lastNanos > TYPING_PAUSE_NANOS) {
+                return false;
+            }
+            if (lastType == DocumentEvent.EventType.INSERT) {
+                return next.lastOffset == lastOffset + 1;
+            }
+            // Backspace moves left, Delete stays put
+            return next.lastOffset == lastOffset - 1 || next.lastOffset == lastOffset;
+        }
+
+        private static boolean endsLine(DocumentEvent event) {
+            try {
+                return event.getDocument().getText(event.getOffset(), 1).equals("\n");
+            } catch (BadLocationException e) {
+                return false;
+            }
+        }
+
+        // A typing group is still open while it is the newest step; undoing it closes it
+        @Override
+        public boolean canUndo() {
+            if (isInProgress()) {
+                end();
+            }
+            return super.canUndo();
+        }
+
+        @Override
+        public void undo() {
+            if (isInProgress()) {
+                end();
+            }
+            super.undo();
+        }
+
+        @Override
+        public String getPresentationName() {
+            return typing ? "Typing" : name;
+        }
+
+        @Override
+        public String getUndoPresentationName() {
+            return UIManager.getString("AbstractUndoableEdit.undoText") + " " + getPresentationName();
+        }
+
+        @Override
+        public String getRedoPresentationName() {
+            return UIManager.getString("AbstractUndoableEdit.redoText") + " " + getPresentationName();
+        }
+    }
+}
@@ -0,0 +1,1131 @@
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.*;
+import java.awt.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+// Write-ahead journal of a session's edits, so a session that wasn't saved survives the editor
+// being killed. It listens to the document and the canvas and records every insert, remove,
+// restyle and shape change, undo and redo included, next to the file being edited.
+//
+// Typing only encodes a record into memory. A background thread commits whatever has built up
+// every COMMIT_MILLIS as one checksummed frame with a single write and a single fsync, so the
+// journal costs the EDT a few hundred nanoseconds per edit however slow the disk is.
+//
+// The journal is a chain of segments, each starting from a base: an empty document, the file
+// as it was last opened or saved, or a checkpoint in the project format. A segment's base only
+// counts once a BASE frame confirms it is on disk, and older segments are deleted at that
+// point. A plain file base is recognized by its size and modification time. A project base is
+// recognized by the version it was saved as. Saving a project records the new version in the
+// new segment before the file is switched to it, and older versions stay readable when a save
+// is appended to the file, so a crash during a save recovers onto one version or the other.
+// Saves start a new segment on the saved file, and when a segment grows past the size of the
+// document a checkpoint is written in the background, which keeps recovery time bounded.
+//
+// Recovery loads the newest confirmed base and replays the segments from there onto piece
+// tables, one for the text and one holding a style index per character, then builds the
+// document in one step with CompactStyledDocument.load.
+public final class EditJournal implements DocumentListener, DrawingCanvas.ShapeListener {
+    private static final int MAGIC = 0x54454a31; // "TEJ1"
+    private static final int VERSION = 1;
+    private static final long COMMIT_MILLIS = 50;
+    private static final long CHECKPOINT_BYTES = 32L << 20;
+    private static final int FRAME_HEADER_BYTES = 9; // Length, CRC and kind
+    private static final Path SESSION_DIR = Path.of(System.getProperty("user.home"), ".texteditor");
+    private static final Path SESSION_FILE = SESSION_DIR.resolve("session");
+
+    // Frame kinds
+    private static final byte EDITS = 1;
+    private static final byte BASE = 2;
+
+    // Record types inside an EDITS frame
+    private static final byte INSERT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte RESTYLE = 3;
+    private static final byte STYLE = 4;
+    private static final byte SHAPE_ADDED = 5;
+    private static final byte SHAPE_REMOVED = 6;
+    private static final byte SHAPES_REPLACED = 7;
+
+    // What recover rebuilt. file is the file the session was editing, or null if it was untitled.
+    public record Recovered(StyledDocument document, Shape[] shapes, File file, long edits) {
+    }
+
+    private final Path prefix;
+    private final CompactStyledDocument doc;
+    private final DrawingCanvas canvas;
+    private final Consumer<String> onError; // Called on the EDT
+    private final ScheduledExecutorService writer;
+    private final List<Segment> segments = new ArrayList<>(); // Oldest first; guarded by this
+    private Segment current; // Guarded by this
+    private long nextId;
+    private File file;
+    private boolean checkpointing;
+    private volatile boolean failed;
+
+    private EditJournal(Path prefix, CompactStyledDocument doc, DrawingCanvas canvas, long nextId,
+                        Consumer<String> onError) {
+        this.prefix = prefix;
+        this.doc = doc;
+        this.canvas = canvas;
+        this.nextId = nextId;
+        this.onError = onError;
+        writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Edit journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Where the journal for a file goes: next to it, or in the user's settings directory for
+    // untitled documents and files in directories that can't be written to
+    public static Path prefixFor(File file) {
+        if (file != null) {
+            Path dir = file.toPath().toAbsolutePath().getParent();
+            if (dir != null && Files.isWritable(dir)) {
+                return dir.resolve("." + file.getName());
+            }
+            return SESSION_DIR.resolve(file.getName() + "-" + Integer.toHexString(file.getAbsolutePath().hashCode()));
+        }
+        return SESSION_DIR.resolve("untitled");
+    }
+
+    // Starts journaling doc and canvas. base must hold the document and canvas as they are now;
+    // when it is null and the document isn't empty, a checkpoint is written first. Segments
+    // left under the same prefix stay until this journal's first base is confirmed, so a
+    // session that is being restored can still be recovered if the editor dies again.
+    public static EditJournal open(Path prefix, StyledDocument doc, DrawingCanvas canvas, File file, Path base,
+                                   Consumer<String> onError) throws IOException {
+        Files.createDirectories(prefix.getParent());
+        long nextId = 0;
+        for (long id : files(prefix, ".journal").keySet()) {
+            nextId = id + 1;
+        }
+        for (long id : files(prefix, ProjectFile.EXTENSION).keySet()) {
+            nextId = Math.max(nextId, id + 1);
+        }
+        EditJournal journal = new EditJournal(prefix, (CompactStyledDocument) doc, canvas, nextId, onError);
+        journal.writer.execute(() -> {
+            try {
+                Files.createDirectories(SESSION_DIR);
+                Files.writeString(SESSION_FILE, prefix.toString());
+            } catch (IOException e) {
+                journal.fail(e);
+            }
+        });
+        journal.writer.scheduleWithFixedDelay(journal::commit, COMMIT_MILLIS, COMMIT_MILLIS, TimeUnit.MILLISECONDS);
+        if (base == null && doc.getLength() > 0) {
+            journal.file = file;
+            journal.checkpoint();
+        } else {
+            journal.confirmBase(journal.rebase(base, file));
+        }
+        doc.addDocumentListener(journal);
+        canvas.addShapeListener(journal);
+        return journal;
+    }
+
+    // Starts a new segment on top of base, which must hold the document and canvas as they are
+    // now (a file about to be saved from a snapshot taken at this point, say). Returns the id
+    // to pass to confirmBase once base is safely on disk.
+    public long rebase(Path base, File file) {
+        synchronized (this) {
+            return startSegment(base, file).id;
+        }
+    }
+
+    // Marks a segment's base as durable, which makes everything before it redundant
+    public void confirmBase(long id) {
+        writer.execute(() -> {
+            Segment segment;
+            synchronized (this) {
+                segment = segments.stream().filter(s -> s.id == id).findFirst().orElse(null);
+            }
+            if (segment != null) { // Already superseded by a later base otherwise
+                confirm(segment);
+            }
+        });
+    }
+
+    // Records the version a project base is being saved as, from the thread saving it, once that
+    // version is on disk but before the file is switched over to it. A crash while switching then
+    // still recovers: onto this segment if the switch happened, onto the one before if not. Waits
+    // until the record is on disk; unlike confirmBase, it leaves the older segments in place.
+    public void baseWritten(long id, ProjectFile.Version version) {
+        Future<?> done;
+        try {
+            done = writer.submit(() -> {
+                Segment segment;
+                synchronized (this) {
+                    segment = segments.stream().filter(s -> s.id == id).findFirst().orElse(null);
+                }
+                if (segment != null) {
+                    commit();
+                    try {
+                        segment.write(baseFrame(-1, -1, version));
+                        segment.channel.force(false);
+                    } catch (IOException e) {
+                        fail(e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return; // Closed
+        }
+        try {
+            done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            fail(e.getCause());
+        }
+    }
+
+    // Snapshots the document and canvas into a new base and writes it in the background
+    public void checkpoint() {
+        if (failed) {
+            return;
+        }
+        ProjectFile.Snapshot snapshot;
+        try {
+            snapshot = ProjectFile.Snapshot.of(doc, canvas);
+        } catch (BadLocationException e) {
+            throw new IllegalStateException(e);
+        }
+        Segment segment;
+        synchronized (this) {
+            segment = startSegment(checkpointPath(nextId), file);
+        }
+        checkpointing = true;
+        CompletableFuture.runAsync(() -> {
+            try {
+                ProjectFile.save(segment.base, snapshot, null, EnumSet.allOf(ProjectFile.Section.class));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }).whenComplete((ignored, failure) -> {
+            SwingUtilities.invokeLater(() -> checkpointing = false);
+            if (failure != null) {
+                Throwable cause = failure;
+                while (cause.getCause() != null) {
+                    cause = cause.getCause();
+                }
+                report("Journal checkpoint failed: " + cause.getMessage());
+            } else if (writer.isShutdown()) {
+                deleteQuietly(segment.base);
+            } else {
+                confirmBase(segment.id);
+            }
+        });
+    }
+
+    // Stops journaling. With keep, everything recorded is flushed and left for recover to pick
+    // up at the next start; otherwise the journal and its checkpoints are deleted.
+    public void close(boolean keep) {
+        doc.removeDocumentListener(this);
+        canvas.removeShapeListener(this);
+        Future<?> done = writer.submit(() -> {
+            commit();
+            List<Segment> open;
+            synchronized (this) {
+                open = new ArrayList<>(segments);
+                segments.clear();
+            }
+            for (Segment segment : open) {
+                segment.close();
+            }
+            if (!keep) {
+                try {
+                    deleteBefore(Long.MAX_VALUE);
+                    if (Files.exists(SESSION_FILE) && Files.readString(SESSION_FILE).equals(prefix.toString())) {
+                        Files.delete(SESSION_FILE);
+                    }
+                } catch (IOException e) {
+                    // Leftovers are cleaned up by the next journal with this prefix
+                }
+            }
+        });
+        writer.shutdown();
+        try {
+            done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Nothing more can be done while closing
+        }
+    }
+
+    @Override
+    public void insertUpdate(DocumentEvent e) {
+        int offset = e.getOffset();
+        int length = e.getLength();
+        String text;
+        try {
+            text = doc.getText(offset, length);
+        } catch (BadLocationException ex) {
+            throw new IllegalStateException(ex);
+        }
+        CompactStyledDocument.StyleRuns runs = doc.getStyleRuns(offset, length);
+        synchronized (this) {
+            if (current == null || failed) {
+                return;
+            }
+            Batch out = current.pending;
+            int before = out.size;
+            int[] ids = defineStyles(runs);
+            out.write(INSERT);
+            out.writeVarInt(offset);
+            out.writeVarInt(length);
+            writeRuns(out, runs, ids);
+            out.writeChars(text);
+            appended(out.size - before);
+        }
+    }
+
+    @Override
+    public void removeUpdate(DocumentEvent e) {
+        synchronized (this) {
+            if (current == null || failed) {
+                return;
+            }
+            Batch out = current.pending;
+            int before = out.size;
+            out.write(REMOVE);
+            out.writeVarInt(e.getOffset());
+            out.writeVarInt(e.getLength());
+            appended(out.size - before);
+        }
+    }
+
+    @Override
+    public void changedUpdate(DocumentEvent e) {
+        // Style changes may cover the implied newline at the end, which has no text to style
+        int offset = e.getOffset();
+        int length = Math.min(e.getLength(), doc.getLength() - offset);
+        if (length <= 0) {
+            return;
+        }
+        CompactStyledDocument.StyleRuns runs = doc.getStyleRuns(offset, length);
+        synchronized (this) {
+            if (current == null || failed) {
+                return;
+            }
+            Batch out = current.pending;
+            int before = out.size;
+            writeRestyle(out, offset, length, runs);
+            appended(out.size - before);
+        }
+    }
+
+    @Override
+    public void shapeAdded(Shape shape) {
+        synchronized (this) {
+            if (current == null || failed) {
+                return;
+            }
+            Batch out = current.pending;
+            int before = out.size;
+            out.write(SHAPE_ADDED);
+            writeShape(out, shape);
+            appended(out.size - before);
+        }
+    }
+
+    @Override
+    public void lastShapeRemoved() {
+        synchronized (this) {
+            if (current == null || failed) {
+                return;
+            }
+            current.pending.write(SHAPE_REMOVED);
+            appended(1);
+        }
+    }
+
+    @Override
+    public void shapesReplaced(Shape[] shapes) {
+        synchronized (this) {
+            if (current == null || failed) {
+                return;
+            }
+            Batch out = current.pending;
+            int before = out.size;
+            writeShapes(out, shapes);
+            appended(out.size - before);
+        }
+    }
+
+    // Called with the lock held. A segment that has grown past the document is worth
+    // replacing with a checkpoint, which is started once the current event is over.
+    private void appended(int bytes) {
+        current.bytes += bytes;
+        if (!checkpointing && current.bytes > Math.max(CHECKPOINT_BYTES, 2L * doc.getLength())) {
+            checkpointing = true;
+            SwingUtilities.invokeLater(this::checkpoint);
+        }
+    }
+
+    // Called with the lock held. A project base holds the styles and shapes; a text file or an
+    // empty document doesn't, so those are recorded at the start of the segment.
+    private Segment startSegment(Path base, File file) {
+        this.file = file;
+        TextFormat format = TextFormat.of(doc);
+        Batch header = new Batch(0);
+        try {
+            header.data.writeInt(MAGIC);
+            header.data.writeInt(VERSION);
+            header.data.writeLong(nextId);
+            header.data.writeUTF(base == null ? "" : base.toAbsolutePath().toString());
+            header.data.writeUTF(file == null ? "" : file.getAbsolutePath());
+            header.data.writeUTF(format.charset().name());
+            header.data.writeBoolean(format.byteOrderMark());
+            header.data.writeUTF(format.lineSeparator());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // Batch doesn't throw
+        }
+        Segment segment = new Segment(nextId, journalPath(nextId), base, Arrays.copyOf(header.bytes, header.size));
+        nextId++;
+        segments.add(segment);
+        current = segment;
+        if (base == null || !ProjectFile.isProject(base)) {
+            CompactStyledDocument.StyleRuns runs = doc.getStyleRuns();
+            if (runs.count() > 0) {
+                writeRestyle(segment.pending, 0, doc.getLength(), runs);
+            }
+            Shape[] shapes = canvas.getShapes();
+            if (shapes.length > 0) {
+                writeShapes(segment.pending, shapes);
+            }
+        }
+        return segment;
+    }
+
+    // Each segment numbers its own styles, so a record only carries an index; the first use of
+    // a style in a segment defines it
+    private int[] defineStyles(CompactStyledDocument.StyleRuns runs) {
+        int[] ids = new int[runs.count()];
+        for (int i = 0; i < runs.count(); i++) {
+            Integer id = current.styleIds.get(runs.styles()[i]);
+            if (id == null) {
+                id = current.styleIds.size();
+                current.styleIds.put(runs.styles()[i], id);
+                Batch out = current.pending;
+                out.write(STYLE);
+                out.writeVarInt(id);
+                try {
+                    ProjectFile.writeStyle(out.data, runs.styles()[i]);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            ids[i] = id;
+        }
+        return ids;
+    }
+
+    private void writeRestyle(Batch out, int offset, int length, CompactStyledDocument.StyleRuns runs) {
+        int[] ids = defineStyles(runs);
+        out.write(RESTYLE);
+        out.writeVarInt(offset);
+        out.writeVarInt(length);
+        writeRuns(out, runs, ids);
+    }
+
+    private static void writeRuns(Batch out, CompactStyledDocument.StyleRuns runs, int[] ids) {
+        out.writeVarInt(runs.count());
+        for (int i = 0; i < runs.count(); i++) {
+            out.writeVarInt(runs.lengths()[i]);
+            out.writeVarInt(ids[i]);
+        }
+    }
+
+    private static void writeShapes(Batch out, Shape[] shapes) {
+        out.write(SHAPES_REPLACED);
+        out.writeVarInt(shapes.length);
+        for (Shape shape : shapes) {
+            writeShape(out, shape);
+        }
+    }
+
+    private static void writeShape(Batch out, Shape shape) {
+        try {
+            ProjectFile.writeShape(out.data, shape, new double[6]);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Runs on the writer thread: turns everything recorded since the last commit into one frame
+    // per segment and forces it to disk
+    private void commit() {
+        List<Segment> written = new ArrayList<>();
+        List<Batch> batches = new ArrayList<>();
+        synchronized (this) {
+            for (Segment segment : segments) {
+                if (segment.pending.size > FRAME_HEADER_BYTES) {
+                    written.add(segment);
+                    batches.add(segment.pending);
+                    segment.pending = new Batch(FRAME_HEADER_BYTES);
+                }
+            }
+        }
+        try {
+            for (int i = 0; i < written.size(); i++) {
+                written.get(i).write(batches.get(i).frame(EDITS));
+            }
+            for (Segment segment : written) {
+                segment.channel.force(false);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    // Runs on the writer thread. Records the base's size and modification time, and for a
+    // project the version's index, so recovery can tell whether it has changed since, then drops
+    // what came before the segment.
+    private void confirm(Segment segment) {
+        commit();
+        try {
+            Path base = segment.base;
+            segment.write(baseFrame(base == null ? -1 : Files.size(base),
+                    base == null ? -1 : Files.getLastModifiedTime(base).toMillis(),
+                    base != null && ProjectFile.isProject(base) ? ProjectFile.open(base).getVersion() : null));
+            segment.channel.force(false);
+
+            List<Segment> older = new ArrayList<>();
+            synchronized (this) {
+                for (Iterator<Segment> it = segments.iterator(); it.hasNext(); ) {
+                    Segment s = it.next();
+                    if (s.id < segment.id) {
+                        older.add(s);
+                        it.remove();
+                    }
+                }
+            }
+            for (Segment s : older) {
+                s.close();
+            }
+            deleteBefore(segment.id);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    // A BASE frame: the base's size and modification time, then for a project its version
+    private static ByteBuffer baseFrame(long size, long modified, ProjectFile.Version version) throws IOException {
+        Batch frame = new Batch(FRAME_HEADER_BYTES);
+        frame.data.writeLong(size);
+        frame.data.writeLong(modified);
+        if (version != null) {
+            frame.data.writeLong(version.indexOffset());
+            frame.data.writeInt(version.indexLength());
+            frame.data.writeInt(version.indexCrc());
+        }
+        return frame.frame(BASE);
+    }
+
+    // Deletes the segments and checkpoints numbered below id
+    private void deleteBefore(long id) throws IOException {
+        for (Map.Entry<Long, Path> entry : files(prefix, ".journal").headMap(id).entrySet()) {
+            Files.deleteIfExists(entry.getValue());
+        }
+        for (Map.Entry<Long, Path> entry : files(prefix, ProjectFile.EXTENSION).headMap(id).entrySet()) {
+            Files.deleteIfExists(entry.getValue());
+        }
+    }
+
+    private void fail(Throwable e) {
+        if (!failed) {
+            failed = true;
+            report("Edits are no longer journaled: " + e.getMessage());
+        }
+    }
+
+    private void report(String message) {
+        SwingUtilities.invokeLater(() -> onError.accept(message));
+    }
+
+    private Path journalPath(long id) {
+        return prefix.resolveSibling(prefix.getFileName() + "." + id + ".journal");
+    }
+
+    private Path checkpointPath(long id) {
+        return prefix.resolveSibling(prefix.getFileName() + "." + id + ProjectFile.EXTENSION);
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            // Removed with the rest of the journal's files later
+        }
+    }
+
+    // The files named prefix.<id><suffix>, by id
+    private static TreeMap<Long, Path> files(Path prefix, String suffix) throws IOException {
+        TreeMap<Long, Path> files = new TreeMap<>();
+        Path dir = prefix.getParent();
+        if (!Files.isDirectory(dir)) {
+            return files;
+        }
+        String start = prefix.getFileName() + ".";
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (name.startsWith(start) && name.endsWith(suffix) && name.length() > start.length() + suffix.length()) {
+                    String id = name.substring(start.length(), name.length() - suffix.length());
+                    if (id.chars().allMatch(Character::isDigit) && id.length() < 19) {
+                        files.put(Long.parseLong(id), entry);
+                    }
+                }
+            }
+        }
+        return files;
+    }
+
+    // The prefix of a session that ended without closing its journal, or null if there is none
+    public static Path pendingSession() {
+        try {
+            if (!Files.exists(SESSION_FILE)) {
+                return null;
+            }
+            Path prefix = Path.of(Files.readString(SESSION_FILE).trim());
+            return prefix.getParent() != null && !files(prefix, ".journal").isEmpty() ? prefix : null;
+        } catch (IOException | InvalidPathException e) {
+            return null;
+        }
+    }
+
+    // Rebuilds the session journaled under prefix. Safe to call off the EDT: the document isn't
+    // shown anywhere yet. A torn frame at the end of a segment, left by a crash mid-write, ends
+    // the replay of that segment.
+    public static Recovered recover(Path prefix) throws IOException {
+        List<SegmentFile> chain = new ArrayList<>();
+        for (Path path : files(prefix, ".journal").descendingMap().values()) {
+            SegmentFile segment = SegmentFile.read(path);
+            if (segment == null) {
+                continue; // Torn header: the segment was never written to
+            }
+            if (!chain.isEmpty() && chain.get(chain.size() - 1).id != segment.id + 1) {
+                break; // A gap means the older segments belong to an earlier session
+            }
+            chain.add(segment);
+            if (segment.hasValidBase()) {
+                break;
+            }
+        }
+        if (chain.isEmpty() || !chain.get(chain.size() - 1).hasValidBase()) {
+            throw new IOException("the file the journal starts from has changed or is missing");
+        }
+        Collections.reverse(chain);
+
+        Replay replay = new Replay();
+        replay.loadBase(chain.get(0));
+        for (SegmentFile segment : chain) {
+            replay.apply(segment);
+        }
+        SegmentFile last = chain.get(chain.size() - 1);
+        StyledDocument document = replay.build();
+        new TextFormat(Charset.forName(last.charset), last.byteOrderMark, last.lineSeparator).applyTo(document);
+        return new Recovered(document, replay.shapes.toArray(new Shape[0]),
+                last.file.isEmpty() ? null : new File(last.file), replay.edits);
+    }
+
+    private static final class Segment {
+        final long id;
+        final Path path;
+        final Path base; // null when the segment starts from an empty document
+        final byte[] header;
+        final Map<AttributeSet, Integer> styleIds = new IdentityHashMap<>();
+        Batch pending = new Batch(FRAME_HEADER_BYTES);
+        long bytes;
+        FileChannel channel; // Writer thread only
+
+        Segment(long id, Path path, Path base, byte[] header) {
+            this.id = id;
+            this.path = path;
+            this.base = base;
+            this.header = header;
+        }
+
+        void write(ByteBuffer frame) throws IOException {
+            if (channel == null) {
+                channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+                ByteBuffer out = ByteBuffer.wrap(header);
+                while (out.hasRemaining()) {
+                    channel.write(out);
+                }
+            }
+            while (frame.hasRemaining()) {
+                channel.write(frame);
+            }
+        }
+
+        void close() {
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                // The data was forced already
+            }
+        }
+    }
+
+    // Records waiting for the next commit. Room for the frame header is kept at the front, so
+    // the frame goes out in a single write. Unsynchronized: the journal's lock guards it.
+    private static final class Batch extends OutputStream {
+        final DataOutputStream data = new DataOutputStream(this);
+        byte[] bytes = new byte[256];
+        int size;
+
+        Batch(int reserved) {
+            size = reserved;
+        }
+
+        @Override
+        public void write(int b) {
+            ensure(1);
+            bytes[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensure(len);
+            System.arraycopy(b, off, bytes, size, len);
+            size += len;
+        }
+
+        void writeVarInt(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void writeChars(String text) {
+            ensure(2 * text.length());
+            for (int i = 0, n = text.length(); i < n; i++) {
+                char c = text.charAt(i);
+                bytes[size++] = (byte) (c >>> 8);
+                bytes[size++] = (byte) c;
+            }
+        }
+
+        // Fills in the frame header: payload length, CRC32 of the payload, and its kind
+        ByteBuffer frame(byte kind) {
+            ByteBuffer out = ByteBuffer.wrap(bytes, 0, size);
+            out.put(8, kind);
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 8, size - 8);
+            out.putInt(0, size - 8);
+            out.putInt(4, (int) crc.getValue());
+            return out;
+        }
+
+        private void ensure(int n) {
+            if (size + n > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + n));
+            }
+        }
+    }
+
+    // A segment read back from disk: its header and the frames that passed their checksums
+    private static final class SegmentFile {
+        long id;
+        String base;
+        String file;
+        String charset;
+        boolean byteOrderMark;
+        String lineSeparator;
+        long baseSize = Long.MIN_VALUE;
+        long baseModified;
+        ProjectFile.Version baseVersion; // For project bases
+        final List<ByteBuffer> frames = new ArrayList<>();
+
+        static SegmentFile read(Path path) throws IOException {
+            ByteBuffer in;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            SegmentFile segment = new SegmentFile();
+            try {
+                DataInputStream header = new DataInputStream(new ProjectFile.ByteBufferInputStream(in));
+                if (header.readInt() != MAGIC || header.readInt() != VERSION) {
+                    return null;
+                }
+                segment.id = header.readLong();
+                segment.base = header.readUTF();
+                segment.file = header.readUTF();
+                segment.charset = header.readUTF();
+                segment.byteOrderMark = header.readBoolean();
+                segment.lineSeparator = header.readUTF();
+            } catch (EOFException | UTFDataFormatException e) {
+                return null;
+            }
+            while (in.remaining() >= FRAME_HEADER_BYTES) {
+                int length = in.getInt();
+                int crc = in.getInt();
+                if (length < 1 || length > in.remaining()) {
+                    break;
+                }
+                ByteBuffer payload = in.slice(in.position(), length);
+                CRC32 check = new CRC32();
+                check.update(payload.duplicate());
+                if ((int) check.getValue() != crc) {
+                    break;
+                }
+                in.position(in.position() + length);
+                byte kind = payload.get();
+                if (kind == BASE) {
+                    segment.baseSize = payload.getLong();
+                    segment.baseModified = payload.getLong();
+                    if (payload.remaining() >= 16) {
+                        segment.baseVersion = new ProjectFile.Version(payload.getLong(), payload.getInt(), payload.getInt());
+                    }
+                } else if (kind == EDITS) {
+                    segment.frames.add(payload);
+                }
+            }
+            return segment;
+        }
+
+        // An empty base is always valid; a project if the version it was confirmed as can still be
+        // read from it, and any other file only if it is exactly as it was confirmed
+        boolean hasValidBase() throws IOException {
+            if (base.isEmpty()) {
+                return true;
+            }
+            Path path = Path.of(base);
+            if (baseVersion != null) {
+                try {
+                    ProjectFile.open(path, baseVersion);
+                    return true;
+                } catch (IOException e) {
+                    return false;
+                }
+            }
+            return baseSize != Long.MIN_VALUE && Files.isRegularFile(path) && Files.size(path) == baseSize
+                    && Files.getLastModifiedTime(path).toMillis() == baseModified;
+        }
+    }
+
+    // Rebuilds text, styles and shapes from a base and the records after it. Styles are kept as
+    // a second piece table with one char per text char holding an index into the style table,
+    // so both follow inserts and removes the same way and typing extends existing pieces.
+    private static final class Replay {
+        private static final int SHORT_RUN = 256;
+        private static final int WINDOW_EDIT = 1024;
+        private static final int WINDOW_CHARS = 16 * 1024;
+        private static final int SHARED_BLOCK = 64 * 1024;
+
+        final PieceTable text = new PieceTable();
+        final PieceTable styles = new PieceTable();
+        final List<AttributeSet> table = new ArrayList<>();
+        final List<char[]> sharedBlocks = new ArrayList<>(); // Copies of each style index, made on first use
+        final List<Shape> shapes = new ArrayList<>();
+        // Recent edits close together are collected here before they go into the piece tables,
+        // which turns a stretch of typing into a single insert
+        final StringBuilder windowText = new StringBuilder();
+        final StringBuilder windowStyles = new StringBuilder();
+        int windowAt = -1;
+        int[] segmentStyles = new int[16];
+        long edits;
+
+        void loadBase(SegmentFile segment) throws IOException {
+            int empty = addStyle(SimpleAttributeSet.EMPTY);
+            if (segment.base.isEmpty()) {
+                return;
+            }
+            Path base = Path.of(segment.base);
+            if (ProjectFile.isProject(base)) {
+                ProjectFile project = segment.baseVersion != null
+                        ? ProjectFile.open(base, segment.baseVersion) : ProjectFile.open(base);
+                char[] chars = project.readText();
+                text.insert(0, chars, 0, chars.length);
+                CompactStyledDocument.StyleRuns runs = project.readStyles(chars.length);
+                Map<AttributeSet, Integer> ids = new IdentityHashMap<>();
+                int at = 0;
+                for (int i = 0; i < runs.count(); i++) {
+                    Integer id = ids.get(runs.styles()[i]);
+                    if (id == null) {
+                        id = addStyle(runs.styles()[i]);
+                        ids.put(runs.styles()[i], id);
+                    }
+                    insertStyle(at, id, runs.lengths()[i]);
+                    at += runs.lengths()[i];
+                }
+                insertStyle(at, empty, chars.length - at);
+                shapes.addAll(Arrays.asList(project.readShapes()));
+            } else {
+                StyledDocument loaded = EditorEngine.open(base, Charset.forName(segment.charset)).getDocument();
+                try {
+                    text.insert(0, PieceTableContent.of(loaded).getSpan(0, loaded.getLength()));
+                } catch (BadLocationException e) {
+                    throw new IllegalStateException(e);
+                }
+                insertStyle(0, empty, loaded.getLength());
+            }
+        }
+
+        void apply(SegmentFile segment) throws IOException {
+            for (ByteBuffer frame : segment.frames) {
+                ByteBuffer in = frame.duplicate();
+                DataInputStream data = new DataInputStream(new ProjectFile.ByteBufferInputStream(in));
+                while (in.hasRemaining()) {
+                    byte type = in.get();
+                    switch (type) {
+                        case INSERT -> {
+                            int offset = readVarInt(in);
+                            int length = readVarInt(in);
+                            check(offset, 0);
+                            int[] runs = readRuns(in, length);
+                            insert(offset, in, length, runs);
+                            edits++;
+                        }
+                        case REMOVE -> {
+                            int offset = readVarInt(in);
+                            int length = readVarInt(in);
+                            check(offset, length);
+                            remove(offset, length);
+                            edits++;
+                        }
+                        case RESTYLE -> {
+                            int offset = readVarInt(in);
+                            int length = readVarInt(in);
+                            check(offset, length);
+                            restyle(offset, length, readRuns(in, length));
+                            edits++;
+                        }
+                        case STYLE -> {
+                            int id = readVarInt(in);
+                            if (id >= segmentStyles.length) {
+                                segmentStyles = Arrays.copyOf(segmentStyles, Math.max(id + 1, segmentStyles.length * 2));
+                            }
+                            segmentStyles[id] = addStyle(ProjectFile.readStyle(data));
+                        }
+                        case SHAPE_ADDED -> {
+                            shapes.add(ProjectFile.readShape(data));
+                            edits++;
+                        }
+                        case SHAPE_REMOVED -> {
+                            if (!shapes.isEmpty()) {
+                                shapes.remove(shapes.size() - 1);
+                            }
+                            edits++;
+                        }
+                        case SHAPES_REPLACED -> {
+                            shapes.clear();
+                            for (int n = readVarInt(in); n > 0; n--) {
+                                shapes.add(ProjectFile.readShape(data));
+                            }
+                            edits++;
+                        }
+                        default -> throw new IOException("Unknown journal record " + type);
+                    }
+                }
+            }
+        }
+
+        // Typing, backspacing and restyling inside the text typed since the window opened stay
+        // in the window; anything else closes it into the piece tables first
+        private boolean inWindow(int offset, int length) {
+            return windowAt >= 0 && offset >= windowAt && offset + length <= windowAt + windowText.length();
+        }
+
+        // Takes the inserted text from the next 2 * length bytes of in
+        private void insert(int offset, ByteBuffer in, int length, int[] runs) {
+            if (length > WINDOW_EDIT || windowText.length() > WINDOW_CHARS || !inWindow(offset, 0)) {
+                closeWindow();
+                if (length > WINDOW_EDIT) {
+                    char[] block = new char[length];
+                    in.asCharBuffer().get(block);
+                    in.position(in.position() + 2 * length);
+                    text.insert(offset, block, 0, length);
+                    for (int i = 0, at = offset; i < runs.length; i += 2) {
+                        insertStyle(at, runs[i + 1], runs[i]);
+                        at += runs[i];
+                    }
+                    return;
+                }
+                windowAt = offset;
+            }
+            int at = offset - windowAt;
+            if (at == windowText.length()) { // Typing at the end of the window, the usual case
+                for (int n = 0; n < length; n++) {
+                    windowText.append(in.getChar());
+                }
+                for (int i = 0; i < runs.length; i += 2) {
+                    for (int n = runs[i]; n > 0; n--) {
+                        windowStyles.append((char) runs[i + 1]);
+                    }
+                }
+                return;
+            }
+            windowText.insert(at, in.slice(in.position(), 2 * length).asCharBuffer());
+            in.position(in.position() + 2 * length);
+            for (int i = 0; i < runs.length; i += 2) {
+                for (int n = runs[i]; n > 0; n--) {
+                    windowStyles.insert(at++, (char) runs[i + 1]);
+                }
+            }
+        }
+
+        private void remove(int offset, int length) {
+            if (inWindow(offset, length)) {
+                windowText.delete(offset - windowAt, offset - windowAt + length);
+                windowStyles.delete(offset - windowAt, offset - windowAt + length);
+                return;
+            }
+            closeWindow();
+            text.remove(offset, length);
+            styles.remove(offset, length);
+        }
+
+        private void restyle(int offset, int length, int[] runs) {
+            if (inWindow(offset, length)) {
+                for (int i = 0, at = offset - windowAt; i < runs.length; i += 2) {
+                    for (int n = runs[i]; n > 0; n--) {
+                        windowStyles.setCharAt(at++, (char) runs[i + 1]);
+                    }
+                }
+                return;
+            }
+            closeWindow();
+            styles.remove(offset, length);
+            for (int i = 0, at = offset; i < runs.length; i += 2) {
+                insertStyle(at, runs[i + 1], runs[i]);
+                at += runs[i];
+            }
+        }
+
+        private void closeWindow() {
+            if (windowAt >= 0) {
+                text.insert(windowAt, windowText);
+                styles.insert(windowAt, windowStyles);
+                windowText.setLength(0);
+                windowStyles.setLength(0);
+                windowAt = -1;
+            }
+        }
+
+        StyledDocument build() throws IOException {
+            closeWindow();
+            int length = text.length();
+            char[] chars = new char[length];
+            text.getChars(0, length, chars, 0);
+
+            int[] lengths = new int[16];
+            AttributeSet[] runStyles = new AttributeSet[16];
+            int count = 0;
+            int last = -1;
+            int[] piece = new int[2];
+            for (int at = 0; at < length; ) {
+                char[] block = styles.pieceAt(at, piece);
+                for (int i = piece[0], end = piece[0] + piece[1]; i < end; i++) {
+                    if (block[i] == last) {
+                        lengths[count - 1]++;
+                        continue;
+                    }
+                    if (count == lengths.length) {
+                        lengths = Arrays.copyOf(lengths, count * 2);
+                        runStyles = Arrays.copyOf(runStyles, count * 2);
+                    }
+                    last = block[i];
+                    lengths[count] = 1;
+                    runStyles[count++] = table.get(last);
+                }
+                at += piece[1];
+            }
+
+            StyledDocument doc = PieceTableContent.newDocument();
+            try {
+                ((CompactStyledDocument) doc).load(chars, length,
+                        new CompactStyledDocument.StyleRuns(count, lengths, runStyles));
+            } catch (BadLocationException e) {
+                throw new IllegalStateException(e);
+            }
+            return doc;
+        }
+
+        // Reads a run list covering length chars as (length, style index) pairs
+        private int[] readRuns(ByteBuffer in, int length) throws IOException {
+            int[] runs = new int[2 * readVarInt(in)];
+            int total = 0;
+            for (int i = 0; i < runs.length; i += 2) {
+                runs[i] = readVarInt(in);
+                int id = readVarInt(in);
+                if (id >= segmentStyles.length) {
+                    throw new IOException("Journal uses an undefined style");
+                }
+                runs[i + 1] = segmentStyles[id];
+                total += runs[i];
+            }
+            if (total != length) {
+                throw new IOException("Journal style runs don't match their text");
+            }
+            return runs;
+        }
+
+        private void check(int offset, int length) throws IOException {
+            if (offset < 0 || length < 0 || offset + length > text.length() + windowText.length()) {
+                throw new IOException("Journal doesn't match the file it starts from");
+            }
+        }
+
+        private int addStyle(AttributeSet style) throws IOException {
+            if (table.size() > Character.MAX_VALUE) {
+                throw new IOException("Journal has too many styles");
+            }
+            table.add(style);
+            sharedBlocks.add(null);
+            return table.size() - 1;
+        }
+
+        // Short runs go through the add buffer so that typing keeps growing one piece; long
+        // ones point into a block shared by every run of that style
+        private void insertStyle(int offset, int style, int length) {
+            int size = length <= SHORT_RUN ? SHORT_RUN : SHARED_BLOCK;
+            char[] block = sharedBlocks.get(style);
+            if (block == null || block.length < size) {
+                block = new char[size];
+                Arrays.fill(block, (char) style);
+                sharedBlocks.set(style, block);
+            }
+            if (length <= SHORT_RUN) {
+                styles.insert(offset, CharBuffer.wrap(block, 0, length));
+                return;
+            }
+            for (int done = 0; done < length; done += SHARED_BLOCK) {
+                styles.insert(offset + done, block, 0, Math.min(SHARED_BLOCK, length - done));
+            }
+        }
+
+        private static int readVarInt(ByteBuffer in) throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = in.get() & 0xFF;
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed number in journal");
+        }
+    }
+}
@@ -0,0 +1,225 @@
+import javax.swing.text.*;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.regex.Pattern;
+
+// The editing operations behind the editor's menus, with no dialogs or components involved.
+// NewTextEditor creates one for each document it shows and calls into it from its handlers;
+// scripts and batch mode can drive a document the same way. When a history is given, each
+// operation is recorded as one undoable step.
+public class EditorEngine {
+
+    public enum TextCase {
+        UPPER, LOWER;
+
+        public String apply(String text) {
+            return this == UPPER ? text.toUpperCase() : text.toLowerCase();
+        }
+    }
+
+    private final StyledDocument doc;
+    private final EditHistory history;
+
+    public EditorEngine(StyledDocument doc, EditHistory history) {
+        this.doc = doc;
+        this.history = history;
+    }
+
+    public StyledDocument getDocument() {
+        return doc;
+    }
+
+    // Reads a file into a new document on the calling thread, detecting its encoding when
+    // charset is null. Text that isn't valid in a given charset is a CharacterCodingException.
+    // Line endings are normalized the same way as in the editor, and the file's format is
+    // recorded so save writes it back unchanged. The document isn't shown anywhere yet, so this
+    // needs no event thread and can be called from any thread.
+    public static EditorEngine open(Path file, Charset charset) throws IOException {
+        StyledDocument doc = PieceTableContent.newDocument();
+        TextDecoder decoder = new TextDecoder(file, charset, new TextDecoder.Sink() {
+            @Override
+            public void chunk(char[] chars, int length) {
+                try {
+                    doc.insertString(doc.getLength(), new String(chars, 0, length), null);
+                } catch (BadLocationException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+
+            @Override
+            public void restart() {
+                try {
+                    doc.remove(0, doc.getLength());
+                } catch (BadLocationException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        try {
+            decoder.decode().applyTo(doc);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading " + file, e);
+        }
+        return new EditorEngine(doc, null);
+    }
+
+    // Snapshots the document for saving in its format. Must be called on the thread that edits
+    // the document; the returned saver can then write it in the background.
+    public FileSaver saver(Path target) throws BadLocationException {
+        return new FileSaver(FileSaver.snapshot(doc), target, TextFormat.of(doc));
+    }
+
+    // Saves on the calling thread in the document's format. Returns the number of bytes written.
+    public long save(Path target) throws IOException {
+        try {
+            return FileSaver.write(FileSaver.snapshot(doc), target, TextFormat.of(doc), charsDone -> true);
+        } catch (BadLocationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public ReplaceEngine.Result replaceAll(Pattern pattern, String replacement, boolean regex)
+            throws BadLocationException {
+        beginGroup("Replace All");
+        try {
+            return ReplaceEngine.replaceAll(doc, pattern, replacement, regex);
+        } finally {
+            endGroup();
+        }
+    }
+
+    public ReplaceEngine.Result replaceFirst(Pattern pattern, String replacement, boolean regex)
+            throws BadLocationException {
+        beginGroup("Replace");
+        try {
+            return ReplaceEngine.replaceFirst(doc, pattern, replacement, regex);
+        } finally {
+            endGroup();
+        }
+    }
+
+    // Adds attributes to [start, end) as one undoable step, like the Format menu does
+    public void applyStyle(int start, int end, AttributeSet attributes) {
+        if (start >= end) {
+            return;
+        }
+        beginGroup("Format");
+        try {
+            doc.setCharacterAttributes(start, end - start, attributes, false);
+        } finally {
+            endGroup();
+        }
+    }
+
+    // Captures [start, end) for the clipboard. For piece table documents this only records the
+    // pieces the range covers.
+    public PieceTable.Span span(int start, int end) throws BadLocationException {
+        PieceTableContent content = PieceTableContent.of(doc);
+        if (content == null) {
+            return PieceTable.Span.wrap(doc.getText(start, end - start).toCharArray());
+        }
+        return content.getSpan(start, end - start);
+    }
+
+    // Replaces [start, end) with a clip as one undoable step, inserting the clip's pieces
+    // rather than a copy of its text
+    public void paste(int start, int end, PieceTable.Span clip, AttributeSet attributes) throws BadLocationException {
+        beginGroup("Paste");
+        try {
+            if (end > start) {
+                doc.remove(start, end - start);
+            }
+            if (doc instanceof CompactStyledDocument compact) {
+                compact.insertSpan(start, clip, attributes);
+            } else {
+                doc.insertString(start, clip.toString(), attributes);
+            }
+        } finally {
+            endGroup();
+        }
+    }
+
+    // Transforms [start, end) on the calling thread, its chunks on the fork-join pool, as one
+    // undoable step. Returns the length of the transformed range, which line transforms widen
+    // to whole lines.
+    public int transform(int start, int end, TextTransform transform) throws BadLocationException {
+        TextTransform.Snapshot snapshot = transform.snapshot(doc, start, end);
+        return apply(snapshot, snapshot.compute());
+    }
+
+    // Applies edits computed off the editing thread; the document must not have changed since
+    // the snapshot was taken
+    public int apply(TextTransform.Snapshot snapshot, List<TextTransform.Edit> edits) throws BadLocationException {
+        beginGroup(snapshot.transform().toString());
+        try {
+            return snapshot.apply(doc, edits);
+        } finally {
+            endGroup();
+        }
+    }
+
+    // Like apply, for a caller that applies the edits a slice at a time. Everything applied
+    // until finishApply undoes as one step.
+    public TextTransform.Snapshot.Application startApply(TextTransform.Snapshot snapshot, List<TextTransform.Edit> edits) {
+        beginGroup(snapshot.transform().toString());
+        return snapshot.start(doc, edits);
+    }
+
+    public void finishApply() {
+        endGroup();
+    }
+
+    // Counts over plain text, used where there is no document to keep statistics for
+    public record Counts(long words, long characters, long lines) {
+        public static Counts of(CharBuffer[] text) {
+            Counter counter = new Counter();
+            for (CharBuffer piece : text) {
+                counter.add(piece);
+            }
+            return counter.counts();
+        }
+    }
+
+    // Counts text handed over a piece at a time; a word may run on from one piece to the next
+    public static final class Counter {
+        private long words;
+        private long characters;
+        private long lines = 1;
+        private boolean inWord;
+
+        public void add(CharBuffer piece) {
+            for (int i = piece.position(), n = piece.limit(); i < n; i++) {
+                char c = piece.get(i);
+                boolean space = DocumentStatistics.isWordSeparator(c);
+                if (!space && !inWord) {
+                    words++;
+                }
+                if (c == '\n') {
+                    lines++;
+                }
+                inWord = !space;
+            }
+            characters += piece.remaining();
+        }
+
+        public Counts counts() {
+            return new Counts(words, characters, lines);
+        }
+    }
+
+    private void beginGroup(String name) {
+        if (history != null) {
+            history.beginGroup(name);
+        }
+    }
+
+    private void endGroup() {
+        if (history != null) {
+            history.endGroup();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+import javax.swing.*;
+import javax.swing.text.*;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+// Loads a file into a document without blocking the EDT. A TextDecoder reads the file on the
+// worker thread; each chunk it decodes is appended to the document on the EDT as soon as it is
+// ready, so the first screen shows up before the rest has been read. The target component is
+// optional. The format the decoder found is recorded on the document so a save writes the
+// file back the same way.
+public class FileLoader extends SwingWorker<Void, String> {
+    private static final int MAX_PENDING_CHUNKS = 4;    // keeps decoded-but-unshown text bounded
+
+    private final JTextComponent target;
+    private final Document doc;
+    private final TextDecoder decoder;
+    private final Semaphore pendingChunks = new Semaphore(MAX_PENDING_CHUNKS);
+    private final long startNanos = System.nanoTime();
+
+    private volatile TextFormat format;
+    private long firstPaintMillis = -1;
+
+    public FileLoader(Path path, JTextComponent target, Document doc, Charset charset) {
+        this.target = target;
+        this.doc = doc;
+        this.decoder = new TextDecoder(path, charset, new TextDecoder.Sink() {
+            @Override
+            public void chunk(char[] chars, int length) throws InterruptedException {
+                pendingChunks.acquire();
+                publish(new String(chars, 0, length));
+            }
+
+            @Override
+            public void restart() throws InterruptedException {
+                // Let the EDT take the chunks already published, then empty the document
+                pendingChunks.acquire(MAX_PENDING_CHUNKS);
+                pendingChunks.release(MAX_PENDING_CHUNKS);
+                try {
+                    SwingUtilities.invokeAndWait(() -> {
+                        try {
+                            doc.remove(0, doc.getLength());
+                        } catch (BadLocationException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    });
+                } catch (InvocationTargetException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return FileLoader.this.isCancelled();
+            }
+
+            @Override
+            public void progress(long bytesRead, long fileSize) {
+                setProgress((int) (bytesRead * 100 / fileSize));
+            }
+        });
+    }
+
+    // The detected format; available once loading has finished
+    public TextFormat getFormat() {
+        return format;
+    }
+
+    public long getFileSize() {
+        return decoder.getFileSize();
+    }
+
+    public long getFirstPaintMillis() {
+        return firstPaintMillis;
+    }
+
+    public long getElapsedMillis() {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+
+    @Override
+    protected Void doInBackground() throws IOException, InterruptedException {
+        format = decoder.decode();
+        // Wait until the EDT has taken every chunk so done() only fires on a complete document
+        pendingChunks.acquire(MAX_PENDING_CHUNKS);
+        pendingChunks.release(MAX_PENDING_CHUNKS);
+        format.applyTo(doc);
+        return null;
+    }
+
+    @Override
+    protected void process(List<String> chunks) {
+        for (String chunk : chunks) {
+            try {
+                doc.insertString(doc.getLength(), chunk, null);
+            } catch (BadLocationException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                pendingChunks.release();
+            }
+            if (firstPaintMillis < 0) {
+                if (target != null) {
+                    target.paintImmediately(target.getVisibleRect());
+                }
+                firstPaintMillis = getElapsedMillis();
+                firePropertyChange("firstPaint", null, firstPaintMillis);
+            }
+        }
+    }
+}
@@ -0,0 +1,328 @@
+import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.function.LongPredicate;
+
+// Writes a document snapshot to disk off the EDT. The text is encoded straight from the
+// snapshot into a pooled direct buffer, written to a temp file next to the target, forced
+// to disk and then renamed over the target, so a crash never leaves a half-written file.
+// The document's LF line breaks are written in the file's original style (see TextFormat),
+// by encoding the text between breaks in place rather than copying it.
+public class FileSaver extends SwingWorker<Void, Void> {
+    private static final int BUFFER_SIZE = 256 * 1024;
+    // Direct buffers shared by all saves, at most one per CPU. Batch mode saves each file on a
+    // virtual thread of its own, so a buffer per thread would be allocated for every file and
+    // used once; a save waits for a buffer to come free instead.
+    private static final Semaphore BUFFER_PERMITS = new Semaphore(Runtime.getRuntime().availableProcessors());
+    private static final Queue<ByteBuffer> BUFFERS = new ConcurrentLinkedQueue<>();
+
+    private final CharBuffer[] snapshot;
+    private final long totalChars;
+    private final Path target;
+    private final TextFormat format;
+    private final long startNanos = System.nanoTime();
+    private long bytesWritten;
+
+    public FileSaver(CharBuffer[] snapshot, Path target, Charset charset) {
+        this(snapshot, target, new TextFormat(charset, false, "\n"));
+    }
+
+    public FileSaver(CharBuffer[] snapshot, Path target, TextFormat format) {
+        this.snapshot = snapshot;
+        this.target = target;
+        this.format = format;
+        long total = 0;
+        for (CharBuffer chunk : snapshot) {
+            total += chunk.remaining();
+        }
+        this.totalChars = total;
+    }
+
+    // Must be called on the EDT. For piece table documents this only copies piece references.
+    public static CharBuffer[] snapshot(Document doc) throws BadLocationException {
+        PieceTableContent content = PieceTableContent.of(doc);
+        if (content == null) {
+            return new CharBuffer[]{CharBuffer.wrap(doc.getText(0, doc.getLength()))};
+        }
+        PieceTable.Span span = content.getSpan(0, doc.getLength());
+        CharBuffer[] pieces = new CharBuffer[span.pieceCount()];
+        for (int i = 0; i < pieces.length; i++) {
+            pieces[i] = span.piece(i);
+        }
+        return pieces;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public long getElapsedMillis() {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+
+    @Override
+    protected Void doInBackground() throws IOException {
+        bytesWritten = write(snapshot, target, format, charsDone -> {
+            if (totalChars > 0) {
+                setProgress((int) (charsDone * 100 / totalChars));
+            }
+            return !isCancelled();
+        });
+        return null;
+    }
+
+    // Writes text to a temp file next to target, forces it to disk and renames it over target.
+    // progress is called with the number of chars written so far before and after each piece;
+    // returning false abandons the write and leaves target untouched. Returns the bytes written.
+    public static long write(CharBuffer[] text, Path target, Charset charset, LongPredicate progress)
+            throws IOException {
+        return write(text, target, new TextFormat(charset, false, "\n"), progress);
+    }
+
+    public static long write(CharBuffer[] text, Path target, TextFormat format, LongPredicate progress)
+            throws IOException {
+        Path dir = target.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(dir, "." + target.getFileName(), ".tmp");
+        try {
+            long bytes;
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                bytes = encode(text, channel, format, progress);
+                if (bytes < 0) {
+                    return 0;
+                }
+                channel.force(true);
+            }
+            replace(target, temp);
+            return bytes;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // Renames a finished temp file over target, keeping target's permissions. Also used by
+    // CanvasExporter.
+    static void replace(Path target, Path temp) throws IOException {
+        copyPermissions(target, temp);
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // Temp files are created owner-only; keep the permissions the target already had
+    static void copyPermissions(Path from, Path to) throws IOException {
+        if (!Files.exists(from)) {
+            return;
+        }
+        try {
+            Files.setPosixFilePermissions(to, Files.getPosixFilePermissions(from));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system
+        }
+    }
+
+    private static ByteBuffer takeBuffer() throws InterruptedIOException {
+        try {
+            BUFFER_PERMITS.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to save");
+        }
+        ByteBuffer buffer = BUFFERS.poll();
+        return buffer != null ? buffer.clear() : ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    private static void returnBuffer(ByteBuffer buffer) {
+        BUFFERS.add(buffer);
+        BUFFER_PERMITS.release();
+    }
+
+    // Returns the number of bytes written, or -1 if progress asked to stop
+    private static long encode(CharBuffer[] text, FileChannel channel, TextFormat format, LongPredicate progress)
+            throws IOException {
+        Encoding encoding = new Encoding(channel, format);
+        try {
+            long charsDone = 0;
+            for (CharBuffer chunk : text) {
+                if (!progress.test(charsDone)) {
+                    return -1;
+                }
+                int chunkChars = chunk.remaining();
+                encoding.write(chunk);
+                charsDone += chunkChars;
+            }
+            if (!progress.test(charsDone)) {
+                return -1;
+            }
+            return encoding.finish();
+        } finally {
+            encoding.release();
+        }
+    }
+
+    // Writes text handed over a piece at a time, for text too big to hold at once. Nothing
+    // reaches target until commit(); closing without committing drops the temp file.
+    public static final class Stream implements AutoCloseable {
+        private final Path target;
+        private final Path temp;
+        private final FileChannel channel;
+        private final Encoding encoding;
+        private boolean committed;
+
+        public Stream(Path target, TextFormat format) throws IOException {
+            this.target = target;
+            temp = Files.createTempFile(target.toAbsolutePath().getParent(), "." + target.getFileName(), ".tmp");
+            try {
+                channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+                encoding = new Encoding(channel, format);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+        }
+
+        public void write(CharBuffer piece) throws IOException {
+            encoding.write(piece);
+        }
+
+        // Finishes the temp file and renames it over target. Returns the bytes written.
+        public long commit() throws IOException {
+            long bytes;
+            try {
+                bytes = encoding.finish();
+            } finally {
+                encoding.release();
+            }
+            channel.force(true);
+            channel.close();
+            replace(target, temp);
+            committed = true;
+            return bytes;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                encoding.release();
+                channel.close();
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    // The encoder and its state between pieces. The document's LF line breaks are written as the
+    // format's separator, and a surrogate pair split between two pieces is put back together.
+    private static final class Encoding {
+        private final FileChannel channel;
+        private final CharsetEncoder encoder;
+        private final ByteBuffer out = takeBuffer();
+        private final long[] bytes = new long[1];
+        // Null when the document's LF line breaks can be written as they are
+        private final CharBuffer separator;
+        // A surrogate pair can straddle two pieces; its first half is carried over here
+        private final char[] pair = new char[2];
+        private boolean carry;
+        private boolean released;
+
+        Encoding(FileChannel channel, TextFormat format) throws IOException {
+            this.channel = channel;
+            encoder = format.charset().newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            separator = format.lineSeparator().equals("\n") ? null : CharBuffer.wrap(format.lineSeparator());
+            if (format.byteOrderMark()) {
+                try {
+                    encode(encoder, CharBuffer.wrap("\uFEFF"), out, channel, false, bytes);
+                } catch (IOException | RuntimeException e) {
+                    release();
+                    throw e;
+                }
+            }
+        }
+
+        // Gives the buffer back to the pool; the encoding can't be used after this
+        void release() {
+            if (!released) {
+                released = true;
+                returnBuffer(out);
+            }
+        }
+
+        void write(CharBuffer chunk) throws IOException {
+            if (carry && chunk.hasRemaining()) {
+                pair[1] = chunk.get();
+                encode(encoder, CharBuffer.wrap(pair), out, channel, false, bytes);
+                carry = false;
+            }
+            if (separator != null) {
+                encodeLines(encoder, chunk, separator, out, channel, bytes);
+            }
+            encode(encoder, chunk, out, channel, false, bytes);
+            if (chunk.hasRemaining()) {
+                pair[0] = chunk.get();
+                carry = true;
+            }
+        }
+
+        // Returns the number of bytes written
+        long finish() throws IOException {
+            encode(encoder, CharBuffer.wrap(pair, 0, carry ? 1 : 0), out, channel, true, bytes);
+            while (encoder.flush(out).isOverflow()) {
+                drain(channel, out, bytes);
+            }
+            drain(channel, out, bytes);
+            return bytes[0];
+        }
+    }
+
+    // Encodes the chunk up to its last LF, writing each LF as the separator. The chunk's limit is
+    // moved to each break in turn, so no line is copied; the text after the last break is left
+    // for the caller.
+    private static void encodeLines(CharsetEncoder encoder, CharBuffer chunk, CharBuffer separator, ByteBuffer out,
+                                    FileChannel channel, long[] bytes) throws IOException {
+        int limit = chunk.limit();
+        for (int i = chunk.position(); i < limit; i++) {
+            if (chunk.get(i) != '\n') {
+                continue;
+            }
+            chunk.limit(i);
+            encode(encoder, chunk, out, channel, false, bytes);
+            if (chunk.hasRemaining()) {
+                // An unpaired high surrogate right before the break: write what REPLACE would
+                if (out.remaining() < encoder.replacement().length) {
+                    drain(channel, out, bytes);
+                }
+                out.put(encoder.replacement());
+            }
+            chunk.limit(limit);
+            chunk.position(i + 1);
+            encode(encoder, separator.rewind(), out, channel, false, bytes);
+        }
+    }
+
+    private static void encode(CharsetEncoder encoder, CharBuffer in, ByteBuffer out, FileChannel channel,
+                               boolean endOfInput, long[] bytes) throws IOException {
+        while (encoder.encode(in, out, endOfInput).isOverflow()) {
+            drain(channel, out, bytes);
+        }
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer out, long[] bytes) throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            bytes[0] += channel.write(out);
+        }
+        out.clear();
+    }
+}
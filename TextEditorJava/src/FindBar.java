@@ -0,0 +1,254 @@
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.*;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
+import java.util.ArrayList;
+import java.util.List;
+
+// Non-modal find-as-you-type bar shown above the text. Every keystroke looks the query up in a
+// SearchIndex, moves the selection to the nearest match and highlights the matches on screen.
+// The total is counted from the index a few milliseconds at a time, so even on very large
+// documents typing in the bar never waits for it.
+public class FindBar extends JPanel {
+    private static final Color MATCH_COLOR = new Color(255, 230, 120);
+    private static final int MAX_HIGHLIGHTS = 2000;
+    private static final long COUNT_SLICE_NANOS = 8_000_000;
+
+    private final JTextPane textPane;
+    private final JTextField queryField = new JTextField(24);
+    private final JCheckBox matchCaseBox = new JCheckBox("Match case");
+    private final JLabel resultLabel = new JLabel(" ");
+    private final Highlighter.HighlightPainter painter = new DefaultHighlighter.DefaultHighlightPainter(MATCH_COLOR);
+    private final List<Object> highlights = new ArrayList<>();
+    private final SearchIndex index = new SearchIndex(this::documentChanged);
+    private final Timer countTimer = new Timer(0, e -> countSome());
+    private Document doc; // The document to index once the bar is first used
+    private SearchIndex.Query query;
+    private int searchFrom; // Where find-as-you-type looks from: the caret when the query was started
+    private int countedBlocks;
+    private long matchCount;
+    private boolean refreshQueued;
+
+    public FindBar(JTextPane textPane) {
+        super(new FlowLayout(FlowLayout.LEFT, 6, 2));
+        this.textPane = textPane;
+        JButton previousButton = new JButton("Previous");
+        JButton nextButton = new JButton("Next");
+        JButton closeButton = new JButton("Close");
+        add(new JLabel("Find:"));
+        add(queryField);
+        add(previousButton);
+        add(nextButton);
+        add(matchCaseBox);
+        add(resultLabel);
+        add(closeButton);
+        setVisible(false);
+
+        queryField.getDocument().addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) {
+                search();
+            }
+            public void removeUpdate(DocumentEvent e) {
+                search();
+            }
+            public void changedUpdate(DocumentEvent e) {
+            }
+        });
+        matchCaseBox.addActionListener(e -> search());
+        previousButton.addActionListener(e -> step(false));
+        nextButton.addActionListener(e -> step(true));
+        closeButton.addActionListener(e -> close());
+
+        // Enter and Shift+Enter step through the matches, Escape goes back to the text
+        queryField.addActionListener(e -> step(true));
+        InputMap keys = getInputMap(WHEN_ANCESTOR_OF_FOCUSED_COMPONENT);
+        keys.put(KeyStroke.getKeyStroke(KeyEvent.VK_ENTER, InputEvent.SHIFT_DOWN_MASK), "findPrevious");
+        keys.put(KeyStroke.getKeyStroke(KeyEvent.VK_ESCAPE, 0), "closeFind");
+        getActionMap().put("findPrevious", action(() -> step(false)));
+        getActionMap().put("closeFind", action(this::close));
+
+        countTimer.setRepeats(true);
+    }
+
+    private static Action action(Runnable run) {
+        return new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                run.run();
+            }
+        };
+    }
+
+    // Follows a newly installed document; it is only indexed once the bar has been opened
+    public void setDocument(Document newDoc) {
+        doc = newDoc;
+        if (index.getDocument() != null) {
+            index.setDocument(newDoc);
+        }
+    }
+
+    public void open() {
+        if (index.getDocument() != doc) {
+            index.setDocument(doc);
+        }
+        String selected = textPane.getSelectedText();
+        if (selected != null && !selected.isEmpty() && selected.indexOf('\n') < 0) {
+            queryField.setText(selected);
+        }
+        searchFrom = textPane.getSelectionStart();
+        setVisible(true);
+        revalidate();
+        queryField.requestFocusInWindow();
+        queryField.selectAll();
+        search();
+    }
+
+    public void close() {
+        setVisible(false);
+        query = null;
+        countTimer.stop();
+        clearHighlights();
+        textPane.requestFocusInWindow();
+    }
+
+    // A new query or option: select the first match from where the search started, then
+    // highlight and count
+    @SuppressWarnings("try")
+    private void search() {
+        if (!isVisible()) {
+            return;
+        }
+        try (Diagnostics.Timing ignored = Diagnostics.start("Find as you type")) {
+            String text = queryField.getText();
+            query = text.isEmpty() ? null : index.query(text, matchCaseBox.isSelected());
+            if (query == null) {
+                countTimer.stop();
+                clearHighlights();
+                resultLabel.setText(String.format("Index: %,d blocks, %,d KB", index.getBlockCount(),
+                        index.estimatedBytes() / 1024));
+                return;
+            }
+            int found = query.next(searchFrom);
+            if (found < 0) {
+                found = query.next(0);
+            }
+            if (found >= 0) {
+                textPane.select(found, found + query.length());
+            }
+            queryField.setBackground(found >= 0 ? UIManager.getColor("TextField.background") : new Color(255, 200, 200));
+            refresh();
+        }
+    }
+
+    // Moves to the next or previous match, wrapping around the ends of the document
+    private void step(boolean forward) {
+        if (query == null) {
+            return;
+        }
+        int found;
+        if (forward) {
+            found = query.next(textPane.getSelectionStart() + 1);
+            if (found < 0) {
+                found = query.next(0);
+            }
+        } else {
+            found = query.previous(textPane.getSelectionStart());
+            if (found < 0) {
+                found = query.previous(textPane.getDocument().getLength());
+            }
+        }
+        if (found >= 0) {
+            searchFrom = found;
+            textPane.select(found, found + query.length());
+            highlightVisible();
+        }
+    }
+
+    // The document changed: the matches on screen and the count are out of date
+    private void documentChanged() {
+        if (query != null && !refreshQueued) {
+            refreshQueued = true;
+            SwingUtilities.invokeLater(() -> {
+                refreshQueued = false;
+                if (query != null) {
+                    refresh();
+                }
+            });
+        }
+    }
+
+    // Call when the visible part of the text changes
+    public void viewChanged() {
+        if (query != null) {
+            highlightVisible();
+        }
+    }
+
+    private void refresh() {
+        highlightVisible();
+        countedBlocks = 0;
+        matchCount = 0;
+        countSome();
+        if (countedBlocks < index.getBlockCount()) {
+            countTimer.start();
+        }
+    }
+
+    // Counts the matches in as many blocks as fit in one slice
+    private void countSome() {
+        if (query == null) {
+            countTimer.stop();
+            return;
+        }
+        long deadline = System.nanoTime() + COUNT_SLICE_NANOS;
+        int blocks = index.getBlockCount();
+        while (countedBlocks < blocks && System.nanoTime() < deadline) {
+            matchCount += query.countMatches(countedBlocks++);
+        }
+        boolean done = countedBlocks >= blocks;
+        if (done) {
+            countTimer.stop();
+        }
+        resultLabel.setText(String.format("%,d match%s%s   (index %,d KB)", matchCount, matchCount == 1 ? "" : "es",
+                done ? "" : " so far", index.estimatedBytes() / 1024));
+    }
+
+    private void highlightVisible() {
+        clearHighlights();
+        if (query == null) {
+            return;
+        }
+        Rectangle visible = textPane.getVisibleRect();
+        int from = textPane.viewToModel2D(new Point(visible.x, visible.y));
+        int to = textPane.viewToModel2D(new Point(visible.x + visible.width, visible.y + visible.height));
+        if (from < 0 || to < 0) {
+            return;
+        }
+        // Lines can run past the right edge, so take in the whole of the last visible line
+        Element root = textPane.getDocument().getDefaultRootElement();
+        to = root.getElement(root.getElementIndex(to)).getEndOffset();
+        Highlighter highlighter = textPane.getHighlighter();
+        int length = query.length();
+        query.forEachMatch(Math.max(0, from - length), to, start -> {
+            if (highlights.size() < MAX_HIGHLIGHTS) {
+                try {
+                    highlights.add(highlighter.addHighlight(start, start + length, painter));
+                } catch (BadLocationException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+    }
+
+    private void clearHighlights() {
+        Highlighter highlighter = textPane.getHighlighter();
+        for (Object highlight : highlights) {
+            highlighter.removeHighlight(highlight);
+        }
+        highlights.clear();
+    }
+}
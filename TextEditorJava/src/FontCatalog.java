@@ -0,0 +1,105 @@
+import java.awt.*;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+// The installed font families. Listing them makes the JVM open every font file, which takes
+// seconds on machines with many fonts, and so does the first use of a family that isn't
+// installed. The list is fetched on a background thread at launch and kept in
+// ~/.texteditor/fonts.txt, so until the fetch is done the list from the last run stands in
+// for it and the EDT never waits for it.
+public final class FontCatalog {
+    private static final Path CACHE = Path.of(System.getProperty("user.home"), ".texteditor", "fonts.txt");
+    // What Java always has, in case listing the fonts fails and there is no cached list
+    private static final String[] LOGICAL_FAMILIES = {
+            Font.DIALOG, Font.DIALOG_INPUT, Font.MONOSPACED, Font.SANS_SERIF, Font.SERIF};
+
+    private static final CompletableFuture<String[]> installed = new CompletableFuture<>();
+    private static volatile String[] cached; // From the last run; null until read, or if there is none
+    private static boolean warming;
+
+    private FontCatalog() {
+    }
+
+    // Reads the cached list, then lists the fonts for real and updates the cache. Call as early
+    // as possible; only the first call does anything.
+    public static synchronized void warm() {
+        if (warming) {
+            return;
+        }
+        warming = true;
+        cached = readCache();
+        Thread thread = new Thread(() -> {
+            try {
+                String[] families = GraphicsEnvironment.getLocalGraphicsEnvironment().getAvailableFontFamilyNames();
+                installed.complete(families);
+                if (!Arrays.equals(families, cached)) {
+                    writeCache(families);
+                }
+            } catch (RuntimeException | Error e) {
+                installed.completeExceptionally(e);
+            }
+        }, "Font catalog");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // The families as listed now, or the cached list until then; null if neither is there yet.
+    // If listing them failed, the cached list or else the logical families.
+    public static String[] families() {
+        warm();
+        if (!installed.isDone()) {
+            return cached;
+        }
+        if (installed.isCompletedExceptionally()) {
+            return cached != null ? cached : LOGICAL_FAMILIES;
+        }
+        return installed.join();
+    }
+
+    // Calls action with families() once listing the fonts is over, whether or not it worked
+    public static void whenListed(Consumer<String[]> action) {
+        warm();
+        installed.whenComplete((families, failure) -> action.accept(families()));
+    }
+
+    // family if it is installed, or the logical Dialog font (what Java would fall back to) if
+    // the list says it isn't, which saves the search through every font file. Unknown until
+    // there is a list.
+    public static String resolve(String family) {
+        String[] families = families();
+        if (families == null || Arrays.asList(families).contains(family)) {
+            return family;
+        }
+        return Font.DIALOG;
+    }
+
+    private static String[] readCache() {
+        try {
+            List<String> lines = Files.readAllLines(CACHE, StandardCharsets.UTF_8);
+            return lines.isEmpty() ? null : lines.toArray(new String[0]);
+        } catch (IOException e) {
+            return null; // First run, or the cache is unreadable; it is rewritten after the fetch
+        }
+    }
+
+    private static void writeCache(String[] families) {
+        try {
+            Files.createDirectories(CACHE.getParent());
+            Path temp = Files.createTempFile(CACHE.getParent(), "fonts", ".tmp");
+            try {
+                Files.write(temp, Arrays.asList(families), StandardCharsets.UTF_8);
+                FileSaver.replace(CACHE, temp);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            // Only costs the next launch its head start
+        }
+    }
+}
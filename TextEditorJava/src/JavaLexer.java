@@ -0,0 +1,135 @@
+import java.util.Set;
+
+// Java: keywords, literals, comments and annotations. Block comments and text blocks run on
+// over lines, which is the state carried from one line to the next.
+public final class JavaLexer implements Lexer {
+    static final JavaLexer INSTANCE = new JavaLexer();
+
+    private static final int IN_COMMENT = 1;
+    private static final int IN_TEXT_BLOCK = 2;
+
+    private static final Set<String> KEYWORDS = Set.of(
+            "abstract", "assert", "boolean", "break", "byte", "case", "catch", "char", "class", "const",
+            "continue", "default", "do", "double", "else", "enum", "extends", "final", "finally", "float",
+            "for", "goto", "if", "implements", "import", "instanceof", "int", "interface", "long", "native",
+            "new", "package", "private", "protected", "public", "return", "short", "static", "strictfp",
+            "super", "switch", "synchronized", "this", "throw", "throws", "transient", "try", "void",
+            "volatile", "while", "var", "record", "yield", "sealed", "permits", "true", "false", "null");
+
+    private JavaLexer() {
+    }
+
+    @Override
+    public String getName() {
+        return "Java";
+    }
+
+    @Override
+    public int lex(char[] text, int start, int end, int state, TokenSink sink) {
+        int i = start;
+        if (state == IN_COMMENT) {
+            int close = find(text, i, end, '*', '/');
+            emit(sink, i, close < 0 ? end : close + 2, Token.COMMENT);
+            if (close < 0) {
+                return IN_COMMENT;
+            }
+            i = close + 2;
+        } else if (state == IN_TEXT_BLOCK) {
+            int close = closeOfTextBlock(text, i, end);
+            emit(sink, i, close < 0 ? end : close, Token.STRING);
+            if (close < 0) {
+                return IN_TEXT_BLOCK;
+            }
+            i = close;
+        }
+
+        while (i < end) {
+            char c = text[i];
+            if (c == '/' && i + 1 < end && text[i + 1] == '/') {
+                emit(sink, i, end, Token.COMMENT);
+                return INITIAL;
+            } else if (c == '/' && i + 1 < end && text[i + 1] == '*') {
+                int close = find(text, i + 2, end, '*', '/');
+                emit(sink, i, close < 0 ? end : close + 2, Token.COMMENT);
+                if (close < 0) {
+                    return IN_COMMENT;
+                }
+                i = close + 2;
+            } else if (c == '"' && i + 2 < end && text[i + 1] == '"' && text[i + 2] == '"') {
+                int close = closeOfTextBlock(text, i + 3, end);
+                emit(sink, i, close < 0 ? end : close, Token.STRING);
+                if (close < 0) {
+                    return IN_TEXT_BLOCK;
+                }
+                i = close;
+            } else if (c == '"' || c == '\'') {
+                int j = i + 1;
+                while (j < end && text[j] != c) {
+                    j += text[j] == '\\' ? 2 : 1;
+                }
+                j = Math.min(j + 1, end);
+                emit(sink, i, j, Token.STRING);
+                i = j;
+            } else if (c >= '0' && c <= '9' || c == '.' && i + 1 < end && text[i + 1] >= '0' && text[i + 1] <= '9') {
+                int j = i + 1;
+                while (j < end && (Character.isLetterOrDigit(text[j]) || text[j] == '_' || text[j] == '.'
+                        || (text[j] == '+' || text[j] == '-') && (text[j - 1] == 'e' || text[j - 1] == 'E'
+                        || text[j - 1] == 'p' || text[j - 1] == 'P'))) {
+                    j++;
+                }
+                emit(sink, i, j, Token.NUMBER);
+                i = j;
+            } else if (c == '@' && i + 1 < end && Character.isJavaIdentifierStart(text[i + 1])) {
+                int j = identifierEnd(text, i + 1, end);
+                emit(sink, i, j, Token.KEY);
+                i = j;
+            } else if (Character.isJavaIdentifierStart(c)) {
+                int j = identifierEnd(text, i, end);
+                // Keywords are all lower case and 2 to 12 letters
+                if (sink != null && c >= 'a' && c <= 'z' && j - i >= 2 && j - i <= 12
+                        && KEYWORDS.contains(new String(text, i, j - i))) {
+                    sink.token(i, j, Token.KEYWORD);
+                }
+                i = j;
+            } else {
+                i++;
+            }
+        }
+        return INITIAL;
+    }
+
+    private static void emit(TokenSink sink, int start, int end, Token type) {
+        if (sink != null && end > start) {
+            sink.token(start, end, type);
+        }
+    }
+
+    private static int identifierEnd(char[] text, int i, int end) {
+        while (i < end && Character.isJavaIdentifierPart(text[i])) {
+            i++;
+        }
+        return i;
+    }
+
+    // Index of the first of the pair a, b in text[from, end), or -1
+    private static int find(char[] text, int from, int end, char a, char b) {
+        for (int i = from; i + 1 < end; i++) {
+            if (text[i] == a && text[i + 1] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // The index just past the """ that ends a text block, or -1 if the line doesn't end it
+    private static int closeOfTextBlock(char[] text, int from, int end) {
+        for (int i = from; i + 2 < end; i++) {
+            if (text[i] == '\\') {
+                i++;
+            } else if (text[i] == '"' && text[i + 1] == '"' && text[i + 2] == '"') {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+}
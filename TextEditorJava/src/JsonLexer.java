@@ -0,0 +1,72 @@
+// JSON, and JSON Lines: strings, object keys, numbers and the literals true, false and null.
+// A JSON string can't hold a line break, so each line stands alone.
+public final class JsonLexer implements Lexer {
+    static final JsonLexer INSTANCE = new JsonLexer();
+
+    private JsonLexer() {
+    }
+
+    @Override
+    public String getName() {
+        return "JSON";
+    }
+
+    @Override
+    public boolean carriesState() {
+        return false;
+    }
+
+    @Override
+    public int lex(char[] text, int start, int end, int state, TokenSink sink) {
+        if (sink == null) {
+            return INITIAL;
+        }
+        int i = start;
+        while (i < end) {
+            char c = text[i];
+            if (c == '"') {
+                int j = i + 1;
+                while (j < end && text[j] != '"') {
+                    j += text[j] == '\\' ? 2 : 1;
+                }
+                j = Math.min(j + 1, end); // An unclosed string runs to the end of the line
+                int next = j;
+                while (next < end && (text[next] == ' ' || text[next] == '\t')) {
+                    next++;
+                }
+                sink.token(i, j, next < end && text[next] == ':' ? Token.KEY : Token.STRING);
+                i = j;
+            } else if (c == '-' || c >= '0' && c <= '9') {
+                int j = i + 1;
+                while (j < end && (text[j] >= '0' && text[j] <= '9' || text[j] == '.' || text[j] == 'e'
+                        || text[j] == 'E' || text[j] == '+' || text[j] == '-')) {
+                    j++;
+                }
+                sink.token(i, j, Token.NUMBER);
+                i = j;
+            } else if (c >= 'a' && c <= 'z') {
+                int j = i + 1;
+                while (j < end && text[j] >= 'a' && text[j] <= 'z') {
+                    j++;
+                }
+                if (isLiteral(text, i, j)) {
+                    sink.token(i, j, Token.KEYWORD);
+                }
+                i = j;
+            } else {
+                i++;
+            }
+        }
+        return INITIAL;
+    }
+
+    private static boolean isLiteral(char[] text, int start, int end) {
+        return switch (end - start) {
+            case 4 -> text[start] == 't' && text[start + 1] == 'r' && text[start + 2] == 'u' && text[start + 3] == 'e'
+                    || text[start] == 'n' && text[start + 1] == 'u' && text[start + 2] == 'l' && text[start + 3] == 'l';
+            case 5 -> text[start] == 'f' && text[start + 1] == 'a' && text[start + 2] == 'l' && text[start + 3] == 's'
+                    && text[start + 4] == 'e';
+            default -> false;
+        };
+    }
+}
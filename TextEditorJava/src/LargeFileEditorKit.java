@@ -0,0 +1,469 @@
+import javax.swing.SizeRequirements;
+import javax.swing.event.DocumentEvent;
+import javax.swing.text.*;
+import java.awt.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Editor kit for the text pane. Up to LARGE_LINES lines a document is laid out the way
+// StyledEditorKit does it: a view per paragraph, each wrapped to the width of the pane. Past
+// that it switches to a viewport view that only creates, lays out and paints views for the
+// lines on screen, so scrolling, resizing and jumping to the end cost the same however long
+// the document is. The switch goes both ways as edits cross the limits.
+public class LargeFileEditorKit extends StyledEditorKit {
+    // A document gets the viewport view past either limit, and goes back below half of both so
+    // edits near a limit don't rebuild the views back and forth
+    static final int LARGE_LINES = 50_000;
+    static final int LARGE_CHARS = 4 << 20;
+
+    private final ViewFactory factory;
+
+    public LargeFileEditorKit() {
+        ViewFactory styled = super.getViewFactory();
+        factory = elem -> AbstractDocument.SectionElementName.equals(elem.getName()) ? new DocumentView(elem, styled)
+                : AbstractDocument.ContentElementName.equals(elem.getName()) ? new TextView(elem)
+                : styled.create(elem);
+    }
+
+    @Override
+    public ViewFactory getViewFactory() {
+        return factory;
+    }
+
+    static boolean isLarge(Document doc, boolean wasLarge) {
+        int lines = doc.getDefaultRootElement().getElementCount();
+        int chars = doc.getLength();
+        int divisor = wasLarge ? 2 : 1;
+        return lines > LARGE_LINES / divisor || chars > LARGE_CHARS / divisor;
+    }
+
+    // A run of text whose color is read from the document when it is painted, rather than
+    // kept from the last change event as LabelView does. The theme changes the color of all of
+    // the text through the default style without firing one, so it costs a repaint instead of
+    // an update and a new layout of every paragraph.
+    //
+    // In a highlighted document the run is painted a part at a time, each clipped to its own
+    // width and in its token's color, so selections, underlines and the rest are painted as
+    // LabelView paints them.
+    private static final class TextView extends LabelView {
+        private Color tokenColor; // While a token is painted
+
+        TextView(Element elem) {
+            super(elem);
+        }
+
+        @Override
+        public Color getForeground() {
+            if (tokenColor != null) {
+                return tokenColor;
+            }
+            return getDocument() instanceof StyledDocument doc ? doc.getForeground(getAttributes()) : super.getForeground();
+        }
+
+        @Override
+        public void paint(Graphics g, Shape a) {
+            SyntaxHighlighter highlighter = SyntaxHighlighter.of(getDocument());
+            if (highlighter == null) {
+                super.paint(g, a);
+                return;
+            }
+            int[] at = {getStartOffset()};
+            highlighter.forEachToken(at[0], getEndOffset(), (start, end, color) -> {
+                paintPart(g, a, at[0], start, null);
+                paintPart(g, a, start, end, color);
+                at[0] = end;
+            });
+            paintPart(g, a, at[0], getEndOffset(), null);
+        }
+
+        private void paintPart(Graphics g, Shape a, int start, int end, Color color) {
+            if (start >= end) {
+                return;
+            }
+            if (start == getStartOffset() && end == getEndOffset() && color == null) {
+                super.paint(g, a);
+                return;
+            }
+            Rectangle part;
+            try {
+                part = modelToView(start, Position.Bias.Forward, end, Position.Bias.Backward, a).getBounds();
+            } catch (BadLocationException e) {
+                return; // Offsets within the view's own range
+            }
+            Rectangle alloc = a.getBounds();
+            Graphics clipped = g.create();
+            try {
+                clipped.clipRect(part.x, alloc.y, part.width, alloc.height);
+                tokenColor = color;
+                super.paint(clipped, a);
+            } finally {
+                tokenColor = null;
+                clipped.dispose();
+            }
+        }
+    }
+
+    // The view of the whole document. Holds whichever of the two layouts suits the document's
+    // size and swaps them when an edit crosses the limits, the way the text UI's root view
+    // holds this one.
+    private static final class DocumentView extends View {
+        private final ViewFactory styled;
+        private View view;
+
+        DocumentView(Element elem, ViewFactory styled) {
+            super(elem);
+            this.styled = styled;
+        }
+
+        private View createView(boolean large) {
+            return large ? new ViewportView(getElement()) : styled.create(getElement());
+        }
+
+        // Called before an update is forwarded: when the document has crossed a limit the new
+        // view is built from the document as it is now, so the old one needn't see the update.
+        // That matters for a large paste, which the paragraph layout would build views for.
+        private boolean switchView() {
+            boolean large = view instanceof ViewportView;
+            if (isLarge(getDocument(), large) == large) {
+                return false;
+            }
+            view.setParent(null);
+            view = createView(!large);
+            view.setParent(this);
+            preferenceChanged(null, true, true);
+            Container host = getContainer();
+            if (host != null) {
+                host.repaint();
+            }
+            return true;
+        }
+
+        @Override
+        public void setParent(View parent) {
+            super.setParent(parent);
+            if (parent == null) {
+                if (view != null) {
+                    view.setParent(null);
+                    view = null;
+                }
+            } else if (view == null) {
+                view = createView(isLarge(getDocument(), false));
+                view.setParent(this);
+            }
+        }
+
+        @Override
+        public int getViewCount() {
+            return 1;
+        }
+
+        @Override
+        public View getView(int n) {
+            return view;
+        }
+
+        @Override
+        public int getViewIndex(int pos, Position.Bias b) {
+            return 0;
+        }
+
+        @Override
+        public Shape getChildAllocation(int index, Shape a) {
+            return a;
+        }
+
+        @Override
+        public float getPreferredSpan(int axis) {
+            return view.getPreferredSpan(axis);
+        }
+
+        @Override
+        public float getMinimumSpan(int axis) {
+            return view.getMinimumSpan(axis);
+        }
+
+        @Override
+        public float getMaximumSpan(int axis) {
+            return view.getMaximumSpan(axis);
+        }
+
+        @Override
+        public float getAlignment(int axis) {
+            return view.getAlignment(axis);
+        }
+
+        @Override
+        public void setSize(float width, float height) {
+            view.setSize(width, height);
+        }
+
+        @Override
+        public void paint(Graphics g, Shape allocation) {
+            view.paint(g, allocation);
+        }
+
+        @Override
+        public Shape modelToView(int pos, Shape a, Position.Bias b) throws BadLocationException {
+            return view.modelToView(pos, a, b);
+        }
+
+        @Override
+        public Shape modelToView(int p0, Position.Bias b0, int p1, Position.Bias b1, Shape a)
+                throws BadLocationException {
+            return view.modelToView(p0, b0, p1, b1, a);
+        }
+
+        @Override
+        public int viewToModel(float x, float y, Shape a, Position.Bias[] biasReturn) {
+            return view.viewToModel(x, y, a, biasReturn);
+        }
+
+        @Override
+        public int getNextVisualPositionFrom(int pos, Position.Bias b, Shape a, int direction,
+                                             Position.Bias[] biasRet) throws BadLocationException {
+            return view.getNextVisualPositionFrom(pos, b, a, direction, biasRet);
+        }
+
+        @Override
+        public void insertUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+            if (!switchView()) {
+                view.insertUpdate(e, a, f);
+            }
+        }
+
+        @Override
+        public void removeUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+            if (!switchView()) {
+                view.removeUpdate(e, a, f);
+            }
+        }
+
+        @Override
+        public void changedUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+            view.changedUpdate(e, a, f);
+        }
+    }
+
+    // Lays out the document as a column of unwrapped lines of one height, so the line at a
+    // given y is a division and the y of a line a multiplication. The line-offset index is the
+    // document's own list of paragraph elements, whose start positions the content keeps up to
+    // date through edits: finding the line of an offset is a binary search over it. Only lines
+    // that are painted or asked about get a view, and a few screens' worth are kept around.
+    //
+    // The line height is the tallest line laid out so far and the width the widest, since
+    // measuring every line is what this view is there to avoid. Both only grow, and a line
+    // with a larger font makes every line that much taller once it has been seen.
+    private static final class ViewportView extends View {
+        private static final int MIN_CACHED_LINES = 256;
+
+        // Views of recently used lines, least recently used first. Keyed by paragraph element,
+        // which stays the same while its line is edited.
+        private final Map<Element, View> lines = new LinkedHashMap<>(MIN_CACHED_LINES, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Element, View> eldest) {
+                if (size() <= cachedLines) {
+                    return false;
+                }
+                eldest.getValue().setParent(null);
+                return true;
+            }
+        };
+        private int cachedLines = MIN_CACHED_LINES;
+        private int rowHeight;
+        private int width;
+        private float allocatedWidth;
+
+        ViewportView(Element elem) {
+            super(elem);
+        }
+
+        // The view of a line, laid out to the current width
+        private View lineView(int line) {
+            Element paragraph = getElement().getElement(line);
+            View view = lines.get(paragraph);
+            if (view == null) {
+                view = new LineView(paragraph);
+                view.setParent(this);
+                lines.put(paragraph, view);
+            }
+            // Laid out wider than it needs, so it never wraps; the extra pixel absorbs rounding
+            float lineWidth = view.getPreferredSpan(X_AXIS) + 1;
+            view.setSize(Math.max(lineWidth, allocatedWidth), Math.max(rowHeight, 1));
+            int height = (int) Math.ceil(view.getPreferredSpan(Y_AXIS));
+            boolean wider = lineWidth > width;
+            boolean taller = height > rowHeight;
+            if (wider || taller) {
+                width = Math.max(width, (int) Math.ceil(lineWidth));
+                rowHeight = Math.max(rowHeight, Math.max(height, 1));
+                super.preferenceChanged(null, wider, taller);
+                if (taller) {
+                    // Every line below the first has moved
+                    Container host = getContainer();
+                    if (host != null) {
+                        host.repaint();
+                    }
+                }
+            }
+            return view;
+        }
+
+        private Rectangle lineAllocation(int line, Rectangle alloc) {
+            return new Rectangle(alloc.x, alloc.y + line * rowHeight, Math.max(alloc.width, width), rowHeight);
+        }
+
+        private int lineAt(int y, Rectangle alloc) {
+            int line = Math.floorDiv(y - alloc.y, rowHeight);
+            return Math.max(0, Math.min(line, getElement().getElementCount() - 1));
+        }
+
+        // The height isn't known until a line has been laid out
+        private void measure() {
+            if (rowHeight == 0) {
+                lineView(0);
+            }
+        }
+
+        @Override
+        public float getPreferredSpan(int axis) {
+            measure();
+            return axis == X_AXIS ? width : (float) getElement().getElementCount() * rowHeight;
+        }
+
+        // Lines don't wrap, so a pane narrower than the widest line scrolls sideways instead
+        @Override
+        public float getMinimumSpan(int axis) {
+            return getPreferredSpan(axis);
+        }
+
+        @Override
+        public float getMaximumSpan(int axis) {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public void setSize(float width, float height) {
+            allocatedWidth = width;
+        }
+
+        // Line views report changes here while they are updated; they are measured again the
+        // next time they are laid out, so nothing needs to happen yet
+        @Override
+        public void preferenceChanged(View child, boolean width, boolean height) {
+            if (child == null) {
+                super.preferenceChanged(null, width, height);
+            }
+        }
+
+        @Override
+        public void paint(Graphics g, Shape a) {
+            Rectangle alloc = a.getBounds();
+            Rectangle clip = g.getClipBounds();
+            if (clip == null) {
+                clip = alloc;
+            }
+            measure();
+            int first = lineAt(clip.y, alloc);
+            int last = lineAt(clip.y + clip.height - 1, alloc);
+            cachedLines = Math.max(MIN_CACHED_LINES, 3 * (last - first + 1));
+            for (int line = first; line <= last; line++) {
+                View view = lineView(line);
+                view.paint(g, lineAllocation(line, alloc));
+            }
+        }
+
+        @Override
+        public Shape modelToView(int pos, Shape a, Position.Bias b) throws BadLocationException {
+            int line = getElement().getElementIndex(pos);
+            View view = lineView(line);
+            return view.modelToView(pos, lineAllocation(line, a.getBounds()), b);
+        }
+
+        @Override
+        public int viewToModel(float x, float y, Shape a, Position.Bias[] biasReturn) {
+            Rectangle alloc = a.getBounds();
+            measure();
+            int line = lineAt((int) y, alloc);
+            View view = lineView(line);
+            return view.viewToModel(x, y, lineAllocation(line, alloc), biasReturn);
+        }
+
+        @Override
+        public void insertUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+            update(e, e.getLength(), a, f);
+        }
+
+        @Override
+        public void removeUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+            update(e, 0, a, f);
+        }
+
+        @Override
+        public void changedUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+            update(e, e.getLength(), a, f);
+        }
+
+        // Drops the views of lines the edit removed and passes the event on to the cached
+        // lines it touched. Uncached lines get their view from the document as it is when
+        // they are next shown.
+        private void update(DocumentEvent e, int length, Shape a, ViewFactory f) {
+            DocumentEvent.ElementChange change = e.getChange(getElement());
+            if (change != null) {
+                for (Element removed : change.getChildrenRemoved()) {
+                    View view = lines.remove(removed);
+                    if (view != null) {
+                        view.setParent(null);
+                    }
+                }
+            }
+            int start = e.getOffset();
+            int end = start + length;
+            for (Map.Entry<Element, View> entry : lines.entrySet()) {
+                Element paragraph = entry.getKey();
+                if (paragraph.getStartOffset() <= end && paragraph.getEndOffset() > start) {
+                    View view = entry.getValue();
+                    if (e.getType() == DocumentEvent.EventType.INSERT) {
+                        view.insertUpdate(e, null, f);
+                    } else if (e.getType() == DocumentEvent.EventType.REMOVE) {
+                        view.removeUpdate(e, null, f);
+                    } else {
+                        view.changedUpdate(e, null, f);
+                    }
+                }
+            }
+
+            Container host = getContainer();
+            if (host != null && a != null && rowHeight > 0) {
+                // Lines after a change in the line count have all moved
+                Rectangle alloc = a.getBounds();
+                Element root = getElement();
+                int top = alloc.y + root.getElementIndex(start) * rowHeight;
+                int bottom = change != null ? host.getHeight() : alloc.y + (root.getElementIndex(end) + 1) * rowHeight;
+                host.repaint(0, top, host.getWidth(), bottom - top);
+            }
+            if (change != null) {
+                super.preferenceChanged(null, false, true);
+            }
+        }
+    }
+
+    // A paragraph laid out on a single row. ParagraphView works out the narrowest width it
+    // could be wrapped to by trying break positions glyph by glyph, which is what makes long
+    // lines slow to lay out; a line that is never wrapped is as wide as its text.
+    private static final class LineView extends ParagraphView {
+        LineView(Element elem) {
+            super(elem);
+        }
+
+        @Override
+        protected SizeRequirements calculateMinorAxisRequirements(int axis, SizeRequirements r) {
+            if (r == null) {
+                r = new SizeRequirements();
+            }
+            r.preferred = (int) layoutPool.getPreferredSpan(axis);
+            r.minimum = r.preferred;
+            r.maximum = Integer.MAX_VALUE;
+            r.alignment = 0.5f;
+            return r;
+        }
+    }
+}
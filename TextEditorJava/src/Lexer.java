@@ -0,0 +1,68 @@
+import java.util.List;
+import java.util.Locale;
+
+// Splits text into tokens for SyntaxHighlighter, one line at a time. A lexer can carry state
+// from one line into the next, such as being inside a block comment. The state is an int, so
+// the state at the start of every line can be kept and lexing can start again at any line.
+public interface Lexer {
+    int INITIAL = 0;
+
+    enum Token {
+        KEYWORD(Theme.Role.SYNTAX_KEYWORD),
+        STRING(Theme.Role.SYNTAX_STRING),
+        NUMBER(Theme.Role.SYNTAX_NUMBER),
+        COMMENT(Theme.Role.SYNTAX_COMMENT),
+        KEY(Theme.Role.SYNTAX_KEY),
+        TIMESTAMP(Theme.Role.SYNTAX_TIMESTAMP),
+        ERROR(Theme.Role.SYNTAX_ERROR),
+        WARNING(Theme.Role.SYNTAX_WARNING),
+        INFO(Theme.Role.SYNTAX_INFO),
+        DEBUG(Theme.Role.SYNTAX_DEBUG);
+
+        private final Theme.Role role;
+
+        Token(Theme.Role role) {
+            this.role = role;
+        }
+
+        // The theme color the token is drawn in
+        public Theme.Role role() {
+            return role;
+        }
+    }
+
+    interface TokenSink {
+        void token(int start, int end, Token type);
+    }
+
+    String getName();
+
+    // Lexes text[start, end), one line without its line break, starting in state, and returns the
+    // state the next line starts in. Tokens go to sink in order; with no sink only the state is
+    // worked out, which can skip the work of telling tokens apart.
+    int lex(char[] text, int start, int end, int state, TokenSink sink);
+
+    // False if every line starts in INITIAL whatever came before it
+    default boolean carriesState() {
+        return true;
+    }
+
+    static List<Lexer> all() {
+        return List.of(LogLexer.INSTANCE, JsonLexer.INSTANCE, JavaLexer.INSTANCE);
+    }
+
+    // The lexer for a file's extension, or null to leave it plain
+    static Lexer forFile(String fileName) {
+        String name = fileName.toLowerCase(Locale.ROOT);
+        if (name.endsWith(".java")) {
+            return JavaLexer.INSTANCE;
+        }
+        if (name.endsWith(".json") || name.endsWith(".jsonl") || name.endsWith(".ndjson")) {
+            return JsonLexer.INSTANCE;
+        }
+        if (name.endsWith(".log") || name.endsWith(".out")) {
+            return LogLexer.INSTANCE;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,86 @@
+// Log files: timestamps and level words (ERROR, WARN, INFO, DEBUG and their relatives, in
+// capitals). Each line stands alone.
+public final class LogLexer implements Lexer {
+    static final LogLexer INSTANCE = new LogLexer();
+
+    private LogLexer() {
+    }
+
+    @Override
+    public String getName() {
+        return "Log";
+    }
+
+    @Override
+    public boolean carriesState() {
+        return false;
+    }
+
+    @Override
+    public int lex(char[] text, int start, int end, int state, TokenSink sink) {
+        if (sink == null) {
+            return INITIAL;
+        }
+        int i = start;
+        while (i < end) {
+            char c = text[i];
+            if (c >= '0' && c <= '9') {
+                int j = i;
+                while (j < end && isTimeChar(text[j])) {
+                    j++;
+                }
+                if (isTimestamp(text, i, j)) {
+                    sink.token(i, j, Token.TIMESTAMP);
+                }
+                i = j;
+            } else if (c >= 'A' && c <= 'Z' && (i == start || !Character.isLetterOrDigit(text[i - 1]))) {
+                int j = i;
+                while (j < end && text[j] >= 'A' && text[j] <= 'Z') {
+                    j++;
+                }
+                Token level = j < end && Character.isLetterOrDigit(text[j]) ? null : level(text, i, j);
+                if (level != null) {
+                    sink.token(i, j, level);
+                }
+                i = j;
+            } else {
+                i++;
+            }
+        }
+        return INITIAL;
+    }
+
+    private static boolean isTimeChar(char c) {
+        return c >= '0' && c <= '9' || c == ':' || c == '-' || c == '.' || c == ',' || c == '/' || c == 'T'
+                || c == 'Z' || c == '+';
+    }
+
+    // A time of day (two colons between digits) or a date (digits split by two dashes or
+    // slashes), with whatever else came along such as the date and time joined by a T
+    private static boolean isTimestamp(char[] text, int start, int end) {
+        int colons = 0, dashes = 0, slashes = 0, digits = 0;
+        for (int i = start; i < end; i++) {
+            switch (text[i]) {
+                case ':' -> colons++;
+                case '-' -> dashes++;
+                case '/' -> slashes++;
+                default -> {
+                    if (text[i] >= '0' && text[i] <= '9') {
+                        digits++;
+                    }
+                }
+            }
+        }
+        return digits >= 6 && (colons >= 2 || dashes == 2 || slashes == 2);
+    }
+
+    private static Token level(char[] text, int start, int end) {
+        return switch (new String(text, start, end - start)) {
+            case "ERROR", "FATAL", "SEVERE", "CRITICAL" -> Token.ERROR;
+            case "WARN", "WARNING" -> Token.WARNING;
+            case "INFO", "NOTICE" -> Token.INFO;
+            case "DEBUG", "TRACE", "FINE", "FINER", "FINEST" -> Token.DEBUG;
+            default -> null;
+        };
+    }
+}
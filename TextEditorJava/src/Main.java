@@ -1,7 +1,16 @@
 import javax.swing.*;
 
 public class Main {
+    // When the editor's own code started, for the startup time it reports
+    static final long START_NANOS = System.nanoTime();
+    static final long START_MILLIS = System.currentTimeMillis();
+
     public static void main(String[] args) {
+        if (args.length > 0) {
+            // Batch mode, see BatchProcessor for the options
+            System.exit(BatchProcessor.run(args));
+        }
+        FontCatalog.warm(); // Lists the fonts while the window is built
         SwingUtilities.invokeLater(NewTextEditor::new);
     }
 }
@@ -1,29 +1,163 @@
 import java.io.*;
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.event.MenuEvent;
+import javax.swing.event.MenuListener;
+import javax.swing.filechooser.FileNameExtensionFilter;
 import javax.swing.text.*;
 import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
-import java.awt.geom.Ellipse2D;
-import java.awt.geom.Path2D;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 public class NewTextEditor extends JFrame {
+    // Parked tabs beyond this many are evicted, least recently used first
+    private static final int MAX_LOADED_TABS = Integer.getInteger("texteditor.maxLoadedTabs", 5);
+    // Memory each tab's undo history may keep alive before its oldest steps are dropped
+    private static final long UNDO_BYTES = Long.getLong("texteditor.undoBytes", EditHistory.DEFAULT_MAX_BYTES);
+    // Under memory pressure, tabs left alone this long are evicted as well
+    private static final long IDLE_TAB_NANOS = 120_000_000_000L;
+    private static final double MEMORY_PRESSURE = 0.6; // Share of the maximum heap in use
+
     private JTextPane textPane;
     private JFileChooser fileChooser;
+    private FileNameExtensionFilter projectFilter;
     private JPanel shapePanel;
     private DrawingCanvas canvas;
-    private String clipboard;
-
+    private final ClipboardRing clipboard = new ClipboardRing();
+    private StatusBar statusBar;
+    private FileLoader fileLoader;
+    private FileSaver fileSaver;
+    private CanvasExporter exporter;
+    private Consumer<String> stopApply; // Ends the transform being applied, with the reason why
+    private File currentFile;
+    private File savedFile;
+    private long documentRevision;
+    private long savedRevision = -1;
+    private ProjectFile project; // The project that was opened or last saved, for incremental saves
+    private SwingWorker<ProjectFile, Void> projectWorker;
+    private long textRevision; // Only counts inserts and removes
+    private long savedTextRevision = -1;
+    private long savedShapesRevision = -1;
+    private EditJournal journal; // Records edits so an unsaved session survives a crash
+    private JDialog diagnosticsDialog;
+    private static final long APPLY_SLICE_NANOS = 8_000_000; // Of a transform's edits per EDT event
+    private final Timer statisticsRefresh = new Timer(150, e -> refreshStatistics());
+    private EditHistory history = new EditHistory(UNDO_BYTES); // The active tab's
+    private JTabbedPane tabBar;
+    private final List<DocumentTab> tabs = new ArrayList<>();
+    private DocumentTab activeTab;
+    private boolean updatingTabs; // Selection changes made by the editor itself
+    private final Timer evictionTimer = new Timer(10_000, e -> evictTabs());
+    private EditorEngine engine;
+    private final DocumentStatistics statistics = new DocumentStatistics(statisticsRefresh::restart);
+    private FindBar findBar;
+    private final ThemeRegistry themes = new ThemeRegistry();
+    // Document property set once a highlighting has been picked for the document in the View menu
+    private static final String CHOSEN_HIGHLIGHTING = "highlightingChosen";
+    private final DocumentListener revisionTracker = new DocumentListener() {
+        public void insertUpdate(DocumentEvent e) {
+            documentRevision++;
+            textRevision++;
+        }
+        public void removeUpdate(DocumentEvent e) {
+            documentRevision++;
+            textRevision++;
+        }
+        public void changedUpdate(DocumentEvent e) {
+            documentRevision++;
+        }
+    };
+    private String lastFind = "";
+    private String lastReplace = "";
+    private boolean lastMatchCase = true;
+    private boolean lastRegex = false;
+    private boolean firstFrameShown;
+    // The menus' font, or the default if the font catalog knows it isn't installed
+    private final String uiFont = FontCatalog.resolve("Segoe UI");
+    private boolean fontDialogPending; // The font dialog waits for the fonts to be listed
+
+    @SuppressWarnings("try")
     public NewTextEditor() {
+        Diagnostics.install();
         setTitle("Text Editor with Shapes");
         setSize(1000, 600);
-        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-
-        // Setup text area
-        textPane = new JTextPane();
+        setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE); // Asks about unsaved tabs first
+
+        // Setup text area, backed by a piece table so edits in large documents stay cheap
+        textPane = new JTextPane() {
+            @Override
+            protected void paintComponent(Graphics g) {
+                try (Diagnostics.Timing ignored = Diagnostics.start("Paint text")) {
+                    super.paintComponent(g);
+                }
+                if (!firstFrameShown) {
+                    firstFrameShown = true;
+                    SwingUtilities.invokeLater(NewTextEditor.this::reportStartup);
+                }
+            }
+        };
+        textPane.setEditorKit(new LargeFileEditorKit()); // Only lays out the visible lines of huge documents
+        themes.registerTextPane(textPane);
+        for (Lexer.Token token : Lexer.Token.values()) {
+            themes.bind(token.role(), color -> {
+                SyntaxHighlighter.setColor(token, color);
+                textPane.repaint();
+            });
+        }
+        statisticsRefresh.setRepeats(false); // Coalesces label updates while typing
+        // The text pane's own cut, copy and paste keys go through the clipboard ring as well,
+        // quietly doing nothing when there is nothing to act on
+        ActionMap textActions = textPane.getActionMap();
+        textActions.put(DefaultEditorKit.cutAction, action(this::cutSelection));
+        textActions.put(DefaultEditorKit.copyAction, action(this::copySelection));
+        textActions.put(DefaultEditorKit.pasteAction, action(() -> {
+            PieceTable.Span clip = clipboard.current();
+            if (clip != null) {
+                paste(clip);
+            }
+        }));
+        textPane.addCaretListener(statistics);
+        findBar = new FindBar(textPane);
+        installDocument(PieceTableContent.newDocument());
         JScrollPane scrollPane = new JScrollPane(textPane);
-        add(scrollPane, BorderLayout.CENTER);
+        scrollPane.getViewport().addChangeListener(e -> findBar.viewChanged());
+
+        // The tabs share the text pane and canvas; switching tabs swaps their contents
+        tabBar = new JTabbedPane(JTabbedPane.TOP, JTabbedPane.SCROLL_TAB_LAYOUT);
+        tabBar.addChangeListener(e -> {
+            if (!updatingTabs) {
+                tabSelected();
+            }
+        });
+        activeTab = new DocumentTab(null);
+        addTab(activeTab);
+        evictionTimer.start();
+
+        JPanel topPanel = new JPanel(new BorderLayout());
+        topPanel.add(tabBar, BorderLayout.NORTH);
+        topPanel.add(findBar, BorderLayout.SOUTH);
+        JPanel textPanel = new JPanel(new BorderLayout());
+        textPanel.add(topPanel, BorderLayout.NORTH);
+        textPanel.add(scrollPane, BorderLayout.CENTER);
+        add(textPanel, BorderLayout.CENTER);
 
         // Setup shapes panel
         shapePanel = new JPanel();
@@ -35,7 +169,10 @@ public class NewTextEditor extends JFrame {
 
         // Drawing canvas
         canvas = new DrawingCanvas();
+        canvas.addUndoableEditListener(history);
         canvas.setPreferredSize(new Dimension(400, 600));
+        themes.bind(Theme.Role.CANVAS_BACKGROUND, canvas::setBackground);
+        themes.bind(Theme.Role.SHAPES, canvas::setShapeColor);
 
         // Combine canvas and shape panel into one panel
         JPanel rightPanel = new JPanel(new BorderLayout());
@@ -43,19 +180,79 @@ public class NewTextEditor extends JFrame {
         rightPanel.add(shapePanel, BorderLayout.EAST);
 
         // Use JSplitPane to separate the text area and the right panel
-        JSplitPane splitPane = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, scrollPane, rightPanel);
+        JSplitPane splitPane = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, textPanel, rightPanel);
         splitPane.setDividerLocation(550); // Adjust initial divider position
         add(splitPane);
 
-        // File chooser
-        fileChooser = new JFileChooser();
+        // Status bar for progress and timings of long-running file operations
+        statusBar = new StatusBar();
+        add(statusBar, BorderLayout.SOUTH);
+        for (JComponent panel : new JComponent[]{topPanel, textPanel, findBar, scrollPane, shapePanel, rightPanel,
+                splitPane, statusBar}) {
+            themes.register(panel, Theme.Role.PANEL_BACKGROUND, Theme.Role.PANEL_FOREGROUND);
+        }
+        canvas.addPropertyChangeListener("dragFrameTiming", e -> {
+            DrawingCanvas.FrameTiming timing = (DrawingCanvas.FrameTiming) e.getNewValue();
+            statusBar.setMessage(String.format("Drag over %,d shapes: %d frames, %.2f ms average, %.2f ms max",
+                    timing.shapeCount(), timing.frames(), timing.averageNanos() / 1e6, timing.maxNanos() / 1e6));
+        });
 
         // Setup menu
         setupMenu();
 
+        // A journal left open means the last session didn't close normally; the window stays
+        // usable while it is replayed
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                closeWindow();
+            }
+        });
+        SwingUtilities.invokeLater(this::restoreSession);
+
         setVisible(true);
     }
 
+    // Built when it is first needed: making a file chooser reads the file system and loads its
+    // icons, which took 150 ms of every launch
+    private JFileChooser fileChooser() {
+        if (fileChooser == null) {
+            fileChooser = new JFileChooser();
+            projectFilter = new FileNameExtensionFilter("Projects with styles and shapes (*" + ProjectFile.EXTENSION + ")",
+                    ProjectFile.EXTENSION.substring(1));
+            fileChooser.addChoosableFileFilter(new FileNameExtensionFilter("Text files (*.txt)", "txt"));
+            fileChooser.addChoosableFileFilter(projectFilter);
+            fileChooser.setFileFilter(fileChooser.getAcceptAllFileFilter());
+        }
+        return fileChooser;
+    }
+
+    // Reports how long the launch took, up to the first paint of the window
+    private void reportStartup() {
+        long editorMillis = (System.nanoTime() - Main.START_NANOS) / 1_000_000;
+        long jvmMillis = ProcessHandle.current().info().startInstant()
+                .map(launch -> Math.max(0, Main.START_MILLIS - launch.toEpochMilli())).orElse(-1L);
+        String text = jvmMillis < 0
+                ? String.format("First frame shown %,d ms after start", editorMillis)
+                : String.format("First frame shown %,d ms after launch (JVM %,d ms, editor %,d ms)",
+                jvmMillis + editorMillis, jvmMillis, editorMillis);
+        Diagnostics.record("Launch to first frame", (Math.max(jvmMillis, 0) + editorMillis) * 1_000_000);
+        Diagnostics.log(text);
+        statusBar.setMessage(text);
+        if (Boolean.getBoolean("texteditor.exitAfterStartup")) {
+            closeWindow(); // For recording a class data sharing archive, see the README
+        }
+    }
+
+    private static Action action(Runnable run) {
+        return new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                run.run();
+            }
+        };
+    }
+
     private void setupMenu() {
         JMenuBar menuBar = new JMenuBar();
 
@@ -64,32 +261,51 @@ public class NewTextEditor extends JFrame {
         JMenuItem newItem = new JMenuItem("New");
         JMenuItem openItem = new JMenuItem("Open");
         JMenuItem saveItem = new JMenuItem("Save");
+        JMenuItem exportItem = new JMenuItem("Export Canvas...");
+        JMenuItem closeTabItem = new JMenuItem("Close Tab");
         fileMenu.add(newItem);
         fileMenu.addSeparator();
         fileMenu.add(openItem);
         fileMenu.addSeparator();
         fileMenu.add(saveItem);
+        fileMenu.addSeparator();
+        fileMenu.add(exportItem);
+        fileMenu.addSeparator();
+        fileMenu.add(closeTabItem);
         menuBar.add(fileMenu);
 
-        newItem.addActionListener(e -> openNewFile());
+        newItem.addActionListener(e -> newTab());
         openItem.addActionListener(e -> openFile());
         saveItem.addActionListener(e -> saveFile());
+        exportItem.addActionListener(e -> exportCanvas());
+        closeTabItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_W, InputEvent.CTRL_DOWN_MASK));
+        closeTabItem.addActionListener(e -> closeTab());
 
         // Edit Menu
         JMenu editMenu = new JMenu("    Edit    ");
+        JMenuItem undoItem = new JMenuItem("Undo");
+        JMenuItem redoItem = new JMenuItem("Redo");
         JMenuItem cutItem = new JMenuItem("Cut");
         JMenuItem copyItem = new JMenuItem("Copy");
         JMenuItem pasteItem = new JMenuItem("Paste");
+        JMenuItem pasteHistoryItem = new JMenuItem("Paste from History");
+        JMenuItem findItem = new JMenuItem("Find");
         JMenuItem findReplaceFirstItem = new JMenuItem("Find & Replace First");
         JMenuItem findReplaceItem = new JMenuItem("Find & Replace All");
         JMenuItem wordCountItem = new JMenuItem("Word Count");
         JMenuItem charCountItem = new JMenuItem("Character Count");
 
+        editMenu.add(undoItem);
+        editMenu.add(redoItem);
+        editMenu.addSeparator();
         editMenu.add(cutItem);
         editMenu.addSeparator();
         editMenu.add(copyItem);
         editMenu.addSeparator();
         editMenu.add(pasteItem);
+        editMenu.add(pasteHistoryItem);
+        editMenu.addSeparator();
+        editMenu.add(findItem);
         editMenu.addSeparator();
         editMenu.add(findReplaceFirstItem);
         editMenu.addSeparator();
@@ -100,9 +316,37 @@ public class NewTextEditor extends JFrame {
         editMenu.add(charCountItem);
         menuBar.add(editMenu);
 
+        undoItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Z, InputEvent.CTRL_DOWN_MASK));
+        redoItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Y, InputEvent.CTRL_DOWN_MASK));
+        undoItem.addActionListener(e -> undo());
+        redoItem.addActionListener(e -> redo());
+        editMenu.addMenuListener(new MenuListener() {
+            @Override
+            public void menuSelected(MenuEvent e) {
+                // The items stay enabled so their shortcuts always reach undo() and redo()
+                undoItem.setText(history.canUndo() ? history.getUndoPresentationName() : "Undo");
+                redoItem.setText(history.canRedo() ? history.getRedoPresentationName() : "Redo");
+            }
+
+            @Override
+            public void menuDeselected(MenuEvent e) {
+            }
+
+            @Override
+            public void menuCanceled(MenuEvent e) {
+            }
+        });
         cutItem.addActionListener(e -> cutText());
         copyItem.addActionListener(e -> copyText());
         pasteItem.addActionListener(e -> pasteText());
+        pasteHistoryItem.addActionListener(e -> pasteFromHistory());
+        cutItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_X, InputEvent.CTRL_DOWN_MASK));
+        copyItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_C, InputEvent.CTRL_DOWN_MASK));
+        pasteItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_V, InputEvent.CTRL_DOWN_MASK));
+        pasteHistoryItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_V,
+                InputEvent.CTRL_DOWN_MASK | InputEvent.SHIFT_DOWN_MASK));
+        findItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F, InputEvent.CTRL_DOWN_MASK));
+        findItem.addActionListener(e -> findBar.open());
         findReplaceFirstItem.addActionListener(e -> findAndReplaceFirst());
         findReplaceItem.addActionListener(e -> findAndReplace());
         wordCountItem.addActionListener(e -> wordCount());
@@ -114,7 +358,8 @@ public class NewTextEditor extends JFrame {
         JMenuItem fontSize = new JMenuItem("Font Size");
         JMenuItem fontStyle = new JMenuItem("Font Style");
         JMenuItem fontColour = new JMenuItem("Font Colour");
-        JMenuItem changeCaseItem = new JMenuItem("Text Case");
+        JMenuItem transformItem = new JMenuItem("Transform Text");
+        JMenuItem styleRunsItem = new JMenuItem("Style Runs");
 
         formatMenu.add(fontItem);
         formatMenu.addSeparator();
@@ -124,17 +369,51 @@ public class NewTextEditor extends JFrame {
         formatMenu.addSeparator();
         formatMenu.add(fontColour);
         formatMenu.addSeparator();
-        formatMenu.add(changeCaseItem);
+        formatMenu.add(transformItem);
+        formatMenu.addSeparator();
+        formatMenu.add(styleRunsItem);
         menuBar.add(formatMenu);
 
         fontItem.addActionListener(e -> changeFontName());
         fontStyle.addActionListener(e -> changeFontStyle());
         fontSize.addActionListener(e -> changeFontSize());
         fontColour.addActionListener(e -> changeFontColour());
-        changeCaseItem.addActionListener(e -> changeTextCase());
+        transformItem.addActionListener(e -> transformText());
+        styleRunsItem.addActionListener(e -> showStyleRuns());
+
+        // View Menu
+        JMenu viewMenu = new JMenu("    View    ");
+        JMenuItem diagnosticsItem = new JMenuItem("Diagnostics");
+        viewMenu.add(diagnosticsItem);
+        JMenu themeMenu = new JMenu("Theme");
+        viewMenu.add(themeMenu);
+        JMenu highlightingMenu = new JMenu("Highlighting");
+        viewMenu.add(highlightingMenu);
+        menuBar.add(viewMenu);
+
+        diagnosticsItem.addActionListener(e -> showDiagnostics());
+        highlightingMenu.addMenuListener(new MenuListener() {
+            public void menuSelected(MenuEvent e) {
+                fillHighlightingMenu(highlightingMenu);
+            }
+            public void menuDeselected(MenuEvent e) {
+            }
+            public void menuCanceled(MenuEvent e) {
+            }
+        });
+        // Lists the theme files each time, so a file added or edited shows up without a restart
+        themeMenu.addMenuListener(new MenuListener() {
+            public void menuSelected(MenuEvent e) {
+                fillThemeMenu(themeMenu);
+            }
+            public void menuDeselected(MenuEvent e) {
+            }
+            public void menuCanceled(MenuEvent e) {
+            }
+        });
 
         JButton toggleDarkModeButton = new JButton("Toggle Dark Mode");
-        toggleDarkModeButton.setFont(new Font("Segoe UI", Font.PLAIN, 16));
+        toggleDarkModeButton.setFont(new Font(uiFont, Font.PLAIN, 16));
         toggleDarkModeButton.addActionListener(e -> toggleDarkMode());
         toggleDarkModeButton.setFocusPainted(false);
         toggleDarkModeButton.setBorderPainted(false); // Remove button border
@@ -144,18 +423,25 @@ public class NewTextEditor extends JFrame {
         menuBar.add(toggleDarkModeButton);
 
         setJMenuBar(menuBar);
+        Diagnostics.instrument(menuBar); // Times every menu action under its label
+        themes.registerMenus(menuBar);
 
-        Font menuFont = new Font("Segoe UI", Font.BOLD, 16);
+        Font menuFont = new Font(uiFont, Font.BOLD, 16);
         fileMenu.setFont(menuFont);
         editMenu.setFont(menuFont);
         formatMenu.setFont(menuFont);
-        Font itemFont = new Font("Segoe UI", Font.PLAIN, 14);
+        viewMenu.setFont(menuFont);
+        Font itemFont = new Font(uiFont, Font.PLAIN, 14);
         newItem.setFont(itemFont);
         saveItem.setFont(itemFont);
+        exportItem.setFont(itemFont);
         openItem.setFont(itemFont);
+        closeTabItem.setFont(itemFont);
         cutItem.setFont(itemFont);
         copyItem.setFont(itemFont);
         pasteItem.setFont(itemFont);
+        pasteHistoryItem.setFont(itemFont);
+        findItem.setFont(itemFont);
         findReplaceFirstItem.setFont(itemFont);
         findReplaceItem.setFont(itemFont);
         wordCountItem.setFont(itemFont);
@@ -164,159 +450,1104 @@ public class NewTextEditor extends JFrame {
         fontSize.setFont(itemFont);
         fontStyle.setFont(itemFont);
         fontColour.setFont(itemFont);
-        changeCaseItem.setFont(itemFont);
+        transformItem.setFont(itemFont);
+        styleRunsItem.setFont(itemFont);
+        diagnosticsItem.setFont(itemFont);
     }
 
-    private void openNewFile() {
-        int choice = JOptionPane.showConfirmDialog(
-                this,
-                "Do you want to save the current file before opening a new one?",
-                "Save File",
-                JOptionPane.YES_NO_CANCEL_OPTION,
-                JOptionPane.WARNING_MESSAGE
-        );
+    private void showDiagnostics() {
+        if (diagnosticsDialog == null) {
+            diagnosticsDialog = new JDialog(this, "Diagnostics", false);
+            diagnosticsDialog.add(new DiagnosticsPanel());
+            diagnosticsDialog.pack();
+            diagnosticsDialog.setLocationRelativeTo(this);
+        }
+        diagnosticsDialog.setVisible(true);
+    }
 
-        if (choice == JOptionPane.YES_OPTION) {
-            saveFile();
-        } else if (choice == JOptionPane.CANCEL_OPTION || choice == JOptionPane.CLOSED_OPTION) {
-            return; // Exit the function if user cancels
+    // Opens an empty untitled document in a tab of its own
+    private void newTab() {
+        if (isBusy()) {
+            statusBar.setMessage("Wait for the current file operation to finish before opening a tab.");
+            return;
         }
+        parkActive();
+        DocumentTab tab = new DocumentTab(null);
+        addTab(tab);
+        selectTab(tab);
+        activeTab = tab;
+        showBlank(tab);
+        startJournal(null, null);
+    }
 
-        // Clear the text component
-        textPane.setText("");
-        setTitle("Text Editor with Shapes");
+    private void addTab(DocumentTab tab) {
+        tabs.add(tab);
+        updatingTabs = true;
+        tabBar.addTab(tab.getTitle(), null);
+        updatingTabs = false;
     }
 
-    private void openFile() {
-        if (fileChooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
-            try {
-                File selectedFile = fileChooser.getSelectedFile();
-                BufferedReader reader = new BufferedReader(new FileReader(selectedFile));
-                StringBuilder content = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    content.append(line).append("\n");
+    private void selectTab(DocumentTab tab) {
+        updatingTabs = true;
+        tabBar.setSelectedIndex(tabs.indexOf(tab));
+        updatingTabs = false;
+    }
+
+    // Loads, saves and restores work on the active tab, so it stays put until they are done
+    private boolean isBusy() {
+        return fileLoader != null || (fileSaver != null && !fileSaver.isDone())
+                || (projectWorker != null && !projectWorker.isDone()) || !textPane.isEditable();
+    }
+
+    @SuppressWarnings("try")
+    private void tabSelected() {
+        DocumentTab target = tabs.get(tabBar.getSelectedIndex());
+        if (target == activeTab) {
+            return;
+        }
+        if (isBusy()) {
+            selectTab(activeTab);
+            statusBar.setMessage("Wait for the current file operation to finish before switching tabs.");
+            return;
+        }
+        try (Diagnostics.Timing ignored = Diagnostics.start("Switch tab")) {
+            parkActive();
+            activate(target);
+        }
+        evictTabs();
+    }
+
+    // Shows a tab in whatever form it was parked in. The active tab must have been parked or
+    // closed already.
+    private void activate(DocumentTab tab) {
+        activeTab = tab;
+        tab.lastUsedNanos = System.nanoTime();
+        // Still being written out: the tab keeps its document, and finishEviction throws away
+        // what was written once it sees the tab no longer waits for it
+        tab.eviction = null;
+        if (tab.isLoaded()) {
+            history = tab.history;
+            canvas.addUndoableEditListener(history);
+            showDocument(tab.document);
+            canvas.swapShapes(tab.shapes);
+            restoreSaveState(tab);
+            tab.unload(); // The editor's fields hold it from here on
+            startJournal(currentFile, journalBase());
+        } else if (tab.evicted != null) {
+            restoreTab(tab);
+        } else if (tab.file != null) {
+            showBlank(tab);
+            if (ProjectFile.isProject(tab.file.toPath())) {
+                openProject(tab.file);
+            } else {
+                loadFile(tab.file);
+            }
+        } else {
+            showBlank(tab);
+            startJournal(null, null);
+        }
+    }
+
+    // Moves the active tab's state out of the editor and into the tab
+    private void parkActive() {
+        DocumentTab tab = activeTab;
+        detachActive();
+        tab.document = textPane.getStyledDocument();
+        tab.history = history;
+        tab.file = currentFile;
+        tab.savedFile = savedFile;
+        tab.project = project;
+        tab.documentModified = documentRevision != savedRevision;
+        tab.textModified = textRevision != savedTextRevision;
+        tab.shapesModified = canvas.getRevision() != savedShapesRevision;
+        tab.shapes = canvas.swapShapes(new ShapeIndex());
+        tab.caret = textPane.getCaretPosition();
+        JViewport viewport = (JViewport) SwingUtilities.getAncestorOfClass(JViewport.class, textPane);
+        tab.viewPosition = viewport != null ? viewport.getViewPosition() : null;
+        tab.lastUsedNanos = System.nanoTime();
+    }
+
+    // Disconnects the active tab's document and history from the editor
+    private void detachActive() {
+        stopJournal(false);
+        Document doc = textPane.getDocument();
+        doc.removeDocumentListener(revisionTracker);
+        doc.removeUndoableEditListener(history);
+        canvas.removeUndoableEditListener(history);
+    }
+
+    // The revisions only ever go up, so work started before a switch (a transform, say) can
+    // tell that the document it was started on is no longer shown
+    private void restoreSaveState(DocumentTab tab) {
+        currentFile = tab.file;
+        savedFile = tab.savedFile;
+        project = tab.project;
+        savedRevision = tab.documentModified ? -1 : documentRevision;
+        savedTextRevision = tab.textModified ? -1 : textRevision;
+        savedShapesRevision = tab.shapesModified ? -1 : canvas.getRevision();
+        updateTitle();
+        int caret = Math.min(tab.caret, textPane.getDocument().getLength());
+        textPane.setCaretPosition(caret);
+        Point viewPosition = tab.viewPosition;
+        if (viewPosition != null) {
+            // Once the new document has been laid out
+            SwingUtilities.invokeLater(() -> {
+                JViewport viewport = (JViewport) SwingUtilities.getAncestorOfClass(JViewport.class, textPane);
+                if (viewport != null) {
+                    viewport.setViewPosition(viewPosition);
                 }
-                reader.close();
-                textPane.setText(content.toString());
-            } catch (IOException ex) {
-                JOptionPane.showMessageDialog(this,
-                        "Error reading file: " + ex.getMessage(),
-                        "File Open Error",
-                        JOptionPane.ERROR_MESSAGE);
+            });
+        }
+    }
+
+    // Gives the active tab an empty document, canvas and history, ready to be loaded into. It is
+    // titled after the file while that is read, and saving waits until the read is done.
+    private void showBlank(DocumentTab tab) {
+        history = new EditHistory(UNDO_BYTES);
+        canvas.addUndoableEditListener(history);
+        showDocument(PieceTableContent.newDocument());
+        canvas.swapShapes(new ShapeIndex());
+        currentFile = tab.file;
+        savedFile = null;
+        project = null;
+        updateTitle();
+    }
+
+    // A document that was only partly read in must not be saved over the file it came from, so
+    // it stays open as an untitled document
+    private void leaveUntitled() {
+        currentFile = null;
+        savedFile = null;
+        project = null;
+        updateTitle();
+    }
+
+    // The file the journal can start from, if the active tab is exactly what it holds
+    private Path journalBase() {
+        if (savedFile == null || hasUnsavedChanges() || (project == null && canvas.getShapeCount() > 0)) {
+            return null;
+        }
+        return savedFile.toPath();
+    }
+
+    // Reads an evicted tab back in the background. Like a project, it opens read-only until the
+    // document is complete.
+    private void restoreTab(DocumentTab tab) {
+        showBlank(tab);
+        textPane.setEditable(false);
+        Path evicted = tab.evicted;
+        String title = tab.getTitle(); // A restore that fails leaves the tab untitled
+        long startNanos = System.nanoTime();
+        statusBar.startProgress("Restoring " + title + "...", null);
+        projectWorker = new SwingWorker<>() {
+            private StyledDocument doc;
+            private Shape[] shapes;
+
+            @Override
+            protected ProjectFile doInBackground() throws IOException {
+                ProjectFile stored = ProjectFile.open(evicted);
+                doc = stored.readDocument();
+                shapes = stored.readShapes();
+                return stored;
+            }
+
+            @Override
+            protected void done() {
+                textPane.setEditable(true);
+                try {
+                    get();
+                    tab.format.applyTo(doc); // Saving goes on in the file's encoding and line endings
+                    installDocument(doc);
+                    canvas.setShapes(shapes);
+                    restoreSaveState(tab);
+                    tab.deleteEvicted();
+                    startJournal(currentFile, null);
+                    statusBar.stopProgress(String.format("Restored %s in %d ms", tab.getTitle(),
+                            (System.nanoTime() - startNanos) / 1_000_000));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException ex) {
+                    statusBar.stopProgress(" ");
+                    leaveUntitled();
+                    startJournal(null, null);
+                    JOptionPane.showMessageDialog(NewTextEditor.this,
+                            "Error restoring " + title + ": " + ex.getCause().getMessage()
+                                    + "\nIts contents were kept in " + evicted,
+                            "Tab Restore Error",
+                            JOptionPane.ERROR_MESSAGE);
+                    tab.evicted = null;
+                }
+            }
+        };
+        projectWorker.execute();
+    }
+
+    // Keeps at most MAX_LOADED_TABS tabs in memory and, while the heap is filling up, evicts
+    // the ones that have been idle for a while. A tab its file still matches is just dropped;
+    // the rest are written out in the background.
+    private void evictTabs() {
+        List<DocumentTab> loaded = new ArrayList<>();
+        for (DocumentTab tab : tabs) {
+            if (tab != activeTab && tab.isLoaded() && tab.eviction == null) {
+                loaded.add(tab);
+            }
+        }
+        loaded.sort(Comparator.comparingLong(tab -> tab.lastUsedNanos));
+        int excess = loaded.size() + 1 - MAX_LOADED_TABS;
+        Runtime runtime = Runtime.getRuntime();
+        boolean pressure = runtime.totalMemory() - runtime.freeMemory() > runtime.maxMemory() * MEMORY_PRESSURE;
+        long now = System.nanoTime();
+        for (DocumentTab tab : loaded) {
+            if (excess-- > 0 || (pressure && now - tab.lastUsedNanos > IDLE_TAB_NANOS)) {
+                evict(tab);
             }
         }
     }
 
-    private void saveFile() {
-        if (fileChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
-            try {
-                File selectedFile = fileChooser.getSelectedFile();
+    private void evict(DocumentTab tab) {
+        if (tab.matchesFile()) {
+            tab.unload();
+            return;
+        }
+        SwingWorker<Path, Void> eviction;
+        try {
+            eviction = tab.evict();
+        } catch (BadLocationException ex) {
+            return; // Stays loaded
+        }
+        tab.eviction = eviction;
+        eviction.addPropertyChangeListener(e -> {
+            if (eviction.isDone() && "state".equals(e.getPropertyName())) {
+                finishEviction(tab, eviction);
+            }
+        });
+        eviction.execute();
+    }
+
+    private void finishEviction(DocumentTab tab, SwingWorker<Path, Void> eviction) {
+        Path written;
+        try {
+            written = eviction.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException ex) {
+            if (tab.eviction == eviction) {
+                tab.eviction = null;
+                statusBar.setMessage("Couldn't move " + tab.getTitle() + " out of memory: " + ex.getCause().getMessage());
+            }
+            return;
+        }
+        if (tab.eviction != eviction) {
+            // The tab was shown again while it was being written, and kept its document
+            deleteQuietly(written);
+            return;
+        }
+        tab.eviction = null;
+        tab.evicted = written;
+        tab.unload();
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            // Left in ~/.texteditor/tabs; it isn't referred to again
+        }
+    }
+
+    // Closes the active tab, showing its neighbour, or leaves an empty untitled tab if it was the
+    // only one
+    private void closeTab() {
+        if (isBusy()) {
+            statusBar.setMessage("Wait for the current file operation to finish before closing the tab.");
+            return;
+        }
+        if (hasUnsavedChanges() && JOptionPane.showConfirmDialog(this,
+                "Close " + activeTab.getTitle() + " without saving?", "Close Tab",
+                JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE) != JOptionPane.YES_OPTION) {
+            return;
+        }
+        int index = tabs.indexOf(activeTab);
+        detachActive();
+        if (tabs.size() == 1) {
+            activeTab.file = null;
+            showBlank(activeTab);
+            startJournal(null, null);
+            return;
+        }
+        tabs.remove(index);
+        updatingTabs = true;
+        tabBar.removeTabAt(index);
+        updatingTabs = false;
+        DocumentTab next = tabs.get(Math.min(index, tabs.size() - 1));
+        selectTab(next);
+        activate(next);
+    }
+
+    // Asks before dropping unsaved changes in tabs other than the active one, which the journal
+    // keeps for the next start
+    private void closeWindow() {
+        long unsaved = tabs.stream().filter(tab -> tab != activeTab && tab.hasUnsavedChanges()).count();
+        if (unsaved > 0 && JOptionPane.showConfirmDialog(this,
+                unsaved + (unsaved == 1 ? " other tab has" : " other tabs have") + " unsaved changes. Close anyway?",
+                "Close", JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE) != JOptionPane.YES_OPTION) {
+            return;
+        }
+        stopJournal(hasUnsavedChanges());
+        for (DocumentTab tab : tabs) {
+            tab.deleteEvicted();
+        }
+        dispose();
+        System.exit(0);
+    }
+
+    // Shows the active tab's file in the title bar and on its tab
+    private void updateTitle() {
+        setTitle("Text Editor with Shapes" + (currentFile != null ? " - " + currentFile.getName() : ""));
+        if (activeTab != null) {
+            activeTab.file = currentFile;
+            int index = tabs.indexOf(activeTab);
+            tabBar.setTitleAt(index, activeTab.getTitle());
+            tabBar.setToolTipTextAt(index, currentFile != null ? currentFile.getAbsolutePath() : null);
+        }
+        updateHighlighting();
+    }
+
+    // Highlights the document as its file name suggests, unless a highlighting was picked for it
+    private void updateHighlighting() {
+        if (textPane.getDocument().getProperty(CHOSEN_HIGHLIGHTING) == null) {
+            SyntaxHighlighter.install(textPane, currentFile != null ? Lexer.forFile(currentFile.getName()) : null);
+        }
+    }
+
+    private void fillHighlightingMenu(JMenu menu) {
+        menu.removeAll();
+        Document doc = textPane.getDocument();
+        boolean chosen = doc.getProperty(CHOSEN_HIGHLIGHTING) != null;
+        SyntaxHighlighter highlighter = SyntaxHighlighter.of(doc);
+        Lexer current = highlighter != null ? highlighter.getLexer() : null;
+        JRadioButtonMenuItem byName = new JRadioButtonMenuItem("By File Name", !chosen);
+        byName.addActionListener(e -> {
+            doc.putProperty(CHOSEN_HIGHLIGHTING, null);
+            updateHighlighting();
+        });
+        menu.add(byName);
+        menu.addSeparator();
+        List<Lexer> choices = new ArrayList<>();
+        choices.add(null);
+        choices.addAll(Lexer.all());
+        for (Lexer lexer : choices) {
+            JRadioButtonMenuItem item = new JRadioButtonMenuItem(lexer != null ? lexer.getName() : "None",
+                    chosen && lexer == current);
+            item.addActionListener(e -> {
+                doc.putProperty(CHOSEN_HIGHLIGHTING, Boolean.TRUE);
+                SyntaxHighlighter.install(textPane, lexer);
+            });
+            menu.add(item);
+        }
+    }
+
+    // Puts a new document into the text pane and moves the editor's listeners over to it
+    private void installDocument(StyledDocument doc) {
+        stopJournal(false);
+        Document oldDoc = textPane.getDocument();
+        oldDoc.removeDocumentListener(revisionTracker);
+        oldDoc.removeUndoableEditListener(history);
+        // Edits recorded against the old document can't be applied to the new one
+        history.discardAllEdits();
+        showDocument(doc);
+    }
+
+    // Puts a document into the text pane along with the current history, which must be the
+    // document's own
+    private void showDocument(StyledDocument doc) {
+        ThemeRegistry.setDocument(textPane, doc); // In the theme's text color, which isn't an edit
+        doc.addDocumentListener(revisionTracker);
+        documentRevision++;
+        textRevision++;
+        engine = new EditorEngine(doc, history);
+        doc.addUndoableEditListener(history);
+        statistics.setDocument(doc);
+        findBar.setDocument(doc);
+    }
+
+    // Journals the document and canvas from here on. base holds them as they are now, or is
+    // null to have the journal write a checkpoint of its own.
+    private void startJournal(File file, Path base) {
+        stopJournal(false);
+        try {
+            journal = EditJournal.open(EditJournal.prefixFor(file), textPane.getStyledDocument(), canvas, file, base,
+                    statusBar::setMessage);
+        } catch (IOException ex) {
+            statusBar.setMessage("Edits won't be journaled: " + ex.getMessage());
+        }
+    }
+
+    // With keep, the journal is left behind for the next start to restore
+    private void stopJournal(boolean keep) {
+        if (journal != null) {
+            journal.close(keep);
+            journal = null;
+        }
+    }
+
+    private boolean hasUnsavedChanges() {
+        if (savedFile == null) {
+            return textPane.getDocument().getLength() > 0 || canvas.getShapeCount() > 0;
+        }
+        return documentRevision != savedRevision || (project != null && canvas.getRevision() != savedShapesRevision);
+    }
+
+    private void restoreSession() {
+        Path pending = EditJournal.pendingSession();
+        if (pending == null) {
+            startJournal(null, null);
+            return;
+        }
+        textPane.setEditable(false);
+        statusBar.startProgress("Restoring the previous session...", null);
+        long startNanos = System.nanoTime();
+        new SwingWorker<EditJournal.Recovered, Void>() {
+            @Override
+            protected EditJournal.Recovered doInBackground() throws IOException {
+                return EditJournal.recover(pending);
+            }
 
-                // Ensure the file has a .txt extension if no extension is specified
-                if (!selectedFile.getName().toLowerCase().endsWith(".txt")) {
-                    selectedFile = new File(selectedFile.getAbsolutePath() + ".txt");
+            @Override
+            protected void done() {
+                textPane.setEditable(true);
+                try {
+                    EditJournal.Recovered recovered = get();
+                    installDocument(recovered.document());
+                    canvas.setShapes(recovered.shapes());
+                    currentFile = recovered.file();
+                    savedFile = null; // Nothing restored is saved yet
+                    project = null;
+                    updateTitle();
+                    startJournal(currentFile, null);
+                    statusBar.stopProgress(String.format("Restored %,d journaled edits in %d ms",
+                            recovered.edits(), (System.nanoTime() - startNanos) / 1_000_000));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException ex) {
+                    statusBar.stopProgress("Couldn't restore the previous session: " + ex.getCause().getMessage());
+                    startJournal(null, null);
                 }
+            }
+        }.execute();
+    }
 
-                BufferedWriter writer = new BufferedWriter(new FileWriter(selectedFile));
-                writer.write(textPane.getText());
-                writer.close();
+    private void refreshStatistics() {
+        String text = String.format("Words: %,d   Characters: %,d   Lines: %,d",
+                statistics.getWords(), statistics.getCharacters(), statistics.getLines());
+        if (statistics.getSelectionCharacters() > 0) {
+            text += String.format("   Selected: %,d words, %,d characters, %,d lines",
+                    statistics.getSelectionWords(), statistics.getSelectionCharacters(), statistics.getSelectionLines());
+        }
+        statusBar.setStatistics(text);
+    }
 
-                JOptionPane.showMessageDialog(this,
-                        "File saved successfully!",
-                        "Save Successful",
-                        JOptionPane.INFORMATION_MESSAGE);
-            } catch (IOException ex) {
+    // Each file opens in a tab of its own. Only the first is read now; the others are read when
+    // their tab is first shown.
+    private void openFile() {
+        if (isBusy()) {
+            statusBar.setMessage("Wait for the current file operation to finish before opening more files.");
+            return;
+        }
+        JFileChooser chooser = fileChooser();
+        chooser.setMultiSelectionEnabled(true);
+        int choice = chooser.showOpenDialog(this);
+        chooser.setMultiSelectionEnabled(false);
+        if (choice != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        // A blank untitled tab gives way to the files rather than staying open next to them
+        DocumentTab blank = currentFile == null && !hasUnsavedChanges() ? activeTab : null;
+        DocumentTab first = null;
+        for (File selected : chooser.getSelectedFiles()) {
+            DocumentTab tab = tabs.stream().filter(t -> selected.equals(t == activeTab ? currentFile : t.file))
+                    .findFirst().orElse(null);
+            if (tab == null) {
+                tab = new DocumentTab(selected);
+                addTab(tab);
+            }
+            if (first == null) {
+                first = tab;
+            }
+        }
+        if (first == null || first == activeTab) {
+            return;
+        }
+        parkActive();
+        selectTab(first);
+        activate(first);
+        if (blank != null) {
+            int index = tabs.indexOf(blank);
+            tabs.remove(index);
+            updatingTabs = true;
+            tabBar.removeTabAt(index);
+            updatingTabs = false;
+        }
+        evictTabs();
+    }
+
+    private void loadFile(File selectedFile) {
+        // Loaded chunks become immutable pieces of the new document, so nothing is copied twice
+        StyledDocument doc = PieceTableContent.newDocument();
+        installDocument(doc);
+        doc.removeUndoableEditListener(history); // Loading isn't an undoable edit
+        textPane.setEditable(false);
+        DefaultCaret caret = (DefaultCaret) textPane.getCaret();
+        caret.setUpdatePolicy(DefaultCaret.NEVER_UPDATE); // Keep the view at the top while loading
+
+        FileLoader loader = new FileLoader(selectedFile.toPath(), textPane, doc, null); // Detects the encoding
+        fileLoader = loader;
+        statusBar.startProgress("Opening " + selectedFile.getName() + "...", () -> loader.cancel(true));
+        loader.addPropertyChangeListener(e -> {
+            if (loader != fileLoader) {
+                return;
+            }
+            if ("progress".equals(e.getPropertyName())) {
+                statusBar.setProgress((Integer) e.getNewValue());
+            } else if ("firstPaint".equals(e.getPropertyName())) {
+                statusBar.setMessage("Opening " + selectedFile.getName() + "... (first paint after " + e.getNewValue() + " ms)");
+            } else if (loader.isDone() && "state".equals(e.getPropertyName())) {
+                finishOpen(loader, selectedFile);
+            }
+        });
+        loader.execute();
+    }
+
+    private void finishOpen(FileLoader loader, File file) {
+        fileLoader = null;
+        textPane.getDocument().addUndoableEditListener(history);
+        textPane.setEditable(true);
+        ((DefaultCaret) textPane.getCaret()).setUpdatePolicy(DefaultCaret.UPDATE_WHEN_ON_EDT);
+        try {
+            loader.get();
+            currentFile = file;
+            savedFile = file;
+            savedRevision = documentRevision;
+            project = null;
+            updateTitle();
+            startJournal(file, file.toPath());
+            statusBar.stopProgress(String.format("Opened %s (%.1f MB, %s) in %d ms, first paint after %d ms",
+                    file.getName(), loader.getFileSize() / (1024.0 * 1024.0), loader.getFormat().describe(),
+                    loader.getElapsedMillis(), loader.getFirstPaintMillis()));
+        } catch (CancellationException ex) {
+            leaveUntitled();
+            startJournal(null, null);
+            statusBar.stopProgress("Open cancelled, " + file.getName() + " is only partially loaded.");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            leaveUntitled();
+            startJournal(null, null);
+            statusBar.stopProgress(" ");
+            JOptionPane.showMessageDialog(this,
+                    "Error reading file: " + ex.getCause().getMessage(),
+                    "File Open Error",
+                    JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    private void saveFile() {
+        if (isBusy()) {
+            statusBar.setMessage("Wait for the current file operation to finish before saving.");
+            return;
+        }
+        JFileChooser chooser = fileChooser();
+        if (currentFile != null) {
+            chooser.setSelectedFile(currentFile);
+        }
+        if (chooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+            File selectedFile = chooser.getSelectedFile();
+
+            // Ensure the file has a .txt extension if no extension is specified, or the project
+            // extension when saving as a project
+            boolean asProject = ProjectFile.isProject(selectedFile.toPath()) || chooser.getFileFilter() == projectFilter;
+            String extension = asProject ? ProjectFile.EXTENSION : ".txt";
+            if (!selectedFile.getName().toLowerCase().endsWith(extension)) {
+                selectedFile = new File(selectedFile.getAbsolutePath() + extension);
+            }
+
+            // Text files don't keep the shapes, so only projects have to look at the canvas
+            if (selectedFile.equals(savedFile) && documentRevision == savedRevision
+                    && (!asProject || canvas.getRevision() == savedShapesRevision)) {
+                statusBar.setMessage("No changes to save in " + selectedFile.getName());
+                return;
+            }
+            if (asProject) {
+                saveProject(selectedFile);
+                return;
+            }
+
+            // Snapshot on the EDT; the text is encoded and written in the background
+            File target = selectedFile;
+            FileSaver saver;
+            try {
+                saver = engine.saver(target.toPath());
+            } catch (BadLocationException ex) {
                 JOptionPane.showMessageDialog(this,
                         "Error saving file: " + ex.getMessage(),
                         "File Save Error",
                         JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            long revision = documentRevision;
+            EditJournal saving = journal; // Continues from the saved file once it is on disk
+            long segment = saving != null ? saving.rebase(target.toPath(), target) : -1;
+            fileSaver = saver;
+            statusBar.startProgress("Saving " + target.getName() + "...", () -> saver.cancel(true));
+            saver.addPropertyChangeListener(e -> {
+                if ("progress".equals(e.getPropertyName())) {
+                    statusBar.setProgress((Integer) e.getNewValue());
+                } else if (saver.isDone() && "state".equals(e.getPropertyName())) {
+                    finishSave(saver, target, revision, saving, segment);
+                }
+            });
+            saver.execute();
+        }
+    }
+
+    // Draws the canvas into a PNG or SVG file at a scale the user picks. The export reads a copy
+    // of the shapes in the background, so drawing can go on meanwhile.
+    private void exportCanvas() {
+        if (isBusy() || (exporter != null && !exporter.isDone())) {
+            statusBar.setMessage("Wait for the current file operation to finish before exporting.");
+            return;
+        }
+        JFileChooser chooser = new JFileChooser(fileChooser().getCurrentDirectory());
+        chooser.setDialogTitle("Export Canvas");
+        FileNameExtensionFilter png = new FileNameExtensionFilter("PNG image (*.png)", "png");
+        FileNameExtensionFilter svg = new FileNameExtensionFilter("SVG drawing (*.svg)", "svg");
+        chooser.addChoosableFileFilter(png);
+        chooser.addChoosableFileFilter(svg);
+        chooser.setFileFilter(png);
+        if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File file = chooser.getSelectedFile();
+        if (CanvasExporter.Format.of(file.toPath()) == null) {
+            file = new File(file.getPath() + (chooser.getFileFilter() == svg ? ".svg" : ".png"));
+        }
+        ShapeIndex shapes = canvas.copyShapes();
+        Rectangle region = CanvasExporter.region(shapes, canvas.getWidth(), canvas.getHeight());
+        String answer = JOptionPane.showInputDialog(this,
+                String.format("Scale (the canvas is %d x %d):", region.width, region.height), "1");
+        if (answer == null) {
+            return;
+        }
+        double scale;
+        Dimension size;
+        try {
+            scale = Double.parseDouble(answer.trim());
+            size = CanvasExporter.imageSize(region, scale);
+        } catch (IllegalArgumentException ex) {
+            JOptionPane.showMessageDialog(this,
+                    ex instanceof NumberFormatException ? "The scale must be a number." : ex.getMessage(),
+                    "Export Canvas",
+                    JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+
+        File target = file;
+        CanvasExporter export = new CanvasExporter(shapes, region, scale, canvas.getBackground(),
+                canvas.getShapeColor(), target.toPath());
+        exporter = export;
+        statusBar.startProgress("Exporting " + target.getName() + "...", () -> export.cancel(true));
+        export.addPropertyChangeListener(e -> {
+            if ("progress".equals(e.getPropertyName())) {
+                statusBar.setProgress((Integer) e.getNewValue());
+            } else if (export.isDone() && "state".equals(e.getPropertyName())) {
+                finishExport(export, target, size);
+            }
+        });
+        export.execute();
+    }
+
+    private void finishExport(CanvasExporter export, File file, Dimension size) {
+        try {
+            long bytes = export.get();
+            statusBar.stopProgress(String.format("Exported %s (%d x %d, %.1f MB) in %d ms", file.getName(),
+                    size.width, size.height, bytes / (1024.0 * 1024.0), export.getElapsedMillis()));
+        } catch (CancellationException ex) {
+            statusBar.stopProgress("Export cancelled, " + file.getName() + " was left unchanged.");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            statusBar.stopProgress(" ");
+            JOptionPane.showMessageDialog(this,
+                    "Error exporting the canvas: " + ex.getCause().getMessage(),
+                    "Export Canvas",
+                    JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    private void finishSave(FileSaver saver, File file, long revision, EditJournal saving, long segment) {
+        try {
+            saver.get();
+            if (saving == journal && saving != null) {
+                saving.confirmBase(segment);
+            }
+            currentFile = file;
+            savedFile = file;
+            savedRevision = revision;
+            project = null;
+            updateTitle();
+            statusBar.stopProgress(String.format("Saved %s (%.1f KB) in %d ms",
+                    file.getName(), saver.getBytesWritten() / 1024.0, saver.getElapsedMillis()));
+        } catch (CancellationException ex) {
+            statusBar.stopProgress("Save cancelled, " + file.getName() + " was left unchanged.");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            statusBar.stopProgress(" ");
+            JOptionPane.showMessageDialog(this,
+                    "Error saving file: " + ex.getCause().getMessage(),
+                    "File Save Error",
+                    JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    // Projects are read in the background. The document is built complete before it is shown
+    // and the shapes are decoded after that, so the text is usable while they load. Until it is
+    // shown the pane is read-only, since the document being typed into would be replaced.
+    private void openProject(File file) {
+        if (projectWorker != null && !projectWorker.isDone()) {
+            statusBar.setMessage("Another project is still being opened or saved.");
+            return;
+        }
+        textPane.setEditable(false);
+        long startNanos = System.nanoTime();
+        statusBar.startProgress("Opening " + file.getName() + "...", null);
+        projectWorker = new SwingWorker<>() {
+            private Shape[] shapes;
+
+            @Override
+            protected ProjectFile doInBackground() throws IOException {
+                ProjectFile opened = ProjectFile.open(file.toPath());
+                StyledDocument doc = opened.readDocument();
+                SwingUtilities.invokeLater(() -> showProject(opened, doc, file, startNanos));
+                shapes = opened.readShapes();
+                return opened;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    ProjectFile opened = get();
+                    canvas.setShapes(shapes);
+                    savedShapesRevision = canvas.getRevision();
+                    statusBar.stopProgress(String.format("Opened %s (%.1f MB, %,d shapes) in %d ms",
+                            file.getName(), file.length() / (1024.0 * 1024.0), shapes.length,
+                            (System.nanoTime() - startNanos) / 1_000_000));
+                    project = opened;
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException ex) {
+                    textPane.setEditable(true);
+                    statusBar.stopProgress(" ");
+                    leaveUntitled();
+                    startJournal(null, null);
+                    JOptionPane.showMessageDialog(NewTextEditor.this,
+                            "Error reading file: " + ex.getCause().getMessage(),
+                            "File Open Error",
+                            JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        };
+        projectWorker.execute();
+    }
+
+    private void showProject(ProjectFile opened, StyledDocument doc, File file, long startNanos) {
+        installDocument(doc);
+        textPane.setEditable(true);
+        currentFile = file;
+        savedFile = file;
+        savedRevision = documentRevision;
+        savedTextRevision = textRevision;
+        project = opened;
+        startJournal(file, file.toPath());
+        updateTitle();
+        statusBar.setMessage(String.format("Opening %s... (text shown after %d ms, loading shapes)",
+                file.getName(), (System.nanoTime() - startNanos) / 1_000_000));
+    }
+
+    // Saving back to the open project only appends the sections that changed since it was
+    // opened or last saved; any other target gets a complete file
+    private void saveProject(File target) {
+        ProjectFile.Snapshot snapshot;
+        try {
+            snapshot = ProjectFile.Snapshot.of(textPane.getStyledDocument(), canvas);
+        } catch (BadLocationException ex) {
+            JOptionPane.showMessageDialog(this,
+                    "Error saving file: " + ex.getMessage(),
+                    "File Save Error",
+                    JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        ProjectFile previous = target.equals(savedFile) ? project : null;
+        Set<ProjectFile.Section> changed = EnumSet.allOf(ProjectFile.Section.class);
+        if (previous != null) {
+            changed.clear();
+            if (textRevision != savedTextRevision) {
+                changed.add(ProjectFile.Section.TEXT);
+            }
+            if (documentRevision != savedRevision) { // Text edits move the style runs as well
+                changed.add(ProjectFile.Section.STYLES);
+            }
+            if (canvas.getRevision() != savedShapesRevision) {
+                changed.add(ProjectFile.Section.SHAPES);
+            }
+        }
+        long revision = documentRevision;
+        long text = textRevision;
+        long shapes = canvas.getRevision();
+        EditJournal saving = journal;
+        long segment = saving != null ? saving.rebase(target.toPath(), target) : -1;
+        long startNanos = System.nanoTime();
+        statusBar.startProgress("Saving " + target.getName() + "...", null);
+        projectWorker = new SwingWorker<>() {
+            private long bytesWritten;
+
+            @Override
+            protected ProjectFile doInBackground() throws IOException {
+                bytesWritten = ProjectFile.save(target.toPath(), snapshot, previous, changed,
+                        saving != null ? version -> saving.baseWritten(segment, version) : null);
+                return ProjectFile.open(target.toPath());
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    project = get();
+                    if (saving == journal && saving != null) {
+                        saving.confirmBase(segment);
+                    }
+                    currentFile = target;
+                    savedFile = target;
+                    savedRevision = revision;
+                    savedTextRevision = text;
+                    savedShapesRevision = shapes;
+                    updateTitle();
+                    statusBar.stopProgress(String.format("Saved %s (%.1f KB written) in %d ms",
+                            target.getName(), bytesWritten / 1024.0, (System.nanoTime() - startNanos) / 1_000_000));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException ex) {
+                    statusBar.stopProgress(" ");
+                    JOptionPane.showMessageDialog(NewTextEditor.this,
+                            "Error saving file: " + ex.getCause().getMessage(),
+                            "File Save Error",
+                            JOptionPane.ERROR_MESSAGE);
+                }
             }
+        };
+        projectWorker.execute();
+    }
+
+    // Undoing while a transform is being applied stops it first, so what it applied by then is
+    // what is undone
+    private void undo() {
+        if (stopApply != null) {
+            stopApply.accept("undone");
+        }
+        if (history.canUndo()) {
+            history.undo();
+        }
+    }
+
+    private void redo() {
+        if (history.canRedo()) {
+            history.redo();
         }
     }
 
     private void cutText() {
-        clipboard = textPane.getSelectedText();
-        if (clipboard != null) {
-            textPane.replaceSelection(""); // Removes the selected text
-        } else {
+        if (!cutSelection()) {
             JOptionPane.showMessageDialog(this, "No text selected.", "Error", JOptionPane.ERROR_MESSAGE);
         }
     }
 
     private void copyText() {
-        clipboard = textPane.getSelectedText();
-        if (clipboard == null) {
+        if (!copySelection()) {
             JOptionPane.showMessageDialog(this, "No text selected.", "Error", JOptionPane.ERROR_MESSAGE);
         }
     }
 
     private void pasteText() {
-        if (clipboard != null && !clipboard.isEmpty()) {
-            textPane.replaceSelection(clipboard); // Inserts clipboard content at the caret position
+        PieceTable.Span clip = clipboard.current();
+        if (clip != null) {
+            paste(clip);
         } else {
             JOptionPane.showMessageDialog(this, "Clipboard is empty.", "Error", JOptionPane.ERROR_MESSAGE);
         }
     }
 
-    private void findAndReplaceFirst() {
-        // Prompt user for the text to find and replace
-        String find = JOptionPane.showInputDialog(this, "Enter text to find:");
-        if (find == null || find.isEmpty()) {
-            JOptionPane.showMessageDialog(this, "No text entered.", "Error", JOptionPane.ERROR_MESSAGE);
+    // Lets the user pick any clip in the ring; the one picked becomes the newest
+    private void pasteFromHistory() {
+        clipboard.current(); // Takes in text copied in another application
+        List<PieceTable.Span> clips = clipboard.getClips();
+        if (clips.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "Clipboard is empty.", "Error", JOptionPane.ERROR_MESSAGE);
             return;
         }
+        String[] choices = new String[clips.size()];
+        for (int i = 0; i < choices.length; i++) {
+            choices[i] = String.format("%d. %s  (%,d characters)", i + 1,
+                    ClipboardRing.preview(clips.get(i), 60), clips.get(i).length());
+        }
+        String choice = (String) JOptionPane.showInputDialog(this, "Choose the text to paste:", "Paste from History",
+                JOptionPane.QUESTION_MESSAGE, null, choices, choices[0]);
+        if (choice != null) {
+            paste(clipboard.select(List.of(choices).indexOf(choice)));
+        }
+    }
 
-        String replace = JOptionPane.showInputDialog(this, "Enter text to replace with:");
-        if (replace == null) {
-            JOptionPane.showMessageDialog(this, "No replacement text entered.", "Error", JOptionPane.ERROR_MESSAGE);
-            return;
+    private boolean cutSelection() {
+        if (!copySelection()) {
+            return false;
         }
-        try {
-            // Get the document text
-            String documentText = textPane.getText();
+        history.beginGroup("Cut");
+        textPane.replaceSelection(""); // Removes the selected text
+        history.endGroup();
+        return true;
+    }
 
-            // Find the first occurrence of the text
-            int matchIndex = documentText.indexOf(find);
-            if (matchIndex != -1) {
-                // Replace the first occurrence
-                String updatedText = documentText.substring(0, matchIndex) +
-                        replace +
-                        documentText.substring(matchIndex + find.length());
+    // Adds the selection to the clipboard ring, as a span of the document rather than a copy
+    private boolean copySelection() {
+        int start = textPane.getSelectionStart();
+        int end = textPane.getSelectionEnd();
+        if (start == end) {
+            return false;
+        }
+        try {
+            clipboard.add(engine.span(start, end));
+        } catch (BadLocationException e) {
+            throw new IllegalStateException(e);
+        }
+        return true;
+    }
 
-                // Update the document
-                textPane.setText(updatedText);
+    // Replaces the selection with the clip, inserting the pieces it refers to
+    private void paste(PieceTable.Span clip) {
+        if (!textPane.isEditable()) {
+            UIManager.getLookAndFeel().provideErrorFeedback(textPane);
+            return;
+        }
+        int start = textPane.getSelectionStart();
+        int end = textPane.getSelectionEnd();
+        long startNanos = System.nanoTime();
+        try {
+            engine.paste(start, end, clip, textPane.getInputAttributes());
+        } catch (BadLocationException e) {
+            JOptionPane.showMessageDialog(this, "Error pasting text.", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        textPane.setCaretPosition(start + clip.length());
+        statusBar.setMessage(String.format("Pasted %,d characters in %d ms (%d clips, %.1f MB held)", clip.length(),
+                (System.nanoTime() - startNanos) / 1_000_000, clipboard.getClips().size(),
+                clipboard.pinnedChars() * 2 / (1024.0 * 1024.0)));
+    }
 
+    private void findAndReplaceFirst() {
+        ReplaceRequest request = promptFindReplace("Find & Replace First");
+        if (request == null) {
+            return;
+        }
+        try {
+            ReplaceEngine.Result result = engine.replaceFirst(request.pattern(), request.replacement(), request.regex());
+            if (result.count() > 0) {
                 // Highlight the replaced text
                 textPane.requestFocus();
-                textPane.select(matchIndex, matchIndex + replace.length());
+                textPane.select(result.firstStart(), result.firstEnd());
+                statusBar.setMessage("Replaced 1 occurrence in " + result.millis() + " ms");
             } else {
                 // Text not found
-                JOptionPane.showMessageDialog(this, "\"" + find + "\" not found.", "Result", JOptionPane.INFORMATION_MESSAGE);
+                JOptionPane.showMessageDialog(this, "\"" + request.find() + "\" not found.", "Result", JOptionPane.INFORMATION_MESSAGE);
             }
+        } catch (IllegalArgumentException e) {
+            JOptionPane.showMessageDialog(this, "Invalid replacement: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
         } catch (Exception e) {
             JOptionPane.showMessageDialog(this, "An error occurred during the find and replace.", "Error", JOptionPane.ERROR_MESSAGE);
         }
     }
 
     private void findAndReplace() {
-        String find = JOptionPane.showInputDialog(this, "Find:");
-        String replace = JOptionPane.showInputDialog(this, "Replace with:");
-
-        if (find != null && replace != null) {
-            String content = textPane.getText();
-            if (content.contains(find)) {
-                textPane.setText(content.replace(find, replace)); // Replaces all occurrences
+        ReplaceRequest request = promptFindReplace("Find & Replace All");
+        if (request == null) {
+            return;
+        }
+        // Keep the caret and scroll position where they were instead of jumping to the top. The
+        // caret is held as a Position so it moves with the text when earlier matches change length.
+        JViewport viewport = (JViewport) SwingUtilities.getAncestorOfClass(JViewport.class, textPane);
+        Point viewPosition = viewport != null ? viewport.getViewPosition() : null;
+        try {
+            Position caret = textPane.getDocument().createPosition(textPane.getCaretPosition());
+            ReplaceEngine.Result result = engine.replaceAll(request.pattern(), request.replacement(), request.regex());
+            if (result.count() > 0) {
+                textPane.setCaretPosition(Math.min(caret.getOffset(), textPane.getDocument().getLength()));
+                if (viewPosition != null) {
+                    viewport.setViewPosition(viewPosition);
+                }
+                statusBar.setMessage("Replaced " + result.count() + " occurrences in " + result.millis() + " ms");
             } else {
                 JOptionPane.showMessageDialog(this, "Text not found.", "Info", JOptionPane.INFORMATION_MESSAGE);
             }
+        } catch (IllegalArgumentException e) {
+            JOptionPane.showMessageDialog(this, "Invalid replacement: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        } catch (Exception e) {
+            JOptionPane.showMessageDialog(this, "An error occurred during the find and replace.", "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    private record ReplaceRequest(String find, String replacement, Pattern pattern, boolean regex) {
+    }
+
+    // Shows the find/replace dialog and returns null if it was cancelled or the input is unusable
+    private ReplaceRequest promptFindReplace(String title) {
+        JTextField findField = new JTextField(lastFind, 24);
+        JTextField replaceField = new JTextField(lastReplace, 24);
+        JCheckBox matchCaseBox = new JCheckBox("Match case", lastMatchCase);
+        JCheckBox regexBox = new JCheckBox("Regular expression", lastRegex);
+
+        JPanel panel = new JPanel(new GridLayout(0, 1, 3, 3));
+        panel.add(new JLabel("Find:"));
+        panel.add(findField);
+        panel.add(new JLabel("Replace with:"));
+        panel.add(replaceField);
+        panel.add(matchCaseBox);
+        panel.add(regexBox);
+
+        int choice = JOptionPane.showConfirmDialog(this, panel, title, JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+        if (choice != JOptionPane.OK_OPTION) {
+            return null;
+        }
+        String find = findField.getText();
+        if (find.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "No text entered.", "Error", JOptionPane.ERROR_MESSAGE);
+            return null;
+        }
+        lastFind = find;
+        lastReplace = replaceField.getText();
+        lastMatchCase = matchCaseBox.isSelected();
+        lastRegex = regexBox.isSelected();
+        try {
+            Pattern pattern = ReplaceEngine.compile(find, lastRegex, lastMatchCase);
+            return new ReplaceRequest(find, lastReplace, pattern, lastRegex);
+        } catch (PatternSyntaxException e) {
+            JOptionPane.showMessageDialog(this, "Invalid regular expression: " + e.getDescription(), "Error", JOptionPane.ERROR_MESSAGE);
+            return null;
         }
     }
 
     private void wordCount() {
-        String selectedText = textPane.getSelectedText();
-        if (selectedText != null) {
-            int wordCount = selectedText.trim().isEmpty() ? 0 : selectedText.split("\\s+").length; // Counts words
+        int start = textPane.getSelectionStart();
+        int end = textPane.getSelectionEnd();
+        if (start != end) {
+            long wordCount = statistics.countWords(start, end); // Counts words
             JOptionPane.showMessageDialog(this, "No. of Words: " + wordCount);
         } else {
             JOptionPane.showMessageDialog(this, "No text selected.", "Info", JOptionPane.INFORMATION_MESSAGE);
@@ -324,9 +1555,10 @@ public class NewTextEditor extends JFrame {
     }
 
     private void charCount() {
-        String selectedText = textPane.getSelectedText();
-        if (selectedText != null) {
-            int charCount = selectedText.length(); // Counts characters
+        int start = textPane.getSelectionStart();
+        int end = textPane.getSelectionEnd();
+        if (start != end) {
+            int charCount = end - start; // Counts characters
             JOptionPane.showMessageDialog(this, "No. of Characters: " + charCount);
         } else {
             JOptionPane.showMessageDialog(this, "No text selected.", "Info", JOptionPane.INFORMATION_MESSAGE);
@@ -334,9 +1566,19 @@ public class NewTextEditor extends JFrame {
     }
 
     private void changeFontName() {
-        // Get all available fonts
-        GraphicsEnvironment ge = GraphicsEnvironment.getLocalGraphicsEnvironment();
-        String[] fontNames = ge.getAvailableFontFamilyNames();
+        // Listed in the background at launch; the list from the last run is used until then
+        String[] fontNames = FontCatalog.families();
+        if (fontNames == null) {
+            statusBar.setMessage("Listing the installed fonts...");
+            if (!fontDialogPending) { // Asking again while they are listed still opens one dialog
+                fontDialogPending = true;
+                FontCatalog.whenListed(names -> SwingUtilities.invokeLater(() -> {
+                    fontDialogPending = false;
+                    changeFontName();
+                }));
+            }
+            return;
+        }
 
         // Show font selection dialog
         String selectedFont = (String) JOptionPane.showInputDialog(
@@ -351,13 +1593,9 @@ public class NewTextEditor extends JFrame {
 
         if (selectedFont != null) {
             // Apply font change to selected text
-            StyledDocument doc = textPane.getStyledDocument();
-            int start = textPane.getSelectionStart();
-            int end = textPane.getSelectionEnd();
-
             SimpleAttributeSet attributes = new SimpleAttributeSet();
             StyleConstants.setFontFamily(attributes, selectedFont);
-            doc.setCharacterAttributes(start, end - start, attributes, false);
+            applyStyle(attributes);
         }
     }
 
@@ -367,13 +1605,9 @@ public class NewTextEditor extends JFrame {
             try {
                 int newSize = Integer.parseInt(input);
                 if (newSize > 0) {
-                    StyledDocument doc = textPane.getStyledDocument();
-                    int start = textPane.getSelectionStart();
-                    int end = textPane.getSelectionEnd();
-
                     SimpleAttributeSet attributes = new SimpleAttributeSet();
                     StyleConstants.setFontSize(attributes, newSize);
-                    doc.setCharacterAttributes(start, end - start, attributes, false);
+                    applyStyle(attributes);
                 } else {
                     JOptionPane.showMessageDialog(this, "Font size must be positive.", "Error", JOptionPane.ERROR_MESSAGE);
                 }
@@ -402,258 +1636,197 @@ public class NewTextEditor extends JFrame {
                 default -> Font.PLAIN;
             };
 
-            StyledDocument doc = textPane.getStyledDocument();
-            int start = textPane.getSelectionStart();
-            int end = textPane.getSelectionEnd();
-
             SimpleAttributeSet attributes = new SimpleAttributeSet();
             StyleConstants.setBold(attributes, fontStyle == Font.BOLD);
             StyleConstants.setItalic(attributes, fontStyle == Font.ITALIC);
-            doc.setCharacterAttributes(start, end - start, attributes, false);
+            applyStyle(attributes);
         }
     }
 
     private void changeFontColour() {
         Color selectedColor = JColorChooser.showDialog(this, "Choose Font Colour", textPane.getForeground());
         if (selectedColor != null) {
-            StyledDocument doc = textPane.getStyledDocument();
-            int start = textPane.getSelectionStart();
-            int end = textPane.getSelectionEnd();
-
             SimpleAttributeSet attributes = new SimpleAttributeSet();
             StyleConstants.setForeground(attributes, selectedColor);
-            doc.setCharacterAttributes(start, end - start, attributes, false);
-        }
-    }
-
-    private void changeTextCase() {
-        String selectedText = textPane.getSelectedText();
-        if (selectedText != null) {
-            // Offer user the choice to convert to Uppercase or Lowercase
-            String[] options = {"Uppercase", "Lowercase"};
-            String choice = (String) JOptionPane.showInputDialog(
-                    this,
-                    "Choose case transformation:",
-                    "Change Text Case",
-                    JOptionPane.QUESTION_MESSAGE,
-                    null,
-                    options,
-                    options[0] // Default selection
-            );
-
-            if (choice != null) {
-                String transformedText = switch (choice) {
-                    case "Uppercase" -> selectedText.toUpperCase();
-                    case "Lowercase" -> selectedText.toLowerCase();
-                    default -> selectedText;
-                };
-
-                // Replace the selected text with the transformed text
-                try {
-                    int start = textPane.getSelectionStart();
-                    StyledDocument doc = textPane.getStyledDocument();
-                    doc.remove(start, selectedText.length()); // Remove original text
-                    doc.insertString(start, transformedText, textPane.getCharacterAttributes()); // Insert transformed text
-                } catch (BadLocationException e) {
-                    JOptionPane.showMessageDialog(this, "Error changing text case.", "Error", JOptionPane.ERROR_MESSAGE);
-                }
-            }
-        } else {
-            JOptionPane.showMessageDialog(this, "No text selected.", "Info", JOptionPane.INFORMATION_MESSAGE);
+            applyStyle(attributes);
         }
     }
 
-    class DrawingCanvas extends JPanel {
-        private String shapeToDraw = "CLEAR";
-        private Point startPoint, endPoint;
-        private ArrayList<Shape> shapes = new ArrayList<>();
-
-        public DrawingCanvas() {
-            setPreferredSize(new Dimension(400, 600));
-            setBackground(Color.WHITE);
-
-            // Mouse listeners for drawing
-            addMouseListener(new MouseAdapter() {
-                @Override
-                public void mousePressed(MouseEvent e) {
-                    startPoint = e.getPoint();
-                }
-
-                @Override
-                public void mouseReleased(MouseEvent e) {
-                    endPoint = e.getPoint();
-                    if (!"CLEAR".equals(shapeToDraw)) {
-                        shapes.add(createShape());
-                    }
-                    repaint();
-                }
-            });
-
-            addMouseMotionListener(new MouseAdapter() {
-                @Override
-                public void mouseDragged(MouseEvent e) {
-                    endPoint = e.getPoint();
-                    repaint();
-                }
-            });
+    // Applies attributes to the selection as one undoable step and reports how many characters
+    // were formatted and how long it took
+    private void applyStyle(AttributeSet attributes) {
+        int start = textPane.getSelectionStart();
+        int end = textPane.getSelectionEnd();
+        if (start == end) {
+            return;
         }
+        long startNanos = System.nanoTime();
+        engine.applyStyle(start, end, attributes);
+        long millis = (System.nanoTime() - startNanos) / 1_000_000;
+        statusBar.setMessage(String.format("Formatted %,d characters in %d ms", end - start, millis));
+    }
 
-        public void setShapeToDraw(String shape) {
-            this.shapeToDraw = shape;
-            if ("CLEAR".equals(shape)) {
-                shapes.clear();
-                repaint();
-            }
+    // Walks every run of the document, so it is only done when asked for
+    private void showStyleRuns() {
+        if (!(textPane.getDocument() instanceof CompactStyledDocument compact)) {
+            statusBar.setMessage("Style runs are only counted for editor documents");
+            return;
         }
+        long startNanos = System.nanoTime();
+        CompactStyledDocument.RunStatistics runs = compact.getRunStatistics();
+        statusBar.setMessage(String.format("%,d style runs, %d styles, %.1f MB (counted in %d ms)", runs.runs(),
+                runs.styles(), runs.estimatedBytes() / (1024.0 * 1024.0), (System.nanoTime() - startNanos) / 1_000_000));
+    }
 
-        private Shape createShape() {
-            if (startPoint == null || endPoint == null) return null;
-
-            int x = Math.min(startPoint.x, endPoint.x);
-            int y = Math.min(startPoint.y, endPoint.y);
-            int width = Math.abs(startPoint.x - endPoint.x);
-            int height = Math.abs(startPoint.y - endPoint.y);
-
-            switch (shapeToDraw) {
-                case "Rectangle":
-                    return new Rectangle(x, y, width, height);
-                case "Oval":
-                    return new Ellipse2D.Double(x, y, width, height);
-                case "Line":
-                    return new java.awt.geom.Line2D.Double(startPoint, endPoint);
-                case "Triangle":
-                    return createTriangle(startPoint, endPoint);
-                case "Pentagon":
-                    return createPentagon(startPoint, endPoint);
-                default:
-                    return null;
-            }
+    // Transforms the selection, or the whole document when nothing is selected. The new text is
+    // worked out in the background from a snapshot and only applied if nothing was edited in
+    // the meantime.
+    private void transformText() {
+        TextTransform transform = (TextTransform) JOptionPane.showInputDialog(
+                this,
+                "Choose a transformation:",
+                "Transform Text",
+                JOptionPane.QUESTION_MESSAGE,
+                null,
+                TextTransform.values(),
+                TextTransform.UPPER_CASE
+        );
+        if (transform == null) {
+            return;
         }
-
-        private Shape createTriangle(Point start, Point end) {
-            int x1 = start.x, y1 = start.y;
-            int x2 = end.x, y2 = end.y;
-            int midX = (x1 + x2) / 2;
-            Path2D path = new Path2D.Double();
-            path.moveTo(midX, y1); // Top
-            path.lineTo(x1, y2);   // Bottom left
-            path.lineTo(x2, y2);   // Bottom right
-            path.closePath();
-            return path;
+        int start = textPane.getSelectionStart();
+        int end = textPane.getSelectionEnd();
+        if (start == end) {
+            start = 0;
+            end = textPane.getDocument().getLength();
         }
-
-        private Shape createPentagon(Point start, Point end) {
-            int x1 = start.x, y1 = start.y;
-            int x2 = end.x, y2 = end.y;
-            int width = Math.abs(x2 - x1);
-            int height = Math.abs(y2 - y1);
-
-            int midX = (x1 + x2) / 2;
-            int[] xPoints = {midX, x1, x1 + width / 4, x2 - width / 4, x2};
-            int[] yPoints = {y1, y1 + height / 3, y2, y2, y1 + height / 3};
-            return new Polygon(xPoints, yPoints, 5);
+        TextTransform.Snapshot snapshot;
+        try {
+            snapshot = transform.snapshot(textPane.getStyledDocument(), start, end);
+        } catch (BadLocationException e) {
+            JOptionPane.showMessageDialog(this, "Error transforming text.", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
         }
-
-        @Override
-        protected void paintComponent(Graphics g) {
-            super.paintComponent(g);
-            Graphics2D g2 = (Graphics2D) g;
-
-            // Existing shape drawing code
-            g2.setColor(Color.BLACK);
-
-            // Draw all shapes
-            for (Shape shape : shapes) {
-                g2.draw(shape);
+        long revision = documentRevision;
+        long startNanos = System.nanoTime();
+        SwingWorker<List<TextTransform.Edit>, Void> worker = new SwingWorker<>() {
+            @Override
+            protected List<TextTransform.Edit> doInBackground() {
+                return snapshot.compute();
             }
 
-            // Draw the current shape being dragged
-            if (startPoint != null && endPoint != null && !"CLEAR".equals(shapeToDraw)) {
-                g2.setColor(Color.GRAY);
-                g2.draw(createShape());
+            @Override
+            protected void done() {
+                try {
+                    List<TextTransform.Edit> edits = get();
+                    if (documentRevision != revision) {
+                        statusBar.stopProgress("The text changed while " + transform + " was running, so it wasn't applied.");
+                        return;
+                    }
+                    applyTransform(snapshot, edits, startNanos);
+                } catch (CancellationException ex) {
+                    statusBar.stopProgress(transform + " cancelled, the text was left unchanged.");
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException ex) {
+                    statusBar.stopProgress(" ");
+                    JOptionPane.showMessageDialog(NewTextEditor.this, "Error transforming text.", "Error",
+                            JOptionPane.ERROR_MESSAGE);
+                }
             }
-        }
+        };
+        statusBar.startProgress(transform + "...", () -> worker.cancel(true));
+        worker.execute();
     }
 
-    private boolean isDarkMode = false; // Flag to track the current theme
-
-    private void toggleDarkMode() {
-        if (isDarkMode) {
-            // Switch to light mode
-            textPane.setBackground(Color.WHITE);
-            textPane.setForeground(Color.BLACK);
-            textPane.setCaretColor(Color.BLACK);
-
-            if (canvas != null) {
-                canvas.setBackground(Color.WHITE);
-            }
-
-            JMenuBar menuBar = getJMenuBar();
-            menuBar.setBackground(Color.WHITE);
-            menuBar.setForeground(Color.BLACK);
-
-            for (Component menu : menuBar.getComponents()) {
-                if (menu instanceof JMenu) {
-                    menu.setBackground(Color.WHITE);
-                    menu.setForeground(Color.BLACK);
-                    for (Component menuItem : ((JMenu) menu).getMenuComponents()) {
-                        menuItem.setBackground(Color.WHITE);
-                        menuItem.setForeground(Color.BLACK);
-                    }
-                }
+    // Applies a transform's edits a slice of the EDT at a time, with the text read-only and the
+    // canvas off until they are all in, so that transforming a large document doesn't freeze the
+    // window and nothing else lands in its undo step. Stops early when cancelled, undone or when
+    // something else changes the document; what was applied by then undoes as one step.
+    @SuppressWarnings("try")
+    private void applyTransform(TextTransform.Snapshot snapshot, List<TextTransform.Edit> edits, long startNanos) {
+        TextTransform transform = snapshot.transform();
+        EditorEngine target = engine;
+        TextTransform.Snapshot.Application application = target.startApply(snapshot, edits);
+        textPane.setEditable(false);
+        canvas.setEnabled(false);
+        Timer slices = new Timer(0, null);
+        Consumer<String> finish = stopped -> {
+            if (!slices.isRunning()) {
+                return; // Finished already
             }
-            UIManager.put("Menu.background", Color.WHITE);
-            UIManager.put("Menu.foreground", Color.BLACK);
-            UIManager.put("MenuItem.background", Color.WHITE);
-            UIManager.put("MenuItem.foreground", Color.BLACK);
-            UIManager.put("Panel.background", Color.LIGHT_GRAY);
-            UIManager.put("Panel.foreground", Color.BLACK);
-            UIManager.put("ScrollPane.background", Color.LIGHT_GRAY);
-            UIManager.put("ScrollPane.foreground", Color.BLACK);
-        } else {
-            // Switch to dark mode
-            textPane.setBackground(Color.DARK_GRAY);
-            textPane.setForeground(Color.WHITE);
-            textPane.setCaretColor(Color.WHITE);
-
-            if (canvas != null) {
-                canvas.setBackground(Color.DARK_GRAY); // Apply dark mode to canvas
-            }
-
-            JMenuBar menuBar = getJMenuBar();
-            menuBar.setBackground(Color.BLACK);
-            menuBar.setForeground(Color.WHITE);
-
-            for (Component menu : menuBar.getComponents()) {
-                if (menu instanceof JMenu) {
-                    menu.setBackground(Color.DARK_GRAY);
-                    menu.setForeground(Color.WHITE);
-                    for (Component menuItem : ((JMenu) menu).getMenuComponents()) {
-                        menuItem.setBackground(Color.DARK_GRAY);
-                        menuItem.setForeground(Color.WHITE);
-                    }
-                }
+            slices.stop();
+            stopApply = null;
+            target.finishApply();
+            canvas.setEnabled(true);
+            if (target != engine) {
+                return; // The document was replaced, which set up the text pane for the new one
+            }
+            textPane.setEditable(true);
+            if (stopped == null) {
+                textPane.select(snapshot.offset(), snapshot.offset() + application.newLength());
+                statusBar.stopProgress(String.format("%s: %,d changes in %,d characters in %d ms", transform,
+                        edits.size(), snapshot.length(), (System.nanoTime() - startNanos) / 1_000_000));
+            } else {
+                statusBar.stopProgress(String.format("%s stopped after %,d of %,d changes (%s).", transform,
+                        application.applied(), edits.size(), stopped));
+            }
+        };
+        long[] revision = {documentRevision};
+        slices.addActionListener(e -> {
+            if (!slices.isRunning()) {
+                return;
             }
+            if (target != engine || documentRevision != revision[0]) {
+                finish.accept("the text was changed");
+                return;
+            }
+            try (Diagnostics.Timing ignored = Diagnostics.start("Apply " + transform)) {
+                application.applySome(System.nanoTime() + APPLY_SLICE_NANOS);
+            } catch (BadLocationException ex) {
+                finish.accept(ex.getMessage());
+                return;
+            }
+            revision[0] = documentRevision;
+            statusBar.setProgress(application.progress());
+            if (application.isDone()) {
+                finish.accept(null);
+            }
+        });
+        stopApply = finish;
+        statusBar.startProgress("Applying " + transform + "...", () -> finish.accept("cancelled"));
+        slices.start();
+    }
 
-            UIManager.put("Menu.background", Color.DARK_GRAY);
-            UIManager.put("Menu.foreground", Color.WHITE);
-            UIManager.put("MenuItem.background", Color.DARK_GRAY);
-            UIManager.put("MenuItem.foreground", Color.WHITE);
-            UIManager.put("Panel.background", Color.BLACK);
-            UIManager.put("Panel.foreground", Color.WHITE);
-            UIManager.put("ScrollPane.background", Color.BLACK);
-            UIManager.put("ScrollPane.foreground", Color.WHITE);
-        }
+    private void toggleDarkMode() {
+        applyTheme(themes.getTheme() == Theme.DARK ? Theme.LIGHT : Theme.DARK);
+    }
 
-        // Refresh the UI to apply changes
-        SwingUtilities.updateComponentTreeUI(this);
+    private void fillThemeMenu(JMenu menu) {
+        menu.removeAll();
+        List<Theme> choices = new ArrayList<>(List.of(Theme.LIGHT, Theme.DARK));
+        choices.addAll(Theme.loadAll(statusBar::setMessage));
+        for (Theme theme : choices) {
+            JRadioButtonMenuItem item = new JRadioButtonMenuItem(theme.getName(),
+                    theme.getName().equals(themes.getTheme().getName()));
+            item.addActionListener(e -> applyTheme(theme));
+            menu.add(item);
+        }
+    }
 
-        isDarkMode = !isDarkMode; // Toggle the flag
+    @SuppressWarnings("try")
+    private void applyTheme(Theme theme) {
+        long startNanos = System.nanoTime();
+        try (Diagnostics.Timing ignored = Diagnostics.start("Switch theme")) {
+            themes.apply(theme);
+        }
+        statusBar.setMessage(String.format("%s theme applied in %.1f ms", theme.getName(),
+                (System.nanoTime() - startNanos) / 1e6));
     }
 
     private JButton createStyledButton(String text) {
         JButton button = new JButton(text);
-        button.setFont(new Font("Segoe UI", Font.BOLD, 14));
+        button.setFont(new Font(uiFont, Font.BOLD, 14));
         button.setBackground(new Color(83, 90, 218));
         button.setForeground(Color.WHITE);
         button.setFocusPainted(false);
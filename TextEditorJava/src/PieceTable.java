@@ -0,0 +1,441 @@
+import java.nio.CharBuffer;
+import java.util.Set;
+
+// Text sequence stored as a list of pieces, each pointing into an immutable char block.
+// Loaded text keeps its own blocks and typed text is appended to an add buffer, so an
+// edit only ever splits or adds pieces: it never moves the text around it. Pieces are
+// kept in an implicit treap ordered by position, which makes locating an offset, inserting
+// and removing O(log pieces) no matter how large the document is.
+public class PieceTable {
+    private static final int ADD_BLOCK_SIZE = 64 * 1024;
+
+    private Node root;
+    private char[] addBlock = new char[ADD_BLOCK_SIZE];
+    private int addUsed;
+    private int seed = 0x2545F491;
+
+    // An immutable run of text captured from the table. Holds piece references, not copies.
+    public static final class Span {
+        private final char[][] blocks;
+        private final int[] starts;
+        private final int[] lengths;
+        private final int length;
+
+        private Span(char[][] blocks, int[] starts, int[] lengths, int length) {
+            this.blocks = blocks;
+            this.starts = starts;
+            this.lengths = lengths;
+            this.length = length;
+        }
+
+        // A span over chars that belong to no table. The array must not be written to afterwards.
+        public static Span wrap(char[] chars) {
+            return new Span(new char[][]{chars}, new int[]{0}, new int[]{chars.length}, chars.length);
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public int pieceCount() {
+            return blocks.length;
+        }
+
+        // Read-only view of one piece, for streaming the span without copying it
+        public CharBuffer piece(int index) {
+            return CharBuffer.wrap(blocks[index], starts[index], lengths[index]).asReadOnlyBuffer();
+        }
+
+        // The block behind a piece, for inserting the piece into another table as it is
+        char[] pieceBlock(int index) {
+            return blocks[index];
+        }
+
+        int pieceStart(int index) {
+            return starts[index];
+        }
+
+        int pieceLength(int index) {
+            return lengths[index];
+        }
+
+        // The chars of the blocks the span keeps alive that aren't in counted yet, which it adds
+        // them to. Pass the same set for several spans to count shared blocks once.
+        public long pinnedChars(Set<char[]> counted) {
+            long chars = 0;
+            for (char[] block : blocks) {
+                if (counted.add(block)) {
+                    chars += block.length;
+                }
+            }
+            return chars;
+        }
+
+        public void getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin) {
+            int pos = 0;
+            for (int i = 0; i < blocks.length && srcBegin < srcEnd; i++) {
+                int pieceEnd = pos + lengths[i];
+                if (srcBegin < pieceEnd) {
+                    int from = srcBegin - pos;
+                    int n = Math.min(pieceEnd, srcEnd) - srcBegin;
+                    System.arraycopy(blocks[i], starts[i] + from, dst, dstBegin, n);
+                    dstBegin += n;
+                    srcBegin += n;
+                }
+                pos = pieceEnd;
+            }
+        }
+
+        @Override
+        public String toString() {
+            char[] chars = new char[length];
+            getChars(0, length, chars, 0);
+            return new String(chars);
+        }
+    }
+
+    private static final class Node {
+        final char[] block;
+        int start;
+        int length;
+        int priority;
+        int size; // chars in this subtree
+        int pieces; // pieces in this subtree
+        Node left, right;
+
+        Node(char[] block, int start, int length, int priority) {
+            this.block = block;
+            this.start = start;
+            this.length = length;
+            this.priority = priority;
+            this.size = length;
+            this.pieces = 1;
+        }
+
+        void update() {
+            size = length;
+            pieces = 1;
+            if (left != null) {
+                size += left.size;
+                pieces += left.pieces;
+            }
+            if (right != null) {
+                size += right.size;
+                pieces += right.pieces;
+            }
+        }
+    }
+
+    public int length() {
+        return root == null ? 0 : root.size;
+    }
+
+    public int pieceCount() {
+        return root == null ? 0 : root.pieces;
+    }
+
+    public void insert(int offset, CharSequence text) {
+        int n = text.length();
+        if (n == 0) {
+            return;
+        }
+        if (n > ADD_BLOCK_SIZE / 2) {
+            // Large inserts (loaded files, big pastes) get a block of their own
+            char[] block = new char[n];
+            copyChars(text, block, 0);
+            insertPiece(offset, block, 0, n);
+            return;
+        }
+        if (addUsed + n > addBlock.length) {
+            addBlock = new char[ADD_BLOCK_SIZE];
+            addUsed = 0;
+        }
+        int start = addUsed;
+        copyChars(text, addBlock, start);
+        addUsed += n;
+        // Typing appends right behind the previous insert, so just grow that piece
+        if (offset == 0 || !extend(root, offset, addBlock, start, n)) {
+            insertPiece(offset, addBlock, start, n);
+        }
+    }
+
+    // Takes over block[start, start + length) as a piece without copying it. The caller must
+    // not write to that part of the block afterwards.
+    public void insert(int offset, char[] block, int start, int length) {
+        if (length > 0) {
+            insertPiece(offset, block, start, length);
+        }
+    }
+
+    public void insert(int offset, Span span) {
+        cut(offset);
+        Node[] parts = split(root, offset);
+        Node middle = null;
+        for (int i = 0; i < span.blocks.length; i++) {
+            middle = merge(middle, new Node(span.blocks[i], span.starts[i], span.lengths[i], nextPriority()));
+        }
+        root = merge(merge(parts[0], middle), parts[1]);
+    }
+
+    public Span remove(int offset, int length) {
+        cut(offset);
+        cut(offset + length);
+        Node[] head = split(root, offset);
+        Node[] tail = split(head[1], length);
+        Span removed = toSpan(tail[0], length);
+        root = merge(head[0], tail[1]);
+        return removed;
+    }
+
+    // Captures a range without changing the tree, so it is safe to call under a read lock
+    public Span span(int offset, int length) {
+        int count = visitRange(root, offset, length, null, 0);
+        Span span = new Span(new char[count][], new int[count], new int[count], length);
+        visitRange(root, offset, length, span, 0);
+        return span;
+    }
+
+    public void getChars(int offset, int length, char[] dst, int dstBegin) {
+        copy(root, offset, length, dst, dstBegin);
+    }
+
+    // Finds the piece holding offset and stores its block, the index of offset inside the
+    // block and the number of chars left in the piece. Used for zero-copy segment access.
+    public char[] pieceAt(int offset, int[] startAndRemaining) {
+        Node node = root;
+        while (node != null) {
+            int leftSize = node.left == null ? 0 : node.left.size;
+            if (offset < leftSize) {
+                node = node.left;
+            } else if (offset < leftSize + node.length) {
+                int into = offset - leftSize;
+                startAndRemaining[0] = node.start + into;
+                startAndRemaining[1] = node.length - into;
+                return node.block;
+            } else {
+                offset -= leftSize + node.length;
+                node = node.right;
+            }
+        }
+        return null;
+    }
+
+    // Whether every node's size and piece count add up and no node outranks its parent. For tests.
+    boolean isConsistent() {
+        return isConsistent(root);
+    }
+
+    private static boolean isConsistent(Node node) {
+        if (node == null) {
+            return true;
+        }
+        int size = node.length;
+        int pieces = 1;
+        for (Node child : new Node[]{node.left, node.right}) {
+            if (child != null) {
+                if (child.priority > node.priority || !isConsistent(child)) {
+                    return false;
+                }
+                size += child.size;
+                pieces += child.pieces;
+            }
+        }
+        return node.size == size && node.pieces == pieces;
+    }
+
+    private void insertPiece(int offset, char[] block, int start, int length) {
+        cut(offset);
+        Node[] parts = split(root, offset);
+        root = merge(merge(parts[0], new Node(block, start, length, nextPriority())), parts[1]);
+    }
+
+    // Grows the piece that ends exactly at offset if the new text directly follows it in the
+    // same block. Sizes along the search path are fixed up on the way back.
+    private static boolean extend(Node node, int offset, char[] block, int start, int length) {
+        if (node == null) {
+            return false;
+        }
+        int leftSize = node.left == null ? 0 : node.left.size;
+        boolean extended;
+        if (offset <= leftSize) {
+            extended = extend(node.left, offset, block, start, length);
+        } else if (offset == leftSize + node.length) {
+            extended = node.block == block && node.start + node.length == start;
+            if (extended) {
+                node.length += length;
+            }
+        } else if (offset > leftSize + node.length) {
+            extended = extend(node.right, offset - leftSize - node.length, block, start, length);
+        } else {
+            extended = false;
+        }
+        if (extended) {
+            node.size += length;
+        }
+        return extended;
+    }
+
+    // Makes offset fall on a piece boundary by cutting the piece it lands inside. The tail of
+    // the cut piece is inserted as a node of its own with a fresh priority.
+    private void cut(int offset) {
+        Node tail = cutTail(root, offset);
+        if (tail != null) {
+            tail.priority = nextPriority();
+            Node[] parts = split(root, offset);
+            root = merge(merge(parts[0], tail), parts[1]);
+        }
+    }
+
+    private static Node cutTail(Node node, int offset) {
+        if (node == null) {
+            return null;
+        }
+        int leftSize = node.left == null ? 0 : node.left.size;
+        Node tail;
+        if (offset < leftSize) {
+            tail = cutTail(node.left, offset);
+        } else if (offset >= leftSize + node.length) {
+            tail = cutTail(node.right, offset - leftSize - node.length);
+        } else if (offset > leftSize) {
+            int into = offset - leftSize;
+            tail = new Node(node.block, node.start + into, node.length - into, 0);
+            node.length = into;
+        } else {
+            tail = null;
+        }
+        if (tail != null) {
+            node.size -= tail.length;
+        }
+        return tail;
+    }
+
+    // Splits a subtree into the first offset chars and the rest. Offset must be on a piece boundary.
+    private static Node[] split(Node node, int offset) {
+        if (node == null) {
+            return new Node[2];
+        }
+        int leftSize = node.left == null ? 0 : node.left.size;
+        if (offset <= leftSize) {
+            Node[] parts = split(node.left, offset);
+            node.left = parts[1];
+            node.update();
+            parts[1] = node;
+            return parts;
+        }
+        Node[] parts = split(node.right, offset - leftSize - node.length);
+        node.right = parts[0];
+        node.update();
+        parts[0] = node;
+        return parts;
+    }
+
+    private static Node merge(Node left, Node right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            left.update();
+            return left;
+        }
+        right.left = merge(left, right.left);
+        right.update();
+        return right;
+    }
+
+    private static void copy(Node node, int offset, int length, char[] dst, int dstBegin) {
+        while (node != null && length > 0) {
+            int leftSize = node.left == null ? 0 : node.left.size;
+            if (offset < leftSize) {
+                int n = Math.min(length, leftSize - offset);
+                copy(node.left, offset, n, dst, dstBegin);
+                dstBegin += n;
+                length -= n;
+                offset = leftSize;
+            }
+            if (length == 0) {
+                return;
+            }
+            int into = offset - leftSize;
+            if (into < node.length) {
+                int n = Math.min(length, node.length - into);
+                System.arraycopy(node.block, node.start + into, dst, dstBegin, n);
+                dstBegin += n;
+                length -= n;
+                into += n;
+            }
+            offset = into - node.length;
+            node = node.right;
+        }
+    }
+
+    private static Span toSpan(Node node, int length) {
+        int count = node == null ? 0 : node.pieces;
+        Span span = new Span(new char[count][], new int[count], new int[count], length);
+        collect(node, span, 0);
+        return span;
+    }
+
+    private static int collect(Node node, Span span, int index) {
+        if (node == null) {
+            return index;
+        }
+        index = collect(node.left, span, index);
+        span.blocks[index] = node.block;
+        span.starts[index] = node.start;
+        span.lengths[index] = node.length;
+        return collect(node.right, span, index + 1);
+    }
+
+    // Walks the pieces overlapping [offset, offset + length) in order, storing the overlapping
+    // part of each into span (when given) from index on. Returns the index after the last one.
+    private static int visitRange(Node node, int offset, int length, Span span, int index) {
+        while (node != null && length > 0) {
+            int leftSize = node.left == null ? 0 : node.left.size;
+            if (offset < leftSize) {
+                int n = Math.min(length, leftSize - offset);
+                index = visitRange(node.left, offset, n, span, index);
+                length -= n;
+                offset = leftSize;
+            }
+            if (length == 0) {
+                break;
+            }
+            int into = offset - leftSize;
+            if (into < node.length) {
+                int n = Math.min(length, node.length - into);
+                if (span != null) {
+                    span.blocks[index] = node.block;
+                    span.starts[index] = node.start + into;
+                    span.lengths[index] = n;
+                }
+                index++;
+                length -= n;
+                into += n;
+            }
+            offset = into - node.length;
+            node = node.right;
+        }
+        return index;
+    }
+
+    private static void copyChars(CharSequence text, char[] dst, int dstBegin) {
+        if (text instanceof String s) {
+            s.getChars(0, s.length(), dst, dstBegin);
+        } else {
+            for (int i = 0; i < text.length(); i++) {
+                dst[dstBegin + i] = text.charAt(i);
+            }
+        }
+    }
+
+    private int nextPriority() {
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        return seed;
+    }
+}
@@ -0,0 +1,429 @@
+import javax.swing.text.*;
+import javax.swing.undo.AbstractUndoableEdit;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+import javax.swing.undo.UndoableEdit;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// Document content backed by a PieceTable, for use with DefaultStyledDocument in place of
+// GapContent. Edits cost O(log pieces + edit size) and undo records keep references to the
+// removed pieces instead of copying the removed text.
+//
+// Positions are kept sorted in fixed-size blocks, each with its own offset delta. An edit
+// adjusts the marks in the block it lands in and bumps the delta of the blocks after it
+// instead of rewriting every position that follows.
+public class PieceTableContent implements AbstractDocument.Content {
+    private static final int MARKS_PER_BLOCK = 256;
+
+    private final PieceTable table = new PieceTable();
+    private final int[] pieceLookup = new int[2];
+
+    private final ReferenceQueue<StickyPosition> queue = new ReferenceQueue<>();
+    private MarkBlock[] blocks = new MarkBlock[4];
+    private int blockCount;
+    private int markCount;
+    private int deadMarks;
+    private int cursorBlock;
+    private int cursorIndex;
+
+    public PieceTableContent() {
+        table.insert(0, "\n");
+    }
+
+    public static StyledDocument newDocument() {
+        PieceTableContent content = new PieceTableContent();
+        StyledDocument doc = new CompactStyledDocument(content);
+        doc.putProperty(PieceTableContent.class, content);
+        return doc;
+    }
+
+    // Returns the piece table content behind a document made by newDocument(), or null
+    public static PieceTableContent of(Document doc) {
+        return (PieceTableContent) doc.getProperty(PieceTableContent.class);
+    }
+
+    @Override
+    public int length() {
+        return table.length();
+    }
+
+    @Override
+    public UndoableEdit insertString(int where, String str) throws BadLocationException {
+        if (where > length() || where < 0) {
+            throw new BadLocationException("Invalid insert", length());
+        }
+        table.insert(where, str);
+        insertUpdate(where, str.length());
+        return new InsertUndo(where, str.length());
+    }
+
+    // Inserts text that is already in a char array by making the array a piece of its own,
+    // for text read in bulk. The array must not be written to afterwards.
+    public UndoableEdit insertChars(int where, char[] chars, int length) throws BadLocationException {
+        return insertChars(where, chars, 0, length);
+    }
+
+    // The same for part of an array, such as a piece of another document
+    public UndoableEdit insertChars(int where, char[] chars, int start, int length) throws BadLocationException {
+        if (where > length() || where < 0) {
+            throw new BadLocationException("Invalid insert", length());
+        }
+        table.insert(where, chars, start, length);
+        insertUpdate(where, length);
+        return new InsertUndo(where, length);
+    }
+
+    @Override
+    public UndoableEdit remove(int where, int nitems) throws BadLocationException {
+        if (where + nitems >= length()) {
+            throw new BadLocationException("Invalid remove", length() + 1);
+        }
+        MarkRecord[] affected = marksInRange(where, nitems);
+        PieceTable.Span removed = table.remove(where, nitems);
+        removeUpdate(where, nitems);
+        return new RemoveUndo(where, removed, affected);
+    }
+
+    @Override
+    public String getString(int where, int len) throws BadLocationException {
+        checkRange(where, len);
+        char[] chars = new char[len];
+        table.getChars(where, len, chars, 0);
+        return new String(chars);
+    }
+
+    @Override
+    public void getChars(int where, int len, Segment chars) throws BadLocationException {
+        checkRange(where, len);
+        char[] block = table.pieceAt(where, pieceLookup);
+        if (block != null && (len <= pieceLookup[1] || chars.isPartialReturn())) {
+            // Hand out the piece's own block instead of copying
+            chars.array = block;
+            chars.offset = pieceLookup[0];
+            chars.count = Math.min(len, pieceLookup[1]);
+            return;
+        }
+        char[] copy = new char[len];
+        table.getChars(where, len, copy, 0);
+        chars.array = copy;
+        chars.offset = 0;
+        chars.count = len;
+    }
+
+    // Immutable snapshot of a range; the pieces it refers to are never written again
+    public PieceTable.Span getSpan(int where, int len) throws BadLocationException {
+        checkRange(where, len);
+        return table.span(where, len);
+    }
+
+    @Override
+    public Position createPosition(int offset) throws BadLocationException {
+        while (queue.poll() != null) {
+            deadMarks++;
+        }
+        if (deadMarks > Math.max(5, markCount / 10)) {
+            purgeMarks();
+        }
+        seek(offset);
+        if (cursorBlock < blockCount && offsetOf(blocks[cursorBlock], cursorIndex) == offset) {
+            StickyPosition existing = blocks[cursorBlock].marks[cursorIndex].get();
+            if (existing != null) {
+                return existing;
+            }
+        }
+        if (blockCount == 0) {
+            addBlock(0, new MarkBlock());
+        }
+        if (cursorBlock == blockCount) {
+            cursorBlock = blockCount - 1;
+            cursorIndex = blocks[cursorBlock].count;
+        }
+        MarkBlock block = blocks[cursorBlock];
+        StickyPosition position = new StickyPosition();
+        Mark mark = new Mark(position, queue);
+        position.mark = mark;
+        mark.block = block;
+        mark.value = offset - block.delta;
+        System.arraycopy(block.marks, cursorIndex, block.marks, cursorIndex + 1, block.count - cursorIndex);
+        block.marks[cursorIndex] = mark;
+        block.count++;
+        markCount++;
+        if (block.count == block.marks.length) {
+            splitBlock(cursorBlock);
+        }
+        return position;
+    }
+
+    private void checkRange(int where, int len) throws BadLocationException {
+        if (where < 0 || len < 0 || where + len > length()) {
+            throw new BadLocationException("Invalid range", length());
+        }
+    }
+
+    // Marks at or after the insert point move with the text, except marks at 0 which stay put
+    private void insertUpdate(int where, int length) {
+        seek(where == 0 ? 1 : where);
+        shiftFromCursor(length);
+    }
+
+    // Marks inside the removed range collapse onto its start, later marks move back
+    private void removeUpdate(int where, int length) {
+        seek(where + 1);
+        int end = where + length;
+        while (cursorBlock < blockCount) {
+            MarkBlock block = blocks[cursorBlock];
+            while (cursorIndex < block.count && offsetOf(block, cursorIndex) <= end) {
+                block.marks[cursorIndex++].value = where - block.delta;
+            }
+            if (cursorIndex < block.count) {
+                break;
+            }
+            cursorBlock++;
+            cursorIndex = 0;
+        }
+        shiftFromCursor(-length);
+    }
+
+    private void shiftFromCursor(int delta) {
+        if (cursorBlock >= blockCount) {
+            return;
+        }
+        MarkBlock block = blocks[cursorBlock];
+        for (int i = cursorIndex; i < block.count; i++) {
+            block.marks[i].value += delta;
+        }
+        for (int b = cursorBlock + 1; b < blockCount; b++) {
+            blocks[b].delta += delta;
+        }
+    }
+
+    private static int offsetOf(MarkBlock block, int index) {
+        return block.marks[index].value + block.delta;
+    }
+
+    // Points the cursor at the first mark whose offset is at least offset
+    private void seek(int offset) {
+        int low = 0, high = blockCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (offsetOf(blocks[mid], blocks[mid].count - 1) < offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        cursorBlock = low;
+        cursorIndex = 0;
+        if (low == blockCount) {
+            return;
+        }
+        MarkBlock block = blocks[low];
+        high = block.count;
+        while (cursorIndex < high) {
+            int mid = (cursorIndex + high) >>> 1;
+            if (offsetOf(block, mid) < offset) {
+                cursorIndex = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+    }
+
+    private void addBlock(int index, MarkBlock block) {
+        if (blockCount == blocks.length) {
+            blocks = Arrays.copyOf(blocks, blockCount * 2);
+        }
+        System.arraycopy(blocks, index, blocks, index + 1, blockCount - index);
+        blocks[index] = block;
+        blockCount++;
+    }
+
+    private void splitBlock(int index) {
+        MarkBlock block = blocks[index];
+        MarkBlock upper = new MarkBlock();
+        upper.delta = block.delta;
+        upper.count = block.count - MARKS_PER_BLOCK;
+        System.arraycopy(block.marks, MARKS_PER_BLOCK, upper.marks, 0, upper.count);
+        Arrays.fill(block.marks, MARKS_PER_BLOCK, block.count, null);
+        block.count = MARKS_PER_BLOCK;
+        for (int i = 0; i < upper.count; i++) {
+            upper.marks[i].block = upper;
+        }
+        addBlock(index + 1, upper);
+    }
+
+    // Drops marks whose positions have been collected and repacks the rest
+    private void purgeMarks() {
+        MarkBlock[] old = blocks;
+        int oldCount = blockCount;
+        blocks = new MarkBlock[Math.max(4, oldCount)];
+        blockCount = 0;
+        markCount = 0;
+        MarkBlock current = null;
+        for (int b = 0; b < oldCount; b++) {
+            MarkBlock block = old[b];
+            for (int i = 0; i < block.count; i++) {
+                Mark mark = block.marks[i];
+                if (mark.get() == null) {
+                    continue;
+                }
+                if (current == null || current.count == MARKS_PER_BLOCK) {
+                    current = new MarkBlock();
+                    addBlock(blockCount, current);
+                }
+                mark.value += block.delta;
+                mark.block = current;
+                current.marks[current.count++] = mark;
+                markCount++;
+            }
+        }
+        deadMarks = 0;
+    }
+
+    // Remembers where the marks in [where, where + length] were, so undoing a removal can put
+    // element boundaries back exactly instead of leaving them collapsed at the edit point.
+    private MarkRecord[] marksInRange(int where, int length) {
+        ArrayList<MarkRecord> records = new ArrayList<>();
+        seek(where);
+        for (int b = cursorBlock, i = cursorIndex; b < blockCount; b++, i = 0) {
+            MarkBlock block = blocks[b];
+            for (; i < block.count; i++) {
+                int offset = offsetOf(block, i);
+                if (offset > where + length) {
+                    return records.toArray(new MarkRecord[0]);
+                }
+                records.add(new MarkRecord(block.marks[i], offset - where));
+            }
+        }
+        return records.toArray(new MarkRecord[0]);
+    }
+
+    private void restoreMarks(MarkRecord[] records, int where, int length) {
+        if (records.length == 0) {
+            return;
+        }
+        // Collect the slots covering the range, move the recorded marks back to their old
+        // offsets and write the range out again in sorted order
+        ArrayList<MarkBlock> slotBlocks = new ArrayList<>();
+        ArrayList<Integer> slotIndexes = new ArrayList<>();
+        ArrayList<Mark> slotMarks = new ArrayList<>();
+        seek(where);
+        collect:
+        for (int b = cursorBlock, i = cursorIndex; b < blockCount; b++, i = 0) {
+            MarkBlock block = blocks[b];
+            for (; i < block.count; i++) {
+                if (offsetOf(block, i) > where + length) {
+                    break collect;
+                }
+                slotBlocks.add(block);
+                slotIndexes.add(i);
+                slotMarks.add(block.marks[i]);
+            }
+        }
+        for (MarkRecord record : records) {
+            record.mark.value = where + record.offset - record.mark.block.delta;
+        }
+        slotMarks.sort((a, c) -> Integer.compare(a.value + a.block.delta, c.value + c.block.delta));
+        for (int k = 0; k < slotMarks.size(); k++) {
+            Mark mark = slotMarks.get(k);
+            MarkBlock block = slotBlocks.get(k);
+            mark.value += mark.block.delta - block.delta;
+            mark.block = block;
+            block.marks[slotIndexes.get(k)] = mark;
+        }
+    }
+
+    private static final class MarkBlock {
+        final Mark[] marks = new Mark[MARKS_PER_BLOCK * 2];
+        int count;
+        int delta; // added to the stored value of every mark in the block
+    }
+
+    private static final class Mark extends WeakReference<StickyPosition> {
+        int value;
+        MarkBlock block;
+
+        Mark(StickyPosition position, ReferenceQueue<StickyPosition> queue) {
+            super(position, queue);
+        }
+    }
+
+    private record MarkRecord(Mark mark, int offset) {
+    }
+
+    private final class StickyPosition implements Position {
+        Mark mark;
+
+        @Override
+        public int getOffset() {
+            return mark.value + mark.block.delta;
+        }
+
+        @Override
+        public String toString() {
+            return Integer.toString(getOffset());
+        }
+    }
+
+    private final class InsertUndo extends AbstractUndoableEdit {
+        private final int offset;
+        private final int length;
+        private PieceTable.Span removed;
+        private MarkRecord[] affected;
+
+        InsertUndo(int offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public void undo() throws CannotUndoException {
+            super.undo();
+            affected = marksInRange(offset, length);
+            removed = table.remove(offset, length);
+            removeUpdate(offset, length);
+        }
+
+        @Override
+        public void redo() throws CannotRedoException {
+            super.redo();
+            table.insert(offset, removed);
+            insertUpdate(offset, length);
+            restoreMarks(affected, offset, length);
+            removed = null;
+            affected = null;
+        }
+    }
+
+    private final class RemoveUndo extends AbstractUndoableEdit {
+        private final int offset;
+        private final PieceTable.Span removed;
+        private MarkRecord[] affected;
+
+        RemoveUndo(int offset, PieceTable.Span removed, MarkRecord[] affected) {
+            this.offset = offset;
+            this.removed = removed;
+            this.affected = affected;
+        }
+
+        @Override
+        public void undo() throws CannotUndoException {
+            super.undo();
+            table.insert(offset, removed);
+            insertUpdate(offset, removed.length());
+            restoreMarks(affected, offset, removed.length());
+        }
+
+        @Override
+        public void redo() throws CannotRedoException {
+            super.redo();
+            // Marks made since the remove was undone are put back too when it is undone again
+            affected = marksInRange(offset, removed.length());
+            table.remove(offset, removed.length());
+            removeUpdate(offset, removed.length());
+        }
+    }
+}
@@ -0,0 +1,623 @@
+import javax.swing.text.*;
+import java.awt.*;
+import java.awt.geom.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+// The editor's own file format (.tep), which keeps the text together with its formatting and
+// the canvas shapes.
+//
+// A file is a 32-byte header, the sections, and an index listing each section's offset, length
+// and CRC32; the header points at the index. Text is stored as raw UTF-16, so opening maps it
+// and copies it straight into the document, which takes over the array as its only piece. Style
+// runs and shapes are compact binary records that are only decoded when asked for.
+//
+// Saving over the project that was opened appends just the sections that changed and a new
+// index, forces them to disk and only then points the header at the new index, so a crash
+// leaves the previous version readable. Once superseded sections would make up more than half
+// of the file, it is rewritten compactly through a temp file and a rename instead.
+public final class ProjectFile {
+    public static final String EXTENSION = ".tep";
+
+    // Stored in the index by ordinal, so new sections go at the end
+    public enum Section {
+        TEXT, STYLES, SHAPES
+    }
+
+    private static final int MAGIC = 0x54455031; // "TEP1"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final int INDEX_ENTRY_BYTES = 24;
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    // Character attributes that are saved, in the order of their codes in the file
+    private static final Object[] STYLE_KEYS = {
+            StyleConstants.FontFamily, StyleConstants.FontSize, StyleConstants.Bold, StyleConstants.Italic,
+            StyleConstants.Underline, StyleConstants.StrikeThrough, StyleConstants.Foreground,
+            StyleConstants.Background, StyleConstants.Subscript, StyleConstants.Superscript
+    };
+
+    private static final byte RECTANGLE = 1;
+    private static final byte ELLIPSE = 2;
+    private static final byte LINE = 3;
+    private static final byte POLYGON = 4;
+    private static final byte PATH = 5;
+
+    private record Entry(Section section, long offset, long length, int crc) {
+    }
+
+    // Where one saved version's index is. Appending a save leaves the versions before it
+    // readable at their own index until the file is rewritten, which EditJournal relies on.
+    public record Version(long indexOffset, int indexLength, int indexCrc) {
+    }
+
+    // Everything a save writes, captured on the EDT so the write can run in the background.
+    // The text is a piece snapshot and the style runs and shapes are immutable, so nothing is
+    // copied here.
+    public record Snapshot(CharBuffer[] text, CompactStyledDocument.StyleRuns styles, Shape[] shapes) {
+        public static Snapshot of(StyledDocument doc, DrawingCanvas canvas) throws BadLocationException {
+            CompactStyledDocument.StyleRuns styles = doc instanceof CompactStyledDocument compact
+                    ? compact.getStyleRuns() : CompactStyledDocument.StyleRuns.NONE;
+            return new Snapshot(FileSaver.snapshot(doc), styles, canvas.getShapes());
+        }
+    }
+
+    private final Path path;
+    private final Version version;
+    private final Map<Section, Entry> index;
+
+    private ProjectFile(Path path, Version version, Map<Section, Entry> index) {
+        this.path = path;
+        this.version = version;
+        this.index = index;
+    }
+
+    public static boolean isProject(Path file) {
+        return file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(EXTENSION);
+    }
+
+    // Reads only the header and the index; sections are read when asked for
+    public static ProjectFile open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer header = read(channel, 0, HEADER_BYTES);
+            if (size < HEADER_BYTES || header.getInt() != MAGIC) {
+                throw new IOException(path.getFileName() + " is not a project file");
+            }
+            if (header.getInt() != VERSION) {
+                throw new IOException(path.getFileName() + " was saved by a newer version of the editor");
+            }
+            return open(path, channel, new Version(header.getLong(), header.getInt(), header.getInt()));
+        }
+    }
+
+    // Opens an earlier version of the project, which fails unless its index is still in the file
+    // and intact
+    public static ProjectFile open(Path path, Version version) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = read(channel, 0, HEADER_BYTES);
+            if (channel.size() < HEADER_BYTES || header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException(path.getFileName() + " is not a project file");
+            }
+            return open(path, channel, version);
+        }
+    }
+
+    private static ProjectFile open(Path path, FileChannel channel, Version version) throws IOException {
+        long size = channel.size();
+        long indexOffset = version.indexOffset();
+        int indexLength = version.indexLength();
+        if (indexOffset < HEADER_BYTES || indexLength < 4 || indexOffset + indexLength > size) {
+            throw new IOException(path.getFileName() + " is damaged (bad index location)");
+        }
+        ByteBuffer in = read(channel, indexOffset, indexLength);
+        if (crc(in.duplicate()) != version.indexCrc()) {
+            throw new IOException(path.getFileName() + " is damaged (index checksum mismatch)");
+        }
+        Map<Section, Entry> index = new EnumMap<>(Section.class);
+        for (int i = 0, count = in.getInt(); i < count; i++) {
+            int id = in.getInt();
+            Entry entry = new Entry(id < Section.values().length ? Section.values()[id] : null,
+                    in.getLong(), in.getLong(), in.getInt());
+            if (entry.offset() < HEADER_BYTES || entry.length() < 0 || entry.offset() + entry.length() > size) {
+                throw new IOException(path.getFileName() + " is damaged (bad section location)");
+            }
+            if (entry.section() != null) { // Sections added by later versions are skipped
+                index.put(entry.section(), entry);
+            }
+        }
+        return new ProjectFile(path, version, index);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public Version getVersion() {
+        return version;
+    }
+
+    // Builds a document from the text and style sections. Safe to call off the EDT, since the
+    // document isn't shown anywhere yet.
+    public StyledDocument readDocument() throws IOException {
+        char[] text = readText();
+        CompactStyledDocument.StyleRuns styles = readStyles(text.length);
+        StyledDocument doc = PieceTableContent.newDocument();
+        try {
+            ((CompactStyledDocument) doc).load(text, text.length, styles);
+        } catch (BadLocationException e) {
+            throw new IllegalStateException(e);
+        }
+        return doc;
+    }
+
+    char[] readText() throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer bytes = map(channel, Section.TEXT);
+            if (bytes.remaining() / 2 > Integer.MAX_VALUE - 1) {
+                throw new IOException(path.getFileName() + " has more text than a document can hold");
+            }
+            char[] text = new char[bytes.remaining() / 2];
+            bytes.order(ByteOrder.LITTLE_ENDIAN).asCharBuffer().get(text);
+            return text;
+        }
+    }
+
+    CompactStyledDocument.StyleRuns readStyles(int textLength) throws IOException {
+        if (!index.containsKey(Section.STYLES)) {
+            return CompactStyledDocument.StyleRuns.NONE;
+        }
+        DataInputStream in = section(Section.STYLES);
+        AttributeSet[] table = new AttributeSet[in.readInt()];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = readStyle(in);
+        }
+        int count = in.readInt();
+        int[] lengths = new int[count];
+        AttributeSet[] styles = new AttributeSet[count];
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            lengths[i] = readVarInt(in);
+            int style = readVarInt(in);
+            if (style >= table.length) {
+                throw new IOException(path.getFileName() + " is damaged (unknown style)");
+            }
+            styles[i] = table[style];
+            total += lengths[i];
+        }
+        if (total > textLength) {
+            throw new IOException(path.getFileName() + " is damaged (styles run past the text)");
+        }
+        return new CompactStyledDocument.StyleRuns(count, lengths, styles);
+    }
+
+    public Shape[] readShapes() throws IOException {
+        if (!index.containsKey(Section.SHAPES)) {
+            return new Shape[0];
+        }
+        DataInputStream in = section(Section.SHAPES);
+        Shape[] shapes = new Shape[in.readInt()];
+        for (int i = 0; i < shapes.length; i++) {
+            shapes[i] = readShape(in);
+        }
+        return shapes;
+    }
+
+    // One character style as stored by writeStyle. Also used by EditJournal.
+    static AttributeSet readStyle(DataInput in) throws IOException {
+        SimpleAttributeSet style = new SimpleAttributeSet();
+        for (int n = in.readUnsignedByte(); n > 0; n--) {
+            int key = in.readUnsignedByte();
+            if (key >= STYLE_KEYS.length) {
+                throw new IOException("Unknown style attribute " + key);
+            }
+            Object value = switch (key) {
+                case 0 -> in.readUTF();
+                case 1 -> in.readInt();
+                case 6, 7 -> new Color(in.readInt(), true);
+                default -> in.readBoolean();
+            };
+            style.addAttribute(STYLE_KEYS[key], value);
+        }
+        return style;
+    }
+
+    // One shape as stored by writeShape. Also used by EditJournal.
+    static Shape readShape(DataInput in) throws IOException {
+        byte type = in.readByte();
+        return switch (type) {
+            case RECTANGLE -> new Rectangle(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+            case ELLIPSE -> new Ellipse2D.Double(in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble());
+            case LINE -> new Line2D.Double(in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble());
+            case POLYGON -> {
+                int n = in.readInt();
+                int[] xs = new int[n];
+                int[] ys = new int[n];
+                for (int k = 0; k < n; k++) {
+                    xs[k] = in.readInt();
+                    ys[k] = in.readInt();
+                }
+                yield new Polygon(xs, ys, n);
+            }
+            case PATH -> readPath(in);
+            default -> throw new IOException("Unknown shape type " + type);
+        };
+    }
+
+    private static Path2D readPath(DataInput in) throws IOException {
+        Path2D.Double shape = new Path2D.Double(in.readByte());
+        for (int n = in.readInt(); n > 0; n--) {
+            switch (in.readByte()) {
+                case PathIterator.SEG_MOVETO -> shape.moveTo(in.readDouble(), in.readDouble());
+                case PathIterator.SEG_LINETO -> shape.lineTo(in.readDouble(), in.readDouble());
+                case PathIterator.SEG_QUADTO -> shape.quadTo(in.readDouble(), in.readDouble(),
+                        in.readDouble(), in.readDouble());
+                case PathIterator.SEG_CUBICTO -> shape.curveTo(in.readDouble(), in.readDouble(),
+                        in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble());
+                case PathIterator.SEG_CLOSE -> shape.closePath();
+                default -> throw new IOException("Unknown path segment");
+            }
+        }
+        return shape;
+    }
+
+    // Told the version a save writes once it is forced to disk, before the file is switched over
+    // to it by the header write or the rename
+    public interface VersionListener {
+        void written(Version version);
+    }
+
+    public static long save(Path target, Snapshot snapshot, ProjectFile previous, Set<Section> changed)
+            throws IOException {
+        return save(target, snapshot, previous, changed, null);
+    }
+
+    // Saves the snapshot to target. When target is the project this object was opened from (or
+    // last saved to), only the sections in changed are written; otherwise the whole file is.
+    // Returns the number of bytes written.
+    public static long save(Path target, Snapshot snapshot, ProjectFile previous, Set<Section> changed,
+                            VersionListener listener) throws IOException {
+        if (previous != null && Files.isSameFile(previous.path, target) && !changed.containsAll(previous.index.keySet())) {
+            long live = 0;
+            for (Entry entry : previous.index.values()) {
+                if (!changed.contains(entry.section())) {
+                    live += entry.length();
+                }
+            }
+            long superseded = Files.size(target) - HEADER_BYTES - live;
+            if (superseded <= live) {
+                return append(target, snapshot, previous.index, changed, listener);
+            }
+        }
+        return rewrite(target, snapshot, listener);
+    }
+
+    private static long append(Path target, Snapshot snapshot, Map<Section, Entry> previous, Set<Section> changed,
+                               VersionListener listener) throws IOException {
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long start = channel.size();
+            Map<Section, Entry> index = new EnumMap<>(previous);
+            long position = start;
+            for (Section section : Section.values()) {
+                if (changed.contains(section) || !index.containsKey(section)) {
+                    Entry entry = writeSection(channel, position, section, snapshot);
+                    index.put(section, entry);
+                    position += entry.length();
+                }
+            }
+            Version version = writeIndex(channel, position, index);
+            if (listener != null) {
+                listener.written(version);
+            }
+            writeHeader(channel, version);
+            channel.force(true);
+            return position + version.indexLength() - start + HEADER_BYTES;
+        }
+    }
+
+    private static long rewrite(Path target, Snapshot snapshot, VersionListener listener) throws IOException {
+        Path dir = target.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(dir, "." + target.getFileName(), ".tmp");
+        try {
+            long size;
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                Map<Section, Entry> index = new EnumMap<>(Section.class);
+                long position = HEADER_BYTES;
+                for (Section section : Section.values()) {
+                    Entry entry = writeSection(channel, position, section, snapshot);
+                    index.put(section, entry);
+                    position += entry.length();
+                }
+                Version version = writeIndex(channel, position, index);
+                writeHeader(channel, version);
+                channel.force(true);
+                size = position + version.indexLength();
+                if (listener != null) {
+                    listener.written(version);
+                }
+            }
+            FileSaver.copyPermissions(target, temp);
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return size;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static Entry writeSection(FileChannel channel, long offset, Section section, Snapshot snapshot)
+            throws IOException {
+        channel.position(offset);
+        CRC32 crc = new CRC32();
+        if (section == Section.TEXT) {
+            writeText(channel, snapshot.text(), crc);
+        } else {
+            // Not closed: that would close the channel
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new CheckedOutputStream(Channels.newOutputStream(channel), crc), BUFFER_SIZE));
+            if (section == Section.STYLES) {
+                writeStyles(out, snapshot.styles());
+            } else {
+                writeShapes(out, snapshot.shapes());
+            }
+            out.flush();
+        }
+        return new Entry(section, offset, channel.position() - offset, (int) crc.getValue());
+    }
+
+    private static void writeText(FileChannel channel, CharBuffer[] text, CRC32 crc) throws IOException {
+        ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        CharBuffer chars = out.asCharBuffer();
+        for (CharBuffer piece : text) {
+            CharBuffer in = piece.duplicate();
+            while (in.hasRemaining()) {
+                int n = Math.min(in.remaining(), chars.remaining());
+                int limit = in.limit();
+                in.limit(in.position() + n);
+                chars.put(in);
+                in.limit(limit);
+                if (!chars.hasRemaining()) {
+                    drain(channel, out, chars.position() * 2, crc);
+                    chars.clear();
+                }
+            }
+        }
+        drain(channel, out, chars.position() * 2, crc);
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer out, int length, CRC32 crc) throws IOException {
+        out.clear().limit(length);
+        crc.update(out.duplicate());
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+    }
+
+    private static void writeStyles(DataOutputStream out, CompactStyledDocument.StyleRuns runs) throws IOException {
+        // Runs share their document's interned sets, so identity finds the distinct styles
+        Map<AttributeSet, Integer> table = new IdentityHashMap<>();
+        List<AttributeSet> styles = new ArrayList<>();
+        for (int i = 0; i < runs.count(); i++) {
+            if (table.putIfAbsent(runs.styles()[i], styles.size()) == null) {
+                styles.add(runs.styles()[i]);
+            }
+        }
+        out.writeInt(styles.size());
+        for (AttributeSet style : styles) {
+            writeStyle(out, style);
+        }
+        out.writeInt(runs.count());
+        for (int i = 0; i < runs.count(); i++) {
+            writeVarInt(out, runs.lengths()[i]);
+            writeVarInt(out, table.get(runs.styles()[i]));
+        }
+    }
+
+    // Writes the attributes of a style that are kept; anything else (paragraph attributes,
+    // resolve parents) is dropped
+    static void writeStyle(DataOutput out, AttributeSet style) throws IOException {
+        int count = 0;
+        for (Object key : STYLE_KEYS) {
+            if (style.isDefined(key) && style.getAttribute(key) != null) {
+                count++;
+            }
+        }
+        out.writeByte(count);
+        for (int key = 0; key < STYLE_KEYS.length; key++) {
+            Object value = style.getAttribute(STYLE_KEYS[key]);
+            if (!style.isDefined(STYLE_KEYS[key]) || value == null) {
+                continue;
+            }
+            out.writeByte(key);
+            switch (key) {
+                case 0 -> out.writeUTF((String) value);
+                case 1 -> out.writeInt((Integer) value);
+                case 6, 7 -> out.writeInt(((Color) value).getRGB());
+                default -> out.writeBoolean((Boolean) value);
+            }
+        }
+    }
+
+    private static void writeShapes(DataOutputStream out, Shape[] shapes) throws IOException {
+        out.writeInt(shapes.length);
+        double[] coords = new double[6];
+        for (Shape shape : shapes) {
+            writeShape(out, shape, coords);
+        }
+    }
+
+    // coords is scratch space of at least six doubles
+    static void writeShape(DataOutput out, Shape shape, double[] coords) throws IOException {
+        if (shape instanceof Rectangle r) {
+            out.writeByte(RECTANGLE);
+            out.writeInt(r.x);
+            out.writeInt(r.y);
+            out.writeInt(r.width);
+            out.writeInt(r.height);
+        } else if (shape instanceof Ellipse2D e) {
+            out.writeByte(ELLIPSE);
+            out.writeDouble(e.getX());
+            out.writeDouble(e.getY());
+            out.writeDouble(e.getWidth());
+            out.writeDouble(e.getHeight());
+        } else if (shape instanceof Line2D l) {
+            out.writeByte(LINE);
+            out.writeDouble(l.getX1());
+            out.writeDouble(l.getY1());
+            out.writeDouble(l.getX2());
+            out.writeDouble(l.getY2());
+        } else if (shape instanceof Polygon p) {
+            out.writeByte(POLYGON);
+            out.writeInt(p.npoints);
+            for (int k = 0; k < p.npoints; k++) {
+                out.writeInt(p.xpoints[k]);
+                out.writeInt(p.ypoints[k]);
+            }
+        } else {
+            // Anything else, the triangles included, is stored as its outline
+            int segments = 0;
+            for (PathIterator it = shape.getPathIterator(null); !it.isDone(); it.next()) {
+                segments++;
+            }
+            PathIterator it = shape.getPathIterator(null);
+            out.writeByte(PATH);
+            out.writeByte(it.getWindingRule());
+            out.writeInt(segments);
+            for (; !it.isDone(); it.next()) {
+                int type = it.currentSegment(coords);
+                out.writeByte(type);
+                int n = switch (type) {
+                    case PathIterator.SEG_MOVETO, PathIterator.SEG_LINETO -> 2;
+                    case PathIterator.SEG_QUADTO -> 4;
+                    case PathIterator.SEG_CUBICTO -> 6;
+                    default -> 0;
+                };
+                for (int k = 0; k < n; k++) {
+                    out.writeDouble(coords[k]);
+                }
+            }
+        }
+    }
+
+    // Writes the index and forces everything written so far to disk. The header still points at
+    // the previous index until writeHeader.
+    private static Version writeIndex(FileChannel channel, long position, Map<Section, Entry> index) throws IOException {
+        ByteBuffer out = ByteBuffer.allocate(4 + index.size() * INDEX_ENTRY_BYTES);
+        out.putInt(index.size());
+        for (Entry entry : index.values()) {
+            out.putInt(entry.section().ordinal());
+            out.putLong(entry.offset());
+            out.putLong(entry.length());
+            out.putInt(entry.crc());
+        }
+        out.flip();
+        int crc = crc(out.duplicate());
+        write(channel, position, out);
+        channel.force(true);
+        return new Version(position, out.capacity(), crc);
+    }
+
+    private static void writeHeader(FileChannel channel, Version version) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).putInt(VERSION).putLong(version.indexOffset()).putInt(version.indexLength())
+                .putInt(version.indexCrc());
+        write(channel, 0, header.clear());
+    }
+
+    // A section as a stream, after checking it against its CRC
+    private DataInputStream section(Section section) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer bytes = map(channel, section);
+            return new DataInputStream(new ByteBufferInputStream(bytes));
+        }
+    }
+
+    private ByteBuffer map(FileChannel channel, Section section) throws IOException {
+        Entry entry = index.get(section);
+        if (entry == null) {
+            throw new IOException(path.getFileName() + " has no " + section.name().toLowerCase(Locale.ROOT) + " section");
+        }
+        ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, entry.offset(), entry.length());
+        if (crc(bytes.duplicate()) != entry.crc()) {
+            throw new IOException(path.getFileName() + " is damaged (" + section.name().toLowerCase(Locale.ROOT)
+                    + " checksum mismatch)");
+        }
+        return bytes;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer in = ByteBuffer.allocate(length);
+        while (in.hasRemaining() && channel.read(in, position + in.position()) >= 0) {
+            // Keep reading until the buffer is full or the file ends
+        }
+        return in.flip();
+    }
+
+    private static void write(FileChannel channel, long position, ByteBuffer out) throws IOException {
+        while (out.hasRemaining()) {
+            channel.write(out, position + out.position());
+        }
+    }
+
+    private static int crc(ByteBuffer bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed number");
+    }
+
+    // Reads a mapped section without copying it onto the heap first
+    static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+    }
+}
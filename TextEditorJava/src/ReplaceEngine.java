@@ -0,0 +1,179 @@
+import javax.swing.text.*;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Find/replace that works on the document in place. Matches are found by scanning the
+// document through a DocumentCharSequence, then applied back to front as individual
+// replace edits, each keeping the character attributes of the text it replaces. Every edit
+// only records its own range, so undoing the lot costs one step per match; callers that want
+// the operation undone as a unit bracket it with EditHistory.beginGroup/endGroup.
+public class ReplaceEngine {
+
+    public record Result(int count, long nanos, int firstStart, int firstEnd) {
+        public long millis() {
+            return nanos / 1_000_000;
+        }
+    }
+
+    public static Pattern compile(String find, boolean regex, boolean matchCase) {
+        int flags = regex ? 0 : Pattern.LITERAL;
+        if (!matchCase) {
+            flags |= Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+        }
+        return Pattern.compile(find, flags);
+    }
+
+    public static Result replaceAll(StyledDocument doc, Pattern pattern, String replacement, boolean regex)
+            throws BadLocationException {
+        return replace(doc, pattern, replacement, regex, Integer.MAX_VALUE);
+    }
+
+    public static Result replaceFirst(StyledDocument doc, Pattern pattern, String replacement, boolean regex)
+            throws BadLocationException {
+        return replace(doc, pattern, replacement, regex, 1);
+    }
+
+    private static Result replace(StyledDocument doc, Pattern pattern, String replacement, boolean regex, int limit)
+            throws BadLocationException {
+        long startNanos = System.nanoTime();
+
+        // Pass 1: collect the match ranges (and expanded replacements for regex mode)
+        int[] starts = new int[16];
+        int[] ends = new int[16];
+        ArrayList<String> replacements = regex ? new ArrayList<>() : null;
+        int count = 0;
+        Matcher matcher = pattern.matcher(new DocumentCharSequence(doc));
+        StringBuilder expanded = new StringBuilder();
+        while (count < limit && matcher.find()) {
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            starts[count] = matcher.start();
+            ends[count] = matcher.end();
+            if (regex) {
+                replacements.add(expand(matcher, replacement, expanded));
+            }
+            count++;
+        }
+        if (count == 0) {
+            return new Result(0, System.nanoTime() - startNanos, -1, -1);
+        }
+
+        // Pass 2: apply back to front so earlier offsets stay valid
+        for (int i = count - 1; i >= 0; i--) {
+            String text = regex ? replacements.get(i) : replacement;
+            int length = ends[i] - starts[i];
+            AttributeSet attributes = doc.getCharacterElement(length > 0 ? starts[i] : Math.max(0, starts[i] - 1))
+                    .getAttributes().copyAttributes();
+            ((AbstractDocument) doc).replace(starts[i], length, text, attributes);
+        }
+        int firstLength = regex ? replacements.get(0).length() : replacement.length();
+        return new Result(count, System.nanoTime() - startNanos, starts[0], starts[0] + firstLength);
+    }
+
+    // Throws IllegalArgumentException for a replacement that expand would reject whatever the
+    // text, so batch mode can refuse it once instead of failing every file. Named groups can
+    // only be looked up after a match and are left to expand.
+    public static void checkReplacement(Pattern pattern, String replacement) {
+        expand(pattern.matcher(""), replacement, null);
+    }
+
+    // Replaces matches in plain text without copying it: the text between matches is added to
+    // out as views of text, the replacements as their own buffers. Returns the match count.
+    public static int replaceAll(CharBuffer text, Pattern pattern, String replacement, boolean regex,
+                                 List<CharBuffer> out) {
+        Matcher matcher = pattern.matcher(text);
+        StringBuilder expanded = new StringBuilder();
+        CharBuffer literal = regex ? null : CharBuffer.wrap(replacement);
+        int count = 0;
+        int copied = 0;
+        while (matcher.find()) {
+            if (matcher.start() > copied) {
+                out.add(text.subSequence(copied, matcher.start()));
+            }
+            out.add(regex ? CharBuffer.wrap(expand(matcher, replacement, expanded)) : literal.duplicate());
+            copied = matcher.end();
+            count++;
+        }
+        if (copied < text.length()) {
+            out.add(text.subSequence(copied, text.length()));
+        }
+        return count;
+    }
+
+    // Expands $n, ${name} and backslash escapes in a replacement the same way
+    // Matcher.appendReplacement does, without copying the text between matches. A replacement
+    // it would reject, such as one ending in a lone \\ or $ or naming a group the pattern does
+    // not have, throws IllegalArgumentException.
+    // Matches are expanded before any is applied, so a bad replacement leaves the document as it was.
+    // With no out it only checks the replacement against the pattern's group count, as a
+    // matcher that has not matched anything cannot look its groups up.
+    private static String expand(Matcher matcher, String replacement, StringBuilder out) {
+        if (out != null) {
+            out.setLength(0);
+        }
+        int i = 0;
+        while (i < replacement.length()) {
+            char c = replacement.charAt(i++);
+            if (c == '\\') {
+                if (i == replacement.length()) {
+                    throw new IllegalArgumentException("character to be escaped is missing");
+                }
+                char escaped = replacement.charAt(i++);
+                if (out != null) {
+                    out.append(escaped);
+                }
+            } else if (c == '$') {
+                if (i == replacement.length()) {
+                    throw new IllegalArgumentException("Illegal group reference: group index is missing");
+                }
+                if (replacement.charAt(i) == '{') {
+                    int close = replacement.indexOf('}', i);
+                    if (close < 0) {
+                        throw new IllegalArgumentException("Missing '}' in group reference");
+                    }
+                    if (out != null) {
+                        String group = matcher.group(replacement.substring(i + 1, close));
+                        out.append(group == null ? "" : group);
+                    }
+                    i = close + 1;
+                } else {
+                    int groupNumber = 0;
+                    int digits = 0;
+                    while (i < replacement.length() && isAsciiDigit(replacement.charAt(i))) {
+                        int next = groupNumber * 10 + (replacement.charAt(i) - '0');
+                        if (digits > 0 && next > matcher.groupCount()) {
+                            break;
+                        }
+                        groupNumber = next;
+                        digits++;
+                        i++;
+                    }
+                    if (digits == 0) {
+                        throw new IllegalArgumentException("Illegal group reference");
+                    }
+                    if (groupNumber > matcher.groupCount()) {
+                        throw new IllegalArgumentException("No group " + groupNumber);
+                    }
+                    if (out != null) {
+                        String group = matcher.group(groupNumber);
+                        out.append(group == null ? "" : group);
+                    }
+                }
+            } else if (out != null) {
+                out.append(c);
+            }
+        }
+        return out == null ? null : out.toString();
+    }
+
+    // Group numbers are ASCII only, as in Matcher.appendReplacement
+    private static boolean isAsciiDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
@@ -0,0 +1,358 @@
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.*;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+// Trigram index over a document, kept current from document events, so a search only reads
+// the parts of the document that can contain the query.
+//
+// The document is divided into blocks of about 16K chars. Each block has a signature: a
+// 32K-bit set of the (case-folded, hashed) trigrams that start in it. A block can only hold a
+// match if every trigram of the query is in its signature or in the signatures of the blocks
+// the match could run on into. Those blocks are then scanned to find the actual matches.
+// An edit shifts the start offsets of the following blocks and rebuilds the signatures of the
+// one or two blocks it touched; blocks that grow too large are split and tiny ones merged.
+public class SearchIndex implements DocumentListener {
+    private static final int BLOCK_CHARS = 16 * 1024;
+    private static final int MAX_BLOCK_CHARS = 2 * BLOCK_CHARS;
+    private static final int MIN_BLOCK_CHARS = BLOCK_CHARS / 4;
+    private static final int SIGNATURE_BITS = 32 * 1024;
+    private static final int SIGNATURE_LONGS = SIGNATURE_BITS / 64;
+
+    private final Segment segment = new Segment();
+    private final Runnable onChange;
+    private Document doc;
+    private int blockCount;
+    private int[] starts = new int[16];
+    private long[][] signatures = new long[16][];
+
+    public SearchIndex(Runnable onChange) {
+        this.onChange = onChange;
+        segment.setPartialReturn(true);
+    }
+
+    // Indexes newDoc and follows its edits from now on. Call on the thread that edits it.
+    public void setDocument(Document newDoc) {
+        if (doc != null) {
+            doc.removeDocumentListener(this);
+        }
+        doc = newDoc;
+        Arrays.fill(signatures, null);
+        blockCount = 1;
+        starts[0] = 0;
+        signatures[0] = new long[SIGNATURE_LONGS];
+        normalize(0);
+        rebuild(0, blockCount);
+        doc.addDocumentListener(this);
+        onChange.run();
+    }
+
+    public Document getDocument() {
+        return doc;
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    // The signatures plus the per-block bookkeeping
+    public long estimatedBytes() {
+        return (long) blockCount * (SIGNATURE_LONGS * 8 + 16 + 4);
+    }
+
+    @Override
+    public void insertUpdate(DocumentEvent e) {
+        int block = blockAt(e.getOffset());
+        shift(block + 1, e.getLength());
+        // The last trigrams of the previous block read two chars into this one
+        int first = block > 0 && e.getOffset() < starts[block] + 2 ? block - 1 : block;
+        int last = normalize(block);
+        rebuild(first, last + 1);
+        onChange.run();
+    }
+
+    @Override
+    public void removeUpdate(DocumentEvent e) {
+        int offset = e.getOffset();
+        int removedEnd = offset + e.getLength();
+        int first = blockAt(offset);
+        // Starts are still in the old offsets here: drop the blocks that began inside the
+        // removed range, and let the first block absorb what is left of the last one
+        int last = first;
+        while (last + 1 < blockCount && starts[last + 1] < removedEnd) {
+            last++;
+        }
+        removeBlocks(first + 1, last + 1);
+        shift(first + 1, -e.getLength());
+        int from = Math.max(0, first - 1);
+        int to = normalize(first);
+        if (from < blockCount) {
+            rebuild(from, Math.min(to + 1, blockCount));
+        }
+        onChange.run();
+    }
+
+    @Override
+    public void changedUpdate(DocumentEvent e) {
+        // Attribute changes don't affect the text
+    }
+
+    // The block holding offset; an offset on a boundary belongs to the block it starts
+    public int blockAt(int offset) {
+        int i = Arrays.binarySearch(starts, 0, blockCount, offset);
+        return i >= 0 ? i : Math.max(0, -i - 2);
+    }
+
+    public int blockStart(int block) {
+        return starts[block];
+    }
+
+    public int blockEnd(int block) {
+        return block + 1 < blockCount ? starts[block + 1] : doc.getLength();
+    }
+
+    private void shift(int fromBlock, int delta) {
+        for (int i = fromBlock; i < blockCount; i++) {
+            starts[i] += delta;
+        }
+    }
+
+    // Splits the block if it has grown too large, or joins it to a neighbour if it has become
+    // too small. Returns the last block now covering its text.
+    private int normalize(int block) {
+        int length = blockEnd(block) - starts[block];
+        if (length > MAX_BLOCK_CHARS) {
+            int pieces = (length + BLOCK_CHARS - 1) / BLOCK_CHARS;
+            insertBlocks(block + 1, pieces - 1);
+            for (int i = 1; i < pieces; i++) {
+                starts[block + i] = starts[block] + i * BLOCK_CHARS;
+            }
+            return block + pieces - 1;
+        }
+        if (length < MIN_BLOCK_CHARS && blockCount > 1) {
+            if (block + 1 < blockCount) {
+                removeBlocks(block + 1, block + 2); // Take in the next block
+                return normalize(block);
+            }
+            removeBlocks(block, block + 1); // The last block goes into the one before it
+            return block - 1;
+        }
+        return block;
+    }
+
+    private void insertBlocks(int at, int count) {
+        if (blockCount + count > starts.length) {
+            int capacity = Math.max(starts.length * 2, blockCount + count);
+            starts = Arrays.copyOf(starts, capacity);
+            signatures = Arrays.copyOf(signatures, capacity);
+        }
+        System.arraycopy(starts, at, starts, at + count, blockCount - at);
+        System.arraycopy(signatures, at, signatures, at + count, blockCount - at);
+        for (int i = at; i < at + count; i++) {
+            signatures[i] = new long[SIGNATURE_LONGS];
+        }
+        blockCount += count;
+    }
+
+    private void removeBlocks(int from, int to) {
+        if (from >= to) {
+            return;
+        }
+        System.arraycopy(starts, to, starts, from, blockCount - to);
+        System.arraycopy(signatures, to, signatures, from, blockCount - to);
+        Arrays.fill(signatures, blockCount - (to - from), blockCount, null);
+        blockCount -= to - from;
+    }
+
+    // Recomputes the signatures of blocks [from, to), each from the trigrams starting in it
+    private void rebuild(int from, int to) {
+        for (int block = from; block < to; block++) {
+            long[] bits = signatures[block];
+            Arrays.fill(bits, 0);
+            int start = starts[block];
+            int end = Math.min(blockEnd(block) + 2, doc.getLength());
+            char c0 = 0;
+            char c1 = 0;
+            int seen = 0;
+            try {
+                for (int offset = start; offset < end; ) {
+                    doc.getText(offset, end - offset, segment);
+                    char[] array = segment.array;
+                    for (int i = segment.offset, n = segment.offset + segment.count; i < n; i++) {
+                        char c2 = fold(array[i]);
+                        if (++seen >= 3) {
+                            int h = hash(c0, c1, c2);
+                            bits[h >>> 6] |= 1L << h;
+                        }
+                        c0 = c1;
+                        c1 = c2;
+                    }
+                    offset += segment.count;
+                }
+            } catch (BadLocationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    // Case-insensitive comparisons go through the same folding as String.equalsIgnoreCase
+    static char fold(char c) {
+        if (c < 128) {
+            return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+        }
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    private static int hash(char c0, char c1, char c2) {
+        int h = c0 * 0x9E3779B1 ^ c1 * 0x85EBCA77 ^ c2 * 0xC2B2AE3D;
+        return (h ^ (h >>> 15)) & (SIGNATURE_BITS - 1);
+    }
+
+    public Query query(String text, boolean matchCase) {
+        return new Query(text, matchCase);
+    }
+
+    // One search string, valid until the document changes
+    public final class Query {
+        private final char[] pattern;
+        private final char[] folded;
+        private final boolean matchCase;
+        private final int[] trigrams;
+        private final Segment text = new Segment();
+
+        private Query(String query, boolean matchCase) {
+            pattern = query.toCharArray();
+            this.matchCase = matchCase;
+            folded = new char[pattern.length];
+            for (int i = 0; i < pattern.length; i++) {
+                folded[i] = fold(pattern[i]);
+            }
+            int[] hashes = new int[Math.max(0, pattern.length - 2)];
+            for (int i = 0; i < hashes.length; i++) {
+                hashes[i] = hash(folded[i], folded[i + 1], folded[i + 2]);
+            }
+            trigrams = Arrays.stream(hashes).distinct().toArray();
+        }
+
+        public int length() {
+            return pattern.length;
+        }
+
+        // Whether a match can start in the block, going by the signatures of the block and of
+        // the following blocks the match could reach into
+        public boolean isCandidate(int block) {
+            if (pattern.length == 0) {
+                return false;
+            }
+            int reach = blockEnd(block) + pattern.length - 3;
+            for (int h : trigrams) {
+                boolean found = false;
+                for (int b = block; !found && b < blockCount && (b == block || starts[b] <= reach); b++) {
+                    found = (signatures[b][h >>> 6] & (1L << h)) != 0;
+                }
+                if (!found) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Passes the start of every match that starts in [from, to) to found, in order, and
+        // returns how many there were
+        public int forEachMatch(int from, int to, IntConsumer found) {
+            int count = 0;
+            for (int block = blockAt(from); block < blockCount && starts[block] < to; block++) {
+                if (isCandidate(block)) {
+                    count += scan(Math.max(from, starts[block]), Math.min(to, blockEnd(block)), found);
+                }
+            }
+            return count;
+        }
+
+        public int countMatches(int block) {
+            return isCandidate(block) ? scan(starts[block], blockEnd(block), null) : 0;
+        }
+
+        // The first match starting at or after from, or -1
+        public int next(int from) {
+            int[] first = {-1};
+            for (int block = blockAt(from); block < blockCount && first[0] < 0; block++) {
+                if (isCandidate(block)) {
+                    scanFirst(Math.max(from, starts[block]), blockEnd(block), first);
+                }
+            }
+            return first[0];
+        }
+
+        // The last match starting before the given offset, or -1
+        public int previous(int before) {
+            int[] last = {-1};
+            for (int block = blockAt(Math.max(0, before - 1)); block >= 0 && last[0] < 0; block--) {
+                if (isCandidate(block)) {
+                    scan(starts[block], Math.min(before, blockEnd(block)), offset -> last[0] = offset);
+                }
+            }
+            return last[0];
+        }
+
+        private void scanFirst(int from, int to, int[] first) {
+            try {
+                doc.getText(from, Math.min(to + pattern.length - 1, doc.getLength()) - from, text);
+                int i = indexIn(text, 0, to - from);
+                first[0] = i >= 0 ? from + i : -1;
+            } catch (BadLocationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        // Counts the matches starting in [from, to), reading the chars they run on into
+        private int scan(int from, int to, IntConsumer found) {
+            if (from >= to) {
+                return 0;
+            }
+            int count = 0;
+            try {
+                doc.getText(from, Math.min(to + pattern.length - 1, doc.getLength()) - from, text);
+                for (int i = indexIn(text, 0, to - from); i >= 0; i = indexIn(text, i + 1, to - from)) {
+                    count++;
+                    if (found != null) {
+                        found.accept(from + i);
+                    }
+                }
+            } catch (BadLocationException e) {
+                throw new IllegalStateException(e);
+            }
+            return count;
+        }
+
+        // The first match in the segment starting in [from, to), or -1
+        private int indexIn(Segment s, int from, int to) {
+            char[] array = s.array;
+            int base = s.offset;
+            int last = Math.min(to, s.count - pattern.length + 1);
+            // The cheap test first: most chars are neither case of the query's first char
+            char first = matchCase ? pattern[0] : Character.toUpperCase(pattern[0]);
+            char firstLower = matchCase ? pattern[0] : Character.toLowerCase(pattern[0]);
+            boolean asciiFirst = pattern[0] < 128;
+            for (int i = from; i < last; i++) {
+                char c = array[base + i];
+                if (c != first && c != firstLower && (matchCase || (asciiFirst && c < 128) || fold(c) != folded[0])) {
+                    continue;
+                }
+                int j = 1;
+                while (j < pattern.length && charMatches(array[base + i + j], j)) {
+                    j++;
+                }
+                if (j == pattern.length) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private boolean charMatches(char c, int index) {
+            return c == pattern[index] || (!matchCase && fold(c) == folded[index]);
+        }
+    }
+}
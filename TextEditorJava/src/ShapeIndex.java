@@ -0,0 +1,424 @@
+import java.awt.*;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.function.IntConsumer;
+
+// The canvas' shapes, stored as parallel primitive arrays and bucketed into a uniform grid by
+// their bounds.
+//
+// Every shape the canvas draws is defined by the two corners of its drag, so a shape is a
+// type code and four ints, plus its paint bounds for the grid: 33 bytes and no objects. Shape
+// objects are only made when asked for: view() fills in one reused instance per type for
+// painting and hit-testing, and get() returns a new one. Shapes that aren't of the canvas'
+// own kinds (from files written by other programs, or ovals and lines with fractional
+// coordinates) are kept as objects on the side.
+//
+// Painting asks for the shapes that intersect the clip and hit-testing asks for the shapes
+// under a point, so both only look at the cells involved instead of every shape on the
+// canvas. Shapes keep the index they were added with, and queries report them in that order
+// so overlaps paint the same way.
+public class ShapeIndex {
+    private static final int CELL_SIZE = 64;
+    private static final int HIT_TOLERANCE = 4;
+
+    private static final byte RECTANGLE = 0;
+    private static final byte OVAL = 1;
+    private static final byte LINE = 2;
+    private static final byte TRIANGLE = 3;
+    private static final byte PENTAGON = 4;
+    private static final byte OTHER = 5; // x1 holds the index into others
+
+    private int size;
+    private byte[] types = new byte[64];
+    private int[] x1 = new int[64];
+    private int[] y1 = new int[64];
+    private int[] x2 = new int[64];
+    private int[] y2 = new int[64];
+    private int[] boundsX = new int[64];
+    private int[] boundsY = new int[64];
+    private int[] boundsWidth = new int[64];
+    private int[] boundsHeight = new int[64];
+    private final ArrayList<Shape> others = new ArrayList<>();
+    private final HashMap<Long, int[]> cells = new HashMap<>();
+    private final BitSet found = new BitSet();
+    private final BasicStroke hitStroke = new BasicStroke(HIT_TOLERANCE * 2f);
+    private final Views views = new Views(); // Reused by view()
+
+    // One reusable instance per type. Threads that draw the shapes at the same time (see
+    // CanvasExporter) each need their own.
+    public static final class Views {
+        private final Rectangle rectangle = new Rectangle();
+        private final Ellipse2D.Double oval = new Ellipse2D.Double();
+        private final Line2D.Double line = new Line2D.Double();
+        private final Path2D.Double triangle = new Path2D.Double();
+        private final Polygon pentagon = new Polygon();
+    }
+
+    public int add(Shape shape) {
+        if (size == types.length) {
+            grow();
+        }
+        int index = size++;
+        store(index, shape);
+        Rectangle box = view(index).getBounds();
+        box.grow(2, 2);
+        boundsX[index] = box.x;
+        boundsY[index] = box.y;
+        boundsWidth[index] = box.width;
+        boundsHeight[index] = box.height;
+        for (int cy = cell(box.y); cy <= cell(box.y + box.height); cy++) {
+            for (int cx = cell(box.x); cx <= cell(box.x + box.width); cx++) {
+                cells.merge(key(cx, cy), new int[]{1, index}, ShapeIndex::append);
+            }
+        }
+        return index;
+    }
+
+    // Keeps the shape as its type and drag corners when it is exactly what the canvas would
+    // draw for them, and as an object otherwise
+    private void store(int index, Shape shape) {
+        int[] corners = shape instanceof Path2D path ? triangleCorners(path) : null;
+        if (shape instanceof Rectangle r && r.width >= 0 && r.height >= 0) {
+            set(index, RECTANGLE, r.x, r.y, r.x + r.width, r.y + r.height);
+        } else if (shape instanceof Ellipse2D.Double e && isInt(e.x, e.y, e.width, e.height)
+                && e.width >= 0 && e.height >= 0) {
+            set(index, OVAL, (int) e.x, (int) e.y, (int) (e.x + e.width), (int) (e.y + e.height));
+        } else if (shape instanceof Line2D.Double l && isInt(l.x1, l.y1, l.x2, l.y2)) {
+            set(index, LINE, (int) l.x1, (int) l.y1, (int) l.x2, (int) l.y2);
+        } else if (shape instanceof Polygon p && p.npoints == 5
+                && samePolygon(p, createPentagon(p.xpoints[1], p.ypoints[0], p.xpoints[4], p.ypoints[2]))) {
+            set(index, PENTAGON, p.xpoints[1], p.ypoints[0], p.xpoints[4], p.ypoints[2]);
+        } else if (corners != null) {
+            set(index, TRIANGLE, corners[0], corners[1], corners[2], corners[3]);
+        } else {
+            set(index, OTHER, others.size(), 0, 0, 0);
+            others.add(shape);
+        }
+    }
+
+    private void set(int index, byte type, int ax, int ay, int bx, int by) {
+        types[index] = type;
+        x1[index] = ax;
+        y1[index] = ay;
+        x2[index] = bx;
+        y2[index] = by;
+    }
+
+    private static boolean isInt(double... values) {
+        for (double v : values) {
+            if (v != (int) v) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean samePolygon(Polygon a, Polygon b) {
+        return a.npoints == b.npoints
+                && Arrays.equals(a.xpoints, 0, a.npoints, b.xpoints, 0, b.npoints)
+                && Arrays.equals(a.ypoints, 0, a.npoints, b.ypoints, 0, b.npoints);
+    }
+
+    // The drag corners of a path that createTriangle made, or null
+    private static int[] triangleCorners(Path2D path) {
+        int[] kinds = {PathIterator.SEG_MOVETO, PathIterator.SEG_LINETO, PathIterator.SEG_LINETO, PathIterator.SEG_CLOSE};
+        double[] points = new double[6];
+        double[] coords = new double[6];
+        PathIterator it = path.getPathIterator(null);
+        if (it.getWindingRule() != PathIterator.WIND_NON_ZERO) {
+            return null;
+        }
+        for (int segment = 0; segment < kinds.length; segment++, it.next()) {
+            if (it.isDone() || it.currentSegment(coords) != kinds[segment]) {
+                return null;
+            }
+            if (segment < 3) {
+                points[segment * 2] = coords[0];
+                points[segment * 2 + 1] = coords[1];
+            }
+        }
+        if (!it.isDone() || !isInt(points)) {
+            return null;
+        }
+        // Top, bottom left, bottom right
+        int x1 = (int) points[2];
+        int y1 = (int) points[1];
+        int x2 = (int) points[4];
+        int y2 = (int) points[3];
+        return points[0] == (x1 + x2) / 2 && points[5] == y2 ? new int[]{x1, y1, x2, y2} : null;
+    }
+
+    // Removes the most recently added shape, which is always the last entry of each of its cells
+    public Shape removeLast() {
+        int index = size - 1;
+        Shape removed = get(index);
+        for (int cy = cell(boundsY[index]); cy <= cell(boundsY[index] + boundsHeight[index]); cy++) {
+            for (int cx = cell(boundsX[index]); cx <= cell(boundsX[index] + boundsWidth[index]); cx++) {
+                long key = key(cx, cy);
+                int[] cell = cells.get(key);
+                if (--cell[0] == 0) {
+                    cells.remove(key);
+                }
+            }
+        }
+        if (types[index] == OTHER) {
+            others.remove(others.size() - 1);
+        }
+        size--;
+        return removed;
+    }
+
+    public Shape[] toArray() {
+        Shape[] shapes = new Shape[size];
+        for (int i = 0; i < size; i++) {
+            shapes[i] = get(i);
+        }
+        return shapes;
+    }
+
+    // A new shape object, for callers that keep it
+    public Shape get(int index) {
+        return switch (types[index]) {
+            case RECTANGLE -> new Rectangle(x1[index], y1[index], x2[index] - x1[index], y2[index] - y1[index]);
+            case OVAL -> new Ellipse2D.Double(x1[index], y1[index], x2[index] - x1[index], y2[index] - y1[index]);
+            case LINE -> new Line2D.Double(x1[index], y1[index], x2[index], y2[index]);
+            case TRIANGLE -> createTriangle(x1[index], y1[index], x2[index], y2[index]);
+            case PENTAGON -> createPentagon(x1[index], y1[index], x2[index], y2[index]);
+            default -> others.get(x1[index]);
+        };
+    }
+
+    // The shape, in an instance that is reused by the next call; for drawing and hit-testing
+    public Shape view(int index) {
+        return view(index, views);
+    }
+
+    // Same, reusing the instances in views
+    public Shape view(int index, Views views) {
+        int ax = x1[index];
+        int ay = y1[index];
+        int bx = x2[index];
+        int by = y2[index];
+        switch (types[index]) {
+            case RECTANGLE -> {
+                views.rectangle.setBounds(ax, ay, bx - ax, by - ay);
+                return views.rectangle;
+            }
+            case OVAL -> {
+                views.oval.setFrame(ax, ay, bx - ax, by - ay);
+                return views.oval;
+            }
+            case LINE -> {
+                views.line.setLine(ax, ay, bx, by);
+                return views.line;
+            }
+            case TRIANGLE -> {
+                views.triangle.reset();
+                traceTriangle(views.triangle, ax, ay, bx, by);
+                return views.triangle;
+            }
+            case PENTAGON -> {
+                views.pentagon.reset();
+                tracePentagon(views.pentagon, ax, ay, bx, by);
+                return views.pentagon;
+            }
+            default -> {
+                return others.get(ax);
+            }
+        }
+    }
+
+    // The triangle and pentagon for a drag from (x1, y1) to (x2, y2)
+    static Path2D.Double createTriangle(int x1, int y1, int x2, int y2) {
+        Path2D.Double path = new Path2D.Double();
+        traceTriangle(path, x1, y1, x2, y2);
+        return path;
+    }
+
+    private static void traceTriangle(Path2D path, int x1, int y1, int x2, int y2) {
+        int midX = (x1 + x2) / 2;
+        path.moveTo(midX, y1); // Top
+        path.lineTo(x1, y2);   // Bottom left
+        path.lineTo(x2, y2);   // Bottom right
+        path.closePath();
+    }
+
+    static Polygon createPentagon(int x1, int y1, int x2, int y2) {
+        Polygon pentagon = new Polygon();
+        tracePentagon(pentagon, x1, y1, x2, y2);
+        return pentagon;
+    }
+
+    private static void tracePentagon(Polygon polygon, int x1, int y1, int x2, int y2) {
+        int width = Math.abs(x2 - x1);
+        int height = Math.abs(y2 - y1);
+        int midX = (x1 + x2) / 2;
+        polygon.addPoint(midX, y1);
+        polygon.addPoint(x1, y1 + height / 3);
+        polygon.addPoint(x1 + width / 4, y2);
+        polygon.addPoint(x2 - width / 4, y2);
+        polygon.addPoint(x2, y1 + height / 3);
+    }
+
+    // Area that drawing the shape with a thin stroke can touch
+    public Rectangle getBounds(int index) {
+        return new Rectangle(boundsX[index], boundsY[index], boundsWidth[index], boundsHeight[index]);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Smallest rectangle holding the bounds of every shape; empty at the origin if there are none
+    public Rectangle getExtent() {
+        if (size == 0) {
+            return new Rectangle();
+        }
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+        long maxX = Long.MIN_VALUE, maxY = Long.MIN_VALUE;
+        for (int i = 0; i < size; i++) {
+            minX = Math.min(minX, boundsX[i]);
+            minY = Math.min(minY, boundsY[i]);
+            maxX = Math.max(maxX, (long) boundsX[i] + boundsWidth[i]);
+            maxY = Math.max(maxY, (long) boundsY[i] + boundsHeight[i]);
+        }
+        return new Rectangle(minX, minY, (int) Math.min(maxX - minX, Integer.MAX_VALUE),
+                (int) Math.min(maxY - minY, Integer.MAX_VALUE));
+    }
+
+    // An independent copy, for reading on another thread while the canvas goes on changing.
+    // The arrays are copied; shapes kept as objects are shared, as they are never changed.
+    public ShapeIndex copy() {
+        ShapeIndex copy = new ShapeIndex();
+        copy.size = size;
+        copy.types = Arrays.copyOf(types, Math.max(size, 64));
+        copy.x1 = Arrays.copyOf(x1, copy.types.length);
+        copy.y1 = Arrays.copyOf(y1, copy.types.length);
+        copy.x2 = Arrays.copyOf(x2, copy.types.length);
+        copy.y2 = Arrays.copyOf(y2, copy.types.length);
+        copy.boundsX = Arrays.copyOf(boundsX, copy.types.length);
+        copy.boundsY = Arrays.copyOf(boundsY, copy.types.length);
+        copy.boundsWidth = Arrays.copyOf(boundsWidth, copy.types.length);
+        copy.boundsHeight = Arrays.copyOf(boundsHeight, copy.types.length);
+        copy.others.addAll(others);
+        for (var entry : cells.entrySet()) {
+            int[] cell = entry.getValue();
+            copy.cells.put(entry.getKey(), Arrays.copyOf(cell, cell[0] + 1));
+        }
+        return copy;
+    }
+
+    public void clear() {
+        size = 0;
+        others.clear();
+        cells.clear();
+        found.clear();
+    }
+
+    // Roughly what the shapes take in memory: the arrays, the grid cells and any shapes kept
+    // as objects
+    public long estimatedBytes() {
+        long bytes = (long) types.length * (1 + 8 * 4);
+        for (int[] cell : cells.values()) {
+            bytes += 16 + 4L * cell.length + 48; // The array and its map entry
+        }
+        return bytes + others.size() * 160L;
+    }
+
+    private void grow() {
+        int capacity = types.length * 2;
+        types = Arrays.copyOf(types, capacity);
+        x1 = Arrays.copyOf(x1, capacity);
+        y1 = Arrays.copyOf(y1, capacity);
+        x2 = Arrays.copyOf(x2, capacity);
+        y2 = Arrays.copyOf(y2, capacity);
+        boundsX = Arrays.copyOf(boundsX, capacity);
+        boundsY = Arrays.copyOf(boundsY, capacity);
+        boundsWidth = Arrays.copyOf(boundsWidth, capacity);
+        boundsHeight = Arrays.copyOf(boundsHeight, capacity);
+    }
+
+    // Calls action with the index of every shape whose bounds intersect area, in the order
+    // the shapes were added
+    public void forEachIntersecting(Rectangle area, IntConsumer action) {
+        forEachIntersecting(area, found, action);
+    }
+
+    // Same, collecting the indices in the caller's own set, so threads can query at once as
+    // long as nothing is added or removed meanwhile
+    public void forEachIntersecting(Rectangle area, BitSet found, IntConsumer action) {
+        found.clear();
+        for (int cy = cell(area.y); cy <= cell(area.y + area.height); cy++) {
+            for (int cx = cell(area.x); cx <= cell(area.x + area.width); cx++) {
+                int[] cell = cells.get(key(cx, cy));
+                if (cell == null) {
+                    continue;
+                }
+                for (int i = 1; i <= cell[0]; i++) {
+                    if (intersects(cell[i], area)) {
+                        found.set(cell[i]);
+                    }
+                }
+            }
+        }
+        for (int i = found.nextSetBit(0); i >= 0; i = found.nextSetBit(i + 1)) {
+            action.accept(i);
+        }
+    }
+
+    // Same test as Rectangle.intersects
+    private boolean intersects(int index, Rectangle area) {
+        int w = boundsWidth[index];
+        int h = boundsHeight[index];
+        if (w <= 0 || h <= 0 || area.width <= 0 || area.height <= 0) {
+            return false;
+        }
+        int x = boundsX[index];
+        int y = boundsY[index];
+        return area.x < x + w && area.y < y + h && x < area.x + area.width && y < area.y + area.height;
+    }
+
+    // Returns the topmost shape whose outline (or interior, for closed shapes) is within a few
+    // pixels of point, or -1
+    public int hitTest(Point point) {
+        Rectangle probe = new Rectangle(point.x - HIT_TOLERANCE, point.y - HIT_TOLERANCE,
+                HIT_TOLERANCE * 2, HIT_TOLERANCE * 2);
+        int[] hit = {-1};
+        // Candidates come back in insertion order, so the last hit is the one painted on top
+        forEachIntersecting(probe, i -> {
+            Shape shape = view(i);
+            if (shape.contains(point) || hitStroke.createStrokedShape(shape).contains(point)) {
+                hit[0] = i;
+            }
+        });
+        return hit[0];
+    }
+
+    private static int cell(int coordinate) {
+        return Math.floorDiv(coordinate, CELL_SIZE);
+    }
+
+    // Long.hashCode of the two coordinates side by side would be cx ^ cy, which puts a large
+    // canvas' cells in a few hundred buckets; multiplying by an odd constant mixes them and keeps
+    // every key distinct
+    private static long key(int cx, int cy) {
+        return (((long) cx << 32) | (cy & 0xFFFFFFFFL)) * 0x9E3779B97F4A7C15L;
+    }
+
+    // Cells are int arrays holding a count followed by shape indices
+    private static int[] append(int[] cell, int[] added) {
+        int count = cell[0] + 1;
+        if (count == cell.length) {
+            cell = Arrays.copyOf(cell, count * 2);
+        }
+        cell[count] = added[1];
+        cell[0] = count;
+        return cell;
+    }
+}
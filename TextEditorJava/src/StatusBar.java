@@ -0,0 +1,71 @@
+import javax.swing.*;
+import java.awt.*;
+
+public class StatusBar extends JPanel {
+    private final JLabel messageLabel;
+    private final JLabel statisticsLabel;
+    private final JProgressBar progressBar;
+    private final JButton cancelButton;
+    private Runnable cancelAction;
+
+    public StatusBar() {
+        setLayout(new BorderLayout(8, 0));
+        setBorder(BorderFactory.createEmptyBorder(2, 8, 2, 8));
+
+        messageLabel = new JLabel(" ");
+        messageLabel.setFont(new Font("Segoe UI", Font.PLAIN, 12));
+        add(messageLabel, BorderLayout.CENTER);
+
+        // Progress bar and cancel button are only visible while a task is running
+        JPanel progressPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT, 4, 0));
+        progressPanel.setOpaque(false);
+        progressBar = new JProgressBar(0, 100);
+        progressBar.setStringPainted(true);
+        progressBar.setPreferredSize(new Dimension(160, 16));
+        cancelButton = new JButton("Cancel");
+        cancelButton.setFont(new Font("Segoe UI", Font.PLAIN, 12));
+        cancelButton.setFocusPainted(false);
+        cancelButton.setMargin(new Insets(0, 6, 0, 6));
+        cancelButton.addActionListener(e -> {
+            if (cancelAction != null) {
+                cancelAction.run();
+            }
+        });
+        statisticsLabel = new JLabel();
+        statisticsLabel.setFont(new Font("Segoe UI", Font.PLAIN, 12));
+        progressPanel.add(statisticsLabel);
+        progressPanel.add(progressBar);
+        progressPanel.add(cancelButton);
+        add(progressPanel, BorderLayout.EAST);
+
+        progressBar.setVisible(false);
+        cancelButton.setVisible(false);
+    }
+
+    public void setMessage(String message) {
+        messageLabel.setText(message == null || message.isEmpty() ? " " : message);
+    }
+
+    public void setStatistics(String statistics) {
+        statisticsLabel.setText(statistics);
+    }
+
+    public void startProgress(String message, Runnable onCancel) {
+        setMessage(message);
+        cancelAction = onCancel;
+        progressBar.setValue(0);
+        progressBar.setVisible(true);
+        cancelButton.setVisible(onCancel != null);
+    }
+
+    public void setProgress(int percent) {
+        progressBar.setValue(percent);
+    }
+
+    public void stopProgress(String message) {
+        cancelAction = null;
+        progressBar.setVisible(false);
+        cancelButton.setVisible(false);
+        setMessage(message);
+    }
+}
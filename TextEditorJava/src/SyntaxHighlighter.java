@@ -0,0 +1,406 @@
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.JTextComponent;
+import javax.swing.text.Segment;
+import java.awt.*;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Colors a document's text with a Lexer. The tokens are never stored in the document as
+// attributes, which would make every highlight an edit to undo, journal and save:
+// LargeFileEditorKit's views ask for the tokens of the lines they paint, and those lines are
+// lexed from the state they start in. The line states are all that is kept between paints.
+//
+// An edit can change the state of every line after it, as when it opens a block comment. So
+// after each edit the lines from the edited one on are lexed again on a background thread,
+// until a line past the ones the edit touched ends in the state the next line already had.
+// The lexing works on a snapshot of the document's pieces a chunk at a time. Each chunk's
+// states are put in on the EDT, which repaints the visible lines whose state changed. A chunk
+// that an edit overtook is thrown away and lexing starts again from the earliest edit, so the
+// EDT's part of an edit doesn't grow with the document.
+public final class SyntaxHighlighter implements DocumentListener {
+    private static final int CHUNK_CHARS = 256 * 1024;
+    private static final int MAX_CHUNK_LINES = 16 * 1024;
+    private static final int MAX_LINE_CHARS = 16 * 1024; // Longer lines are left plain
+    private static final int CACHED_LINES = 512;
+    private static final int[] NO_TOKENS = new int[0];
+
+    // The token colors of the current theme, read and set on the EDT
+    private static final Color[] colors = new Color[Lexer.Token.values().length];
+    private static ExecutorService lexing;
+
+    static {
+        for (Lexer.Token token : Lexer.Token.values()) {
+            colors[token.ordinal()] = Theme.LIGHT.get(token.role());
+        }
+    }
+
+    private final JTextComponent pane;
+    private final Document doc;
+    private final Lexer lexer;
+    private final LineStates states; // Null for a lexer that carries no state
+    private int dirtyFrom = -1; // Lines [dirtyFrom, dirtyTo) are lexed again whatever they end in; -1 if none
+    private int dirtyTo;
+    private long generation; // Counts edits
+    private boolean chunkPending;
+    private final Segment segment = new Segment();
+
+    // Start offset, end offset (from the line start) and token ordinal of each token of the
+    // lines painted last; cleared by every edit
+    private final Map<Element, int[]> tokenCache = new LinkedHashMap<>(CACHED_LINES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Element, int[]> eldest) {
+            return size() > CACHED_LINES;
+        }
+    };
+
+    public interface TokenAction {
+        void token(int start, int end, Color color);
+    }
+
+    private SyntaxHighlighter(JTextComponent pane, Document doc, Lexer lexer) {
+        this.pane = pane;
+        this.doc = doc;
+        this.lexer = lexer;
+        if (lexer.carriesState()) {
+            int lines = doc.getDefaultRootElement().getElementCount();
+            states = new LineStates(lines);
+            dirtyFrom = 0;
+            dirtyTo = lines;
+        } else {
+            states = null;
+        }
+    }
+
+    // The document's highlighter, or null if it isn't highlighted
+    public static SyntaxHighlighter of(Document doc) {
+        return doc.getProperty(SyntaxHighlighter.class) instanceof SyntaxHighlighter highlighter ? highlighter : null;
+    }
+
+    // Highlights the pane's document with lexer from now on, or leaves it plain if lexer is
+    // null. The document keeps its highlighter when another one is shown in the pane.
+    public static void install(JTextComponent pane, Lexer lexer) {
+        Document doc = pane.getDocument();
+        SyntaxHighlighter old = of(doc);
+        if (old != null && old.lexer == lexer) {
+            return;
+        }
+        if (old != null) {
+            doc.removeDocumentListener(old);
+            doc.putProperty(SyntaxHighlighter.class, null);
+        }
+        if (lexer != null) {
+            SyntaxHighlighter highlighter = new SyntaxHighlighter(pane, doc, lexer);
+            doc.putProperty(SyntaxHighlighter.class, highlighter);
+            doc.addDocumentListener(highlighter);
+            highlighter.lexAhead();
+        }
+        pane.repaint();
+    }
+
+    public Lexer getLexer() {
+        return lexer;
+    }
+
+    public static void setColor(Lexer.Token token, Color color) {
+        colors[token.ordinal()] = color;
+    }
+
+    // Whether lines are still being lexed after an edit
+    public boolean isLexing() {
+        return dirtyFrom >= 0;
+    }
+
+    // Calls action for each token in [start, end), which must lie within one line, cut to fit
+    // it and in order
+    public void forEachToken(int start, int end, TokenAction action) {
+        Element root = doc.getDefaultRootElement();
+        int line = root.getElementIndex(start);
+        Element paragraph = root.getElement(line);
+        int lineStart = paragraph.getStartOffset();
+        int[] tokens = tokens(line, paragraph);
+        for (int i = 0; i < tokens.length; i += 3) {
+            int from = lineStart + tokens[i];
+            int to = lineStart + tokens[i + 1];
+            if (from >= end) {
+                break;
+            }
+            if (to > start) {
+                action.token(Math.max(from, start), Math.min(to, end), colors[tokens[i + 2]]);
+            }
+        }
+    }
+
+    private int[] tokens(int line, Element paragraph) {
+        int[] tokens = tokenCache.get(paragraph);
+        if (tokens != null) {
+            return tokens;
+        }
+        int start = paragraph.getStartOffset();
+        int length = paragraph.getEndOffset() - 1 - start; // Without the line break
+        tokens = NO_TOKENS;
+        if (length > 0 && length <= MAX_LINE_CHARS) {
+            try {
+                doc.getText(start, length, segment);
+                int base = segment.offset;
+                int[][] found = {new int[24]};
+                int[] count = {0};
+                lexer.lex(segment.array, base, base + segment.count, states != null ? states.get(line) : Lexer.INITIAL,
+                        (from, to, type) -> {
+                            if (count[0] + 3 > found[0].length) {
+                                found[0] = Arrays.copyOf(found[0], found[0].length * 2);
+                            }
+                            found[0][count[0]++] = from - base;
+                            found[0][count[0]++] = to - base;
+                            found[0][count[0]++] = type.ordinal();
+                        });
+                tokens = Arrays.copyOf(found[0], count[0]);
+            } catch (BadLocationException e) {
+                // The paragraph is the document's own, so its text is there
+            }
+        }
+        tokenCache.put(paragraph, tokens);
+        return tokens;
+    }
+
+    @Override
+    public void insertUpdate(DocumentEvent e) {
+        edited(e);
+    }
+
+    @Override
+    public void removeUpdate(DocumentEvent e) {
+        edited(e);
+    }
+
+    @Override
+    public void changedUpdate(DocumentEvent e) {
+        // Attribute changes don't affect the tokens
+    }
+
+    private void edited(DocumentEvent e) {
+        generation++;
+        tokenCache.clear();
+        if (states == null) {
+            return;
+        }
+        // The lines holding the edited text. Which of them the element change lists as new
+        // depends on where the line breaks went, so they only say where lines were added or
+        // removed.
+        Element root = doc.getDefaultRootElement();
+        int line = root.getElementIndex(e.getOffset());
+        int end = 1 + (e.getType() == DocumentEvent.EventType.INSERT
+                ? root.getElementIndex(e.getOffset() + e.getLength()) : line);
+        DocumentEvent.ElementChange change = e.getChange(root);
+        if (change != null) {
+            int index = change.getIndex();
+            int removed = change.getChildrenRemoved().length;
+            int added = change.getChildrenAdded().length;
+            states.replace(index, removed, added);
+            // Lines after the edit that were still to be lexed have moved with it
+            if (dirtyFrom >= 0 && dirtyTo > index) {
+                dirtyTo = Math.max(index, dirtyTo + added - removed);
+            }
+        }
+        if (dirtyFrom < 0) {
+            dirtyFrom = line;
+            dirtyTo = end;
+        } else {
+            dirtyFrom = Math.min(dirtyFrom, line);
+            dirtyTo = Math.max(dirtyTo, end);
+        }
+        dirtyTo = Math.min(dirtyTo, states.size());
+        lexAhead();
+    }
+
+    // Hands the next chunk of lines to be lexed to the lexing thread
+    private void lexAhead() {
+        if (chunkPending || dirtyFrom < 0) {
+            return;
+        }
+        Element root = doc.getDefaultRootElement();
+        int first = dirtyFrom;
+        if (first >= root.getElementCount()) {
+            dirtyFrom = -1;
+            return;
+        }
+        int start = root.getElement(first).getStartOffset();
+        int last = Math.min(root.getElementIndex(Math.min(start + CHUNK_CHARS, doc.getLength())),
+                first + MAX_CHUNK_LINES - 1);
+        int end = Math.min(root.getElement(last).getEndOffset(), doc.getLength());
+        PieceTable.Span text;
+        try {
+            PieceTableContent content = PieceTableContent.of(doc);
+            text = content != null ? content.getSpan(start, end - start)
+                    : PieceTable.Span.wrap(doc.getText(start, end - start).toCharArray());
+        } catch (BadLocationException e) {
+            return; // The offsets come from the document's own elements
+        }
+        int state = states.get(first);
+        int lines = last - first + 1;
+        long startedAt = generation;
+        chunkPending = true;
+        CompletableFuture.supplyAsync(() -> endStates(lexer, text, state, lines), executor())
+                .whenComplete((ends, error) -> SwingUtilities.invokeLater(() -> chunkLexed(startedAt, first, ends)));
+    }
+
+    // The state each of the lines in text ends in, lexing from state
+    private static int[] endStates(Lexer lexer, PieceTable.Span span, int state, int lines) {
+        char[] text = new char[span.length()];
+        span.getChars(0, text.length, text, 0);
+        int[] ends = new int[lines];
+        for (int i = 0, at = 0; i < lines; i++) {
+            int lineEnd = at;
+            while (lineEnd < text.length && text[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            state = lexer.lex(text, at, lineEnd, state, null);
+            ends[i] = state;
+            at = lineEnd + 1;
+        }
+        return ends;
+    }
+
+    private void chunkLexed(long startedAt, int first, int[] ends) {
+        chunkPending = false;
+        if (of(doc) != this || ends == null) {
+            return; // Replaced, or the lexer failed; the lines are left as they were lexed so far
+        }
+        if (startedAt != generation) {
+            lexAhead(); // Edited in the meantime, which also moved dirtyFrom back if it needed to
+            return;
+        }
+        int lines = states.size();
+        int changedFrom = -1;
+        int changedTo = -1;
+        boolean converged = false;
+        for (int i = 0; i < ends.length && !converged; i++) {
+            int next = first + i + 1;
+            if (next >= lines) {
+                converged = true;
+            } else if (states.get(next) != ends[i]) {
+                states.set(next, ends[i]);
+                changedFrom = changedFrom < 0 ? next : changedFrom;
+                changedTo = next;
+            } else if (next >= dirtyTo) {
+                converged = true;
+            }
+        }
+        if (converged) {
+            dirtyFrom = -1;
+        } else {
+            // The next line starts in a state its own line hasn't been lexed from yet
+            dirtyFrom = first + ends.length;
+            dirtyTo = Math.max(dirtyTo, dirtyFrom + 1);
+        }
+        if (changedFrom >= 0) {
+            tokenCache.clear();
+            repaintLines(changedFrom, changedTo);
+        }
+        lexAhead();
+    }
+
+    // Repaints the lines in [from, to] that are on screen
+    private void repaintLines(int from, int to) {
+        Rectangle visible = pane.getVisibleRect();
+        if (pane.getDocument() != doc || visible.isEmpty()) {
+            return;
+        }
+        Element root = doc.getDefaultRootElement();
+        int top = root.getElementIndex(pane.viewToModel2D(visible.getLocation()));
+        int bottom = root.getElementIndex(pane.viewToModel2D(new Point(visible.x, visible.y + visible.height - 1)));
+        int first = Math.max(from, top);
+        int last = Math.min(to, bottom);
+        if (first > last) {
+            return;
+        }
+        try {
+            Rectangle firstRow = pane.modelToView2D(root.getElement(first).getStartOffset()).getBounds();
+            Rectangle lastRow = pane.modelToView2D(root.getElement(last).getEndOffset() - 1).getBounds();
+            pane.repaint(visible.x, firstRow.y, visible.width, lastRow.y + lastRow.height - firstRow.y);
+        } catch (BadLocationException e) {
+            pane.repaint(visible);
+        }
+    }
+
+    private static ExecutorService executor() {
+        if (lexing == null) {
+            lexing = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "Syntax highlighter");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return lexing;
+    }
+
+    // The state each line starts in, in an array with a gap at the last edit, so adding or
+    // removing lines only moves the states between this edit and the one before
+    private static final class LineStates {
+        private int[] states;
+        private int gapStart;
+        private int gapEnd;
+
+        LineStates(int lines) {
+            states = new int[lines + 64]; // All Lexer.INITIAL
+            gapStart = lines;
+            gapEnd = states.length;
+        }
+
+        int size() {
+            return states.length - (gapEnd - gapStart);
+        }
+
+        int get(int line) {
+            return states[line < gapStart ? line : line + gapEnd - gapStart];
+        }
+
+        void set(int line, int state) {
+            states[line < gapStart ? line : line + gapEnd - gapStart] = state;
+        }
+
+        // Replaces removed lines from line with added ones, each starting in the state line did
+        // (or the last line, for lines added at the end) until they are lexed
+        void replace(int line, int removed, int added) {
+            int state = line < size() ? get(line) : line > 0 ? get(line - 1) : Lexer.INITIAL;
+            moveGap(line);
+            gapEnd += removed;
+            if (gapEnd - gapStart < added) {
+                grow(added);
+            }
+            Arrays.fill(states, gapStart, gapStart + added, state);
+            gapStart += added;
+        }
+
+        private void moveGap(int at) {
+            if (at < gapStart) {
+                int n = gapStart - at;
+                System.arraycopy(states, at, states, gapEnd - n, n);
+                gapStart -= n;
+                gapEnd -= n;
+            } else if (at > gapStart) {
+                int n = at - gapStart;
+                System.arraycopy(states, gapEnd, states, gapStart, n);
+                gapStart += n;
+                gapEnd += n;
+            }
+        }
+
+        private void grow(int needed) {
+            int tail = states.length - gapEnd;
+            int[] grown = new int[Math.max(states.length * 2, size() + needed + 64)];
+            System.arraycopy(states, 0, grown, 0, gapStart);
+            System.arraycopy(states, gapEnd, grown, grown.length - tail, tail);
+            gapEnd = grown.length - tail;
+            states = grown;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.*;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Reads a file as text on the calling thread. The file is memory-mapped in windows and decoded
+// in fixed-size chunks, which are handed to a sink as they are ready. Unless a charset is
+// given, the encoding is detected from the start of the file. If a later part of the file turns
+// out not to be valid in the detected encoding, the sink is told to start over and the file is
+// read again as Latin-1, which maps every byte to a char and back, so saving writes it back
+// unchanged. With a given charset, text that isn't valid in it is an error. Line endings are
+// normalized to LF while counting which style the file used, and decode() returns the
+// resulting TextFormat.
+// FileLoader runs this on a SwingWorker thread for the editor; EditorEngine runs it directly.
+public class TextDecoder {
+    private static final long MAP_WINDOW = 64L << 20;   // bytes mapped at a time
+    static final int CHUNK_CHARS = 256 * 1024;          // chars handed to the sink at a time
+
+    public interface Sink {
+        // Takes the next length chars of the text. The array is reused for the next chunk.
+        void chunk(char[] chars, int length) throws InterruptedException;
+
+        // Drops the chunks taken so far; they are about to be sent again in another encoding
+        void restart() throws InterruptedException;
+
+        default boolean isCancelled() {
+            return false;
+        }
+
+        default void progress(long bytesRead, long fileSize) {
+        }
+    }
+
+    private final Path path;
+    private final Charset charset; // null to detect
+    private final Sink sink;
+
+    private final char[] normalized = new char[CHUNK_CHARS];
+    private boolean pendingCR;
+    private long crlfCount;
+    private long lfCount;
+    private long crCount;
+    private volatile long fileSize;
+
+    public TextDecoder(Path path, Charset charset, Sink sink) {
+        this.path = path;
+        this.charset = charset;
+        this.sink = sink;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    // Decodes the whole file into the sink and returns its format
+    public TextFormat decode() throws IOException, InterruptedException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            fileSize = channel.size();
+            TextFormat detected = TextFormat.detect(channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(fileSize, TextFormat.SAMPLE_BYTES)));
+            if (charset != null && !charset.equals(detected.charset())) {
+                detected = new TextFormat(charset, false, "\n");
+            }
+            try {
+                return decode(channel, detected);
+            } catch (CharacterCodingException e) {
+                if (charset != null || detected.charset().equals(StandardCharsets.ISO_8859_1)) {
+                    throw e;
+                }
+            }
+            // Only the start of the file was checked when the encoding was detected
+            sink.restart();
+            pendingCR = false;
+            crlfCount = lfCount = crCount = 0;
+            return decode(channel, new TextFormat(StandardCharsets.ISO_8859_1, false, "\n"));
+        }
+    }
+
+    private TextFormat decode(FileChannel channel, TextFormat format) throws IOException, InterruptedException {
+        CharBuffer out = CharBuffer.allocate(CHUNK_CHARS);
+        CharsetDecoder decoder = format.charset().newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        long position = format.byteOrderMarkLength();
+        boolean endOfInput = position >= fileSize;
+        if (endOfInput) {
+            decoder.decode(ByteBuffer.allocate(0), out, true); // Lets flush() run on an empty file
+        }
+        while (!endOfInput && !sink.isCancelled()) {
+            long window = Math.min(MAP_WINDOW, fileSize - position);
+            endOfInput = position + window >= fileSize;
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, position, window);
+            CoderResult result;
+            while ((result = decoder.decode(in, out, endOfInput)).isOverflow()) {
+                emit(out);
+            }
+            if (result.isError()) {
+                result.throwException();
+            }
+            // Bytes of a character split across the window edge are mapped again next time
+            position += in.position();
+            sink.progress(position, fileSize);
+        }
+        while (decoder.flush(out).isOverflow()) {
+            emit(out);
+        }
+        emit(out);
+        return format.withLineSeparator(lineSeparator());
+    }
+
+    // The style most of the file's lines ended with; files without line breaks get LF
+    private String lineSeparator() {
+        if (crlfCount > lfCount && crlfCount >= crCount) {
+            return "\r\n";
+        }
+        return crCount > lfCount ? "\r" : "\n";
+    }
+
+    // Hands the decoded chars to the sink, turning CRLF and CR line endings into LF
+    private void emit(CharBuffer out) throws InterruptedException {
+        char[] chars = out.array();
+        int end = out.position();
+        int length = 0;
+        for (int i = 0; i < end; i++) {
+            char c = chars[i];
+            if (pendingCR) {
+                pendingCR = false;
+                if (c == '\n') {
+                    crlfCount++;
+                    crCount--;
+                    continue;
+                }
+            }
+            if (c == '\r') {
+                c = '\n';
+                pendingCR = true;
+                crCount++;
+            } else if (c == '\n') {
+                lfCount++;
+            }
+            normalized[length++] = c;
+        }
+        out.clear();
+        if (length > 0) {
+            sink.chunk(normalized, length);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+import javax.swing.text.DefaultEditorKit;
+import javax.swing.text.Document;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.*;
+
+// How a file's text was stored: its encoding, whether it started with a byte order mark and
+// which line separator it used. The document itself always uses LF; FileLoader records the
+// original format on the document and FileSaver writes it back the same way.
+public record TextFormat(Charset charset, boolean byteOrderMark, String lineSeparator) {
+    public static final TextFormat DEFAULT = new TextFormat(StandardCharsets.UTF_8, false, "\n");
+
+    // Bytes from the start of a file that detect() looks at
+    static final int SAMPLE_BYTES = 64 * 1024;
+
+    public TextFormat withLineSeparator(String separator) {
+        return new TextFormat(charset, byteOrderMark, separator);
+    }
+
+    // The format recorded on a document, or the default for documents that weren't loaded
+    public static TextFormat of(Document doc) {
+        TextFormat format = (TextFormat) doc.getProperty(TextFormat.class);
+        return format != null ? format : DEFAULT;
+    }
+
+    // Also sets the property DefaultEditorKit uses for the line separator, so Swing's own
+    // readers and writers agree with ours
+    public void applyTo(Document doc) {
+        doc.putProperty(TextFormat.class, this);
+        doc.putProperty(DefaultEditorKit.EndOfLineStringProperty, lineSeparator);
+    }
+
+    public String describe() {
+        String separator = switch (lineSeparator) {
+            case "\r\n" -> "CRLF";
+            case "\r" -> "CR";
+            default -> "LF";
+        };
+        return charset.name() + (byteOrderMark ? " with BOM" : "") + ", " + separator;
+    }
+
+    // Number of bytes the byte order mark takes up at the start of the file
+    public int byteOrderMarkLength() {
+        if (!byteOrderMark) {
+            return 0;
+        }
+        return charset.name().startsWith("UTF-32") ? 4 : charset.equals(StandardCharsets.UTF_8) ? 3 : 2;
+    }
+
+    // Guesses the encoding from the start of a file. A byte order mark decides it outright;
+    // otherwise text with zero bytes in every other position is taken as UTF-16, text that
+    // decodes cleanly as UTF-8 (which includes plain ASCII) as UTF-8, and anything else as
+    // Latin-1, which accepts every byte. Only the sample is checked; TextDecoder goes back to
+    // Latin-1 if the rest of the file doesn't decode. The line separator is filled in later by
+    // the decoder.
+    public static TextFormat detect(ByteBuffer sample) {
+        ByteBuffer in = sample.duplicate();
+        if (in.remaining() > SAMPLE_BYTES) {
+            in.limit(in.position() + SAMPLE_BYTES);
+        }
+        int b0 = in.remaining() > 0 ? in.get(in.position()) & 0xFF : -1;
+        int b1 = in.remaining() > 1 ? in.get(in.position() + 1) & 0xFF : -1;
+        int b2 = in.remaining() > 2 ? in.get(in.position() + 2) & 0xFF : -1;
+        if (b0 == 0xEF && b1 == 0xBB && b2 == 0xBF) {
+            return new TextFormat(StandardCharsets.UTF_8, true, "\n");
+        }
+        if (b0 == 0xFE && b1 == 0xFF) {
+            return new TextFormat(StandardCharsets.UTF_16BE, true, "\n");
+        }
+        if (b0 == 0xFF && b1 == 0xFE) {
+            return new TextFormat(StandardCharsets.UTF_16LE, true, "\n");
+        }
+
+        int pairs = in.remaining() / 2;
+        if (pairs >= 2) {
+            int evenZeros = 0;
+            int oddZeros = 0;
+            for (int i = 0; i < pairs * 2; i += 2) {
+                if (in.get(in.position() + i) == 0) {
+                    evenZeros++;
+                }
+                if (in.get(in.position() + i + 1) == 0) {
+                    oddZeros++;
+                }
+            }
+            if (oddZeros > pairs * 2 / 5 && evenZeros < pairs / 20) {
+                return new TextFormat(StandardCharsets.UTF_16LE, false, "\n");
+            }
+            if (evenZeros > pairs * 2 / 5 && oddZeros < pairs / 20) {
+                return new TextFormat(StandardCharsets.UTF_16BE, false, "\n");
+            }
+        }
+
+        CharsetDecoder utf8 = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        CharBuffer out = CharBuffer.allocate(4096);
+        // Not end of input: a character cut off by the end of the sample isn't an error
+        while (true) {
+            CoderResult result = utf8.decode(in, out, false);
+            if (result.isError()) {
+                return new TextFormat(StandardCharsets.ISO_8859_1, false, "\n");
+            }
+            if (result.isUnderflow()) {
+                return new TextFormat(StandardCharsets.UTF_8, false, "\n");
+            }
+            out.clear();
+        }
+    }
+}
@@ -0,0 +1,462 @@
+import javax.swing.text.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// Transforms of the selected text (case, whitespace, line order). A transform runs in three
+// steps so that a large selection doesn't block the EDT:
+//
+//   snapshot(doc, start, end)  on the thread that edits the document, copies the text and its
+//                              style runs
+//   Snapshot.compute()         on any thread, splits the text into chunks of whole lines and
+//                              transforms them on the fork-join pool, giving the smallest edits
+//                              that turn the old text into the new one
+//   Snapshot.apply(doc, edits) back on the editing thread, when the document hasn't changed.
+//                              Snapshot.start(doc, edits) applies them a slice at a time instead
+//
+// Edits keep the styles of the text they replace (or, for moved lines, of the line they came
+// from), so transforming formatted text only changes its characters.
+public enum TextTransform {
+    UPPER_CASE("Uppercase", false),
+    LOWER_CASE("Lowercase", false),
+    TITLE_CASE("Title Case", false),
+    TRIM_TRAILING_WHITESPACE("Trim Trailing Whitespace", true),
+    SORT_LINES("Sort Lines", true),
+    REMOVE_DUPLICATE_LINES("Remove Duplicate Lines", true),
+    TABS_TO_SPACES("Tabs to Spaces", true),
+    SPACES_TO_TABS("Indent with Tabs", true);
+
+    public static final int TAB_WIDTH = 4;
+
+    private static final int CHUNK_CHARS = 64 * 1024;
+    // Edits this close together are applied as one replacement, so that transforming every
+    // word of a long selection doesn't become millions of document events
+    private static final int MERGE_GAP = 64;
+    // ...up to this span, so each replacement rebuilds a bounded number of paragraphs and the
+    // cost of applying a slice of them doesn't depend on the size of the selection
+    private static final int MAX_REPLACE_CHARS = 16 * 1024;
+
+    private final String label;
+    private final boolean wholeLines;
+
+    TextTransform(String label, boolean wholeLines) {
+        this.label = label;
+        this.wholeLines = wholeLines;
+    }
+
+    // Line transforms work on every line the selection touches
+    public boolean isWholeLines() {
+        return wholeLines;
+    }
+
+    @Override
+    public String toString() {
+        return label;
+    }
+
+    // Replace [offset, offset + length) of the snapshot with text. The new text takes its styles
+    // from the snapshot starting at styleFrom, or, when styleFrom is -1, the style of the first
+    // character it replaces.
+    public record Edit(int offset, int length, String text, int styleFrom) {
+    }
+
+    // Copies [start, end) of the document, widened to whole lines for line transforms. Call on
+    // the thread that edits the document.
+    public Snapshot snapshot(StyledDocument doc, int start, int end) throws BadLocationException {
+        if (wholeLines) {
+            Element root = doc.getDefaultRootElement();
+            start = root.getElement(root.getElementIndex(start)).getStartOffset();
+            Element last = root.getElement(root.getElementIndex(Math.max(start, end - 1)));
+            end = Math.min(last.getEndOffset() - 1, doc.getLength()); // Not the last line's newline
+        }
+        return new Snapshot(this, start, doc.getText(start, end - start), styleRuns(doc, start, end - start));
+    }
+
+    public static final class Snapshot {
+        private final TextTransform transform;
+        private final int offset;
+        private final String text;
+        private final CompactStyledDocument.StyleRuns runs;
+        private final int[] runStarts;
+
+        private Snapshot(TextTransform transform, int offset, String text, CompactStyledDocument.StyleRuns runs) {
+            this.transform = transform;
+            this.offset = offset;
+            this.text = text;
+            this.runs = runs;
+            runStarts = new int[runs.count() + 1];
+            for (int i = 0; i < runs.count(); i++) {
+                runStarts[i + 1] = runStarts[i] + runs.lengths()[i];
+            }
+        }
+
+        public TextTransform transform() {
+            return transform;
+        }
+
+        public int offset() {
+            return offset;
+        }
+
+        public int length() {
+            return text.length();
+        }
+
+        // The edits that make the transformed text, in order. Safe to call on any thread.
+        public List<Edit> compute() {
+            return switch (transform) {
+                case SORT_LINES -> sortLines();
+                case REMOVE_DUPLICATE_LINES -> removeDuplicateLines();
+                default -> ForkJoinPool.commonPool().invoke(new LinesTask(0, text.length()));
+            };
+        }
+
+        // Applies the edits from compute() back to front and returns the length the snapshot's
+        // range now has. The document must be as it was when the snapshot was taken.
+        public int apply(StyledDocument doc, List<Edit> edits) throws BadLocationException {
+            Application application = start(doc, edits);
+            while (!application.isDone()) {
+                application.applySome(Long.MAX_VALUE);
+            }
+            return application.newLength();
+        }
+
+        // Starts applying the edits from compute(), for the caller to go on with a slice at a
+        // time. Nothing is applied yet.
+        public Application start(StyledDocument doc, List<Edit> edits) {
+            return new Application(doc, edits);
+        }
+
+        // Edits being applied back to front, one replacement at a time. Between slices the
+        // document must not change, apart from what this applies.
+        public final class Application {
+            private final StyledDocument doc;
+            private final List<Edit> edits;
+            private final int newLength;
+            private int last; // The last edit not applied yet
+
+            private Application(StyledDocument doc, List<Edit> edits) {
+                this.doc = doc;
+                this.edits = edits;
+                int length = text.length();
+                for (Edit edit : edits) {
+                    length += edit.text().length() - edit.length();
+                }
+                newLength = length;
+                last = edits.size() - 1;
+            }
+
+            // Applies replacements until all are done or System.nanoTime() passes deadline,
+            // at least one per call
+            public void applySome(long deadline) throws BadLocationException {
+                do {
+                    int first = last;
+                    while (first > 0 && edits.get(first).offset() - end(edits.get(first - 1)) <= MERGE_GAP
+                            && end(edits.get(last)) - edits.get(first - 1).offset() <= MAX_REPLACE_CHARS) {
+                        first--;
+                    }
+                    replace(doc, edits.subList(first, last + 1));
+                    last = first - 1;
+                } while (last >= 0 && System.nanoTime() < deadline);
+            }
+
+            public boolean isDone() {
+                return last < 0;
+            }
+
+            // Percent of the edits applied
+            public int progress() {
+                return edits.isEmpty() ? 100 : (int) ((edits.size() - 1L - last) * 100 / edits.size());
+            }
+
+            public int applied() {
+                return edits.size() - 1 - last;
+            }
+
+            // The length the snapshot's range has once every edit is applied
+            public int newLength() {
+                return newLength;
+            }
+        }
+
+        // Replaces the range the edits cover, the unchanged text between them included, with one
+        // removal and an insertion per style run
+        private void replace(StyledDocument doc, List<Edit> cluster) throws BadLocationException {
+            StyledText replacement = new StyledText();
+            int start = cluster.get(0).offset();
+            int position = start;
+            for (Edit edit : cluster) {
+                replacement.append(text, position, edit.offset(), position);
+                if (edit.styleFrom() >= 0) {
+                    replacement.append(edit.text(), 0, edit.text().length(), edit.styleFrom());
+                } else {
+                    int at = edit.length() > 0 || edit.offset() == 0 ? edit.offset() : edit.offset() - 1;
+                    replacement.add(edit.text(), 0, edit.text().length(), styleAt(at));
+                }
+                position = end(edit);
+            }
+            doc.remove(offset + start, position - start);
+            int at = offset + start;
+            for (int i = 0; i < replacement.texts.size(); i++) {
+                doc.insertString(at, replacement.texts.get(i).toString(), replacement.styles.get(i));
+                at += replacement.texts.get(i).length();
+            }
+        }
+
+        private static int end(Edit edit) {
+            return edit.offset() + edit.length();
+        }
+
+        private AttributeSet styleAt(int position) {
+            if (runs.count() == 0) {
+                return SimpleAttributeSet.EMPTY;
+            }
+            return runs.styles()[runAt(position)];
+        }
+
+        private int runAt(int position) {
+            int i = Arrays.binarySearch(runStarts, 0, runs.count(), position);
+            return i >= 0 ? i : -i - 2;
+        }
+
+        // Text with runs of styles, joining pieces that share a style
+        private final class StyledText {
+            final List<StringBuilder> texts = new ArrayList<>();
+            final List<AttributeSet> styles = new ArrayList<>();
+
+            // Appends chars [from, to) styled like the snapshot from styleFrom on
+            void append(String chars, int from, int to, int styleFrom) {
+                if (runs.count() == 0) {
+                    add(chars, from, to, SimpleAttributeSet.EMPTY);
+                    return;
+                }
+                for (int run = runAt(styleFrom); from < to; run++) {
+                    // Anything past the last run keeps its style
+                    int take = run == runs.count() - 1 ? to - from : Math.min(to - from, runStarts[run + 1] - styleFrom);
+                    add(chars, from, from + take, runs.styles()[run]);
+                    from += take;
+                    styleFrom += take;
+                }
+            }
+
+            void add(String chars, int from, int to, AttributeSet style) {
+                if (from == to) {
+                    return;
+                }
+                int last = texts.size() - 1;
+                if (last >= 0 && styles.get(last) == style) {
+                    texts.get(last).append(chars, from, to);
+                } else {
+                    texts.add(new StringBuilder().append(chars, from, to));
+                    styles.add(style);
+                }
+            }
+        }
+
+        // Transforms the lines in [from, to), splitting at newlines until chunks are small
+        private final class LinesTask extends RecursiveTask<List<Edit>> {
+            private final int from;
+            private final int to;
+
+            LinesTask(int from, int to) {
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected List<Edit> compute() {
+                if (to - from > CHUNK_CHARS) {
+                    int split = text.indexOf('\n', (from + to) >>> 1);
+                    if (split >= 0 && split < to - 1) {
+                        LinesTask right = new LinesTask(split + 1, to);
+                        right.fork();
+                        List<Edit> edits = new LinesTask(from, split + 1).compute();
+                        edits.addAll(right.join());
+                        return edits;
+                    }
+                }
+                List<Edit> edits = new ArrayList<>();
+                for (int start = from; start < to; ) {
+                    int newline = text.indexOf('\n', start);
+                    int end = newline < 0 || newline >= to ? to : newline;
+                    String line = text.substring(start, end);
+                    diff(start, line, transform.transformLine(line), -1, edits);
+                    start = end + 1;
+                }
+                return edits;
+            }
+        }
+
+        private List<Edit> sortLines() {
+            String[] lines = text.split("\n", -1);
+            int[] starts = lineStarts(lines);
+            Integer[] order = new Integer[lines.length];
+            Arrays.setAll(order, i -> i);
+            Arrays.parallelSort(order, (a, b) -> lines[a].compareTo(lines[b])); // Stable
+            List<Edit> edits = new ArrayList<>();
+            for (int i = 0; i < lines.length; i++) {
+                diff(starts[i], lines[i], lines[order[i]], starts[order[i]], edits);
+            }
+            return edits;
+        }
+
+        // Keeps the first of each set of equal lines
+        private List<Edit> removeDuplicateLines() {
+            String[] lines = text.split("\n", -1);
+            int[] starts = lineStarts(lines);
+            Set<String> seen = new HashSet<>();
+            List<Edit> edits = new ArrayList<>();
+            int lastKept = 0;
+            for (int i = 0; i < lines.length; i++) {
+                if (seen.add(lines[i])) {
+                    lastKept = i;
+                } else if (i < lines.length - 1) {
+                    edits.add(new Edit(starts[i], lines[i].length() + 1, "", -1));
+                }
+            }
+            if (lastKept < lines.length - 1) {
+                // The last line has no newline of its own to take with it, so the removed lines
+                // after the last kept one go together with that line's newline
+                while (!edits.isEmpty() && edits.get(edits.size() - 1).offset() > starts[lastKept]) {
+                    edits.remove(edits.size() - 1);
+                }
+                int from = starts[lastKept] + lines[lastKept].length();
+                edits.add(new Edit(from, text.length() - from, "", -1));
+            }
+            return edits;
+        }
+
+        private static int[] lineStarts(String[] lines) {
+            int[] starts = new int[lines.length];
+            for (int i = 1; i < lines.length; i++) {
+                starts[i] = starts[i - 1] + lines[i - 1].length() + 1;
+            }
+            return starts;
+        }
+    }
+
+    // Adds the edits that turn line (at offset) into replacement. styleFrom is where the
+    // replacement's styles come from, or -1 when it is the same line transformed in place.
+    private static void diff(int offset, String line, String replacement, int styleFrom, List<Edit> edits) {
+        if (line.equals(replacement)) {
+            return;
+        }
+        if (styleFrom < 0 && line.length() == replacement.length()) {
+            // Character for character, as for most case changes: only the stretches that
+            // differ, joined when they are close enough to be applied together anyway
+            int first = -1;
+            int last = -1;
+            for (int i = 0, n = line.length(); i < n; i++) {
+                if (line.charAt(i) == replacement.charAt(i)) {
+                    continue;
+                }
+                if (first >= 0 && (i - last > MERGE_GAP || i - first >= MAX_REPLACE_CHARS)) {
+                    edits.add(new Edit(offset + first, last + 1 - first, replacement.substring(first, last + 1), offset + first));
+                    first = -1;
+                }
+                if (first < 0) {
+                    first = i;
+                }
+                last = i;
+            }
+            edits.add(new Edit(offset + first, last + 1 - first, replacement.substring(first, last + 1), offset + first));
+            return;
+        }
+        int prefix = 0;
+        int max = Math.min(line.length(), replacement.length());
+        while (prefix < max && line.charAt(prefix) == replacement.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < max - prefix
+                && line.charAt(line.length() - 1 - suffix) == replacement.charAt(replacement.length() - 1 - suffix)) {
+            suffix++;
+        }
+        edits.add(new Edit(offset + prefix, line.length() - prefix - suffix,
+                replacement.substring(prefix, replacement.length() - suffix), styleFrom < 0 ? -1 : styleFrom + prefix));
+    }
+
+    // One line, without its newline. Only used by the transforms that work a line at a time.
+    String transformLine(String line) {
+        return switch (this) {
+            case UPPER_CASE -> line.toUpperCase();
+            case LOWER_CASE -> line.toLowerCase();
+            case TITLE_CASE -> titleCase(line);
+            case TRIM_TRAILING_WHITESPACE -> line.stripTrailing();
+            case TABS_TO_SPACES -> expandTabs(line);
+            case SPACES_TO_TABS -> indentWithTabs(line);
+            default -> throw new IllegalStateException(label + " works on all lines at once");
+        };
+    }
+
+    private static String titleCase(String line) {
+        StringBuilder out = new StringBuilder(line.length());
+        boolean wordStart = true;
+        for (int i = 0; i < line.length(); ) {
+            int c = line.codePointAt(i);
+            i += Character.charCount(c);
+            if (Character.isLetterOrDigit(c) || (c == '\'' && !wordStart)) {
+                out.appendCodePoint(wordStart ? Character.toTitleCase(c) : Character.toLowerCase(c));
+                wordStart = false;
+            } else {
+                out.appendCodePoint(c);
+                wordStart = true;
+            }
+        }
+        return out.toString();
+    }
+
+    private static String expandTabs(String line) {
+        if (line.indexOf('\t') < 0) {
+            return line;
+        }
+        StringBuilder out = new StringBuilder(line.length() + 16);
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\t') {
+                out.append(" ".repeat(TAB_WIDTH - out.length() % TAB_WIDTH));
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+    // Rewrites the leading indentation as tabs, with spaces for any remainder
+    private static String indentWithTabs(String line) {
+        int columns = 0;
+        int i = 0;
+        for (; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == ' ') {
+                columns++;
+            } else if (c == '\t') {
+                columns += TAB_WIDTH - columns % TAB_WIDTH;
+            } else {
+                break;
+            }
+        }
+        return "\t".repeat(columns / TAB_WIDTH) + " ".repeat(columns % TAB_WIDTH) + line.substring(i);
+    }
+
+    private static CompactStyledDocument.StyleRuns styleRuns(StyledDocument doc, int offset, int length) {
+        if (doc instanceof CompactStyledDocument compact) {
+            return compact.getStyleRuns(offset, length);
+        }
+        List<AttributeSet> styles = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+        for (int position = offset, end = offset + length; position < end; ) {
+            Element run = doc.getCharacterElement(position);
+            int runEnd = Math.min(run.getEndOffset(), end);
+            styles.add(run.getAttributes().copyAttributes());
+            lengths.add(runEnd - position);
+            position = runEnd;
+        }
+        return new CompactStyledDocument.StyleRuns(styles.size(),
+                lengths.stream().mapToInt(Integer::intValue).toArray(), styles.toArray(new AttributeSet[0]));
+    }
+}
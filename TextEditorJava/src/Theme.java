@@ -0,0 +1,193 @@
+import javax.swing.*;
+import java.awt.*;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.Consumer;
+
+// A palette: one color for each part of the window a theme paints. The light theme is the look
+// and feel's own colors and the dark one the editor's dark mode. More are read from
+// ~/.texteditor/themes/<name>.properties, whose keys are role names such as text.background and
+// whose values are #rrggbb colors; base=dark starts from the dark palette rather than the light
+// one. The colors are made when the theme is built, so switching themes only hands them out.
+public final class Theme {
+    public static final Path DIRECTORY = Path.of(System.getProperty("user.home"), ".texteditor", "themes");
+    private static final String EXTENSION = ".properties";
+
+    public enum Role {
+        TEXT_BACKGROUND,
+        TEXT_FOREGROUND,
+        CARET,
+        CANVAS_BACKGROUND,
+        SHAPES,
+        MENU_BAR_BACKGROUND,
+        MENU_BAR_FOREGROUND,
+        MENU_BACKGROUND,
+        MENU_FOREGROUND,
+        PANEL_BACKGROUND,
+        PANEL_FOREGROUND,
+        SYNTAX_KEYWORD,
+        SYNTAX_STRING,
+        SYNTAX_NUMBER,
+        SYNTAX_COMMENT,
+        SYNTAX_KEY,
+        SYNTAX_TIMESTAMP,
+        SYNTAX_ERROR,
+        SYNTAX_WARNING,
+        SYNTAX_INFO,
+        SYNTAX_DEBUG;
+
+        // The key in a theme file, such as text.background
+        public String key() {
+            return name().toLowerCase(Locale.ROOT).replace('_', '.');
+        }
+    }
+
+    public static final Theme LIGHT = new Theme("Light", Map.ofEntries(
+            Map.entry(Role.TEXT_BACKGROUND, lookAndFeel("TextPane.background", Color.WHITE)),
+            Map.entry(Role.TEXT_FOREGROUND, lookAndFeel("TextPane.foreground", Color.BLACK)),
+            Map.entry(Role.CARET, lookAndFeel("TextPane.caretForeground", Color.BLACK)),
+            Map.entry(Role.CANVAS_BACKGROUND, Color.WHITE),
+            Map.entry(Role.SHAPES, Color.BLACK),
+            Map.entry(Role.MENU_BAR_BACKGROUND, lookAndFeel("MenuBar.background", Color.WHITE)),
+            Map.entry(Role.MENU_BAR_FOREGROUND, lookAndFeel("MenuBar.foreground", Color.BLACK)),
+            Map.entry(Role.MENU_BACKGROUND, lookAndFeel("Menu.background", Color.WHITE)),
+            Map.entry(Role.MENU_FOREGROUND, lookAndFeel("Menu.foreground", Color.BLACK)),
+            Map.entry(Role.PANEL_BACKGROUND, lookAndFeel("Panel.background", Color.LIGHT_GRAY)),
+            Map.entry(Role.PANEL_FOREGROUND, lookAndFeel("Panel.foreground", Color.BLACK)),
+            Map.entry(Role.SYNTAX_KEYWORD, new Color(0x0033B3)),
+            Map.entry(Role.SYNTAX_STRING, new Color(0x067D17)),
+            Map.entry(Role.SYNTAX_NUMBER, new Color(0x1750EB)),
+            Map.entry(Role.SYNTAX_COMMENT, new Color(0x8C8C8C)),
+            Map.entry(Role.SYNTAX_KEY, new Color(0x871094)),
+            Map.entry(Role.SYNTAX_TIMESTAMP, new Color(0x0E7C86)),
+            Map.entry(Role.SYNTAX_ERROR, new Color(0xC4161C)),
+            Map.entry(Role.SYNTAX_WARNING, new Color(0xB35C00)),
+            Map.entry(Role.SYNTAX_INFO, new Color(0x067D17)),
+            Map.entry(Role.SYNTAX_DEBUG, new Color(0x8C8C8C))));
+
+    public static final Theme DARK = new Theme("Dark", Map.ofEntries(
+            Map.entry(Role.TEXT_BACKGROUND, Color.DARK_GRAY),
+            Map.entry(Role.TEXT_FOREGROUND, Color.WHITE),
+            Map.entry(Role.CARET, Color.WHITE),
+            Map.entry(Role.CANVAS_BACKGROUND, Color.DARK_GRAY),
+            Map.entry(Role.SHAPES, Color.WHITE),
+            Map.entry(Role.MENU_BAR_BACKGROUND, Color.BLACK),
+            Map.entry(Role.MENU_BAR_FOREGROUND, Color.WHITE),
+            Map.entry(Role.MENU_BACKGROUND, Color.DARK_GRAY),
+            Map.entry(Role.MENU_FOREGROUND, Color.WHITE),
+            Map.entry(Role.PANEL_BACKGROUND, Color.BLACK),
+            Map.entry(Role.PANEL_FOREGROUND, Color.WHITE),
+            Map.entry(Role.SYNTAX_KEYWORD, new Color(0xCC7832)),
+            Map.entry(Role.SYNTAX_STRING, new Color(0x6A8759)),
+            Map.entry(Role.SYNTAX_NUMBER, new Color(0x6897BB)),
+            Map.entry(Role.SYNTAX_COMMENT, new Color(0x9A9A9A)),
+            Map.entry(Role.SYNTAX_KEY, new Color(0xC77DBB)),
+            Map.entry(Role.SYNTAX_TIMESTAMP, new Color(0x5FB3B3)),
+            Map.entry(Role.SYNTAX_ERROR, new Color(0xFF6B68)),
+            Map.entry(Role.SYNTAX_WARNING, new Color(0xE5C07B)),
+            Map.entry(Role.SYNTAX_INFO, new Color(0x98C379)),
+            Map.entry(Role.SYNTAX_DEBUG, new Color(0x9A9A9A))));
+
+    private final String name;
+    private final Color[] colors = new Color[Role.values().length];
+
+    private Theme(String name, Map<Role, Color> colors) {
+        this.name = name;
+        for (Role role : Role.values()) {
+            this.colors[role.ordinal()] = colors.get(role);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Color get(Role role) {
+        return colors[role.ordinal()];
+    }
+
+    private static Color lookAndFeel(String key, Color fallback) {
+        Color color = UIManager.getColor(key);
+        return color != null ? color : fallback;
+    }
+
+    // Reads a theme file; the theme is named after the file
+    public static Theme load(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        String base = properties.getProperty("base", "light").trim();
+        Theme from;
+        if (base.equalsIgnoreCase("light")) {
+            from = LIGHT;
+        } else if (base.equalsIgnoreCase("dark")) {
+            from = DARK;
+        } else {
+            throw new IOException("Unknown base theme " + base + ", expected light or dark");
+        }
+
+        Map<Role, Color> colors = new EnumMap<>(Role.class);
+        for (Role role : Role.values()) {
+            colors.put(role, from.get(role));
+        }
+        for (String key : properties.stringPropertyNames()) {
+            if (key.equals("base")) {
+                continue;
+            }
+            Role role = roleFor(key);
+            if (role == null) {
+                throw new IOException("Unknown color " + key);
+            }
+            String value = properties.getProperty(key).trim();
+            try {
+                colors.put(role, Color.decode(value));
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad color for " + key + ": " + value);
+            }
+        }
+        String fileName = file.getFileName().toString();
+        return new Theme(fileName.substring(0, fileName.length() - EXTENSION.length()), colors);
+    }
+
+    private static Role roleFor(String key) {
+        for (Role role : Role.values()) {
+            if (role.key().equals(key)) {
+                return role;
+            }
+        }
+        return null;
+    }
+
+    // The themes in the themes directory, sorted by name. A file that can't be read is left
+    // out and reported to problems.
+    public static List<Theme> loadAll(Consumer<String> problems) {
+        List<Theme> themes = new ArrayList<>();
+        if (!Files.isDirectory(DIRECTORY)) {
+            return themes;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(DIRECTORY, "*" + EXTENSION)) {
+            for (Path file : files) {
+                try {
+                    themes.add(load(file));
+                } catch (IOException e) {
+                    problems.accept("Theme " + file.getFileName() + " skipped: " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            problems.accept("Can't list themes: " + e.getMessage());
+        }
+        themes.sort((a, b) -> a.name.compareToIgnoreCase(b.name));
+        return themes;
+    }
+}
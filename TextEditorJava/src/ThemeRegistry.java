@@ -0,0 +1,115 @@
+import javax.swing.*;
+import javax.swing.event.PopupMenuEvent;
+import javax.swing.event.PopupMenuListener;
+import javax.swing.text.StyledDocument;
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+// The components that take their colors from the theme, each bound to the roles it takes.
+// Switching themes sets those colors and nothing else: no look and feel defaults are changed
+// and no component's UI is rebuilt, and a component given the color it already has doesn't
+// repaint, so a switch only repaints what the new palette changes. Menu items are colored as
+// their menu opens, since no one sees them before that.
+public final class ThemeRegistry {
+    private static final String THEMED_POPUP = "ThemeRegistry.themed";
+
+    private record Binding(Theme.Role role, Consumer<Color> setter) {
+    }
+
+    private final List<Binding> bindings = new ArrayList<>();
+    private Theme theme = Theme.LIGHT;
+
+    public Theme getTheme() {
+        return theme;
+    }
+
+    // Calls setter with the role's color now and on every switch
+    public void bind(Theme.Role role, Consumer<Color> setter) {
+        bindings.add(new Binding(role, setter));
+        setter.accept(theme.get(role));
+    }
+
+    public void register(JComponent component, Theme.Role background, Theme.Role foreground) {
+        bind(background, component::setBackground);
+        bind(foreground, component::setForeground);
+    }
+
+    public void registerTextPane(JTextPane pane) {
+        bind(Theme.Role.TEXT_BACKGROUND, pane::setBackground);
+        bind(Theme.Role.CARET, pane::setCaretColor);
+        bind(Theme.Role.TEXT_FOREGROUND, color -> setTextColor(pane, color));
+    }
+
+    public void registerMenus(JMenuBar menuBar) {
+        register(menuBar, Theme.Role.MENU_BAR_BACKGROUND, Theme.Role.MENU_BAR_FOREGROUND);
+        for (int i = 0; i < menuBar.getMenuCount(); i++) {
+            JMenu menu = menuBar.getMenu(i);
+            if (menu != null) {
+                register(menu, Theme.Role.MENU_BACKGROUND, Theme.Role.MENU_FOREGROUND);
+                themeWhenShown(menu.getPopupMenu());
+            }
+        }
+    }
+
+    public void apply(Theme theme) {
+        this.theme = theme;
+        for (Binding binding : bindings) {
+            binding.setter.accept(theme.get(binding.role));
+        }
+    }
+
+    private void themeWhenShown(JPopupMenu popup) {
+        if (popup.getClientProperty(THEMED_POPUP) != null) {
+            return;
+        }
+        popup.putClientProperty(THEMED_POPUP, Boolean.TRUE);
+        popup.addPopupMenuListener(new PopupMenuListener() {
+            @Override
+            public void popupMenuWillBecomeVisible(PopupMenuEvent e) {
+                Color background = theme.get(Theme.Role.MENU_BACKGROUND);
+                Color foreground = theme.get(Theme.Role.MENU_FOREGROUND);
+                popup.setBackground(background);
+                for (Component item : popup.getComponents()) {
+                    item.setBackground(background);
+                    item.setForeground(foreground);
+                    if (item instanceof JMenu submenu) {
+                        themeWhenShown(submenu.getPopupMenu());
+                    }
+                }
+            }
+
+            @Override
+            public void popupMenuWillBecomeInvisible(PopupMenuEvent e) {
+            }
+
+            @Override
+            public void popupMenuCanceled(PopupMenuEvent e) {
+            }
+        });
+    }
+
+    // Puts a document into the pane. The pane gives the document's default style its own
+    // foreground, which must not reach the document's listeners as a change (see setTextColor).
+    public static void setDocument(JTextPane pane, StyledDocument doc) {
+        if (doc instanceof CompactStyledDocument compact) {
+            compact.changeStylesQuietly(() -> pane.setStyledDocument(doc));
+        } else {
+            pane.setStyledDocument(doc);
+        }
+    }
+
+    // The text is drawn in the foreground of the document's default style, which the pane sets
+    // to its own. Changing the style makes the document queue a change over all of its text,
+    // which its listeners would take for an edit: the journal would record a restyle of the
+    // whole document and the editor would mark it modified. So the style is changed quietly;
+    // LargeFileEditorKit's views read the color as they paint, and the pane repaints itself.
+    private static void setTextColor(JTextPane pane, Color color) {
+        if (pane.getStyledDocument() instanceof CompactStyledDocument compact) {
+            compact.changeStylesQuietly(() -> pane.setForeground(color));
+        } else {
+            pane.setForeground(color);
+        }
+    }
+}